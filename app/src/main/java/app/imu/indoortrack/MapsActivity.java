@@ -19,6 +19,8 @@ import com.google.android.gms.maps.OnMapReadyCallback;
 import com.google.android.gms.maps.SupportMapFragment;
 
 import app.imu.indoortrack.io.FileService;
+import app.imu.indoortrack.map.MetricsOverlay;
+import app.imu.indoortrack.metrics.TrackingMetrics;
 import app.imu.indoortrack.sensor.InertialSensor;
 import app.imu.indoortrack.sensor.GpsSensor;
 
@@ -28,6 +30,7 @@ public class MapsActivity extends FragmentActivity implements OnMapReadyCallback
     private InertialSensor mInertialSensor;
     private GpsSensor mGps;
     private SharedPreferences mSharedPrefs;
+    private MetricsOverlay mMetricsOverlay;
 
     private boolean mSensorsStarted;
 
@@ -113,6 +116,14 @@ public class MapsActivity extends FragmentActivity implements OnMapReadyCallback
             if (mGps == null) {
                 mGps = new GpsSensor(MapsActivity.this, mInertialSensor);
             }
+            TrackingMetrics metrics = mInertialSensor.getMetrics();
+            if (metrics != null) {
+                runOnUiThread(() -> {
+                    if (mMetricsOverlay != null) mMetricsOverlay.stop();
+                    mMetricsOverlay = new MetricsOverlay(findViewById(R.id.metrics), metrics);
+                    mMetricsOverlay.start();
+                });
+            }
             mInertialSensor.startSensors();
             mGps.startGps();
         }).start();
@@ -121,6 +132,10 @@ public class MapsActivity extends FragmentActivity implements OnMapReadyCallback
     private void stopSensors() {
         stopService(new Intent(this, FileService.class));
         mSensorsStarted = false;
+        if (mMetricsOverlay != null) {
+            mMetricsOverlay.stop();
+            mMetricsOverlay = null;
+        }
         if(mInertialSensor != null) {
             mInertialSensor.stopSensors();
             mInertialSensor = null;
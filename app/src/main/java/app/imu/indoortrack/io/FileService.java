@@ -16,6 +16,7 @@ public class FileService extends Service {
     public void onDestroy() {
         super.onDestroy();
         System.out.println("Service stopped");
+        // drains the async log queue before closing, so the tail of the session is kept
         SensorDataWriter.closeAllFiles();
     }
 }
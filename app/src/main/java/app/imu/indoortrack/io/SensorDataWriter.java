@@ -2,52 +2,211 @@ package app.imu.indoortrack.io;
 
 import android.app.Activity;
 import android.content.Context;
+import android.util.Log;
 
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Formatter;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import app.imu.indoortrack.metrics.TrackingMetrics;
 
 public class SensorDataWriter {
 
-    private FileOutputStream mOut;
+    public enum LogStorage {
+        /** Single {@link BinaryLogFormat} file written by the {@link AsyncLogWriter} thread. */
+        FILE,
+        /**
+         * Rolling {@link SegmentedLogWriter} segments in a directory per session, written by the
+         * {@link AsyncLogWriter} thread.
+         */
+        MAPPED_SEGMENTS
+    }
+
+    // both null if the log could not be opened
+    private LogSink mBinaryOut;
+    private AsyncLogWriter mAsyncWriter;
+    private final TrackingMetrics mMetrics = getMetrics();
+
+    private static AsyncLogWriter sAsyncWriter;
+    private static AsyncLogWriter.BackpressurePolicy sBackpressurePolicy =
+            AsyncLogWriter.BackpressurePolicy.BLOCK;
+    private static LogStorage sLogStorage = LogStorage.MAPPED_SEGMENTS;
+    private static ArrayList<SegmentedLogWriter> sOpenSegmentLogs = new ArrayList<>();
+    // where the segmented logs of the current session go, created with its first writer
+    private static File sSessionDir;
+    private static TrackingMetrics sMetrics;
+    // records of writers whose log could not be opened
+    private static final AtomicLong sUnopenedDropCount = new AtomicLong();
 
-    private static ArrayList<FileOutputStream> sOpenFiles = new ArrayList<>();
+    private static final String TAG = "SensorDataWriter";
+    private static final int ASYNC_QUEUE_CAPACITY = 4096;
+    private static final int ASYNC_MAX_BATCH = 256;
+    private static final String SESSIONS_DIR_NAME = "sessions";
+    // older session directories are deleted when a new one is started
+    private static final int MAX_SESSIONS = 16;
 
-    public SensorDataWriter(String fileName, Activity activity) {
+    /**
+     * Writes fixed-width binary records, stored as selected by {@link #setLogStorage}. If the log
+     * cannot be opened the records are dropped and counted, see {@link #getUnopenedDropCount}.
+     * @param fileName Log file name; for segmented storage its base name becomes the directory
+     *                 within the session directory
+     * @param fieldCount Number of values per record
+     */
+    public SensorDataWriter(String fileName, int fieldCount, Activity activity) {
+        FileOutputStream out = null;
         try {
-            mOut = activity.openFileOutput(fileName, Context.MODE_PRIVATE);
-            sOpenFiles.add(mOut);
-        } catch (IOException e) { e.printStackTrace(); }
+            LogSink log;
+            if (getLogStorage() == LogStorage.MAPPED_SEGMENTS) {
+                int dot = fileName.lastIndexOf('.');
+                String baseName = dot > 0 ? fileName.substring(0, dot) : fileName;
+                SegmentedLogWriter segments = new SegmentedLogWriter(new File(getSessionDir(activity), baseName), fieldCount);
+                synchronized (SensorDataWriter.class) {
+                    sOpenSegmentLogs.add(segments);
+                }
+                log = segments;
+            } else {
+                out = activity.openFileOutput(fileName, Context.MODE_PRIVATE);
+                log = new BinaryLogWriter(out, fieldCount);
+            }
+            AsyncLogWriter asyncWriter = getAsyncWriter();
+            asyncWriter.register(log);
+            mBinaryOut = log;
+            mAsyncWriter = asyncWriter;
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.e(TAG, "Unable to open " + fileName + ", its records are dropped");
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException closeError) { closeError.printStackTrace(); }
+            }
+        }
+    }
+
+    /**
+     * A new directory under {@code sessions} for each session, named by its start time, so a
+     * session never appends to the segments of the previous one, even after a crash.
+     */
+    private static synchronized File getSessionDir(Context context) throws IOException {
+        if (sSessionDir != null) return sSessionDir;
+        File sessions = new File(context.getFilesDir(), SESSIONS_DIR_NAME);
+        String name = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        File dir = new File(sessions, name);
+        for (int i = 1; dir.exists(); ++i) dir = new File(sessions, name + "-" + i);
+        if (!dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        deleteOldSessions(sessions);
+        sSessionDir = dir;
+        return dir;
+    }
+
+    private static void deleteOldSessions(File sessions) {
+        File[] dirs = sessions.listFiles(File::isDirectory);
+        if (dirs == null) return;
+        Arrays.sort(dirs);
+        for (int i = 0; i < dirs.length - MAX_SESSIONS; ++i) {
+            if (!delete(dirs[i])) Log.w(TAG, "Unable to delete " + dirs[i]);
+        }
+    }
+
+    private static boolean delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) delete(child);
+        }
+        return file.delete();
     }
 
     public void writeData(double x, double y, double z) {
-        try {
-            Formatter formatx = new Formatter();
-            Formatter formaty = new Formatter();
-            Formatter formatz = new Formatter();
-            formatx.format("%.10f", x);
-            formaty.format("%.10f", y);
-            formatz.format("%.10f", z);
-            String data = System.currentTimeMillis() + "," + formatx + "," + formaty + "," + formatz + "\n";
-            mOut.write(data.getBytes());
-        } catch (IOException e) { e.printStackTrace(); }
+        long start = mMetrics != null ? System.nanoTime() : 0;
+        write(x, y, z);
+        if (mMetrics != null) mMetrics.getWriter().record(System.nanoTime() - start);
     }
 
     public void writeData(double val) {
-        try {
-            Formatter formatVal = new Formatter();
-            formatVal.format("%.10f", val);
-            String data = System.currentTimeMillis() + "," + formatVal + "\n";
-            mOut.write(data.getBytes());
-        } catch (IOException e) { e.printStackTrace(); }
+        long start = mMetrics != null ? System.nanoTime() : 0;
+        write(val);
+        if (mMetrics != null) mMetrics.getWriter().record(System.nanoTime() - start);
     }
 
-    static void closeAllFiles() {
-        try {
-            for (FileOutputStream fos: sOpenFiles) {
-                fos.close();
+    private void write(double x, double y, double z) {
+        if (mAsyncWriter == null) {
+            sUnopenedDropCount.incrementAndGet();
+            return;
+        }
+        mAsyncWriter.enqueue(mBinaryOut, System.currentTimeMillis(), x, y, z);
+    }
+
+    private void write(double val) {
+        if (mAsyncWriter == null) {
+            sUnopenedDropCount.incrementAndGet();
+            return;
+        }
+        mAsyncWriter.enqueue(mBinaryOut, System.currentTimeMillis(), val);
+    }
+
+    /**
+     * Must be set before the first binary writer of a session is created.
+     */
+    public static synchronized void setBackpressurePolicy(AsyncLogWriter.BackpressurePolicy policy) {
+        sBackpressurePolicy = policy;
+    }
+
+    /**
+     * Must be set before the writers of a session are created.
+     */
+    public static synchronized void setLogStorage(LogStorage storage) { sLogStorage = storage; }
+
+    public static synchronized LogStorage getLogStorage() { return sLogStorage; }
+
+    /**
+     * Records write latencies; null (the default) records nothing. Must be set before the writers
+     * of a session are created.
+     */
+    public static synchronized void setMetrics(TrackingMetrics metrics) {
+        sMetrics = metrics;
+        if (sAsyncWriter != null) sAsyncWriter.setMetrics(metrics);
+    }
+
+    public static synchronized TrackingMetrics getMetrics() { return sMetrics; }
+
+    /**
+     * Records dropped this session because their log could not be opened.
+     */
+    public static long getUnopenedDropCount() { return sUnopenedDropCount.get(); }
+
+    public static synchronized AsyncLogWriter getAsyncWriter() {
+        if (sAsyncWriter == null || sAsyncWriter.isClosed()) {
+            sAsyncWriter = new AsyncLogWriter(ASYNC_QUEUE_CAPACITY, ASYNC_MAX_BATCH, sBackpressurePolicy);
+            sAsyncWriter.setMetrics(sMetrics);
+        }
+        return sAsyncWriter;
+    }
+
+    /**
+     * Writes out everything still queued, then flushes and closes every open log.
+     */
+    static synchronized void closeAllFiles() {
+        if (sAsyncWriter != null) {
+            sAsyncWriter.close();
+            if (sAsyncWriter.getDroppedCount() > 0) {
+                Log.w(TAG, sAsyncWriter.getDroppedCount() + " log records dropped (" + sAsyncWriter.getPolicy() + ")");
+            }
+        }
+        // closed by the async writer
+        for (SegmentedLogWriter log: sOpenSegmentLogs) {
+            if (log.getDeleteFailureCount() > 0) {
+                Log.w(TAG, log.getDeleteFailureCount() + " failed deletes of expired segments in " + sSessionDir);
             }
-        } catch (IOException e) { e.printStackTrace(); }
+        }
+        sOpenSegmentLogs.clear();
+        sSessionDir = null;
+        long unopened = sUnopenedDropCount.getAndSet(0);
+        if (unopened > 0) Log.w(TAG, unopened + " log records dropped, their log could not be opened");
     }
 }
@@ -0,0 +1,45 @@
+package app.imu.indoortrack.map;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.View;
+import android.widget.TextView;
+
+import app.imu.indoortrack.metrics.MetricsRegistry;
+
+/**
+ * Shows a snapshot of the metrics over the map, refreshed once a second on the UI thread.
+ */
+public class MetricsOverlay {
+
+    private final TextView mView;
+    private final MetricsRegistry mMetrics;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            mView.setText(mMetrics.toString());
+            mHandler.postDelayed(this, REFRESH_INTERVAL_MILLIS);
+        }
+    };
+
+    private static final long REFRESH_INTERVAL_MILLIS = 1000;
+
+    public MetricsOverlay(TextView view, MetricsRegistry metrics) {
+        mView = view;
+        mMetrics = metrics;
+    }
+
+    /**
+     * Must be called on the UI thread, like {@link #stop}.
+     */
+    public void start() {
+        mView.setVisibility(View.VISIBLE);
+        mHandler.post(mRefresh);
+    }
+
+    public void stop() {
+        mHandler.removeCallbacks(mRefresh);
+        mView.setVisibility(View.GONE);
+    }
+}
@@ -0,0 +1,226 @@
+package app.imu.indoortrack.map;
+
+import android.graphics.Color;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.maps.CameraUpdateFactory;
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.android.gms.maps.model.Polyline;
+import com.google.android.gms.maps.model.PolylineOptions;
+
+import java.util.ArrayList;
+
+import app.imu.indoortrack.MapsActivity;
+import app.imu.indoortrack.metrics.TrackingMetrics;
+
+/**
+ * Draws the tracked path. Positions may be added from any thread; they are collected and drawn
+ * at most once per frame interval on the UI thread, appended to a polyline. Polylines are split
+ * every {@link #MAX_POLYLINE_POINTS} points so a frame only re-uploads the tail of the track.
+ * The camera follows only when the newest point leaves the inner part of the visible region.
+ */
+public class TrackRenderer {
+
+    private final MapsActivity mActivity;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mFrame = this::renderFrame;
+    private long mFrameIntervalMillis = DEFAULT_FRAME_INTERVAL_MILLIS;
+    private TrackingMetrics mMetrics;
+
+    private final Object mLock = new Object();
+    // guarded by mLock, swapped with mDrawing at the start of a frame
+    private double[] mPending = new double[PENDING_CAPACITY * 2];
+    private int mNumPending;
+    private boolean mFrameScheduled;
+    private long mCoalescedCount;
+    // when the oldest pending position was added, with metrics only
+    private long mFirstPendingNanos;
+
+    // UI thread only
+    private double[] mDrawing = new double[PENDING_CAPACITY * 2];
+    private final ArrayList<LatLng> mPoints = new ArrayList<>();
+    private Polyline mPolyline;
+    private boolean mMapInitialized;
+    // read by the threads adding positions to pace the frames
+    private volatile long mLastFrameUptime;
+
+    private volatile int mOverlayCount;
+    private volatile long mFrameCount;
+    private volatile long mRenderedPoints;
+    private volatile long mLastFrameNanos;
+    private volatile long mMaxFrameNanos;
+    private volatile long mTotalFrameNanos;
+
+    private static final String TAG = "TrackRenderer";
+    private static final int PENDING_CAPACITY = 1024;
+    private static final int MAX_POLYLINE_POINTS = 500;
+    private static final long DEFAULT_FRAME_INTERVAL_MILLIS = 16;
+    private static final float ZOOM = 20;
+    private static final float POLYLINE_WIDTH = 8;
+    // fraction of the visible region on each side the newest point may enter before the camera moves
+    private static final double VIEWPORT_MARGIN = 0.2;
+
+    public TrackRenderer(MapsActivity activity) { mActivity = activity; }
+
+    public void setFrameInterval(long millis) { mFrameIntervalMillis = millis; }
+
+    /**
+     * Records post latency and frame time; null (the default) records nothing. Must be set before
+     * the first position.
+     */
+    public void setMetrics(TrackingMetrics metrics) { mMetrics = metrics; }
+
+    public void addPoint(double lat, double lon) {
+        synchronized (mLock) {
+            if (mNumPending == PENDING_CAPACITY) {
+                // the UI thread is behind, thin the pending positions out evenly instead of losing
+                // a stretch of the track
+                int kept = PENDING_CAPACITY / 2;
+                for (int i = 1; i < kept; ++i) {
+                    mPending[i * 2] = mPending[i * 4];
+                    mPending[i * 2 + 1] = mPending[i * 4 + 1];
+                }
+                mNumPending = kept;
+                mCoalescedCount += PENDING_CAPACITY - kept;
+            }
+            if (mNumPending == 0 && mMetrics != null) mFirstPendingNanos = System.nanoTime();
+            mPending[mNumPending * 2] = lat;
+            mPending[mNumPending * 2 + 1] = lon;
+            ++mNumPending;
+            if (mFrameScheduled) return;
+            mFrameScheduled = true;
+        }
+        long delay = mLastFrameUptime + mFrameIntervalMillis - SystemClock.uptimeMillis();
+        mHandler.postDelayed(mFrame, Math.max(0, delay));
+    }
+
+    /**
+     * Drops positions not drawn yet. The drawn track stays on the map; the next session starts a
+     * polyline of its own instead of continuing it.
+     */
+    public void stop() {
+        mHandler.removeCallbacks(mFrame);
+        synchronized (mLock) {
+            mNumPending = 0;
+            mFrameScheduled = false;
+        }
+        // on the UI thread, ahead of any frame of the next session
+        mHandler.post(() -> {
+            mPoints.clear();
+            mPolyline = null;
+        });
+        Log.i(TAG, "Track: " + getFrameCount() + " frames, " + getRenderedPointCount() + " points, "
+                + getOverlayCount() + " overlays, frame mean/max " + getMeanFrameNanos() / 1000 + "/"
+                + getMaxFrameNanos() / 1000 + " us");
+    }
+
+    private void renderFrame() {
+        long start = System.nanoTime();
+        mLastFrameUptime = SystemClock.uptimeMillis();
+        GoogleMap map = mActivity.getMap();
+        int count;
+        long firstPending;
+        synchronized (mLock) {
+            mFrameScheduled = false;
+            // keep positions until the map is ready, the next position schedules another frame
+            if (map == null || mNumPending == 0) return;
+            double[] drawing = mPending;
+            mPending = mDrawing;
+            mDrawing = drawing;
+            count = mNumPending;
+            mNumPending = 0;
+            firstPending = mFirstPendingNanos;
+        }
+        LatLng latest = null;
+        for (int i = 0; i < count; ++i) {
+            latest = new LatLng(mDrawing[i * 2], mDrawing[i * 2 + 1]);
+            mPoints.add(latest);
+            if (mPoints.size() == MAX_POLYLINE_POINTS) drawPolyline(map, true);
+        }
+        drawPolyline(map, false);
+        mRenderedPoints += count;
+        if (!mMapInitialized) {
+            try {
+                map.setMyLocationEnabled(true);
+            } catch (SecurityException e) { e.printStackTrace(); }
+            map.moveCamera(CameraUpdateFactory.newLatLngZoom(latest, ZOOM));
+            mMapInitialized = true;
+            ++mOverlayCount;
+        } else if (!isInsideMargin(map, latest)) {
+            map.animateCamera(CameraUpdateFactory.newLatLng(latest));
+        }
+        long elapsed = System.nanoTime() - start;
+        mLastFrameNanos = elapsed;
+        if (elapsed > mMaxFrameNanos) mMaxFrameNanos = elapsed;
+        mTotalFrameNanos += elapsed;
+        ++mFrameCount;
+        if (mMetrics != null) {
+            mMetrics.getMapFrame().record(elapsed);
+            mMetrics.getMapPost().record(start + elapsed - firstPending);
+        }
+    }
+
+    /**
+     *
+     * @param full Freeze the current polyline and start the next one at its last point
+     */
+    private void drawPolyline(GoogleMap map, boolean full) {
+        if (mPolyline == null) {
+            mPolyline = map.addPolyline(new PolylineOptions().width(POLYLINE_WIDTH).color(Color.BLUE));
+            ++mOverlayCount;
+        }
+        mPolyline.setPoints(mPoints);
+        if (full) {
+            mPolyline = null;
+            mPoints.subList(0, mPoints.size() - 1).clear();
+        }
+    }
+
+    private static boolean isInsideMargin(GoogleMap map, LatLng latLng) {
+        LatLngBounds bounds = map.getProjection().getVisibleRegion().latLngBounds;
+        double latMargin = (bounds.northeast.latitude - bounds.southwest.latitude) * VIEWPORT_MARGIN;
+        double lonSpan = bounds.northeast.longitude - bounds.southwest.longitude;
+        if (lonSpan < 0) lonSpan += 360;
+        double lonOffset = latLng.longitude - bounds.southwest.longitude;
+        if (lonOffset < 0) lonOffset += 360;
+        return latLng.latitude >= bounds.southwest.latitude + latMargin
+                && latLng.latitude <= bounds.northeast.latitude - latMargin
+                && lonOffset >= lonSpan * VIEWPORT_MARGIN
+                && lonOffset <= lonSpan * (1 - VIEWPORT_MARGIN);
+    }
+
+    public long getFrameCount() { return mFrameCount; }
+
+    /**
+     * Positions drawn so far; positions added minus this minus the coalesced ones are pending.
+     */
+    public long getRenderedPointCount() { return mRenderedPoints; }
+
+    /**
+     * Positions left out of the track because the UI thread fell behind.
+     */
+    public long getCoalescedCount() {
+        synchronized (mLock) {
+            return mCoalescedCount;
+        }
+    }
+
+    /**
+     * Map overlays added for the track, polylines plus the location layer.
+     */
+    public int getOverlayCount() { return mOverlayCount; }
+
+    public long getLastFrameNanos() { return mLastFrameNanos; }
+
+    public long getMaxFrameNanos() { return mMaxFrameNanos; }
+
+    public long getMeanFrameNanos() {
+        long frames = mFrameCount;
+        return frames == 0 ? 0 : mTotalFrameNanos / frames;
+    }
+}
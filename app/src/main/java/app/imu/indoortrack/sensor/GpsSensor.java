@@ -2,10 +2,15 @@ package app.imu.indoortrack.sensor;
 
 import android.content.IntentSender;
 import android.location.Location;
+import android.os.Build;
+import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.util.Locale;
+
 import com.google.android.gms.common.api.ApiException;
 import com.google.android.gms.common.api.ResolvableApiException;
 import com.google.android.gms.location.FusedLocationProviderClient;
@@ -18,7 +23,9 @@ import com.google.android.gms.location.LocationSettingsStatusCodes;
 import com.google.android.gms.location.SettingsClient;
 
 import app.imu.indoortrack.MapsActivity;
+import app.imu.indoortrack.fusion.GpsScheduler;
 import app.imu.indoortrack.io.SensorDataWriter;
+import app.imu.indoortrack.metrics.TrackingMetrics;
 
 public class GpsSensor {
 
@@ -31,28 +38,23 @@ public class GpsSensor {
     private SensorDataWriter mWriter;
     private Location mCurrLocation;
     private InertialSensor mInertialSensor;
-
-    static SensorDataFilter sSensorDataFilterX;
-    static SensorDataFilter sSensorDataFilterY;
-    static SensorDataFilter sSensorDataFilterZ;
-
-    static boolean sFilterInitialized = false;
-    static double sGpsX;
-    static double sGpsY;
-    static double sGpsZ;
+    private final GpsScheduler mScheduler = new GpsScheduler();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private boolean mUpdatesRequested;
 
     private static final String TAG = "GpsSensor";
-    private static final String FILE_NAME = "GpsData.csv";
+    private static final String FILE_NAME = "GpsData.bin";
     private static final int REQUEST_CHECK_SETTINGS = 0x1;
     private static final long UPDATE_INTERVAL_IN_MILLISECONDS = 1000;
     private static final long FASTEST_UPDATE_INTERVAL_IN_MILLISECONDS = 500;
     private static final double GPS_CHANGE_THRESHOLD = 0.001d;
+    private static final long SCHEDULE_INTERVAL_IN_MILLISECONDS = 1000;
 
     public GpsSensor(MapsActivity activity, InertialSensor acc) {
         mActivity = activity;
         mFusedLocationClient = new FusedLocationProviderClient(mActivity);
         mSettingsClient = LocationServices.getSettingsClient(mActivity);
-        mWriter = new SensorDataWriter(FILE_NAME, activity);
+        mWriter = new SensorDataWriter(FILE_NAME, 3, activity);
         mInertialSensor = acc;
         createLocationCallback();
         createLocationRequest();
@@ -66,6 +68,39 @@ public class GpsSensor {
         mLocationRequest.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
     }
 
+    /**
+     * Re-evaluates the request from the drift of the track once a second and renews it when the
+     * scheduler changes the interval or priority.
+     */
+    private final Runnable mScheduleTask = new Runnable() {
+        @Override
+        public void run() {
+            mHandler.postDelayed(this, SCHEDULE_INTERVAL_IN_MILLISECONDS);
+            // no fixes reach the filter until it is calibrated
+            if (!mInertialSensor.isAccCalibrationDone()) return;
+            if (!mScheduler.update(SystemClock.elapsedRealtime(),
+                    mInertialSensor.getFusionCore().getDriftVariance())) return;
+            mLocationRequest.setInterval(mScheduler.getIntervalMillis());
+            mLocationRequest.setFastestInterval(mScheduler.getFastestIntervalMillis());
+            mLocationRequest.setPriority(mScheduler.getPriority() == GpsScheduler.Priority.HIGH_ACCURACY
+                    ? LocationRequest.PRIORITY_HIGH_ACCURACY : LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY);
+            Log.i(TAG, "GPS interval " + mScheduler.getIntervalMillis() + " ms, " + mScheduler.getPriority()
+                    + (mScheduler.isStalled() ? ", stalled" : ""));
+            if (!mUpdatesRequested) return;
+            mFusedLocationClient.removeLocationUpdates(mLocationCallback);
+            requestLocationUpdates();
+        }
+    };
+
+    private void requestLocationUpdates() {
+        //noinspection MissingPermission
+        try {
+            mFusedLocationClient.requestLocationUpdates(mLocationRequest,
+                    mLocationCallback, Looper.myLooper());
+            mUpdatesRequested = true;
+        } catch (SecurityException e) { e.printStackTrace(); }
+    }
+
     private void buildLocationSettingsRequest() {
         LocationSettingsRequest.Builder builder = new LocationSettingsRequest.Builder();
         builder.addLocationRequest(mLocationRequest);
@@ -77,13 +112,9 @@ public class GpsSensor {
         mSettingsClient.checkLocationSettings(mLocationSettingsRequest)
                 .addOnSuccessListener(mActivity, locationSettingsResponse -> {
                     Log.i(TAG, "All location settings are satisfied.");
-
-                    //noinspection MissingPermission
-                    try {
-                        mFusedLocationClient.requestLocationUpdates(mLocationRequest,
-                                mLocationCallback, Looper.myLooper());
-                    } catch (SecurityException e) { e.printStackTrace(); }
-
+                    requestLocationUpdates();
+                    mHandler.removeCallbacks(mScheduleTask);
+                    mHandler.post(mScheduleTask);
                 })
                 .addOnFailureListener(mActivity, e -> {
                     int statusCode = ((ApiException) e).getStatusCode();
@@ -113,14 +144,8 @@ public class GpsSensor {
         mLocationCallback = new LocationCallback() {
             @Override
             public void onLocationResult(LocationResult locationResult) {
-                if (mInertialSensor.isAccCalibrationDone()) {
-                    Location location = locationResult.getLastLocation();
-                    //boolean hasAcceptableChange = false;
-                    if (!sFilterInitialized /*|| acceptableChange(mCurrLocation, location)*/) {
-                        mCurrLocation = location;
-                        updateData(mCurrLocation);
-                    }
-                }
+                Location location = locationResult.getLastLocation();
+                if (updateData(location)) mCurrLocation = location;
             }
         };
     }
@@ -131,33 +156,46 @@ public class GpsSensor {
                 Math.abs(location1.getAltitude() - location2.getAltitude()) > GPS_CHANGE_THRESHOLD;
     }
 
-    private void updateData(Location location) {
+    private boolean updateData(Location location) {
         double lat = location.getLatitude();
         double lon = location.getLongitude();
         double alt = location.getAltitude();
-        mWriter.writeData(lat, lon, alt);
-        double[] cartesian = Projection.geodeticToCartesian(lat, lon, alt);
-        sGpsX = cartesian[0];
-        sGpsY = cartesian[1];
-        sGpsZ = cartesian[2];
-        if (!sFilterInitialized) {
-            double horizontalAccuracy = location.getAccuracy()/200.;
-            double verticalAccuracy = alt == 0 ? 0. : horizontalAccuracy + 1./20.;
-            SensorBias sensorBias = mInertialSensor.getAccSensorBias();
-            double accXBias  = sensorBias.getBiasX();
-            double accYBias = sensorBias.getBiasY();
-            double accZBias = verticalAccuracy == 0. ? 0 : sensorBias.getBiasZ();
-            System.out.println("Bias = " + accXBias + "," + accYBias + "," + accZBias);
-            sSensorDataFilterX = new SensorDataFilter(sGpsX, horizontalAccuracy, accXBias);
-            sSensorDataFilterY = new SensorDataFilter(sGpsY, horizontalAccuracy, accYBias);
-            sSensorDataFilterZ = new SensorDataFilter(sGpsZ, verticalAccuracy, accZBias);
-            sFilterInitialized = true;
+        // fixes before calibration would be ignored by the filter
+        if (!mInertialSensor.isAccCalibrationDone()) return false;
+        boolean accepted = mScheduler.isUsable(location.getAccuracy())
+                && mInertialSensor.getSynchronizer().offerGpsFix(getElapsedRealtimeNanos(location),
+                lat, lon, alt, location.getAccuracy());
+        if (!accepted) {
+            mScheduler.onFixRejected();
+            return false;
+        }
+        mScheduler.onFixAccepted(SystemClock.elapsedRealtime());
+        TrackingMetrics metrics = mInertialSensor.getMetrics();
+        if (metrics != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            metrics.getGpsFixAge().record(SystemClock.elapsedRealtimeNanos() - location.getElapsedRealtimeNanos());
         }
+        mWriter.writeData(lat, lon, alt);
+        return true;
+    }
+
+    /**
+     * Fix time on the clock of SensorEvent.timestamp.
+     */
+    private static long getElapsedRealtimeNanos(Location location) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) return location.getElapsedRealtimeNanos();
+        return SystemClock.elapsedRealtime() * 1000000L;
     }
 
     public void stopGps() {
-        sFilterInitialized = false;
+        mHandler.removeCallbacks(mScheduleTask);
         if(mFusedLocationClient != null)
             mFusedLocationClient.removeLocationUpdates(mLocationCallback);
+        mUpdatesRequested = false;
+        Log.i(TAG, String.format(Locale.US,
+                "GPS %.3f requests/s, %d accepted, %d rejected, %d request changes",
+                mScheduler.getRequestRate(), mScheduler.getAcceptedFixes(), mScheduler.getRejectedFixes(),
+                mScheduler.getRequestChanges()));
     }
+
+    public GpsScheduler getScheduler() { return mScheduler; }
 }
@@ -2,266 +2,304 @@ package app.imu.indoortrack.sensor;
 
 import android.app.ProgressDialog;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
 
-import com.google.android.gms.maps.CameraUpdateFactory;
-import com.google.android.gms.maps.GoogleMap;
-import com.google.android.gms.maps.model.CircleOptions;
-import com.google.android.gms.maps.model.LatLng;
 import com.google.gson.Gson;
 
-import org.apache.commons.math3.linear.ArrayRealVector;
-import org.apache.commons.math3.linear.RealVector;
-
-import java.util.Vector;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
 
+import app.imu.indoortrack.BuildConfig;
 import app.imu.indoortrack.MapsActivity;
+import app.imu.indoortrack.fusion.FusionCore;
+import app.imu.indoortrack.fusion.FusionListener;
+import app.imu.indoortrack.fusion.FusionPipeline;
+import app.imu.indoortrack.fusion.SensorSynchronizer;
 import app.imu.indoortrack.io.SensorDataWriter;
+import app.imu.indoortrack.floorplan.FloorPlan;
+import app.imu.indoortrack.floorplan.MapMatcher;
+import app.imu.indoortrack.map.TrackRenderer;
+import app.imu.indoortrack.metrics.TrackingMetrics;
 
 import static app.imu.indoortrack.MapsActivity.SHARED_PREFS_NAME;
-import static app.imu.indoortrack.sensor.GpsSensor.sSensorDataFilterX;
-import static app.imu.indoortrack.sensor.GpsSensor.sSensorDataFilterY;
-import static app.imu.indoortrack.sensor.GpsSensor.sSensorDataFilterZ;
-import static app.imu.indoortrack.sensor.GpsSensor.sFilterInitialized;
-import static app.imu.indoortrack.sensor.GpsSensor.sGpsX;
-import static app.imu.indoortrack.sensor.GpsSensor.sGpsY;
-import static app.imu.indoortrack.sensor.GpsSensor.sGpsZ;
 
-public class InertialSensor implements SensorEventListener {
+public class InertialSensor implements SensorEventListener, FusionListener {
 
     private MapsActivity mActivity;
     private SensorManager mSensorManager;
-    private SensorBias mSensorBias;
+    private FusionCore mFusionCore;
+    private SensorSynchronizer mSynchronizer;
     private SensorDataWriter mWriter1;
     private SensorDataWriter mWriter2;
     private SensorDataWriter mWriter3;
-    private RealVector mCorrectedVectorX;
-    private RealVector mCorrectedVectorY;
-    private RealVector mCorrectedVectorZ;
-    private Vector<Double> mAccVecX;
-    private Vector<Double> mAccVecY;
-    private Vector<Double> mAccVecZ;
-    private Vector<Double> mDistance = new Vector<>();
-
-    private long mSensorTimeStamp;
-    private double mAccX;
-    private double mAccY;
-    private double mAccZ;
-    private int mNumAccVals;
-    private int mNumGyroVals;
-    private float[] mAvgAccVal;
-    private float[] mAvgGyroVal;
-    private boolean mAccInitialized;
-    private boolean mAccCalibrationDone;
-    private int mNumReadings;
-
-    private static final String[] FILE_NAMES = new String[] { "AccData.csv", "Corrected.csv", "Dist.csv" };
-    private static final long UPDATE_INTERVAL_IN_NANOSECONDS = (long) 1E+9;
-    private static final int CALIBRATION_ROUNDS = 60;
-    private static final double MIN_DISTANCE = 0.01;
-    private static final double MAX_DISTANCE = 1.;
+    private TrackRenderer mTrackRenderer;
+    private SensorSampleBuffer mSampleBuffer = new SensorSampleBuffer(SAMPLE_BUFFER_CAPACITY);
+    private Thread mProcessingThread;
+    private volatile boolean mProcessing;
+    private CalibrationStore mCalibrationStore;
+    private String mCalibrationSensor;
+    private final TrackingMetrics mMetrics = COLLECT_METRICS ? new TrackingMetrics() : null;
+
+    private static final String TAG = "InertialSensor";
+    private static final String CALIBRATION_FILE_NAME = "Calibration.bin";
+    private static final String METRICS_FILE_NAME = "Metrics.txt";
+    // optional, see FloorPlan for the format
+    private static final String FLOOR_PLAN_FILE_NAME = "FloorPlan.txt";
+    // release builds carry no instrumentation beyond a null check
+    private static final boolean COLLECT_METRICS = BuildConfig.DEBUG;
+    private static final String[] FILE_NAMES = new String[] { "AccData.bin", "Corrected.bin", "Dist.bin" };
+    private static final int SAMPLE_BUFFER_CAPACITY = 4096;
+    private static final int MAX_DRAIN_BATCH = 256;
+    // lets the sensor hub batch samples in its FIFO and deliver them in bursts; 0 for one event at a time
+    private static final int MAX_REPORT_LATENCY_US = 100000;
+    // the FIFOs of the two sensors are not flushed together, one burst may trail the other's
+    private static final long BATCH_LATENCY_MARGIN_NANOS = 20000000L;
+    // filter rate once calibrated, 0 for the original one second windows
+    private static final double PREDICT_RATE_HZ = 100;
+    // ORIENTATION and PEDESTRIAN also register the rotation vector for the orientation and heading
+    private static final FusionPipeline.Model FILTER_MODEL = FusionPipeline.Model.PER_AXIS;
 
     public InertialSensor(MapsActivity activity) {
         mActivity = activity;
         mSensorManager = (SensorManager) activity.getSystemService(Context.SENSOR_SERVICE);
-        mWriter1 = new SensorDataWriter(FILE_NAMES[0], activity);
-        mWriter2 = new SensorDataWriter(FILE_NAMES[1], activity);
-        mWriter3 = new SensorDataWriter(FILE_NAMES[2], activity);
-        initAvgFilter();
-        SharedPreferences prefs = activity.getSharedPrefs();
-        String gsonStr = prefs.getString(SHARED_PREFS_NAME, null);
-        if(gsonStr == null) {
+        SensorDataWriter.setMetrics(mMetrics);
+        mWriter1 = new SensorDataWriter(FILE_NAMES[0], 3, activity);
+        mWriter2 = new SensorDataWriter(FILE_NAMES[1], 3, activity);
+        mWriter3 = new SensorDataWriter(FILE_NAMES[2], 1, activity);
+        mTrackRenderer = new TrackRenderer(activity);
+        mTrackRenderer.setMetrics(mMetrics);
+        mCalibrationStore = new CalibrationStore(new File(activity.getFilesDir(), CALIBRATION_FILE_NAME));
+        mCalibrationStore.load();
+        Sensor accSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_LINEAR_ACCELERATION);
+        mCalibrationSensor = accSensor == null ? "none"
+                : accSensor.getVendor() + "/" + accSensor.getName() + "/" + accSensor.getVersion();
+        CalibrationStore.Profile profile = mCalibrationStore.find(getDevice(), mCalibrationSensor,
+                getTemperatureBand(), System.currentTimeMillis());
+        if (profile == null) profile = importLegacyCalibration();
+        SensorBias sensorBias = profile == null ? null : profile.getSensorBias();
+        if (sensorBias == null) {
             mActivity.runOnUiThread(()-> mActivity.mProgressDialog = ProgressDialog.show(mActivity, "Calibrating", "Please wait!"));
-            mAccCalibrationDone = false;
-            mAccVecX = new Vector<>();
-            mAccVecY = new Vector<>();
-            mAccVecZ = new Vector<>();
-        } else {
-            mSensorBias = new Gson().fromJson(gsonStr, SensorBias.class);
-            mAccCalibrationDone = true;
         }
+        FusionPipeline pipeline = new FusionPipeline(sensorBias, this);
+        pipeline.setModel(FILTER_MODEL);
+        pipeline.setPredictRate(PREDICT_RATE_HZ);
+        pipeline.setMetrics(mMetrics);
+        FloorPlan floorPlan = readFloorPlan();
+        if (floorPlan != null) pipeline.setMapMatcher(new MapMatcher(floorPlan));
+        // track right away, refine the calibration in the background
+        if (profile != null && profile.isStale()) {
+            Log.i(TAG, "Revalidating calibration from " + profile.getTimestamp());
+            pipeline.revalidateCalibration();
+        }
+        mFusionCore = pipeline;
+        mSynchronizer = new SensorSynchronizer(pipeline);
     }
 
     @Override
     public void onSensorChanged(SensorEvent sensorEvent) {
-        boolean sensor1 = sensorEvent.sensor.getType() == Sensor.TYPE_LINEAR_ACCELERATION;
-        boolean sensor2 = sensorEvent.sensor.getType() == Sensor.TYPE_GYROSCOPE;
-        if(correctInterval(sensorEvent.timestamp)) {
-            mSensorTimeStamp = sensorEvent.timestamp;
-            mAvgAccVal[0] /= mNumAccVals;
-            mAvgAccVal[1] /= mNumAccVals;
-            mAvgAccVal[2] /= mNumAccVals;
-            mAvgGyroVal[0] /= mNumGyroVals;
-            mAvgGyroVal[1] /= mNumGyroVals;
-            mAvgGyroVal[2] /= mNumGyroVals;
-            if (!mAccCalibrationDone) {
-                calibrate();
-            } else if (sFilterInitialized) {
-                performPostCalibrationTasks();
-            }
-            initAvgFilter();
-        }
-        if (sensor1) {
-            mNumAccVals++;
-            mAvgAccVal[0] += sensorEvent.values[0];
-            mAvgAccVal[1] += sensorEvent.values[1];
-            mAvgAccVal[2] += sensorEvent.values[2];
-        }
-        if (sensor2) {
-            mNumGyroVals++;
-            mAvgGyroVal[0] += sensorEvent.values[0];
-            mAvgGyroVal[1] += sensorEvent.values[1];
-            mAvgGyroVal[2] += sensorEvent.values[2];
-        }
+        mSampleBuffer.offer(sensorEvent.timestamp, sensorEvent.sensor.getType(),
+                sensorEvent.values[0], sensorEvent.values[1], sensorEvent.values[2]);
     }
 
     @Override
     public void onAccuracyChanged(Sensor sensor, int i) {}
 
-    private void initAvgFilter() {
-        mNumAccVals = 1;
-        mNumGyroVals = 1;
-        mAvgAccVal = new float[3];
-        mAvgGyroVal = new float[3];
+    @Override
+    public void onCalibrationDone(SensorBias sensorBias) {
+        // no dialog when revalidating a stored calibration
+        mActivity.runOnUiThread(() -> { if (mActivity.mProgressDialog != null) mActivity.mProgressDialog.dismiss(); });
+        saveSensorBias(sensorBias, System.currentTimeMillis());
     }
 
-    private void calibrate() {
-        double[] rotationAngles = getRotationAngles();
-        double accX = mAvgAccVal[0] * Math.cos(rotationAngles[0]);
-        double accY = mAvgAccVal[1] * Math.cos(rotationAngles[1]);
-        double accZ = mAvgAccVal[2] * Math.cos(rotationAngles[2]);
-        if(accX != 0. && accY != 0. && accZ != 0.) {
-            mAccVecX.add(accX);
-            mAccVecY.add(accY);
-            mAccVecZ.add(accZ);
-            System.out.println(mNumReadings + ": " + accX + "," + accY + "," + accZ);
-            if (++mNumReadings > CALIBRATION_ROUNDS) {
-                mActivity.runOnUiThread(() -> mActivity.mProgressDialog.dismiss());
-                mAccCalibrationDone = true;
-                mSensorBias = new SensorBias(mAccVecX, mAccVecY, mAccVecZ);
-                String gsonStr = new Gson().toJson(mSensorBias);
-                mActivity.getSharedPrefs().edit().putString(SHARED_PREFS_NAME, gsonStr).apply();
-            }
-        }
+    /**
+     * Called on the processing thread, off the UI thread.
+     */
+    private void saveSensorBias(SensorBias sensorBias, long timestamp) {
+        mCalibrationStore.put(getDevice(), mCalibrationSensor, getTemperatureBand(), timestamp, sensorBias);
+        mCalibrationStore.save();
     }
 
-    private boolean correctInterval(long timestamp) {
-        return (timestamp - mSensorTimeStamp) >= UPDATE_INTERVAL_IN_NANOSECONDS;
+    /**
+     * Moves the calibration earlier versions kept as JSON in the shared preferences into the store,
+     * timestamped 0 so it is revalidated.
+     */
+    private CalibrationStore.Profile importLegacyCalibration() {
+        SharedPreferences prefs = mActivity.getSharedPrefs();
+        String gsonStr = prefs.getString(SHARED_PREFS_NAME, null);
+        if (gsonStr == null) return null;
+        SensorBias sensorBias = new Gson().fromJson(gsonStr, SensorBias.class);
+        sensorBias.migrateLegacyHistory();
+        saveSensorBias(sensorBias, 0);
+        prefs.edit().remove(SHARED_PREFS_NAME).apply();
+        return mCalibrationStore.find(getDevice(), mCalibrationSensor, getTemperatureBand(), System.currentTimeMillis());
     }
 
-    private double getEuclideanDistance(double[] point1, double[] point2) {
-        return Math.sqrt(Math.pow(point1[0]-point2[0], 2) +
-                Math.pow(point1[1] - point2[1], 2) + Math.pow(point1[2] - point2[2], 2));
+    /**
+     *
+     * @return null if there is no floor plan or it cannot be read
+     */
+    private FloorPlan readFloorPlan() {
+        File file = new File(mActivity.getFilesDir(), FLOOR_PLAN_FILE_NAME);
+        if (!file.exists()) return null;
+        FileReader reader = null;
+        try {
+            reader = new FileReader(file);
+            FloorPlan plan = FloorPlan.read(reader);
+            Log.i(TAG, "Floor plan with " + plan.getCorridorCount() + " corridor segments");
+            return plan;
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            try {
+                if (reader != null) reader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
-    private double[] getRotationAngles() {
-        double azimuth = Math.toDegrees(mAvgGyroVal[0]);
-        double pitch = Math.toDegrees(mAvgGyroVal[1]);
-        double roll = Math.toDegrees(mAvgGyroVal[2]);
-        return new double[] {azimuth, pitch, roll};
+    private static String getDevice() { return Build.MANUFACTURER + "/" + Build.MODEL; }
+
+    /**
+     * Battery temperature, the one every device reports, as a {@link CalibrationStore} band.
+     */
+    private int getTemperatureBand() {
+        Intent battery = mActivity.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        int tenths = battery == null ? Integer.MIN_VALUE
+                : battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, Integer.MIN_VALUE);
+        return CalibrationStore.getTemperatureBand(tenths == Integer.MIN_VALUE ? Double.NaN : tenths / 10.);
     }
 
-    private void performPostCalibrationTasks() {
-        double[] rotationAngles = getRotationAngles();
-        double accX = mAvgAccVal[0] * Math.cos(rotationAngles[0]);
-        double accY = mAvgAccVal[1] * Math.cos(rotationAngles[1]);
-        double accZ = mAvgAccVal[2] * Math.cos(rotationAngles[2]);
-        performCorrections(accX, accY, accZ);
+    @Override
+    public void onAcceleration(long timestamp, double accX, double accY, double accZ) {
         mWriter1.writeData(accX, accY, accZ);
-        accX = mCorrectedVectorX.getEntry(0);
-        accY = mCorrectedVectorY.getEntry(0);
-        accZ = mCorrectedVectorZ.getEntry(0);
-        if (!mAccInitialized) {
-            mAccX = sGpsX;
-            mAccY = sGpsY;
-            mAccZ = sGpsZ;
-            mAccInitialized = true;
+    }
+
+    @Override
+    public void onDistance(long timestamp, double dist) { mWriter3.writeData(dist); }
+
+    @Override
+    public void onPosition(long timestamp, double lat, double lon, double alt) {
+        // SensorEvent.timestamp counts from boot like elapsed realtime, which needs API 17
+        if (mMetrics != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            mMetrics.getSensorToPosition().record(SystemClock.elapsedRealtimeNanos() - timestamp);
         }
-        double dist = getEuclideanDistance(new double[]{accX, accY, accZ}, new double[]{mAccX, mAccY, mAccZ});
-        //if (dist >= MIN_DISTANCE && dist <= MAX_DISTANCE) {
-            mDistance.add(dist);
-            mWriter3.writeData(dist);
-            double[] geodetic = Projection.cartesianToGeodetic(accX, accY, accZ);
-            mWriter2.writeData(geodetic[0], geodetic[1], geodetic[2]);
-            updateMap(geodetic[0], geodetic[1]);
-        //}
-        mAccX = accX;
-        mAccY = accY;
-        mAccZ = accZ;
+        mWriter2.writeData(lat, lon, alt);
+        mTrackRenderer.addPoint(lat, lon);
     }
 
-    private void performCorrections(final double accX, final double accY, final double accZ) {
-        Thread tX = new Thread(() -> {
-            RealVector u = new ArrayRealVector(new double[] {accX});
-            RealVector z = new ArrayRealVector(new double[] {sGpsX});
-            mCorrectedVectorX = sSensorDataFilterX.estimate(u, z);
-        });
-
-        Thread tY = new Thread(() -> {
-            RealVector u = new ArrayRealVector(new double[] {accY});
-            RealVector z = new ArrayRealVector(new double[] {sGpsY});
-            mCorrectedVectorY = sSensorDataFilterY.estimate(u, z);
-        });
-
-        Thread tZ = new Thread(() -> {
-            RealVector u = new ArrayRealVector(new double[] {accZ});
-            RealVector z = new ArrayRealVector(new double[] {sGpsZ});
-            mCorrectedVectorZ = sSensorDataFilterZ.estimate(u, z);
-        });
-
-        tX.start();
-        tY.start();
-        tZ.start();
+    private void processSamples() {
+        // sleeps until the next sample, stopSensors unparks it to finish
+        while (mProcessing) {
+            if (mSampleBuffer.drainBlocks(mSynchronizer, MAX_DRAIN_BATCH) == 0) mSampleBuffer.awaitSamples();
+        }
+        // the samples delivered before the sensors were unregistered still belong to this session
+        while (mSampleBuffer.drainBlocks(mSynchronizer, MAX_DRAIN_BATCH) > 0) {}
+    }
 
-        try {
-            tX.join();
-            tY.join();
-            tZ.join();
-        } catch (InterruptedException e) { e.printStackTrace(); }
+    /**
+     * Batching needs API 19 and a sensor with a hardware FIFO.
+     */
+    private static int getReportLatencyUs(Sensor sensor) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT || sensor == null) return 0;
+        return sensor.getFifoMaxEventCount() > 0 ? MAX_REPORT_LATENCY_US : 0;
     }
 
-    void updateMap(final double lat, final double lon) {
-        mActivity.runOnUiThread(() -> {
-            GoogleMap map = mActivity.getMap();
-            LatLng latLng = new LatLng(lat, lon);
-            if (map != null) {
-                try {
-                    map.setMyLocationEnabled(true);
-                } catch (SecurityException e) { e.printStackTrace(); }
-                map.addCircle(new CircleOptions().center(latLng));
-                map.moveCamera(CameraUpdateFactory.newLatLng(latLng));
-                map.animateCamera(CameraUpdateFactory.zoomTo(20));
-            }
-        });
+    private void registerSensor(int type) {
+        Sensor sensor = mSensorManager.getDefaultSensor(type);
+        int latencyUs = getReportLatencyUs(sensor);
+        if (latencyUs > 0) {
+            mSensorManager.registerListener(this, sensor, SensorManager.SENSOR_DELAY_FASTEST, latencyUs);
+        } else {
+            mSensorManager.registerListener(this, sensor, SensorManager.SENSOR_DELAY_FASTEST);
+        }
     }
 
     public void startSensors() {
         if (mSensorManager != null) {
-            mSensorManager.registerListener(this, mSensorManager.getDefaultSensor(Sensor.TYPE_LINEAR_ACCELERATION), SensorManager.SENSOR_DELAY_FASTEST);
-            mSensorManager.registerListener(this, mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE), SensorManager.SENSOR_DELAY_FASTEST);
+            // events still in flight when the last session unregistered
+            mSampleBuffer.clear();
+            // resample only once the other sensor's burst for the same time has been delivered
+            int latencyUs = Math.max(
+                    getReportLatencyUs(mSensorManager.getDefaultSensor(Sensor.TYPE_LINEAR_ACCELERATION)),
+                    getReportLatencyUs(mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE)));
+            mSynchronizer.setLatency(latencyUs > 0 ? latencyUs * 1000L + BATCH_LATENCY_MARGIN_NANOS : 0);
+            mProcessing = true;
+            mProcessingThread = new Thread(this::processSamples, "InertialSensorProcessing");
+            mProcessingThread.start();
+            registerSensor(Sensor.TYPE_LINEAR_ACCELERATION);
+            registerSensor(Sensor.TYPE_GYROSCOPE);
+            if (FILTER_MODEL == FusionPipeline.Model.ORIENTATION || FILTER_MODEL == FusionPipeline.Model.PEDESTRIAN) {
+                registerSensor(Sensor.TYPE_ROTATION_VECTOR);
+            }
         } else  mActivity.runOnUiThread(() -> mActivity.mProgressDialog.dismiss());
     }
 
+    /**
+     * Unregisters the sensors and returns; draining the samples already delivered, stopping the
+     * track, writing the metrics and resetting the pipeline happen on a thread of their own, off
+     * the UI thread.
+     */
     public void stopSensors() {
-        clearInitAcc();
         mSensorManager.unregisterListener(this);
+        mProcessing = false;
+        Thread processingThread = mProcessingThread;
+        mProcessingThread = null;
+        if (processingThread != null) LockSupport.unpark(processingThread);
+        new Thread(() -> finishSession(processingThread), "InertialSensorStop").start();
     }
 
-    public SensorBias getAccSensorBias() { return mSensorBias; }
+    private void finishSession(Thread processingThread) {
+        if (processingThread != null) {
+            try {
+                processingThread.join();
+            } catch (InterruptedException e) { e.printStackTrace(); }
+        }
+        // after the drained positions, which would otherwise start the next session's polyline
+        mTrackRenderer.stop();
+        if (mMetrics != null) {
+            mMetrics.appendTo(new File(mActivity.getFilesDir(), METRICS_FILE_NAME), System.currentTimeMillis());
+        }
+        clearInitAcc();
+    }
 
-    public boolean isAccCalibrationDone() { return mAccCalibrationDone; }
+    public long getDroppedSampleCount() { return mSampleBuffer.getDroppedCount(); }
 
-    public void clearInitAcc() { mAccInitialized = false; }
+    public int getSampleQueueHighWaterMark() { return mSampleBuffer.getHighWaterMark(); }
 
-    public double getTotalDistance() {
-        double dist = 0.;
-        for(double distance: mDistance) {
-            dist += distance;
-        }
-        return dist;
+    public FusionCore getFusionCore() { return mFusionCore; }
+
+    public SensorSynchronizer getSynchronizer() { return mSynchronizer; }
+
+    public TrackRenderer getTrackRenderer() { return mTrackRenderer; }
+
+    /**
+     *
+     * @return null when metrics are disabled
+     */
+    public TrackingMetrics getMetrics() { return mMetrics; }
+
+    public SensorBias getAccSensorBias() { return mFusionCore.getSensorBias(); }
+
+    public boolean isAccCalibrationDone() { return mFusionCore.isCalibrationDone(); }
+
+    public void clearInitAcc() {
+        mSynchronizer.reset();
+        mFusionCore.reset();
     }
+
+    public double getTotalDistance() { return mFusionCore.getTotalDistance(); }
 }
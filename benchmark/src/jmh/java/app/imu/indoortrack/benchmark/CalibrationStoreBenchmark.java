@@ -0,0 +1,89 @@
+package app.imu.indoortrack.benchmark;
+
+import com.google.gson.Gson;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import app.imu.indoortrack.sensor.CalibrationStore;
+import app.imu.indoortrack.sensor.SensorBias;
+
+/**
+ * Loading the calibration at startup after {@code rounds} calibration windows. {@code legacyGson}
+ * parses the JSON with the boxed reading history that earlier versions stored in the shared
+ * preferences and folds it, {@code gson} the statistics-only JSON, and {@code store} reads a
+ * {@link CalibrationStore} holding profiles for {@link #PROFILES} temperature bands and looks one up.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CalibrationStoreBenchmark {
+
+    private static final int PROFILES = 8;
+    private static final String DEVICE = "Google/Pixel";
+    private static final String SENSOR = "Bosch/BMI160 linear acceleration/1";
+
+    @Param({"61", "3600"})
+    public int rounds;
+
+    private final Gson mGson = new Gson();
+    private String mLegacyJson;
+    private String mJson;
+    private byte[] mStoreBytes;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        StringBuilder[] history = { new StringBuilder(), new StringBuilder(), new StringBuilder() };
+        SensorBias sensorBias = new SensorBias();
+        for (int i = 0; i < rounds; ++i) {
+            double x = random.nextGaussian() * 0.05;
+            double y = random.nextGaussian() * 0.05;
+            double z = random.nextGaussian() * 0.08;
+            sensorBias.add(x, y, z);
+            String separator = i == 0 ? "" : ",";
+            history[0].append(separator).append(x);
+            history[1].append(separator).append(y);
+            history[2].append(separator).append(z);
+        }
+        mLegacyJson = "{\"mVecX\":[" + history[0] + "],\"mVecY\":[" + history[1] + "],\"mVecZ\":[" + history[2] + "]}";
+        mJson = mGson.toJson(sensorBias);
+        CalibrationStore store = new CalibrationStore(new File("unused"));
+        for (int band = 0; band < PROFILES; ++band) store.put(DEVICE, SENSOR, band, 1000L * band, sensorBias);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        store.writeTo(out);
+        mStoreBytes = out.toByteArray();
+    }
+
+    @Benchmark
+    public double legacyGson() {
+        SensorBias sensorBias = mGson.fromJson(mLegacyJson, SensorBias.class);
+        sensorBias.migrateLegacyHistory();
+        return sensorBias.getBiasX();
+    }
+
+    @Benchmark
+    public double gson() {
+        return mGson.fromJson(mJson, SensorBias.class).getBiasX();
+    }
+
+    @Benchmark
+    public double store() throws IOException {
+        CalibrationStore store = new CalibrationStore(new File("unused"));
+        store.readFrom(new ByteArrayInputStream(mStoreBytes));
+        return store.find(DEVICE, SENSOR, PROFILES / 2, 0).getSensorBias().getBiasX();
+    }
+}
@@ -0,0 +1,88 @@
+package app.imu.indoortrack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import app.imu.indoortrack.fusion.FusionCore;
+import app.imu.indoortrack.fusion.FusionListener;
+import app.imu.indoortrack.fusion.FusionPipeline;
+import app.imu.indoortrack.sensor.SensorBias;
+
+/**
+ * The work InertialSensor.performPostCalibrationTasks did per tick, driven by synthetic data:
+ * filtering, distance, projection and listener callbacks. {@link #window()} additionally
+ * includes the averaging of one second of 200 Hz accelerometer and gyroscope samples.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FusionTickBenchmark {
+
+    private static final int INPUTS = 1024;
+    private static final int SAMPLES_PER_WINDOW = PipelineFixture.SAMPLES_PER_SECOND;
+
+    private final float[] mSamples = PipelineFixture.noise(INPUTS * 3);
+    private FusionCore mCore;
+    private long mTimestamp;
+    private int mIndex;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        mCore = PipelineFixture.createPipeline(blackhole);
+        PipelineFixture.onGpsFix(mCore, 0, PipelineFixture.LAT0);
+    }
+
+    private int next() {
+        mIndex += 3;
+        if (mIndex == INPUTS * 3) mIndex = 0;
+        return mIndex;
+    }
+
+    @Benchmark
+    public void tick() {
+        int i = next();
+        mTimestamp += 1000;
+        mCore.onAcceleration(mTimestamp, mSamples[i], mSamples[i + 1], mSamples[i + 2]);
+    }
+
+    @Benchmark
+    public void window() {
+        for (int s = 0; s < SAMPLES_PER_WINDOW; ++s) {
+            int i = next();
+            mTimestamp += PipelineFixture.SAMPLE_INTERVAL_NANOS;
+            int type = (s & 1) == 0 ? FusionCore.SENSOR_LINEAR_ACCELERATION : FusionCore.SENSOR_GYROSCOPE;
+            mCore.onSample(mTimestamp, type, mSamples[i], mSamples[i + 1], mSamples[i + 2]);
+        }
+    }
+
+    static class BlackholeListener implements FusionListener {
+
+        private final Blackhole mBlackhole;
+
+        BlackholeListener(Blackhole blackhole) { mBlackhole = blackhole; }
+
+        @Override
+        public void onCalibrationDone(SensorBias sensorBias) { mBlackhole.consume(sensorBias); }
+
+        @Override
+        public void onAcceleration(long timestamp, double accX, double accY, double accZ) {
+            mBlackhole.consume(accX + accY + accZ);
+        }
+
+        @Override
+        public void onDistance(long timestamp, double dist) { mBlackhole.consume(dist); }
+
+        @Override
+        public void onPosition(long timestamp, double lat, double lon, double alt) {
+            mBlackhole.consume(lat + lon + alt);
+        }
+    }
+}
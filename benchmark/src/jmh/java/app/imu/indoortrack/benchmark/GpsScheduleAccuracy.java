@@ -0,0 +1,86 @@
+package app.imu.indoortrack.benchmark;
+
+import java.util.Locale;
+import java.util.Random;
+
+import app.imu.indoortrack.fusion.FusionCore;
+import app.imu.indoortrack.fusion.FusionPipeline;
+import app.imu.indoortrack.fusion.GpsScheduler;
+import app.imu.indoortrack.sensor.SensorBias;
+
+/**
+ * Replays a {@link SimulatedWalk} that goes indoors for part of the session, asking for GPS
+ * fixes once a second and through the {@link GpsScheduler}, and prints the fixes requested and
+ * used against the position error. Outdoors a noisy fix is available every second; the scheduler
+ * only gets the ones due at its current interval. Pedestrian dead reckoning also runs a walk
+ * starting north-west with another step length constant, where only the course between fixes
+ * tells the heading.
+ */
+public class GpsScheduleAccuracy {
+
+    private static final int SECONDS = 600;
+    private static final double GPS_NOISE = 3;
+    private static final double GPS_ACCURACY = 5;
+    // no fixes in between
+    private static final int INDOOR_START = 240;
+    private static final int INDOOR_END = 360;
+    private static final double OTHER_START_DEG = 135;
+    private static final double OTHER_STEP_LENGTH_CONSTANT = 0.5;
+
+    public static void main(String[] args) {
+        System.out.println("model        start_deg  gps       requests/s  fixes_used  rejected  changes  rms_m  max_m");
+        run(FusionPipeline.Model.ORIENTATION, 100, 0, false);
+        run(FusionPipeline.Model.ORIENTATION, 100, 0, true);
+        run(FusionPipeline.Model.PEDESTRIAN, 0, 0, false);
+        run(FusionPipeline.Model.PEDESTRIAN, 0, 0, true);
+        run(FusionPipeline.Model.PEDESTRIAN, 0, OTHER_START_DEG, false);
+        run(FusionPipeline.Model.PEDESTRIAN, 0, OTHER_START_DEG, true);
+    }
+
+    /**
+     *
+     * @param startDeg Walking direction at the start, counter-clockwise from east; any other than
+     *                 0 also changes the step length constant of the walker
+     */
+    private static void run(FusionPipeline.Model model, double rate, double startDeg, boolean adaptive) {
+        SimulatedWalk walk = startDeg == 0 ? new SimulatedWalk(7)
+                : new SimulatedWalk(7, Math.toRadians(startDeg), OTHER_STEP_LENGTH_CONSTANT);
+        WalkErrorListener errors = new WalkErrorListener(walk);
+        FusionPipeline pipeline = new FusionPipeline(new SensorBias(0.05, 0.05, 0.05), errors);
+        pipeline.setFrame(FusionPipeline.Frame.LOCAL_ENU);
+        pipeline.setModel(model);
+        pipeline.setPredictRate(rate);
+        GpsScheduler scheduler = new GpsScheduler();
+        Random random = new Random(11);
+        double[] fix = new double[3];
+        pipeline.onGpsFix(0, PipelineFixture.LAT0, PipelineFixture.LON0, PipelineFixture.ALT0, GPS_ACCURACY);
+        long fixesUsed = 1;
+        long lastFix = 0;
+        for (int i = 0; i < SimulatedWalk.SAMPLES_PER_SECOND * SECONDS; ++i) {
+            long timestamp = walk.next();
+            pipeline.onSample(timestamp, FusionCore.SENSOR_LINEAR_ACCELERATION, walk.mAcc[0], walk.mAcc[1], walk.mAcc[2]);
+            pipeline.onSample(timestamp, FusionCore.SENSOR_GYROSCOPE, walk.mGyro[0], walk.mGyro[1], walk.mGyro[2]);
+            if ((i + 1) % SimulatedWalk.SAMPLES_PER_SECOND != 0) continue;
+
+            // once a second, as the app does
+            long now = timestamp / 1000000L;
+            scheduler.update(now, pipeline.getDriftVariance());
+            if (adaptive && now - lastFix < scheduler.getIntervalMillis()) continue;
+            lastFix = now;
+            if (now >= INDOOR_START * 1000L && now < INDOOR_END * 1000L) continue;
+            errors.mPlane.enuToGeodetic(walk.getEast() + random.nextGaussian() * GPS_NOISE,
+                    walk.getNorth() + random.nextGaussian() * GPS_NOISE, 0, fix);
+            if (scheduler.isUsable(GPS_ACCURACY)
+                    && pipeline.onGpsFix(timestamp, fix[0], fix[1], fix[2], GPS_ACCURACY)) {
+                scheduler.onFixAccepted(now);
+                ++fixesUsed;
+            } else {
+                scheduler.onFixRejected();
+            }
+        }
+        double requestRate = adaptive ? scheduler.getRequestRate() : 1;
+        System.out.println(String.format(Locale.US, "%-11s  %9.0f  %-8s  %10.3f  %10d  %8d  %7d  %5.1f  %5.1f",
+                model, startDeg, adaptive ? "adaptive" : "1 Hz", requestRate, fixesUsed, scheduler.getRejectedFixes(),
+                adaptive ? scheduler.getRequestChanges() : 0, errors.getRmsError(), errors.mMaxError));
+    }
+}
@@ -1,4 +1,4 @@
-package app.imu.indoortrack.sensor;
+package app.imu.indoortrack.benchmark;
 
 import org.apache.commons.math3.filter.DefaultMeasurementModel;
 import org.apache.commons.math3.filter.DefaultProcessModel;
@@ -10,7 +10,11 @@ import org.apache.commons.math3.linear.ArrayRealVector;
 import org.apache.commons.math3.linear.RealMatrix;
 import org.apache.commons.math3.linear.RealVector;
 
-public class SensorDataFilter {
+/**
+ * The commons-math based SensorDataFilter that the closed-form filter replaced, kept as the
+ * benchmark baseline.
+ */
+class LegacyKalmanFilter {
 
     private RealMatrix mA;
     private RealMatrix mB;
@@ -21,8 +25,7 @@ public class SensorDataFilter {
 
     private static final double DT = 1d;
 
-    public SensorDataFilter(double gpsValue, double gpsNoise, double accNoise) {
-        System.out.println(gpsNoise);
+    LegacyKalmanFilter(double gpsValue, double gpsNoise, double accNoise) {
         mGpsNoise = gpsNoise;
         mAccNoise = accNoise;
         mX = new ArrayRealVector(new double[] { gpsValue, 0 });
@@ -40,13 +43,7 @@ public class SensorDataFilter {
         mKFilter = new KalmanFilter(pm, mm);
     }
 
-    /**
-     *
-     * @param u Acceleration Reading
-     * @param z GPS Reading
-     * @return Corrected vector
-     */
-    public RealVector estimate(RealVector u, RealVector z) {
+    RealVector estimate(RealVector u, RealVector z) {
         if (mAccNoise == 0. && mGpsNoise == 0.) return z;
         mX = (mA.operate(mX)).add(mB.operate(u));
         mKFilter.predict(u);
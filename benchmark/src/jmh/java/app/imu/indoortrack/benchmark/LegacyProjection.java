@@ -1,13 +1,16 @@
-package app.imu.indoortrack.sensor;
+package app.imu.indoortrack.benchmark;
 
-public class Projection {
+/**
+ * The original closed-form projection, kept as the reference for accuracy and throughput.
+ */
+class LegacyProjection {
     private static final double R = 6378137; // radius
     private static final double E = 8.1819190842622e-2;  // eccentricity
 
     private static final double ASQ = Math.pow(R,2);
     private static final double ESQ = Math.pow(E,2);
 
-    public static double[] cartesianToGeodetic(double x, double y, double z) {
+    static double[] cartesianToGeodetic(double x, double y, double z) {
         double b = Math.sqrt( ASQ * (1-ESQ) );
         double bsq = Math.pow(b,2);
         double ep = Math.sqrt( (ASQ - bsq)/bsq);
@@ -22,7 +25,7 @@ public class Projection {
     }
 
 
-    public static double[] geodeticToCartesian(double lat, double lon, double alt) {
+    static double[] geodeticToCartesian(double lat, double lon, double alt) {
         lat = Math.toRadians(lat);
         lon = Math.toRadians(lon);
         double N = R / Math.sqrt(1 - ESQ * Math.pow(Math.sin(lat),2));
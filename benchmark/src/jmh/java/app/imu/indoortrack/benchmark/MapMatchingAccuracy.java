@@ -0,0 +1,115 @@
+package app.imu.indoortrack.benchmark;
+
+import java.util.Locale;
+import java.util.Random;
+
+import app.imu.indoortrack.floorplan.FloorPlan;
+import app.imu.indoortrack.floorplan.MapMatcher;
+import app.imu.indoortrack.fusion.FusionCore;
+import app.imu.indoortrack.fusion.FusionPipeline;
+import app.imu.indoortrack.sensor.SensorBias;
+
+/**
+ * Replays a {@link SimulatedWalk} with GPS for the first minute and none after, as when walking
+ * into a building, with and without a {@link MapMatcher}, and prints the position error while
+ * indoors and how many positions lie outside the corridors. The floor plan has a 2 m wide corridor
+ * along the path actually walked. A constant gyroscope bias makes the heading drift.
+ */
+public class MapMatchingAccuracy {
+
+    private static final int SECONDS = 300;
+    private static final int INDOOR_START = 60;
+    private static final double GPS_NOISE = 3;
+    private static final double GPS_ACCURACY = 5;
+    private static final double CORRIDOR_WIDTH = 2;
+
+    public static void main(String[] args) {
+        FloorPlan plan = createFloorPlan();
+        System.out.println("floor plan: " + plan.getCorridorCount() + " corridor segments");
+        System.out.println("model        gyro_bias  matching  rms_m  max_m  outside_%");
+        for (double gyroBias : new double[] { 0, 0.002, 0.005 }) {
+            run(plan, FusionPipeline.Model.PEDESTRIAN, 0, gyroBias, false);
+            run(plan, FusionPipeline.Model.PEDESTRIAN, 0, gyroBias, true);
+        }
+        // drifts far beyond the search radius without GPS, matching has nothing to work with
+        run(plan, FusionPipeline.Model.ORIENTATION, 100, 0, false);
+        run(plan, FusionPipeline.Model.ORIENTATION, 100, 0, true);
+    }
+
+    /**
+     * Corridor along the true path, one segment per second.
+     */
+    private static FloorPlan createFloorPlan() {
+        FloorPlan plan = new FloorPlan(PipelineFixture.LAT0, PipelineFixture.LON0, PipelineFixture.ALT0);
+        SimulatedWalk walk = new SimulatedWalk(7);
+        double[] path = new double[(SECONDS + 1) * 2];
+        for (int i = 0; i < SimulatedWalk.SAMPLES_PER_SECOND * SECONDS; ++i) {
+            walk.next();
+            if ((i + 1) % SimulatedWalk.SAMPLES_PER_SECOND != 0) continue;
+            int second = (i + 1) / SimulatedWalk.SAMPLES_PER_SECOND;
+            path[second * 2] = walk.getEast();
+            path[second * 2 + 1] = walk.getNorth();
+        }
+        plan.addCorridor(CORRIDOR_WIDTH, path);
+        return plan;
+    }
+
+    /**
+     *
+     * @param gyroBias Added to the vertical rotation rate, in radians per second
+     */
+    private static void run(FloorPlan plan, FusionPipeline.Model model, double rate, double gyroBias,
+                            boolean matching) {
+        SimulatedWalk walk = new SimulatedWalk(7);
+        ErrorListener errors = new ErrorListener(walk, new MapMatcher(plan));
+        FusionPipeline pipeline = new FusionPipeline(new SensorBias(0.05, 0.05, 0.05), errors);
+        pipeline.setFrame(FusionPipeline.Frame.LOCAL_ENU);
+        pipeline.setModel(model);
+        pipeline.setPredictRate(rate);
+        pipeline.setMapMatcher(matching ? new MapMatcher(plan) : null);
+        Random random = new Random(11);
+        double[] fix = new double[3];
+        pipeline.onGpsFix(0, PipelineFixture.LAT0, PipelineFixture.LON0, PipelineFixture.ALT0, GPS_ACCURACY);
+        for (int i = 0; i < SimulatedWalk.SAMPLES_PER_SECOND * SECONDS; ++i) {
+            long timestamp = walk.next();
+            errors.mIndoors = timestamp >= INDOOR_START * 1000000000L;
+            pipeline.onSample(timestamp, FusionCore.SENSOR_LINEAR_ACCELERATION, walk.mAcc[0], walk.mAcc[1], walk.mAcc[2]);
+            pipeline.onSample(timestamp, FusionCore.SENSOR_GYROSCOPE, walk.mGyro[0], walk.mGyro[1],
+                    (float) (walk.mGyro[2] + gyroBias));
+            if ((i + 1) % SimulatedWalk.SAMPLES_PER_SECOND != 0 || errors.mIndoors) continue;
+            errors.mPlane.enuToGeodetic(walk.getEast() + random.nextGaussian() * GPS_NOISE,
+                    walk.getNorth() + random.nextGaussian() * GPS_NOISE, 0, fix);
+            pipeline.onGpsFix(timestamp, fix[0], fix[1], fix[2], GPS_ACCURACY);
+        }
+        System.out.println(String.format(Locale.US, "%-11s  %9.3f  %-8s  %5.1f  %5.1f  %9.1f",
+                model, gyroBias, matching ? "on" : "off", errors.getRmsError(),
+                errors.mMaxError, 100. * errors.mOutside / Math.max(1, errors.mCount)));
+    }
+
+    private static class ErrorListener extends WalkErrorListener {
+
+        // tells whether a position is inside a corridor by whether matching moves it
+        private final MapMatcher mInside;
+        boolean mIndoors;
+        long mOutside;
+
+        ErrorListener(SimulatedWalk walk, MapMatcher inside) {
+            super(walk);
+            mInside = inside;
+        }
+
+        @Override
+        public void onPosition(long timestamp, double lat, double lon, double alt) {
+            if (mIndoors) super.onPosition(timestamp, lat, lon, alt);
+        }
+
+        @Override
+        void onError(double[] enu, double error) {
+            double east = enu[0];
+            double north = enu[1];
+            mInside.reset();
+            // allow for the round trip through geodetic coordinates
+            if (!mInside.matchEnu(enu) || Math.abs(enu[0] - east) + Math.abs(enu[1] - north) > 1e-3) ++mOutside;
+        }
+    }
+}
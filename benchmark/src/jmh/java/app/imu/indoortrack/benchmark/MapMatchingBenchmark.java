@@ -0,0 +1,125 @@
+package app.imu.indoortrack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import app.imu.indoortrack.floorplan.FloorPlan;
+import app.imu.indoortrack.floorplan.MapMatcher;
+
+/**
+ * Positions matched per second against a building of square blocks: 2 m corridors on a 10 m grid
+ * with walls between them, sized by the number of corridor segments. The positions wander along
+ * the corridors a meter at a time, up to 3 m off. The scan baseline finds the nearest corridor by
+ * reading every segment, as a matcher without an index would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MapMatchingBenchmark {
+
+    private static final double SPACING = 10;
+    private static final int POSITIONS = 4096;
+
+    @Param({"100", "10000", "100000"})
+    public int corridors;
+
+    private MapMatcher mMatcher;
+    private double[] mX0;
+    private double[] mY0;
+    private double[] mX1;
+    private double[] mY1;
+    private final double[] mPositions = new double[POSITIONS * 2];
+    private final double[] mEnu = new double[3];
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        // a k by k grid of blocks has 2 k (k + 1) corridor segments
+        int k = Math.max(1, (int) Math.sqrt(corridors / 2.));
+        FloorPlan plan = new FloorPlan(PipelineFixture.LAT0, PipelineFixture.LON0, PipelineFixture.ALT0);
+        mX0 = new double[2 * k * (k + 1)];
+        mY0 = new double[mX0.length];
+        mX1 = new double[mX0.length];
+        mY1 = new double[mX0.length];
+        int count = 0;
+        for (int line = 0; line <= k; ++line) {
+            for (int i = 0; i < k; ++i) {
+                double a = line * SPACING;
+                double b0 = i * SPACING;
+                double b1 = b0 + SPACING;
+                plan.addCorridor(2, b0, a, b1, a);
+                plan.addCorridor(2, a, b0, a, b1);
+                mX0[count] = b0; mY0[count] = a; mX1[count] = b1; mY1[count++] = a;
+                mX0[count] = a; mY0[count] = b0; mX1[count] = a; mY1[count++] = b1;
+                if (line < k) {
+                    // walls through the middle of the blocks, leaving the corners open
+                    double m = a + SPACING / 2;
+                    plan.addWall(b0 + 2, m, b1 - 2, m);
+                    plan.addWall(m, b0 + 2, m, b1 - 2);
+                }
+            }
+        }
+        mMatcher = new MapMatcher(plan);
+
+        Random random = new Random(42);
+        double size = k * SPACING;
+        double x = 0;
+        double y = 0;
+        boolean east = true;
+        for (int i = 0; i < POSITIONS; ++i) {
+            // turn at crossings now and then
+            if (x % SPACING == 0 && y % SPACING == 0 && random.nextInt(3) == 0) east = !east;
+            double step = random.nextBoolean() ? 1 : -1;
+            if (east) x = Math.max(0, Math.min(size, x + step));
+            else y = Math.max(0, Math.min(size, y + step));
+            mPositions[i * 2] = x + (east ? 0 : random.nextDouble() * 6 - 3);
+            mPositions[i * 2 + 1] = y + (east ? random.nextDouble() * 6 - 3 : 0);
+        }
+    }
+
+    private int next() {
+        int i = mNext;
+        mNext = (mNext + 1) % POSITIONS;
+        return i * 2;
+    }
+
+    @Benchmark
+    public double matcher() {
+        int i = next();
+        mEnu[0] = mPositions[i];
+        mEnu[1] = mPositions[i + 1];
+        mMatcher.matchEnu(mEnu);
+        return mEnu[0] + mEnu[1];
+    }
+
+    @Benchmark
+    public int scan() {
+        int i = next();
+        double x = mPositions[i];
+        double y = mPositions[i + 1];
+        double best = Double.POSITIVE_INFINITY;
+        int nearest = -1;
+        for (int s = 0; s < mX0.length; ++s) {
+            double dx = mX1[s] - mX0[s];
+            double dy = mY1[s] - mY0[s];
+            double t = Math.max(0, Math.min(1, ((x - mX0[s]) * dx + (y - mY0[s]) * dy) / (dx * dx + dy * dy)));
+            double ox = x - mX0[s] - t * dx;
+            double oy = y - mY0[s] - t * dy;
+            double distance2 = ox * ox + oy * oy;
+            if (distance2 < best) {
+                best = distance2;
+                nearest = s;
+            }
+        }
+        return nearest;
+    }
+}
@@ -0,0 +1,81 @@
+package app.imu.indoortrack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import app.imu.indoortrack.fusion.FusionCore;
+import app.imu.indoortrack.fusion.FusionPipeline;
+import app.imu.indoortrack.metrics.Counter;
+import app.imu.indoortrack.metrics.Histogram;
+import app.imu.indoortrack.metrics.TrackingMetrics;
+
+/**
+ * Cost of the instrumentation: one second of 200 Hz accelerometer and gyroscope samples handed to
+ * the pipeline in blocks of 40 with and without {@link TrackingMetrics}, and a single
+ * {@link Histogram} record and {@link Counter} increment.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MetricsBenchmark {
+
+    private static final int SAMPLES = PipelineFixture.SAMPLES_PER_SECOND * 2;
+    private static final int BLOCK = 40;
+
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    private final long[] mOffsets = new long[SAMPLES];
+    private final long[] mTimestamps = new long[SAMPLES];
+    private final int[] mTypes = new int[SAMPLES];
+    private final float[] mValues = PipelineFixture.noise(SAMPLES * 3);
+    private FusionPipeline mPipeline;
+    private final Histogram mHistogram = new Histogram();
+    private final Counter mCounter = new Counter();
+    private long mSecond;
+    private long mValue;
+    private double mLat = PipelineFixture.LAT0;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        for (int i = 0; i < SAMPLES; ++i) {
+            mTypes[i] = i % 2 == 0 ? FusionCore.SENSOR_LINEAR_ACCELERATION : FusionCore.SENSOR_GYROSCOPE;
+            mOffsets[i] = i / 2 * PipelineFixture.SAMPLE_INTERVAL_NANOS;
+        }
+        mPipeline = PipelineFixture.createPipeline(blackhole);
+        mPipeline.setModel(FusionPipeline.Model.ORIENTATION);
+        mPipeline.setPredictRate(100);
+        mPipeline.setMetrics(metrics ? new TrackingMetrics() : null);
+        PipelineFixture.onGpsFix(mPipeline, 0, mLat);
+    }
+
+    @Benchmark
+    public void pipeline() {
+        long start = ++mSecond * 1000000000L;
+        for (int i = 0; i < SAMPLES; ++i) mTimestamps[i] = start + mOffsets[i];
+        mLat += 1e-6;
+        PipelineFixture.onGpsFix(mPipeline, start, mLat);
+        for (int i = 0; i < SAMPLES; i += BLOCK) mPipeline.onSamples(mTimestamps, mTypes, mValues, i, BLOCK);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void histogramRecord() {
+        // spread over the buckets like latencies of a few microseconds
+        mValue = mValue * 6364136223846793005L + 1442695040888963407L;
+        mHistogram.record((mValue >>> 50) + 1000);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void counterIncrement() { mCounter.increment(); }
+}
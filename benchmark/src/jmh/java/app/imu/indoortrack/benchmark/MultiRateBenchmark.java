@@ -0,0 +1,72 @@
+package app.imu.indoortrack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import app.imu.indoortrack.fusion.FusionCore;
+import app.imu.indoortrack.fusion.FusionPipeline;
+
+/**
+ * One second of 200 Hz accelerometer and gyroscope samples plus one GPS fix, filtered by
+ * {@code model} at {@code rate} Hz; 0 is the original one second window. The score is the CPU
+ * time per second of sensor data, so score / 1e9 is the share of a core the pipeline needs and
+ * score / rate the cost of one predict tick including its listener callbacks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MultiRateBenchmark {
+
+    private static final int INPUTS = 1024;
+    private static final int SAMPLES_PER_SECOND = PipelineFixture.SAMPLES_PER_SECOND;
+    private static final long SAMPLE_INTERVAL_NANOS = PipelineFixture.SAMPLE_INTERVAL_NANOS;
+
+    @Param({"0", "50", "100", "200"})
+    public int rate;
+
+    @Param({"PER_AXIS", "ORIENTATION"})
+    public FusionPipeline.Model model;
+
+    private final float[] mSamples = PipelineFixture.noise(INPUTS * 3);
+    private FusionCore mCore;
+    private long mTimestamp;
+    private int mIndex;
+    private double mLat = PipelineFixture.LAT0;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        FusionPipeline pipeline = PipelineFixture.createPipeline(blackhole);
+        pipeline.setModel(model);
+        pipeline.setPredictRate(rate);
+        mCore = pipeline;
+        PipelineFixture.onGpsFix(mCore, 0, mLat);
+    }
+
+    private int next() {
+        mIndex += 3;
+        if (mIndex == INPUTS * 3) mIndex = 0;
+        return mIndex;
+    }
+
+    @Benchmark
+    public void second() {
+        for (int s = 0; s < SAMPLES_PER_SECOND; ++s) {
+            int i = next();
+            mTimestamp += SAMPLE_INTERVAL_NANOS;
+            mCore.onSample(mTimestamp, FusionCore.SENSOR_LINEAR_ACCELERATION, mSamples[i], mSamples[i + 1], mSamples[i + 2]);
+            mCore.onSample(mTimestamp + SAMPLE_INTERVAL_NANOS / 2, FusionCore.SENSOR_GYROSCOPE,
+                    mSamples[i + 2], mSamples[i + 1], mSamples[i]);
+        }
+        mLat += 1e-6;
+        PipelineFixture.onGpsFix(mCore, mTimestamp, mLat);
+    }
+}
@@ -0,0 +1,133 @@
+package app.imu.indoortrack.benchmark;
+
+import java.util.Locale;
+import java.util.Random;
+
+import app.imu.indoortrack.fusion.FusionCore;
+import app.imu.indoortrack.fusion.FusionPipeline;
+import app.imu.indoortrack.sensor.SensorBias;
+
+/**
+ * Replays a simulated walk through {@link FusionPipeline} with the per-axis filter and with the
+ * orientation filter and prints the position error in meters. The recorded sessions only keep
+ * the window averages, so the raw 200 Hz samples are generated: the device is carried facing
+ * forward while turning left at a constant rate, its speed swinging with each step, with white
+ * sensor noise and noisy 1 Hz GPS fixes that drop out for part of the walk. The walk is run once
+ * with the device axes along the world axes at the start, and once with the device starting
+ * rotated about the vertical. The per-axis filter assumes the former; the orientation filter
+ * starts from a rotation vector that is a few degrees off.
+ */
+public class OrientationAccuracy {
+
+    private static final int SAMPLES_PER_SECOND = 200;
+    private static final long SAMPLE_INTERVAL_NANOS = 1000000000L / SAMPLES_PER_SECOND;
+    private static final int SECONDS = 300;
+    private static final double RADIUS = 20;
+    private static final double SPEED = 1.4;
+    private static final double STEP_HZ = 2;
+    private static final double STEP_ACC = 1.5;
+    private static final double ACC_NOISE = 0.1;
+    private static final double GYRO_NOISE = 0.01;
+    private static final int ROTATION_VECTOR_DECIMATION = 4;
+    private static final double ROTATION_VECTOR_ERROR_DEG = 6;
+    private static final double GPS_NOISE = 3;
+    private static final double GPS_ACCURACY = 5;
+    // no fixes in between, the filters dead-reckon; early, before GPS has corrected the heading
+    private static final int OUTAGE_START = 20;
+    private static final int OUTAGE_END = 50;
+    // heading of the device x axis at the start of the misaligned walk, counter-clockwise from east
+    private static final double MISALIGNED_START_DEG = 120;
+
+    public static void main(String[] args) {
+        System.out.println("model        rate_hz  start_deg  rms_m  outage_rms_m  outage_max_m  distance_m (true "
+                + String.format(Locale.US, "%.1f", SPEED * SECONDS) + ")");
+        for (double start : new double[] {0, MISALIGNED_START_DEG}) {
+            run(FusionPipeline.Model.PER_AXIS, 0, start);
+            run(FusionPipeline.Model.PER_AXIS, 100, start);
+            run(FusionPipeline.Model.ORIENTATION, 0, start);
+            run(FusionPipeline.Model.ORIENTATION, 100, start);
+        }
+    }
+
+    /**
+     *
+     * @param startDeg Heading of the device x axis at the start, counter-clockwise from east
+     */
+    private static void run(FusionPipeline.Model model, double rate, double startDeg) {
+        ErrorListener errors = new ErrorListener();
+        FusionPipeline pipeline = new FusionPipeline(new SensorBias(0.05, 0.05, 0.05), errors);
+        pipeline.setFrame(FusionPipeline.Frame.LOCAL_ENU);
+        pipeline.setModel(model);
+        pipeline.setPredictRate(rate);
+        Random random = new Random(7);
+        double[] fix = new double[3];
+        double turnRate = SPEED / RADIUS;
+        double step = 2 * Math.PI * STEP_HZ;
+        double dt = SAMPLE_INTERVAL_NANOS / 1e9;
+        double heading0 = Math.toRadians(startDeg);
+        errors.mPlane.enuToGeodetic(0, 0, 0, fix);
+        pipeline.onGpsFix(0, fix[0], fix[1], fix[2], GPS_ACCURACY);
+        for (long k = 1; k <= (long) SAMPLES_PER_SECOND * SECONDS; ++k) {
+            long timestamp = k * SAMPLE_INTERVAL_NANOS;
+            double t = timestamp / 1e9;
+            // true path, integrated at the midpoint of the sample interval
+            double tm = t - dt / 2;
+            double speed = SPEED + STEP_ACC / step * Math.sin(step * tm);
+            errors.mEast += speed * Math.cos(heading0 + turnRate * tm) * dt;
+            errors.mNorth += speed * Math.sin(heading0 + turnRate * tm) * dt;
+            errors.mTime = t;
+            double forward = STEP_ACC * Math.cos(step * t);
+            double left = (SPEED + STEP_ACC / step * Math.sin(step * t)) * turnRate;
+            pipeline.onSample(timestamp, FusionCore.SENSOR_LINEAR_ACCELERATION,
+                    (float) (forward + random.nextGaussian() * ACC_NOISE),
+                    (float) (left + random.nextGaussian() * ACC_NOISE),
+                    (float) (random.nextGaussian() * ACC_NOISE));
+            pipeline.onSample(timestamp, FusionCore.SENSOR_GYROSCOPE,
+                    (float) (random.nextGaussian() * GYRO_NOISE),
+                    (float) (random.nextGaussian() * GYRO_NOISE),
+                    (float) (turnRate + random.nextGaussian() * GYRO_NOISE));
+            if (k % ROTATION_VECTOR_DECIMATION == 0) {
+                // x, y and z of the quaternion with w >= 0, as the sensor reports it
+                double yaw = heading0 + turnRate * t + Math.toRadians(ROTATION_VECTOR_ERROR_DEG);
+                double half = Math.IEEEremainder(yaw, 2 * Math.PI) / 2;
+                pipeline.onSample(timestamp, FusionCore.SENSOR_ROTATION_VECTOR, 0, 0, (float) Math.sin(half));
+            }
+            if (k % SAMPLES_PER_SECOND == 0 && (t < OUTAGE_START || t >= OUTAGE_END)) {
+                errors.mPlane.enuToGeodetic(errors.mEast + random.nextGaussian() * GPS_NOISE,
+                        errors.mNorth + random.nextGaussian() * GPS_NOISE, 0, fix);
+                pipeline.onGpsFix(timestamp, fix[0], fix[1], fix[2], GPS_ACCURACY);
+            }
+        }
+        System.out.println(String.format(Locale.US, "%-11s  %7.0f  %9.0f  %5.2f  %12.2f  %12.2f  %10.1f",
+                model, rate, startDeg, errors.getRmsError(),
+                Math.sqrt(errors.mOutageSumSq / errors.mOutageCount), errors.mOutageMax,
+                pipeline.getTotalDistance()));
+    }
+
+    private static class ErrorListener extends WalkErrorListener {
+
+        double mTime;
+        double mEast;
+        double mNorth;
+        double mOutageSumSq;
+        long mOutageCount;
+        double mOutageMax;
+
+        ErrorListener() { super(null); }
+
+        @Override
+        double getTrueEast() { return mEast; }
+
+        @Override
+        double getTrueNorth() { return mNorth; }
+
+        @Override
+        void onError(double[] enu, double error) {
+            if (mTime >= OUTAGE_START && mTime < OUTAGE_END) {
+                mOutageSumSq += error * error;
+                ++mOutageCount;
+                mOutageMax = Math.max(mOutageMax, error);
+            }
+        }
+    }
+}
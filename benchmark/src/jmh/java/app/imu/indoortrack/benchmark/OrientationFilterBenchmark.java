@@ -0,0 +1,91 @@
+package app.imu.indoortrack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import app.imu.indoortrack.sensor.FusedSensorDataFilter;
+import app.imu.indoortrack.sensor.OrientationFilter;
+
+/**
+ * One 200 Hz sample through the fused per-axis filter versus the orientation filter, and one GPS
+ * correction of each.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class OrientationFilterBenchmark {
+
+    private static final int INPUTS = 1024;
+    private static final double DT = 0.005;
+
+    private final double[] mAcc = new double[INPUTS * 3];
+    private final double[] mGyro = new double[INPUTS * 3];
+    private final double[] mGps = new double[INPUTS * 3];
+    private int mIndex;
+
+    private FusedSensorDataFilter mFused;
+    private OrientationFilter mOrientation;
+    private final double[] mU = new double[3];
+    private final double[] mZ = new double[3];
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < mAcc.length; ++i) {
+            mAcc[i] = random.nextGaussian() * 0.1;
+            mGyro[i] = random.nextGaussian() * 0.05;
+            mGps[i] = random.nextGaussian() * 3;
+        }
+        double[] origin = {0, 0, 0};
+        double[] gpsNoise = {0.05, 0.05, 0.1};
+        double[] accNoise = {0.02, 0.02, 0.03};
+        mFused = new FusedSensorDataFilter(origin, gpsNoise, accNoise);
+        mOrientation = new OrientationFilter(origin, gpsNoise, accNoise, OrientationFilter.DEFAULT_GYRO_NOISE);
+    }
+
+    private int next() {
+        mIndex += 3;
+        if (mIndex == INPUTS * 3) mIndex = 0;
+        return mIndex;
+    }
+
+    @Benchmark
+    public double perAxisPredict() {
+        int i = next();
+        System.arraycopy(mAcc, i, mU, 0, 3);
+        mFused.predict(mU, DT);
+        return mFused.getPosition(0);
+    }
+
+    @Benchmark
+    public double orientationPredict() {
+        int i = next();
+        mOrientation.predictOrientation(mGyro[i], mGyro[i + 1], mGyro[i + 2], DT);
+        mOrientation.predictMotion(mAcc[i], mAcc[i + 1], mAcc[i + 2], DT);
+        return mOrientation.getPosition(0);
+    }
+
+    @Benchmark
+    public double perAxisCorrect() {
+        int i = next();
+        System.arraycopy(mGps, i, mZ, 0, 3);
+        mFused.correct(mZ);
+        return mFused.getPosition(0);
+    }
+
+    @Benchmark
+    public double orientationCorrect() {
+        int i = next();
+        System.arraycopy(mGps, i, mZ, 0, 3);
+        mOrientation.correct(mZ);
+        return mOrientation.getPosition(0);
+    }
+}
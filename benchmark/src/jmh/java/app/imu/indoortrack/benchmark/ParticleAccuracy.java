@@ -0,0 +1,62 @@
+package app.imu.indoortrack.benchmark;
+
+import java.util.Locale;
+import java.util.Random;
+
+import app.imu.indoortrack.fusion.FusionCore;
+import app.imu.indoortrack.fusion.FusionPipeline;
+import app.imu.indoortrack.sensor.SensorBias;
+
+/**
+ * Replays the {@link SimulatedWalk} of {@link GpsScheduleAccuracy} through
+ * {@link FusionPipeline.Model#PARTICLE} and, for comparison, {@link FusionPipeline.Model#PER_AXIS},
+ * with a fix every second, and prints the position error, the accuracy counterpart of
+ * {@link ParticleFilterBenchmark}. The fixes are as good as the accuracy they report, which
+ * changes from fix to fix, and optionally stop for a stretch indoors.
+ */
+public class ParticleAccuracy {
+
+    private static final int SECONDS = 600;
+    // the accuracy of a fix and the noise per axis it stands for
+    private static final double[] GPS_ACCURACIES = { 3, 5, 5, 10, 20 };
+    private static final double GPS_NOISE_PER_ACCURACY = 0.6;
+    private static final int INDOOR_START = 240;
+    private static final int INDOOR_END = 360;
+
+    public static void main(String[] args) {
+        System.out.println("model        rate_hz  gps          rms_m  max_m");
+        for (boolean indoors : new boolean[] { false, true }) {
+            run(FusionPipeline.Model.PER_AXIS, 100, indoors);
+            run(FusionPipeline.Model.PARTICLE, 0, indoors);
+            run(FusionPipeline.Model.PARTICLE, 100, indoors);
+        }
+    }
+
+    private static void run(FusionPipeline.Model model, double rate, boolean indoors) {
+        SimulatedWalk walk = new SimulatedWalk(7);
+        WalkErrorListener errors = new WalkErrorListener(walk);
+        FusionPipeline pipeline = new FusionPipeline(new SensorBias(0.05, 0.05, 0.05), errors);
+        pipeline.setFrame(FusionPipeline.Frame.LOCAL_ENU);
+        pipeline.setModel(model);
+        pipeline.setPredictRate(rate);
+        Random random = new Random(11);
+        double[] fix = new double[3];
+        pipeline.onGpsFix(0, PipelineFixture.LAT0, PipelineFixture.LON0, PipelineFixture.ALT0, GPS_ACCURACIES[1]);
+        for (int i = 0; i < SimulatedWalk.SAMPLES_PER_SECOND * SECONDS; ++i) {
+            long timestamp = walk.next();
+            pipeline.onSample(timestamp, FusionCore.SENSOR_LINEAR_ACCELERATION, walk.mAcc[0], walk.mAcc[1], walk.mAcc[2]);
+            pipeline.onSample(timestamp, FusionCore.SENSOR_GYROSCOPE, walk.mGyro[0], walk.mGyro[1], walk.mGyro[2]);
+            if ((i + 1) % SimulatedWalk.SAMPLES_PER_SECOND != 0) continue;
+
+            long now = timestamp / 1000000L;
+            if (indoors && now >= INDOOR_START * 1000L && now < INDOOR_END * 1000L) continue;
+            double accuracy = GPS_ACCURACIES[random.nextInt(GPS_ACCURACIES.length)];
+            double noise = accuracy * GPS_NOISE_PER_ACCURACY;
+            errors.mPlane.enuToGeodetic(walk.getEast() + random.nextGaussian() * noise,
+                    walk.getNorth() + random.nextGaussian() * noise, 0, fix);
+            pipeline.onGpsFix(timestamp, fix[0], fix[1], fix[2], accuracy);
+        }
+        System.out.println(String.format(Locale.US, "%-11s  %7.0f  %-11s  %5.1f  %5.1f",
+                model, rate, indoors ? "indoor gap" : "1 Hz", errors.getRmsError(), errors.mMaxError));
+    }
+}
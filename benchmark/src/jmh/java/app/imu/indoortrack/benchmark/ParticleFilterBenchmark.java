@@ -0,0 +1,88 @@
+package app.imu.indoortrack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import app.imu.indoortrack.sensor.ParticleFilter;
+
+/**
+ * One window of a {@link ParticleFilter}: a predict step, and a GPS correction as with a fix per
+ * window, by number of particles and size of the fork-join pool; 0 threads runs on the benchmark
+ * thread. Pools only take effect from {@link ParticleFilter#MIN_PARALLEL_PARTICLES} particles.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ParticleFilterBenchmark {
+
+    private static final int INPUTS = 1024;
+    private static final double DT = 1;
+
+    @Param({"1000", "10000", "100000"})
+    public int particles;
+
+    @Param({"0", "1", "2", "4"})
+    public int threads;
+
+    private final double[] mAcc = new double[INPUTS * 3];
+    private final double[] mGps = new double[INPUTS * 3];
+    private int mIndex;
+
+    private ParticleFilter mFilter;
+    private ForkJoinPool mPool;
+    private final double[] mU = new double[3];
+    private final double[] mZ = new double[3];
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < mAcc.length; ++i) {
+            mAcc[i] = random.nextGaussian() * 0.1;
+            mGps[i] = random.nextGaussian() * 5;
+        }
+        mFilter = new ParticleFilter(particles, new double[3], new double[] {5, 5, 7.5},
+                new double[] {0.05, 0.05, 0.08}, 42);
+        mPool = threads > 0 ? new ForkJoinPool(threads) : null;
+        mFilter.setPool(mPool);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (mPool != null) mPool.shutdown();
+    }
+
+    private int next() {
+        mIndex += 3;
+        if (mIndex == INPUTS * 3) mIndex = 0;
+        return mIndex;
+    }
+
+    @Benchmark
+    public double predict() {
+        int i = next();
+        System.arraycopy(mAcc, i, mU, 0, 3);
+        mFilter.predict(mU, DT);
+        return mFilter.getPosition(0);
+    }
+
+    @Benchmark
+    public double predictAndCorrect() {
+        int i = next();
+        System.arraycopy(mAcc, i, mU, 0, 3);
+        mFilter.predict(mU, DT);
+        System.arraycopy(mGps, i, mZ, 0, 3);
+        mFilter.correct(mZ);
+        return mFilter.getPosition(0);
+    }
+}
@@ -0,0 +1,67 @@
+package app.imu.indoortrack.benchmark;
+
+import java.util.Locale;
+
+import app.imu.indoortrack.fusion.FusionCore;
+import app.imu.indoortrack.fusion.FusionPipeline;
+import app.imu.indoortrack.sensor.SensorBias;
+
+/**
+ * Replays a {@link SimulatedWalk} indoors, with one GPS fix at the start and none after, through
+ * each filter model and prints the distance and position errors. The recorded sessions only keep
+ * the window averages, which carry no steps. The walk is run as the models assume it, starting
+ * east with the default step length constant, and starting north-west with another constant;
+ * without a rotation vector nothing tells the heading in the latter.
+ */
+public class PedestrianAccuracy {
+
+    private static final int SECONDS = 600;
+    private static final double OTHER_START_DEG = 135;
+    private static final double OTHER_STEP_LENGTH_CONSTANT = 0.5;
+    private static final int ROTATION_VECTOR_DECIMATION = 4;
+
+    public static void main(String[] args) {
+        System.out.println("model        start_deg  k     rotation  steps  distance_m  true_m  distance_error_%  rms_m  final_m  samples/s");
+        for (int i = 0; i < 2; ++i) {
+            double start = i == 0 ? 0 : OTHER_START_DEG;
+            double k = i == 0 ? SimulatedWalk.STEP_LENGTH_CONSTANT : OTHER_STEP_LENGTH_CONSTANT;
+            run(FusionPipeline.Model.PER_AXIS, 100, start, k, false);
+            run(FusionPipeline.Model.ORIENTATION, 100, start, k, true);
+            run(FusionPipeline.Model.PEDESTRIAN, 0, start, k, false);
+            run(FusionPipeline.Model.PEDESTRIAN, 0, start, k, true);
+        }
+    }
+
+    /**
+     *
+     * @param startDeg Walking direction at the start, counter-clockwise from east
+     * @param k Step length constant of the walker
+     * @param rotation Whether to feed the rotation vector
+     */
+    private static void run(FusionPipeline.Model model, double rate, double startDeg, double k, boolean rotation) {
+        SimulatedWalk walk = new SimulatedWalk(7, Math.toRadians(startDeg), k);
+        WalkErrorListener errors = new WalkErrorListener(walk);
+        FusionPipeline pipeline = new FusionPipeline(new SensorBias(0.05, 0.05, 0.05), errors);
+        pipeline.setFrame(FusionPipeline.Frame.LOCAL_ENU);
+        pipeline.setModel(model);
+        pipeline.setPredictRate(rate);
+        pipeline.onGpsFix(0, PipelineFixture.LAT0, PipelineFixture.LON0, PipelineFixture.ALT0, 5);
+        long start = System.nanoTime();
+        for (int i = 0; i < SimulatedWalk.SAMPLES_PER_SECOND * SECONDS; ++i) {
+            long timestamp = walk.next();
+            pipeline.onSample(timestamp, FusionCore.SENSOR_LINEAR_ACCELERATION, walk.mAcc[0], walk.mAcc[1], walk.mAcc[2]);
+            pipeline.onSample(timestamp, FusionCore.SENSOR_GYROSCOPE, walk.mGyro[0], walk.mGyro[1], walk.mGyro[2]);
+            if (rotation && i % ROTATION_VECTOR_DECIMATION == 0) {
+                pipeline.onSample(timestamp, FusionCore.SENSOR_ROTATION_VECTOR,
+                        walk.mRotation[0], walk.mRotation[1], walk.mRotation[2]);
+            }
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        double distance = pipeline.getTotalDistance();
+        System.out.println(String.format(Locale.US, "%-11s  %9.0f  %4.2f  %-8s  %5d  %10.1f  %6.1f  %16.1f  %5.1f  %7.1f  %9.0f",
+                model, startDeg, k, rotation ? "yes" : "no", walk.getSteps(), distance, walk.getDistance(),
+                100 * (distance - walk.getDistance()) / walk.getDistance(),
+                errors.getRmsError(), errors.mLastError,
+                2L * SimulatedWalk.SAMPLES_PER_SECOND * SECONDS / elapsed));
+    }
+}
@@ -0,0 +1,87 @@
+package app.imu.indoortrack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import app.imu.indoortrack.fusion.FusionCore;
+import app.imu.indoortrack.fusion.FusionPipeline;
+import app.imu.indoortrack.sensor.SensorBias;
+import app.imu.indoortrack.sensor.StepDetector;
+
+/**
+ * One minute of a {@link SimulatedWalk}, 12000 accelerometer and 12000 gyroscope samples,
+ * through the step detector alone and through the pipeline with each filter model; 24000 / score
+ * is the number of samples per microsecond.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PedestrianBenchmark {
+
+    private static final int SAMPLES = SimulatedWalk.SAMPLES_PER_SECOND * 60;
+
+    private final float[] mAcc = new float[SAMPLES * 3];
+    private final float[] mGyro = new float[SAMPLES * 3];
+    private final StepDetector mDetector = new StepDetector();
+    private long mTimestamp;
+
+    @State(Scope.Thread)
+    public static class Pipeline {
+
+        @Param({"PER_AXIS", "ORIENTATION", "PEDESTRIAN"})
+        public FusionPipeline.Model model;
+
+        FusionCore mCore;
+
+        @Setup
+        public void setUp(Blackhole blackhole) {
+            FusionPipeline pipeline = new FusionPipeline(new SensorBias(0.05, 0.05, 0.05),
+                    new FusionTickBenchmark.BlackholeListener(blackhole));
+            pipeline.setModel(model);
+            pipeline.setPredictRate(model == FusionPipeline.Model.PEDESTRIAN ? 0 : 100);
+            pipeline.onGpsFix(0, PipelineFixture.LAT0, PipelineFixture.LON0, PipelineFixture.ALT0, 5);
+            mCore = pipeline;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        SimulatedWalk walk = new SimulatedWalk(42);
+        for (int i = 0; i < SAMPLES; ++i) {
+            walk.next();
+            System.arraycopy(walk.mAcc, 0, mAcc, i * 3, 3);
+            System.arraycopy(walk.mGyro, 0, mGyro, i * 3, 3);
+        }
+    }
+
+    @Benchmark
+    public long stepDetector() {
+        long steps = 0;
+        for (int i = 0; i < SAMPLES; ++i) {
+            mTimestamp += SimulatedWalk.SAMPLE_INTERVAL_NANOS;
+            if (mDetector.onSample(mTimestamp, FusionCore.SENSOR_LINEAR_ACCELERATION,
+                    mAcc[i * 3], mAcc[i * 3 + 1], mAcc[i * 3 + 2])) ++steps;
+            mDetector.onSample(mTimestamp, FusionCore.SENSOR_GYROSCOPE, mGyro[i * 3], mGyro[i * 3 + 1], mGyro[i * 3 + 2]);
+        }
+        return steps;
+    }
+
+    @Benchmark
+    public void pipeline(Pipeline state) {
+        FusionCore core = state.mCore;
+        for (int i = 0; i < SAMPLES; ++i) {
+            mTimestamp += SimulatedWalk.SAMPLE_INTERVAL_NANOS;
+            core.onSample(mTimestamp, FusionCore.SENSOR_LINEAR_ACCELERATION, mAcc[i * 3], mAcc[i * 3 + 1], mAcc[i * 3 + 2]);
+            core.onSample(mTimestamp, FusionCore.SENSOR_GYROSCOPE, mGyro[i * 3], mGyro[i * 3 + 1], mGyro[i * 3 + 2]);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package app.imu.indoortrack.benchmark;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+
+import app.imu.indoortrack.fusion.FusionCore;
+import app.imu.indoortrack.fusion.FusionPipeline;
+import app.imu.indoortrack.fusion.SensorSynchronizer;
+import app.imu.indoortrack.sensor.SensorBias;
+
+/**
+ * What the pipeline benchmarks start from: a calibrated pipeline at the origin every benchmark and
+ * simulated walk uses, and white noise for the 200 Hz accelerometer and gyroscope samples.
+ */
+final class PipelineFixture {
+
+    static final double LAT0 = 22.5726;
+    static final double LON0 = 88.3639;
+    static final double ALT0 = 10;
+    static final double GPS_ACCURACY = 8;
+    static final int SAMPLES_PER_SECOND = 200;
+    static final long SAMPLE_INTERVAL_NANOS = 1000000000L / SAMPLES_PER_SECOND;
+
+    private static final double SAMPLE_NOISE = 0.1;
+    private static final long SEED = 42;
+
+    private PipelineFixture() {}
+
+    static FusionPipeline createPipeline(Blackhole blackhole) {
+        return new FusionPipeline(new SensorBias(0.05, 0.05, 0.08),
+                new FusionTickBenchmark.BlackholeListener(blackhole));
+    }
+
+    /**
+     *
+     * @param lat Latitude of the fix, the rest is at the origin
+     */
+    static void onGpsFix(FusionCore core, long timestamp, double lat) {
+        core.onGpsFix(timestamp, lat, LON0, ALT0, GPS_ACCURACY);
+    }
+
+    static void offerGpsFix(SensorSynchronizer synchronizer, long timestamp, double lat) {
+        synchronizer.offerGpsFix(timestamp, lat, LON0, ALT0, GPS_ACCURACY);
+    }
+
+    static Random createRandom() { return new Random(SEED); }
+
+    static float noise(Random random) { return (float) (random.nextGaussian() * SAMPLE_NOISE); }
+
+    /**
+     *
+     * @param count Number of values, three per sample
+     */
+    static float[] noise(int count) {
+        Random random = createRandom();
+        float[] values = new float[count];
+        for (int i = 0; i < count; ++i) values[i] = noise(random);
+        return values;
+    }
+}
@@ -0,0 +1,74 @@
+package app.imu.indoortrack.benchmark;
+
+import java.util.Locale;
+import java.util.Random;
+
+import app.imu.indoortrack.sensor.LocalTangentPlane;
+import app.imu.indoortrack.sensor.Projection;
+
+/**
+ * Compares the projection variants against {@link LegacyProjection} at increasing distances from
+ * the ENU origin and prints the worst position error in meters. Points lie at the given distance
+ * in a random direction, so the linear ENU columns read as the error at that distance.
+ */
+public class ProjectionAccuracy {
+
+    private static final int SAMPLES = 100000;
+    private static final double[] RADII_METERS = { 10, 100, 1000, 10000 };
+
+    public static void main(String[] args) {
+        double lat0 = 22.5726;
+        double lon0 = 88.3639;
+        double alt0 = 10;
+        Random random = new Random(42);
+        LocalTangentPlane plane = new LocalTangentPlane(lat0, lon0, alt0);
+        double[] out = new double[3];
+        double[] enu = new double[3];
+        double[] enuExact = new double[3];
+        double[] target = new double[3];
+        System.out.println("radius_m  buffered_ecef_m  buffered_geodetic_m  enu_linear_m  enu_linear_h_m  "
+                + "enu_roundtrip_m");
+        for (double radius : RADII_METERS) {
+            double ecefError = 0;
+            double geodeticError = 0;
+            double enuError = 0;
+            double horizontalError = 0;
+            double roundTripError = 0;
+            for (int i = 0; i < SAMPLES; ++i) {
+                double bearing = random.nextDouble() * 2 * Math.PI;
+                plane.enuToGeodeticExact(radius * Math.sin(bearing), radius * Math.cos(bearing), random.nextGaussian(),
+                        target);
+                double lat = target[0];
+                double lon = target[1];
+                double alt = target[2];
+                double[] reference = LegacyProjection.geodeticToCartesian(lat, lon, alt);
+                Projection.geodeticToCartesian(lat, lon, alt, out);
+                ecefError = Math.max(ecefError, distance(reference, out));
+
+                double[] referenceGeodetic = LegacyProjection.cartesianToGeodetic(reference[0], reference[1], reference[2]);
+                Projection.cartesianToGeodetic(reference[0], reference[1], reference[2], out);
+                double[] a = LegacyProjection.geodeticToCartesian(referenceGeodetic[0], referenceGeodetic[1], referenceGeodetic[2]);
+                double[] b = LegacyProjection.geodeticToCartesian(out[0], out[1], out[2]);
+                geodeticError = Math.max(geodeticError, distance(a, b));
+
+                plane.geodeticToEnu(lat, lon, alt, enu);
+                plane.geodeticToEnuExact(lat, lon, alt, enuExact);
+                enuError = Math.max(enuError, distance(enu, enuExact));
+                horizontalError = Math.max(horizontalError, Math.hypot(enu[0] - enuExact[0], enu[1] - enuExact[1]));
+
+                plane.enuToGeodetic(enu[0], enu[1], enu[2], out);
+                double[] c = LegacyProjection.geodeticToCartesian(out[0], out[1], out[2]);
+                roundTripError = Math.max(roundTripError, distance(reference, c));
+            }
+            System.out.println(String.format(Locale.US, "%8.0f  %15.3e  %19.3e  %12.3e  %14.3e  %15.3e",
+                    radius, ecefError, geodeticError, enuError, horizontalError, roundTripError));
+        }
+    }
+
+    private static double distance(double[] p, double[] q) {
+        double dx = p[0] - q[0];
+        double dy = p[1] - q[1];
+        double dz = p[2] - q[2];
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+}
@@ -0,0 +1,108 @@
+package app.imu.indoortrack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import app.imu.indoortrack.sensor.LocalTangentPlane;
+import app.imu.indoortrack.sensor.Projection;
+
+/**
+ * Geodetic/ECEF conversions: the original allocating functions, the buffer variants with
+ * precomputed constants, and the local ENU frame. Run {@link ProjectionAccuracy} for the
+ * matching error report.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProjectionBenchmark {
+
+    private static final int INPUTS = 1024;
+
+    private final double[] mGeodetic = new double[INPUTS * 3];
+    private final double[] mCartesian = new double[INPUTS * 3];
+    private final double[] mEnu = new double[INPUTS * 3];
+    private final double[] mOut = new double[3];
+    private LocalTangentPlane mLocalFrame;
+    private int mIndex;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < INPUTS; ++i) {
+            // a few hundred meters around one building
+            double lat = PipelineFixture.LAT0 + random.nextGaussian() * 1e-3;
+            double lon = PipelineFixture.LON0 + random.nextGaussian() * 1e-3;
+            double alt = PipelineFixture.ALT0 + random.nextGaussian();
+            mGeodetic[i * 3] = lat;
+            mGeodetic[i * 3 + 1] = lon;
+            mGeodetic[i * 3 + 2] = alt;
+            System.arraycopy(Projection.geodeticToCartesian(lat, lon, alt), 0, mCartesian, i * 3, 3);
+        }
+        mLocalFrame = new LocalTangentPlane(PipelineFixture.LAT0, PipelineFixture.LON0, PipelineFixture.ALT0);
+        for (int i = 0; i < INPUTS; ++i) {
+            mLocalFrame.geodeticToEnu(mGeodetic[i * 3], mGeodetic[i * 3 + 1], mGeodetic[i * 3 + 2], mOut);
+            System.arraycopy(mOut, 0, mEnu, i * 3, 3);
+        }
+    }
+
+    private int next() {
+        mIndex += 3;
+        if (mIndex == INPUTS * 3) mIndex = 0;
+        return mIndex;
+    }
+
+    @Benchmark
+    public double[] legacyGeodeticToCartesian() {
+        int i = next();
+        return LegacyProjection.geodeticToCartesian(mGeodetic[i], mGeodetic[i + 1], mGeodetic[i + 2]);
+    }
+
+    @Benchmark
+    public double[] legacyCartesianToGeodetic() {
+        int i = next();
+        return LegacyProjection.cartesianToGeodetic(mCartesian[i], mCartesian[i + 1], mCartesian[i + 2]);
+    }
+
+    @Benchmark
+    public double[] geodeticToCartesian() {
+        int i = next();
+        Projection.geodeticToCartesian(mGeodetic[i], mGeodetic[i + 1], mGeodetic[i + 2], mOut);
+        return mOut;
+    }
+
+    @Benchmark
+    public double[] cartesianToGeodetic() {
+        int i = next();
+        Projection.cartesianToGeodetic(mCartesian[i], mCartesian[i + 1], mCartesian[i + 2], mOut);
+        return mOut;
+    }
+
+    @Benchmark
+    public double[] geodeticToEnu() {
+        int i = next();
+        mLocalFrame.geodeticToEnu(mGeodetic[i], mGeodetic[i + 1], mGeodetic[i + 2], mOut);
+        return mOut;
+    }
+
+    @Benchmark
+    public double[] enuToGeodetic() {
+        int i = next();
+        mLocalFrame.enuToGeodetic(mEnu[i], mEnu[i + 1], mEnu[i + 2], mOut);
+        return mOut;
+    }
+
+    @Benchmark
+    public double[] cartesianToEnu() {
+        int i = next();
+        mLocalFrame.cartesianToEnu(mCartesian[i], mCartesian[i + 1], mCartesian[i + 2], mOut);
+        return mOut;
+    }
+}
@@ -0,0 +1,124 @@
+package app.imu.indoortrack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import app.imu.indoortrack.fusion.FusionCore;
+import app.imu.indoortrack.fusion.FusionPipeline;
+import app.imu.indoortrack.fusion.SensorSynchronizer;
+import app.imu.indoortrack.sensor.SensorSampleBuffer;
+
+/**
+ * One second of 200 Hz accelerometer and gyroscope samples going through the
+ * {@link SensorSampleBuffer} in bursts of {@code burst} samples, as the sensor FIFO delivers them
+ * (40 is 100 ms of report latency), plus one GPS fix. The {@code perSample} methods drain one
+ * sample per call, the {@code block} methods hand each burst over as a block, either straight to
+ * the pipeline or through the {@link SensorSynchronizer} as the app does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SampleBlockBenchmark {
+
+    private static final int PREDICT_RATE_HZ = 100;
+    private static final long SAMPLE_INTERVAL_NANOS = PipelineFixture.SAMPLE_INTERVAL_NANOS;
+    private static final int SAMPLES = PipelineFixture.SAMPLES_PER_SECOND * 2;
+
+    @Param({"PER_AXIS", "ORIENTATION"})
+    public FusionPipeline.Model model;
+
+    @Param({"40", "200"})
+    public int burst;
+
+    private final int[] mTypes = new int[SAMPLES];
+    private final long[] mOffsets = new long[SAMPLES];
+    private final float[] mValues = PipelineFixture.noise(SAMPLES * 3);
+    private final SensorSampleBuffer mBuffer = new SensorSampleBuffer(4096);
+    private FusionPipeline mPipeline;
+    private SensorSynchronizer mSynchronizer;
+    private long mSecond;
+    private double mLat = PipelineFixture.LAT0;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        for (int i = 0; i < SAMPLES; ++i) {
+            mTypes[i] = i % 2 == 0 ? FusionCore.SENSOR_LINEAR_ACCELERATION : FusionCore.SENSOR_GYROSCOPE;
+            mOffsets[i] = i / 2 * SAMPLE_INTERVAL_NANOS + i % 2 * SAMPLE_INTERVAL_NANOS / 2;
+        }
+        mPipeline = PipelineFixture.createPipeline(blackhole);
+        mPipeline.setModel(model);
+        mPipeline.setPredictRate(PREDICT_RATE_HZ);
+        mSynchronizer = new SensorSynchronizer(mPipeline);
+        PipelineFixture.onGpsFix(mPipeline, 0, mLat);
+    }
+
+    /**
+     * Offers the next burst to the buffer.
+     * @return Index of the sample after it
+     */
+    private int offer(long start, int from) {
+        int to = Math.min(from + burst, SAMPLES);
+        for (int i = from; i < to; ++i) {
+            mBuffer.offer(start + mOffsets[i], mTypes[i], mValues[i * 3], mValues[i * 3 + 1], mValues[i * 3 + 2]);
+        }
+        return to;
+    }
+
+    /**
+     *
+     * @param synchronizer Whether the fix goes through the synchronizer or straight to the pipeline
+     * @return Start of the next second
+     */
+    private long nextSecond(boolean synchronizer) {
+        mLat += 1e-6;
+        long timestamp = mSecond * 1000000000L;
+        if (synchronizer) PipelineFixture.offerGpsFix(mSynchronizer, timestamp, mLat);
+        else PipelineFixture.onGpsFix(mPipeline, timestamp, mLat);
+        return ++mSecond * 1000000000L;
+    }
+
+    @Benchmark
+    public void pipelinePerSample() {
+        long start = nextSecond(false);
+        for (int i = 0; i < SAMPLES; ) {
+            i = offer(start, i);
+            mBuffer.drain(mPipeline, burst);
+        }
+    }
+
+    @Benchmark
+    public void pipelineBlock() {
+        long start = nextSecond(false);
+        for (int i = 0; i < SAMPLES; ) {
+            i = offer(start, i);
+            mBuffer.drainBlocks(mPipeline, burst);
+        }
+    }
+
+    @Benchmark
+    public void synchronizerPerSample() {
+        long start = nextSecond(true);
+        for (int i = 0; i < SAMPLES; ) {
+            i = offer(start, i);
+            mBuffer.drain(mSynchronizer, burst);
+        }
+    }
+
+    @Benchmark
+    public void synchronizerBlock() {
+        long start = nextSecond(true);
+        for (int i = 0; i < SAMPLES; ) {
+            i = offer(start, i);
+            mBuffer.drainBlocks(mSynchronizer, burst);
+        }
+    }
+}
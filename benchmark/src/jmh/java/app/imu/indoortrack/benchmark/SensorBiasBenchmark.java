@@ -0,0 +1,107 @@
+package app.imu.indoortrack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import app.imu.indoortrack.sensor.SensorBias;
+
+/**
+ * Bias lookup after a calibration of {@code rounds} windows; 61 is what the app collects. The
+ * legacy variants recompute the standard deviation from the boxed reading history the way
+ * SensorBias used to.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SensorBiasBenchmark {
+
+    @Param({"61", "3600"})
+    public int rounds;
+
+    private Vector<Double> mVecX = new Vector<>();
+    private Vector<Double> mVecY = new Vector<>();
+    private Vector<Double> mVecZ = new Vector<>();
+    private SensorBias mSensorBias = new SensorBias();
+    private double[] mReadings;
+    private int mIndex;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        mReadings = new double[rounds * 3];
+        for (int i = 0; i < rounds; ++i) {
+            mReadings[i * 3] = random.nextGaussian() * 0.05;
+            mReadings[i * 3 + 1] = random.nextGaussian() * 0.05;
+            mReadings[i * 3 + 2] = random.nextGaussian() * 0.08;
+            mVecX.add(mReadings[i * 3]);
+            mVecY.add(mReadings[i * 3 + 1]);
+            mVecZ.add(mReadings[i * 3 + 2]);
+            mSensorBias.add(mReadings[i * 3], mReadings[i * 3 + 1], mReadings[i * 3 + 2]);
+        }
+    }
+
+    private int next() {
+        int i = mIndex;
+        mIndex += 3;
+        if (mIndex == rounds * 3) mIndex = 0;
+        return i;
+    }
+
+    private static double getStandardDeviation(Vector<Double> v) {
+        double sum = 0;
+        for( double values: v) {
+            sum += values;
+        }
+        int n = v.size();
+        double avg = sum/n;
+        sum = 0;
+        for (double values: v) {
+            sum += Math.pow(values - avg, 2);
+        }
+        return Math.sqrt(sum/(n-1));
+    }
+
+    @Benchmark
+    public double legacyGetBiasXYZ() {
+        return getStandardDeviation(mVecX) + getStandardDeviation(mVecY) + getStandardDeviation(mVecZ);
+    }
+
+    @Benchmark
+    public double getBiasXYZ() {
+        return mSensorBias.getBiasX() + mSensorBias.getBiasY() + mSensorBias.getBiasZ();
+    }
+
+    /**
+     * One calibration reading; the history keeps growing like it did during calibration.
+     */
+    @Benchmark
+    public Vector<Double> legacyAdd() {
+        int i = next();
+        if (i == 0) {
+            mVecX.clear();
+            mVecY.clear();
+            mVecZ.clear();
+        }
+        mVecX.add(mReadings[i]);
+        mVecY.add(mReadings[i + 1]);
+        mVecZ.add(mReadings[i + 2]);
+        return mVecX;
+    }
+
+    @Benchmark
+    public SensorBias add() {
+        int i = next();
+        mSensorBias.add(mReadings[i], mReadings[i + 1], mReadings[i + 2]);
+        return mSensorBias;
+    }
+}
@@ -0,0 +1,92 @@
+package app.imu.indoortrack.benchmark;
+
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import app.imu.indoortrack.sensor.FusedSensorDataFilter;
+import app.imu.indoortrack.sensor.SensorDataFilter;
+
+/**
+ * One filter tick: the commons-math baseline, the closed-form single axis filter, and all three
+ * axes through the old per-axis calls versus the fused filter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SensorDataFilterBenchmark {
+
+    private static final int INPUTS = 1024;
+    private static final double GPS = 3912345.678;
+
+    private final double[] mAcc = new double[INPUTS * 3];
+    private final double[] mGps = new double[INPUTS * 3];
+    private int mIndex;
+
+    private LegacyKalmanFilter mLegacy;
+    private SensorDataFilter mFilterX;
+    private SensorDataFilter mFilterY;
+    private SensorDataFilter mFilterZ;
+    private FusedSensorDataFilter mFused;
+    private final double[] mU = new double[3];
+    private final double[] mZ = new double[3];
+    private final double[] mOut = new double[3];
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < mAcc.length; ++i) {
+            mAcc[i] = random.nextGaussian() * 0.1;
+            mGps[i] = GPS + random.nextGaussian() * 3;
+        }
+        mLegacy = new LegacyKalmanFilter(GPS, 0.05, 0.02);
+        mFilterX = new SensorDataFilter(GPS, 0.05, 0.02);
+        mFilterY = new SensorDataFilter(GPS, 0.05, 0.02);
+        mFilterZ = new SensorDataFilter(GPS, 0.1, 0.03);
+        mFused = new FusedSensorDataFilter(new double[] {GPS, GPS, GPS},
+                new double[] {0.05, 0.05, 0.1}, new double[] {0.02, 0.02, 0.03});
+    }
+
+    private int next() {
+        mIndex += 3;
+        if (mIndex == INPUTS * 3) mIndex = 0;
+        return mIndex;
+    }
+
+    @Benchmark
+    public double legacyCommonsMath() {
+        int i = next();
+        return mLegacy.estimate(new ArrayRealVector(new double[] {mAcc[i]}),
+                new ArrayRealVector(new double[] {mGps[i]})).getEntry(0);
+    }
+
+    @Benchmark
+    public double closedForm() {
+        int i = next();
+        return mFilterX.estimate(mAcc[i], mGps[i]);
+    }
+
+    @Benchmark
+    public double threeAxesSeparate() {
+        int i = next();
+        return mFilterX.estimate(mAcc[i], mGps[i]) + mFilterY.estimate(mAcc[i + 1], mGps[i + 1])
+                + mFilterZ.estimate(mAcc[i + 2], mGps[i + 2]);
+    }
+
+    @Benchmark
+    public double threeAxesFused() {
+        int i = next();
+        System.arraycopy(mAcc, i, mU, 0, 3);
+        System.arraycopy(mGps, i, mZ, 0, 3);
+        mFused.estimate(mU, mZ, mOut);
+        return mOut[0] + mOut[1] + mOut[2];
+    }
+}
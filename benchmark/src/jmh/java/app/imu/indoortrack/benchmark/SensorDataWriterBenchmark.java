@@ -0,0 +1,119 @@
+package app.imu.indoortrack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Formatter;
+import java.util.concurrent.TimeUnit;
+
+import app.imu.indoortrack.io.AsyncLogWriter;
+import app.imu.indoortrack.io.BinaryLogFormat;
+import app.imu.indoortrack.io.BinaryLogWriter;
+import app.imu.indoortrack.io.SegmentFormat;
+import app.imu.indoortrack.io.SegmentedLogWriter;
+
+/**
+ * Records/sec of SensorDataWriter.writeData for a 3-value record in each storage. SensorDataWriter
+ * itself needs an Activity, so its CSV path is reproduced verbatim in {@link #csv()}. The stream
+ * based logs write to /dev/null so that flash speed does not dominate; the mapped segments need
+ * a real file. Bytes per record are printed at the end of each trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SensorDataWriterBenchmark {
+
+    private static final String NULL_DEVICE = "/dev/null";
+
+    private FileOutputStream mCsvOut;
+    private BinaryLogWriter mBinary;
+    private BinaryLogWriter mAsyncTarget;
+    private AsyncLogWriter mAsync;
+    private SegmentedLogWriter mSegmented;
+    private File mSegmentDir;
+
+    private double mValue;
+    private long mCsvRecords;
+    private long mCsvBytes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mCsvOut = new FileOutputStream(NULL_DEVICE);
+        mBinary = new BinaryLogWriter(new FileOutputStream(NULL_DEVICE), 3);
+        mAsyncTarget = new BinaryLogWriter(new FileOutputStream(NULL_DEVICE), 3);
+        mAsync = new AsyncLogWriter(4096, 256, AsyncLogWriter.BackpressurePolicy.BLOCK);
+        mAsync.register(mAsyncTarget);
+        mSegmentDir = File.createTempFile("segments", "");
+        if (!mSegmentDir.delete() || !mSegmentDir.mkdir()) throw new IOException("Cannot create " + mSegmentDir);
+        mSegmented = new SegmentedLogWriter(mSegmentDir, 3, SegmentedLogWriter.DEFAULT_SEGMENT_SIZE, 4);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mCsvOut.close();
+        mBinary.close();
+        mAsync.close();
+        mSegmented.close();
+        File[] segments = mSegmentDir.listFiles();
+        if (segments != null) {
+            for (File segment : segments) segment.delete();
+        }
+        mSegmentDir.delete();
+        if (mCsvRecords > 0) {
+            System.out.println("\ncsv bytes/record: " + (double) mCsvBytes / mCsvRecords);
+        }
+        System.out.println("binary bytes/record: " + BinaryLogFormat.recordSize(3)
+                + ", segmented bytes/record: " + SegmentFormat.recordSize(3));
+    }
+
+    private double next() {
+        mValue += 0.001;
+        return mValue;
+    }
+
+    @Benchmark
+    public void csv() throws IOException {
+        double x = next();
+        double y = -x;
+        double z = x * 2;
+        Formatter formatx = new Formatter();
+        Formatter formaty = new Formatter();
+        Formatter formatz = new Formatter();
+        formatx.format("%.10f", x);
+        formaty.format("%.10f", y);
+        formatz.format("%.10f", z);
+        String data = System.currentTimeMillis() + "," + formatx + "," + formaty + "," + formatz + "\n";
+        byte[] bytes = data.getBytes();
+        mCsvOut.write(bytes);
+        mCsvRecords++;
+        mCsvBytes += bytes.length;
+    }
+
+    @Benchmark
+    public void binary() throws IOException {
+        double x = next();
+        mBinary.write(System.currentTimeMillis(), x, -x, x * 2);
+    }
+
+    @Benchmark
+    public boolean asyncBinary() {
+        double x = next();
+        return mAsync.enqueue(mAsyncTarget, System.currentTimeMillis(), x, -x, x * 2);
+    }
+
+    @Benchmark
+    public void mappedSegments() throws IOException {
+        double x = next();
+        mSegmented.write(System.currentTimeMillis(), x, -x, x * 2);
+    }
+}
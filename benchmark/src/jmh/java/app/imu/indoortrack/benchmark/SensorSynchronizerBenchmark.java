@@ -0,0 +1,109 @@
+package app.imu.indoortrack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import app.imu.indoortrack.fusion.FusionCore;
+import app.imu.indoortrack.fusion.FusionPipeline;
+import app.imu.indoortrack.fusion.SensorSynchronizer;
+
+/**
+ * One second of jittered 200 Hz accelerometer and gyroscope samples, a few of them delivered out
+ * of order, plus one GPS fix, filtered at 100 Hz. {@code direct} feeds the pipeline as the
+ * samples arrive, {@code synchronizer} goes through the {@link SensorSynchronizer}, so the
+ * difference is the cost of sorting, resampling and the fix handoff.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SensorSynchronizerBenchmark {
+
+    private static final int SAMPLES_PER_SECOND = PipelineFixture.SAMPLES_PER_SECOND;
+    private static final int PREDICT_RATE_HZ = 100;
+    private static final long SAMPLE_INTERVAL_NANOS = PipelineFixture.SAMPLE_INTERVAL_NANOS;
+    private static final long JITTER_NANOS = SAMPLE_INTERVAL_NANOS / 4;
+    // every n-th pair of samples is swapped
+    private static final int OUT_OF_ORDER_INTERVAL = 20;
+
+    // per sample: sensor type, timestamp offset within the second, x, y, z
+    private final int[] mTypes = new int[SAMPLES_PER_SECOND * 2];
+    private final long[] mOffsets = new long[SAMPLES_PER_SECOND * 2];
+    private final float[] mValues = new float[SAMPLES_PER_SECOND * 2 * 3];
+    private FusionCore mDirect;
+    private FusionCore mPipeline;
+    private SensorSynchronizer mSynchronizer;
+    private long mSecond;
+    private double mLat = PipelineFixture.LAT0;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        Random random = PipelineFixture.createRandom();
+        for (int s = 0; s < SAMPLES_PER_SECOND; ++s) {
+            long base = s * SAMPLE_INTERVAL_NANOS;
+            for (int k = 0; k < 2; ++k) {
+                int i = s * 2 + k;
+                mTypes[i] = k == 0 ? FusionCore.SENSOR_LINEAR_ACCELERATION : FusionCore.SENSOR_GYROSCOPE;
+                mOffsets[i] = base + k * SAMPLE_INTERVAL_NANOS / 2
+                        + (long) ((random.nextDouble() - 0.5) * JITTER_NANOS);
+                for (int f = 0; f < 3; ++f) mValues[i * 3 + f] = PipelineFixture.noise(random);
+            }
+        }
+        for (int i = OUT_OF_ORDER_INTERVAL; i + 2 < mTypes.length; i += OUT_OF_ORDER_INTERVAL) swap(i, i + 2);
+        mDirect = createPipeline(blackhole);
+        mPipeline = createPipeline(blackhole);
+        mSynchronizer = new SensorSynchronizer(mPipeline);
+        PipelineFixture.onGpsFix(mDirect, 0, mLat);
+        PipelineFixture.onGpsFix(mPipeline, 0, mLat);
+    }
+
+    private static FusionCore createPipeline(Blackhole blackhole) {
+        FusionPipeline pipeline = PipelineFixture.createPipeline(blackhole);
+        pipeline.setPredictRate(PREDICT_RATE_HZ);
+        return pipeline;
+    }
+
+    private void swap(int a, int b) {
+        int type = mTypes[a];
+        mTypes[a] = mTypes[b];
+        mTypes[b] = type;
+        long offset = mOffsets[a];
+        mOffsets[a] = mOffsets[b];
+        mOffsets[b] = offset;
+        for (int f = 0; f < 3; ++f) {
+            float value = mValues[a * 3 + f];
+            mValues[a * 3 + f] = mValues[b * 3 + f];
+            mValues[b * 3 + f] = value;
+        }
+    }
+
+    @Benchmark
+    public void direct() {
+        long start = ++mSecond * 1000000000L;
+        for (int i = 0; i < mTypes.length; ++i) {
+            mDirect.onSample(start + mOffsets[i], mTypes[i], mValues[i * 3], mValues[i * 3 + 1], mValues[i * 3 + 2]);
+        }
+        mLat += 1e-6;
+        PipelineFixture.onGpsFix(mDirect, start + 1000000000L, mLat);
+    }
+
+    @Benchmark
+    public void synchronizer() {
+        long start = ++mSecond * 1000000000L;
+        mLat += 1e-6;
+        // the fix arrives early in the second but belongs to its middle
+        PipelineFixture.offerGpsFix(mSynchronizer, start + 500000000L, mLat);
+        for (int i = 0; i < mTypes.length; ++i) {
+            mSynchronizer.onSample(start + mOffsets[i], mTypes[i], mValues[i * 3], mValues[i * 3 + 1],
+                    mValues[i * 3 + 2]);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package app.imu.indoortrack.benchmark;
+
+import java.util.Random;
+
+/**
+ * Raw 200 Hz samples of an indoor walk with the device held flat in front: x forward, z up.
+ * The walker loops a corridor, going straight and turning 90 degrees left, with the step rate
+ * and length drifting. The vertical bounce of each step follows Weinberg's step length model
+ * with {@link #STEP_LENGTH_CONSTANT} unless the walker is given another, and every sample carries
+ * white sensor noise. The rotation vector follows the device heading, turned by a slowly
+ * swinging magnetic disturbance.
+ */
+class SimulatedWalk {
+
+    static final int SAMPLES_PER_SECOND = 200;
+    static final long SAMPLE_INTERVAL_NANOS = 1000000000L / SAMPLES_PER_SECOND;
+    static final double STEP_LENGTH_CONSTANT = 0.45;
+
+    private static final double STRAIGHT_SECONDS = 15;
+    private static final double TURN_SECONDS = 2;
+    private static final double ACC_NOISE = 0.1;
+    private static final double GYRO_NOISE = 0.01;
+    private static final double MAGNETIC_ERROR_DEG = 15;
+    private static final double MAGNETIC_ERROR_SECONDS = 40;
+
+    private final Random mRandom;
+    private final double mStepLengthConstant;
+    private final double mDt = SAMPLE_INTERVAL_NANOS / 1e9;
+    private long mIndex;
+    private double mPhase;
+    private double mHeading;
+    private double mEast;
+    private double mNorth;
+    private double mDistance;
+
+    // the current sample
+    final float[] mAcc = new float[3];
+    final float[] mGyro = new float[3];
+    // x, y and z of the quaternion with w >= 0, as the sensor reports it
+    final float[] mRotation = new float[3];
+
+    SimulatedWalk(long seed) { this(seed, 0, STEP_LENGTH_CONSTANT); }
+
+    /**
+     *
+     * @param startHeading Walking direction at the start, counter-clockwise from east in radians
+     * @param stepLengthConstant Weinberg constant of the walker
+     */
+    SimulatedWalk(long seed, double startHeading, double stepLengthConstant) {
+        mRandom = new Random(seed);
+        mHeading = startHeading;
+        mStepLengthConstant = stepLengthConstant;
+    }
+
+    /**
+     * Advances to the next sample.
+     * @return Its timestamp in nanoseconds
+     */
+    long next() {
+        long timestamp = ++mIndex * SAMPLE_INTERVAL_NANOS;
+        double t = timestamp / 1e9;
+        double stepHz = 1.9 + 0.2 * Math.sin(2 * Math.PI * t / 37);
+        double stepLength = 0.7 + 0.08 * Math.sin(2 * Math.PI * t / 53);
+        double speed = stepHz * stepLength;
+        double cycle = t % (STRAIGHT_SECONDS + TURN_SECONDS);
+        double turnRate = cycle < STRAIGHT_SECONDS ? 0 : Math.PI / 2 / TURN_SECONDS;
+
+        mPhase += stepHz * mDt;
+        mHeading += turnRate * mDt;
+        mEast += speed * Math.cos(mHeading) * mDt;
+        mNorth += speed * Math.sin(mHeading) * mDt;
+        mDistance += speed * mDt;
+
+        // peak to valley (L / K)^4, one bounce per step
+        double bounce = Math.pow(stepLength / mStepLengthConstant, 4) / 2;
+        double angle = 2 * Math.PI * mPhase;
+        mAcc[0] = (float) (0.4 * bounce * Math.cos(angle) + mRandom.nextGaussian() * ACC_NOISE);
+        mAcc[1] = (float) (speed * turnRate + mRandom.nextGaussian() * ACC_NOISE);
+        mAcc[2] = (float) (bounce * Math.sin(angle) + mRandom.nextGaussian() * ACC_NOISE);
+        mGyro[0] = (float) (mRandom.nextGaussian() * GYRO_NOISE);
+        mGyro[1] = (float) (mRandom.nextGaussian() * GYRO_NOISE);
+        mGyro[2] = (float) (turnRate + mRandom.nextGaussian() * GYRO_NOISE);
+        double magnetic = Math.toRadians(MAGNETIC_ERROR_DEG) * Math.sin(2 * Math.PI * t / MAGNETIC_ERROR_SECONDS);
+        double half = Math.IEEEremainder(mHeading + magnetic, 2 * Math.PI) / 2;
+        mRotation[2] = (float) Math.sin(half);
+        return timestamp;
+    }
+
+    long getSteps() { return (long) mPhase; }
+
+    double getEast() { return mEast; }
+
+    double getNorth() { return mNorth; }
+
+    double getDistance() { return mDistance; }
+}
@@ -0,0 +1,101 @@
+package app.imu.indoortrack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import app.imu.indoortrack.fusion.TrajectoryStore;
+
+/**
+ * Distance bookkeeping after a session of {@code ticks} one second windows, against the boxed
+ * Vector&lt;Double&gt; it replaces. {@link #add()} includes the periodic simplification.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TrajectoryStoreBenchmark {
+
+    private static final long TICK = 1000;
+
+    @Param({"3600", "86400"})
+    public int ticks;
+
+    private final Vector<Double> mDistance = new Vector<>();
+    private final TrajectoryStore mTrajectory = new TrajectoryStore();
+    private final long[] mTimestamps = new long[256];
+    private final double[] mPoints = new double[256 * 3];
+    private double[] mSteps;
+    private Random mRandom = new Random(42);
+    private long mTimestamp;
+    private double mX;
+    private double mY;
+    private int mIndex;
+
+    @Setup
+    public void setUp() {
+        mSteps = new double[1024 * 2];
+        for (int i = 0; i < mSteps.length; ++i) mSteps[i] = mRandom.nextGaussian() * 0.5;
+        for (int i = 0; i < ticks; ++i) {
+            mDistance.add(step());
+        }
+    }
+
+    private double step() {
+        int i = mIndex;
+        mIndex += 2;
+        if (mIndex == mSteps.length) mIndex = 0;
+        double dx = mSteps[i];
+        double dy = mSteps[i + 1];
+        mX += dx;
+        mY += dy;
+        mTimestamp += TICK;
+        double dist = Math.sqrt(dx * dx + dy * dy);
+        mTrajectory.add(mTimestamp, mX, mY, 0, dist);
+        return dist;
+    }
+
+    @Benchmark
+    public double legacyAdd() {
+        double dist = mSteps[mIndex];
+        mIndex += 2;
+        if (mIndex == mSteps.length) mIndex = 0;
+        mDistance.add(dist);
+        return dist;
+    }
+
+    @Benchmark
+    public double add() { return step(); }
+
+    @Benchmark
+    public double legacyTotalDistance() {
+        double dist = 0.;
+        for(double distance: mDistance) {
+            dist += distance;
+        }
+        return dist;
+    }
+
+    @Benchmark
+    public double totalDistance() { return mTrajectory.getTotalDistance(); }
+
+    @Benchmark
+    public double rangeDistance() {
+        long from = (mRandom.nextInt(ticks) + 1) * TICK;
+        return mTrajectory.getDistance(from, from + 600 * TICK);
+    }
+
+    @Benchmark
+    public int rangePoints() {
+        long from = (mRandom.nextInt(ticks) + 1) * TICK;
+        return mTrajectory.getPoints(from, from + 255 * TICK, mTimestamps, mPoints);
+    }
+}
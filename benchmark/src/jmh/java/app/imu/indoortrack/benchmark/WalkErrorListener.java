@@ -0,0 +1,59 @@
+package app.imu.indoortrack.benchmark;
+
+import app.imu.indoortrack.fusion.FusionListener;
+import app.imu.indoortrack.sensor.LocalTangentPlane;
+import app.imu.indoortrack.sensor.SensorBias;
+
+/**
+ * Collects the horizontal error of every position the pipeline reports against where a
+ * {@link SimulatedWalk} actually is, in the local frame at the origin of {@link PipelineFixture}.
+ * Subclasses walking a path of their own override {@link #getTrueEast()} and
+ * {@link #getTrueNorth()}.
+ */
+class WalkErrorListener implements FusionListener {
+
+    private final SimulatedWalk mWalk;
+    final LocalTangentPlane mPlane = new LocalTangentPlane(PipelineFixture.LAT0, PipelineFixture.LON0,
+            PipelineFixture.ALT0);
+    private final double[] mEnu = new double[3];
+    double mSumSq;
+    long mCount;
+    double mMaxError;
+    double mLastError;
+
+    WalkErrorListener(SimulatedWalk walk) { mWalk = walk; }
+
+    double getTrueEast() { return mWalk.getEast(); }
+
+    double getTrueNorth() { return mWalk.getNorth(); }
+
+    double getRmsError() { return Math.sqrt(mSumSq / Math.max(1, mCount)); }
+
+    /**
+     * Called for every position after its error has been counted.
+     * @param enu Position east, north and up of the origin, may be changed
+     */
+    void onError(double[] enu, double error) {}
+
+    @Override
+    public void onCalibrationDone(SensorBias sensorBias) {}
+
+    @Override
+    public void onAcceleration(long timestamp, double accX, double accY, double accZ) {}
+
+    @Override
+    public void onDistance(long timestamp, double dist) {}
+
+    @Override
+    public void onPosition(long timestamp, double lat, double lon, double alt) {
+        mPlane.geodeticToEnu(lat, lon, alt, mEnu);
+        double dx = mEnu[0] - getTrueEast();
+        double dy = mEnu[1] - getTrueNorth();
+        double errorSq = dx * dx + dy * dy;
+        mSumSq += errorSq;
+        ++mCount;
+        mLastError = Math.sqrt(errorSq);
+        mMaxError = Math.max(mMaxError, mLastError);
+        onError(mEnu, mLastError);
+    }
+}
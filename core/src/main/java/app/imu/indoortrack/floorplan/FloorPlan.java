@@ -0,0 +1,153 @@
+package app.imu.indoortrack.floorplan;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Walkable corridors and walls of one floor as line segments in meters East and North of a
+ * geodetic origin. Read from a text file, one element per line:
+ * <pre>
+ * # comment
+ * origin &lt;lat&gt; &lt;lon&gt; &lt;alt&gt;
+ * corridor &lt;width&gt; &lt;e,n&gt; &lt;e,n&gt; ...    center line of a corridor or room, as a polyline
+ * wall &lt;e,n&gt; &lt;e,n&gt; ...
+ * </pre>
+ * Open areas are corridors as wide as the area. Segments are kept as parallel coordinate arrays.
+ */
+public class FloorPlan {
+
+    private final double mLat;
+    private final double mLon;
+    private final double mAlt;
+    private final Segments mCorridors = new Segments();
+    private final Segments mWalls = new Segments();
+    // per corridor segment
+    private double[] mHalfWidths = new double[16];
+
+    /**
+     * Segments in parallel arrays, grown as added.
+     */
+    static class Segments {
+
+        double[] mX0 = new double[16];
+        double[] mY0 = new double[16];
+        double[] mX1 = new double[16];
+        double[] mY1 = new double[16];
+        int mCount;
+
+        void add(double x0, double y0, double x1, double y1) {
+            if (mCount == mX0.length) {
+                int capacity = mCount * 2;
+                mX0 = Arrays.copyOf(mX0, capacity);
+                mY0 = Arrays.copyOf(mY0, capacity);
+                mX1 = Arrays.copyOf(mX1, capacity);
+                mY1 = Arrays.copyOf(mY1, capacity);
+            }
+            mX0[mCount] = x0;
+            mY0[mCount] = y0;
+            mX1[mCount] = x1;
+            mY1[mCount] = y1;
+            ++mCount;
+        }
+
+        SegmentIndex index(double cellSize) { return new SegmentIndex(mX0, mY0, mX1, mY1, mCount, cellSize); }
+    }
+
+    public FloorPlan(double lat, double lon, double alt) {
+        mLat = lat;
+        mLon = lon;
+        mAlt = alt;
+    }
+
+    /**
+     *
+     * @param points East, north of each vertex
+     */
+    public void addCorridor(double width, double... points) {
+        for (int i = 2; i + 1 < points.length; i += 2) {
+            if (mCorridors.mCount == mHalfWidths.length) mHalfWidths = Arrays.copyOf(mHalfWidths, mCorridors.mCount * 2);
+            mHalfWidths[mCorridors.mCount] = width / 2;
+            mCorridors.add(points[i - 2], points[i - 1], points[i], points[i + 1]);
+        }
+    }
+
+    /**
+     *
+     * @param points East, north of each vertex
+     */
+    public void addWall(double... points) {
+        for (int i = 2; i + 1 < points.length; i += 2) {
+            mWalls.add(points[i - 2], points[i - 1], points[i], points[i + 1]);
+        }
+    }
+
+    /**
+     *
+     * @throws IllegalArgumentException on a malformed line, or if the origin is missing
+     */
+    public static FloorPlan read(Reader in) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        FloorPlan plan = null;
+        String line;
+        int number = 0;
+        while ((line = reader.readLine()) != null) {
+            ++number;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] fields = line.split("\\s+");
+            try {
+                if (fields[0].equals("origin") && fields.length == 4 && plan == null) {
+                    plan = new FloorPlan(Double.parseDouble(fields[1]), Double.parseDouble(fields[2]),
+                            Double.parseDouble(fields[3]));
+                } else if (plan == null) {
+                    throw new IllegalArgumentException("Floor plan line " + number + ": origin must come first");
+                } else if (fields[0].equals("corridor") && fields.length >= 4) {
+                    plan.addCorridor(Double.parseDouble(fields[1]), parsePoints(fields, 2));
+                } else if (fields[0].equals("wall") && fields.length >= 3) {
+                    plan.addWall(parsePoints(fields, 1));
+                } else {
+                    throw new IllegalArgumentException("Floor plan line " + number + ": " + line);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Floor plan line " + number + ": " + line, e);
+            }
+        }
+        if (plan == null) throw new IllegalArgumentException("Floor plan has no origin");
+        return plan;
+    }
+
+    private static double[] parsePoints(String[] fields, int start) {
+        double[] points = new double[(fields.length - start) * 2];
+        for (int i = start; i < fields.length; ++i) {
+            int comma = fields[i].indexOf(',');
+            if (comma < 0) throw new NumberFormatException(fields[i]);
+            points[(i - start) * 2] = Double.parseDouble(fields[i].substring(0, comma));
+            points[(i - start) * 2 + 1] = Double.parseDouble(fields[i].substring(comma + 1));
+        }
+        return points;
+    }
+
+    public double getLatitude() { return mLat; }
+
+    public double getLongitude() { return mLon; }
+
+    public double getAltitude() { return mAlt; }
+
+    /**
+     * Corridor segments, one per polyline edge.
+     */
+    public int getCorridorCount() { return mCorridors.mCount; }
+
+    /**
+     * Wall segments, one per polyline edge.
+     */
+    public int getWallCount() { return mWalls.mCount; }
+
+    Segments getCorridors() { return mCorridors; }
+
+    Segments getWalls() { return mWalls; }
+
+    double[] getHalfWidths() { return mHalfWidths; }
+}
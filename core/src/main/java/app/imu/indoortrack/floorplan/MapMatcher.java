@@ -0,0 +1,139 @@
+package app.imu.indoortrack.floorplan;
+
+import app.imu.indoortrack.sensor.LocalTangentPlane;
+
+/**
+ * Constrains fused positions to the corridors of a {@link FloorPlan}. A position inside a corridor
+ * stays where it is; one outside is moved to the nearest edge of the corridor it fits best. A
+ * corridor fits by the distance to it, plus a little for the jump from the previous matched
+ * position and a lot if that jump would go through a wall, so a position drifting through a wall
+ * stays on its side until the evidence is several meters strong. Positions farther than the search
+ * radius from every corridor, e.g. outdoors, are left alone.
+ * <p>
+ * Corridors and walls are looked up in a {@link SegmentIndex} with cells as large as the search
+ * radius, so a match reads about four cells whatever the size of the plan. The plan must not
+ * change once the matcher is created. Not thread-safe.
+ */
+public class MapMatcher {
+
+    public static final double DEFAULT_SEARCH_RADIUS = 5;
+    // cost, in meters of distance to a corridor, of going through a wall
+    private static final double WALL_PENALTY = 10;
+    // cost per meter of moving away from the previous matched position
+    private static final double CONTINUITY_WEIGHT = 0.25;
+
+    private final LocalTangentPlane mFrame;
+    private final FloorPlan.Segments mCorridors;
+    private final double[] mHalfWidths;
+    private final SegmentIndex mCorridorIndex;
+    private final SegmentIndex mWallIndex;
+    private final double mSearchRadius;
+    private final double[] mEnu = new double[3];
+
+    private boolean mHasPrevious;
+    private double mPreviousX;
+    private double mPreviousY;
+    private long mMatchedCount;
+    private long mUnmatchedCount;
+
+    public MapMatcher(FloorPlan plan) { this(plan, DEFAULT_SEARCH_RADIUS); }
+
+    /**
+     *
+     * @param searchRadius How far outside a corridor a position may be to be moved into it, in meters
+     */
+    public MapMatcher(FloorPlan plan, double searchRadius) {
+        mFrame = new LocalTangentPlane(plan.getLatitude(), plan.getLongitude(), plan.getAltitude());
+        mCorridors = plan.getCorridors();
+        mHalfWidths = plan.getHalfWidths();
+        mSearchRadius = searchRadius;
+        mCorridorIndex = mCorridors.index(searchRadius);
+        mWallIndex = plan.getWalls().index(searchRadius);
+    }
+
+    /**
+     * Matches a geodetic position in place.
+     * @param position Latitude, longitude and altitude
+     * @return false if no corridor is within the search radius
+     */
+    public boolean match(double[] position) {
+        mFrame.geodeticToEnu(position[0], position[1], position[2], mEnu);
+        if (!matchEnu(mEnu)) return false;
+        mFrame.enuToGeodetic(mEnu[0], mEnu[1], mEnu[2], position);
+        return true;
+    }
+
+    /**
+     * Matches a position in the frame of the floor plan in place.
+     * @param enu East, north and up offsets from the origin of the plan, up is kept
+     * @return false if no corridor is within the search radius
+     */
+    public boolean matchEnu(double[] enu) {
+        double x = enu[0];
+        double y = enu[1];
+        double r = mSearchRadius;
+        int count = mCorridorIndex.query(x - r, y - r, x + r, y + r);
+        double bestCost = Double.POSITIVE_INFINITY;
+        double bestX = x;
+        double bestY = y;
+        for (int i = 0; i < count; ++i) {
+            int s = mCorridorIndex.getCandidate(i);
+            double x0 = mCorridors.mX0[s];
+            double y0 = mCorridors.mY0[s];
+            double dx = mCorridors.mX1[s] - x0;
+            double dy = mCorridors.mY1[s] - y0;
+            double length2 = dx * dx + dy * dy;
+            double t = length2 == 0 ? 0 : Math.max(0, Math.min(1, ((x - x0) * dx + (y - y0) * dy) / length2));
+            // offset from the closest point of the center line
+            double ox = x - (x0 + t * dx);
+            double oy = y - (y0 + t * dy);
+            double distance = Math.sqrt(ox * ox + oy * oy);
+            double halfWidth = mHalfWidths[s];
+            if (distance - halfWidth > r) continue;
+            double cost = Math.max(0, distance - halfWidth);
+            double cx = x;
+            double cy = y;
+            if (distance > halfWidth) {
+                double scale = halfWidth / distance;
+                cx = x - ox + ox * scale;
+                cy = y - oy + oy * scale;
+            }
+            if (mHasPrevious) {
+                double mx = cx - mPreviousX;
+                double my = cy - mPreviousY;
+                cost += CONTINUITY_WEIGHT * Math.sqrt(mx * mx + my * my);
+                // only worth a wall test if the candidate could win
+                if (cost < bestCost && mWallIndex.crosses(mPreviousX, mPreviousY, cx, cy)) cost += WALL_PENALTY;
+            }
+            if (cost < bestCost) {
+                bestCost = cost;
+                bestX = cx;
+                bestY = cy;
+            }
+        }
+        if (bestCost == Double.POSITIVE_INFINITY) {
+            mHasPrevious = false;
+            ++mUnmatchedCount;
+            return false;
+        }
+        enu[0] = bestX;
+        enu[1] = bestY;
+        mPreviousX = bestX;
+        mPreviousY = bestY;
+        mHasPrevious = true;
+        ++mMatchedCount;
+        return true;
+    }
+
+    /**
+     * Forgets the previous position, e.g. when tracking restarts.
+     */
+    public void reset() { mHasPrevious = false; }
+
+    public long getMatchedCount() { return mMatchedCount; }
+
+    /**
+     * Positions left alone for being away from every corridor.
+     */
+    public long getUnmatchedCount() { return mUnmatchedCount; }
+}
@@ -0,0 +1,147 @@
+package app.imu.indoortrack.floorplan;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid over line segments. Each cell lists the segments whose bounding box overlaps it,
+ * all cells packed into one array, so a query reads a few short runs of ints and allocates
+ * nothing. Indoor floor plans are bounded and mostly axis-aligned, which suits a grid better
+ * than a tree. Queries share scratch state, so an index is for a single thread.
+ */
+class SegmentIndex {
+
+    // cap on the grid size; the cells grow instead for very large or sparse plans
+    private static final long MAX_CELLS = 1 << 20;
+
+    private final double[] mX0;
+    private final double[] mY0;
+    private final double[] mX1;
+    private final double[] mY1;
+    private final double mMinX;
+    private final double mMinY;
+    private final double mCellSize;
+    private final int mColumns;
+    private final int mRows;
+    // segments of cell c are mCellSegments[mCellStart[c]] to mCellSegments[mCellStart[c + 1] - 1]
+    private final int[] mCellStart;
+    private final int[] mCellSegments;
+
+    // query id per segment, to report a segment spanning several cells once
+    private final int[] mStamps;
+    private int mStamp;
+    private int[] mCandidates = new int[64];
+
+    SegmentIndex(double[] x0, double[] y0, double[] x1, double[] y1, int count, double cellSize) {
+        mX0 = x0;
+        mY0 = y0;
+        mX1 = x1;
+        mY1 = y1;
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < count; ++i) {
+            minX = Math.min(minX, Math.min(x0[i], x1[i]));
+            minY = Math.min(minY, Math.min(y0[i], y1[i]));
+            maxX = Math.max(maxX, Math.max(x0[i], x1[i]));
+            maxY = Math.max(maxY, Math.max(y0[i], y1[i]));
+        }
+        if (count == 0) minX = minY = maxX = maxY = 0;
+        while ((long) ((maxX - minX) / cellSize + 1) * (long) ((maxY - minY) / cellSize + 1) > MAX_CELLS) {
+            cellSize *= 2;
+        }
+        mMinX = minX;
+        mMinY = minY;
+        mCellSize = cellSize;
+        mColumns = (int) ((maxX - minX) / cellSize) + 1;
+        mRows = (int) ((maxY - minY) / cellSize) + 1;
+
+        mCellStart = new int[mColumns * mRows + 1];
+        for (int i = 0; i < count; ++i) {
+            int c0 = getColumn(Math.min(x0[i], x1[i]));
+            int c1 = getColumn(Math.max(x0[i], x1[i]));
+            int r0 = getRow(Math.min(y0[i], y1[i]));
+            int r1 = getRow(Math.max(y0[i], y1[i]));
+            for (int r = r0; r <= r1; ++r) {
+                for (int c = c0; c <= c1; ++c) ++mCellStart[r * mColumns + c + 1];
+            }
+        }
+        for (int c = 0; c < mColumns * mRows; ++c) mCellStart[c + 1] += mCellStart[c];
+        mCellSegments = new int[mCellStart[mColumns * mRows]];
+        int[] fill = Arrays.copyOf(mCellStart, mColumns * mRows);
+        for (int i = 0; i < count; ++i) {
+            int c0 = getColumn(Math.min(x0[i], x1[i]));
+            int c1 = getColumn(Math.max(x0[i], x1[i]));
+            int r0 = getRow(Math.min(y0[i], y1[i]));
+            int r1 = getRow(Math.max(y0[i], y1[i]));
+            for (int r = r0; r <= r1; ++r) {
+                for (int c = c0; c <= c1; ++c) mCellSegments[fill[r * mColumns + c]++] = i;
+            }
+        }
+        mStamps = new int[count];
+    }
+
+    private int getColumn(double x) {
+        return (int) Math.max(0, Math.min(mColumns - 1, Math.floor((x - mMinX) / mCellSize)));
+    }
+
+    private int getRow(double y) {
+        return (int) Math.max(0, Math.min(mRows - 1, Math.floor((y - mMinY) / mCellSize)));
+    }
+
+    /**
+     * Collects the segments in the cells overlapping a box, each once, for {@link #getCandidate}.
+     * @return Number of segments collected
+     */
+    int query(double minX, double minY, double maxX, double maxY) {
+        if (maxX < mMinX || maxY < mMinY || minX >= mMinX + mColumns * mCellSize
+                || minY >= mMinY + mRows * mCellSize) return 0;
+        if (++mStamp == 0) {
+            Arrays.fill(mStamps, 0);
+            mStamp = 1;
+        }
+        int c0 = getColumn(minX);
+        int c1 = getColumn(maxX);
+        int r0 = getRow(minY);
+        int r1 = getRow(maxY);
+        int count = 0;
+        for (int r = r0; r <= r1; ++r) {
+            for (int cell = r * mColumns + c0; cell <= r * mColumns + c1; ++cell) {
+                for (int k = mCellStart[cell]; k < mCellStart[cell + 1]; ++k) {
+                    int segment = mCellSegments[k];
+                    if (mStamps[segment] == mStamp) continue;
+                    mStamps[segment] = mStamp;
+                    if (count == mCandidates.length) mCandidates = Arrays.copyOf(mCandidates, count * 2);
+                    mCandidates[count++] = segment;
+                }
+            }
+        }
+        return count;
+    }
+
+    int getCandidate(int i) { return mCandidates[i]; }
+
+    /**
+     * Whether a segment properly crosses the one from a to b; touching does not count.
+     */
+    boolean crosses(double ax, double ay, double bx, double by) {
+        int count = query(Math.min(ax, bx), Math.min(ay, by), Math.max(ax, bx), Math.max(ay, by));
+        for (int i = 0; i < count; ++i) {
+            int s = mCandidates[i];
+            double d1 = cross(mX0[s], mY0[s], mX1[s], mY1[s], ax, ay);
+            double d2 = cross(mX0[s], mY0[s], mX1[s], mY1[s], bx, by);
+            if (d1 * d2 >= 0) continue;
+            double d3 = cross(ax, ay, bx, by, mX0[s], mY0[s]);
+            double d4 = cross(ax, ay, bx, by, mX1[s], mY1[s]);
+            if (d3 * d4 < 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Which side of the line from 0 to 1 the point p lies on, times the length of that line.
+     */
+    private static double cross(double x0, double y0, double x1, double y1, double px, double py) {
+        return (x1 - x0) * (py - y0) - (y1 - y0) * (px - x0);
+    }
+}
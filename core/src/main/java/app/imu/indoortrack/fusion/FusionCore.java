@@ -0,0 +1,84 @@
+package app.imu.indoortrack.fusion;
+
+import app.imu.indoortrack.sensor.SensorBias;
+import app.imu.indoortrack.sensor.SensorSampleBuffer;
+
+/**
+ * Android-free entry point of the tracking pipeline: window averaging, bias calibration,
+ * Kalman filtering, projection and distance accumulation. Results are reported through a
+ * {@link FusionListener}.
+ */
+public interface FusionCore extends SensorSampleBuffer.SampleHandler, SensorSampleBuffer.SampleBlockHandler {
+
+    // same values as android.hardware.Sensor.TYPE_*
+    int SENSOR_GYROSCOPE = 4;
+    int SENSOR_LINEAR_ACCELERATION = 10;
+    // x, y and z of the unit quaternion rotating the device frame into East-North-Up
+    int SENSOR_ROTATION_VECTOR = 11;
+
+    /**
+     * Raw accelerometer, gyroscope or rotation vector sample, timestamp in nanoseconds.
+     */
+    @Override
+    void onSample(long timestamp, int sensorType, float x, float y, float z);
+
+    /**
+     * A block of raw samples, e.g. one burst from the sensor FIFO, with the same result as passing
+     * them to {@link #onSample} one by one.
+     */
+    @Override
+    void onSamples(long[] timestamps, int[] sensorTypes, float[] values, int offset, int count);
+
+    /**
+     * One already averaged and rotated acceleration window, as recorded in AccData. Skips the
+     * averaging and calibration stages; ignored until the filter is initialized. The timestamp is
+     * in milliseconds like the logs; with a predict rate set, the time between calls is the dt.
+     */
+    void onAcceleration(long timestamp, double accX, double accY, double accZ);
+
+    /**
+     *
+     * Safe to call from another thread than the one feeding samples.
+     * @param accuracy Horizontal accuracy in meters
+     * @return true if the fix was used
+     */
+    boolean onGpsFix(long timestamp, double lat, double lon, double alt, double accuracy);
+
+    boolean isCalibrationDone();
+
+    boolean isFilterInitialized();
+
+    SensorBias getSensorBias();
+
+    double getTotalDistance();
+
+    /**
+     * Position variance of the filter in square meters, the largest over the axes, or NaN before
+     * the filter is initialized. Safe to call from any thread.
+     */
+    double getPositionVariance();
+
+    /**
+     * How far the track had drifted from each new GPS fix in square meters, the horizontal
+     * innovation beyond the accuracy of the fix, smoothed over the last few fixes; NaN until one
+     * was measured. Unlike {@link #getPositionVariance} it does not depend on the noise the
+     * filter was tuned with. Safe to call from any thread.
+     */
+    double getDriftVariance();
+
+    /**
+     * Filtered positions in the filter frame. Only safe to read from the thread feeding samples,
+     * or after it has stopped.
+     */
+    TrajectoryStore getTrajectory();
+
+    /**
+     * Newest GPS fix accepted since the last reset, or null. Safe to call from any thread.
+     */
+    GpsFix getLatestFix();
+
+    /**
+     * Forgets the filter and the last position so the next GPS fix starts a new track.
+     */
+    void reset();
+}
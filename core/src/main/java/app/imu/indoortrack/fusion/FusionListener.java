@@ -0,0 +1,30 @@
+package app.imu.indoortrack.fusion;
+
+import app.imu.indoortrack.sensor.SensorBias;
+
+/**
+ * Outputs of a {@link FusionCore}. Called on the thread that feeds the core.
+ */
+public interface FusionListener {
+
+    /**
+     * The calibration is complete, or a revalidation started with
+     * {@link FusionPipeline#revalidateCalibration} is.
+     */
+    void onCalibrationDone(SensorBias sensorBias);
+
+    /**
+     * Averaged, rotated acceleration that went into the filter.
+     */
+    void onAcceleration(long timestamp, double accX, double accY, double accZ);
+
+    /**
+     * Distance covered since the previous corrected position.
+     */
+    void onDistance(long timestamp, double dist);
+
+    /**
+     * Corrected geodetic position.
+     */
+    void onPosition(long timestamp, double lat, double lon, double alt);
+}
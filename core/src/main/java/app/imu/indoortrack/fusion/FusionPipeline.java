@@ -0,0 +1,900 @@
+package app.imu.indoortrack.fusion;
+
+import java.util.concurrent.ForkJoinPool;
+
+import app.imu.indoortrack.floorplan.MapMatcher;
+import app.imu.indoortrack.metrics.TrackingMetrics;
+import app.imu.indoortrack.sensor.FusedSensorDataFilter;
+import app.imu.indoortrack.sensor.LocalTangentPlane;
+import app.imu.indoortrack.sensor.OrientationFilter;
+import app.imu.indoortrack.sensor.ParticleFilter;
+import app.imu.indoortrack.sensor.Projection;
+import app.imu.indoortrack.sensor.SensorBias;
+import app.imu.indoortrack.sensor.StepDetector;
+
+/**
+ * The tracking pipeline formerly spread over InertialSensor and GpsSensor. Samples are averaged
+ * over one second windows; the first windows calibrate the accelerometer bias, later ones are
+ * filtered against the GPS position, projected back to geodetic coordinates and accumulated
+ * into the travelled distance.
+ */
+public class FusionPipeline implements FusionCore {
+
+    public enum Frame {
+        /** Filter Earth-centered, Earth-fixed coordinates. */
+        ECEF,
+        /** Filter East-North-Up offsets from the first GPS fix. */
+        LOCAL_ENU
+    }
+
+    public enum Model {
+        /** Independent position/velocity filter per axis on the window averages. */
+        PER_AXIS,
+        /**
+         * {@link OrientationFilter} integrating every raw gyroscope and accelerometer sample,
+         * started from the latest {@link FusionCore#SENSOR_ROTATION_VECTOR} sample if there is one.
+         */
+        ORIENTATION,
+        /**
+         * Pedestrian dead reckoning: distance from detected steps, position advanced per step
+         * along the gyroscope heading in the local tangent plane and pulled towards GPS fixes.
+         * The heading is anchored to the world by {@link FusionCore#SENSOR_ROTATION_VECTOR}
+         * samples and by the course between fixes, taking the device x axis as the walking
+         * direction. Runs without a fix; positions are reported from the first one on.
+         */
+        PEDESTRIAN,
+        /**
+         * {@link ParticleFilter} on the window averages in the local tangent plane, for positions
+         * a single Gaussian cannot describe.
+         */
+        PARTICLE
+    }
+
+    private final FusionListener mListener;
+    private Frame mFrame = Frame.ECEF;
+    private Model mModel = Model.PER_AXIS;
+    private LocalTangentPlane mLocalFrame;
+    private final double[] mPosition = new double[3];
+    private final double[] mFixPosition = new double[3];
+    private final FusionState mState = new FusionState();
+    // the fix the filter was last initialized or corrected with
+    private GpsFix mAppliedFix;
+    private SensorBias mSensorBias;
+    private SensorBias mCalibration;
+    private int mRollingCalibrationRounds;
+    // fresh calibration collected while tracking from a stored one
+    private SensorBias mRevalidation;
+    private int mRevalidationRounds;
+    private long mRevalidationStart;
+    private final double[] mRevalidationSum = new double[3];
+    private int mRevalidationWindows;
+    // raw linear acceleration of the current second, to tell whether the device was still
+    private final double[] mRevalidationRawSum = new double[3];
+    private double mRevalidationRawSquares;
+    private int mRevalidationSamples;
+    private FusedSensorDataFilter mFilter;
+    private OrientationFilter mOrientationFilter;
+    // latest rotation vector, x, y and z of the quaternion, NaN before the first
+    private final double[] mRotation = {Double.NaN, Double.NaN, Double.NaN};
+    private boolean mOrientationInitialized;
+    private long mLastGyroTimestamp;
+    private long mLastAccTimestamp;
+    private StepDetector mStepDetector;
+    private PedestrianTracker mPedestrian;
+    private ParticleFilter mParticleFilter;
+    private int mParticleCount = DEFAULT_PARTICLES;
+    private ForkJoinPool mParticlePool;
+    private final double[] mAccInput = new double[FusedSensorDataFilter.AXES];
+    private final double[] mGpsInput = new double[FusedSensorDataFilter.AXES];
+    private final double[] mCorrected = new double[FusedSensorDataFilter.AXES];
+    private final double[] mParticleGpsNoise = new double[ParticleFilter.AXES];
+    private final TrajectoryStore mTrajectory = new TrajectoryStore();
+    private TrackingMetrics mMetrics;
+    private MapMatcher mMapMatcher;
+    private NoiseSettings mNoise = NoiseSettings.DEFAULT;
+    private final double[] mMatchedPosition = new double[3];
+
+    private long mSensorTimeStamp;
+    private long mPredictIntervalNanos;
+    private long mLastAccelerationTimestamp;
+    private double mAccX;
+    private double mAccY;
+    private double mAccZ;
+    private int mNumAccVals;
+    private int mNumGyroVals;
+    private final float[] mAvgAccVal = new float[3];
+    private final float[] mAvgGyroVal = new float[3];
+    private boolean mAccInitialized;
+    private volatile boolean mAccCalibrationDone;
+    private int mNumReadings;
+
+    private volatile boolean mFilterInitialized;
+    // read by the GPS scheduler
+    private volatile double mPositionVariance = Double.NaN;
+    private volatile double mDriftVariance = Double.NaN;
+    private double mGpsX;
+    private double mGpsY;
+    private double mGpsZ;
+
+    public static final int DEFAULT_PARTICLES = 2000;
+    private static final long UPDATE_INTERVAL_IN_NANOSECONDS = (long) 1E+9;
+    private static final int CALIBRATION_ROUNDS = 60;
+    // a revalidation second whose raw samples deviate more than this in m/s^2 was not still
+    private static final double MAX_STILL_DEVIATION = 0.2;
+    private static final double MIN_DISTANCE = 0.01;
+    private static final double MAX_DISTANCE = 1.;
+    // how far a position must be moved by the floor plan to correct the dead reckoning, and how
+    // sure the correction across the corridor is, about half a corridor width
+    private static final double MIN_MATCH_CORRECTION = 0.01;
+    private static final double MAP_MATCH_VARIANCE = 1.;
+    // the same particles every run, so replays compare
+    private static final long PARTICLE_SEED = 1;
+    // acceleration noise of the particles in m/s^2, about the swing of walking
+    private static final double PARTICLE_ACC_NOISE = 0.5;
+    // weight of the newest fix in the drift
+    private static final double DRIFT_SMOOTHING = 0.5;
+    // magnetic disturbances indoors turn the rotation vector heading by tens of degrees
+    private static final double ROTATION_VECTOR_HEADING_VAR = 0.1;
+    // trust in the starting orientation from the rotation vector; more lets the GPS noise turn the
+    // heading in the first seconds, see OrientationAccuracy
+    private static final double ROTATION_VECTOR_ATTITUDE_VAR = 1e-3;
+
+    /**
+     *
+     * @param sensorBias Previously stored calibration, or null to calibrate from the first windows
+     */
+    public FusionPipeline(SensorBias sensorBias, FusionListener listener) {
+        mListener = listener;
+        mSensorBias = sensorBias;
+        initAvgFilter();
+        if (sensorBias == null) {
+            mAccCalibrationDone = false;
+            mCalibration = new SensorBias();
+        } else {
+            mAccCalibrationDone = true;
+        }
+    }
+
+    /**
+     * Must be set before the first GPS fix.
+     */
+    public void setFrame(Frame frame) { mFrame = frame; }
+
+    /**
+     * Must be set before the first sample.
+     */
+    public void setModel(Model model) { mModel = model; }
+
+    /**
+     * Particles of {@link Model#PARTICLE}, {@link #DEFAULT_PARTICLES} by default, and the pool to
+     * update large numbers of them on; null (the default) updates on the thread feeding samples.
+     * ForkJoinPool needs API 21. Must be set before the first GPS fix.
+     */
+    public void setParticles(int count, ForkJoinPool pool) {
+        mParticleCount = count;
+        mParticlePool = pool;
+    }
+
+    /**
+     * Noise the Kalman filters are initialized with, {@link NoiseSettings#DEFAULT} by default.
+     * Must be set before the first GPS fix.
+     */
+    public void setNoise(NoiseSettings noise) { mNoise = noise; }
+
+    /**
+     * Runs the filter at {@code hz} once calibrated: the predict step averages the samples of each
+     * period and uses the measured time since the previous one, and every GPS fix is applied as a
+     * correct step at the next predict. 0 (the default) keeps the original mode of one predict and
+     * correct against the first fix per second. Must be set before the first sample.
+     */
+    public void setPredictRate(double hz) {
+        mPredictIntervalNanos = hz > 0 ? (long) (1E+9 / hz) : 0;
+    }
+
+    /**
+     * Keeps updating the bias from the one second tracking windows, weighting roughly the last
+     * {@code rounds} of them; 0 (the default) freezes it after calibration. The filter picks up
+     * the new bias at its next initialization. Not used with {@link #setPredictRate}.
+     */
+    public void setRollingCalibration(int rounds) {
+        mRollingCalibrationRounds = rounds;
+        if (mSensorBias != null) mSensorBias.setWindow(rounds);
+    }
+
+    /**
+     * Records sample, window, filter and position metrics; null (the default) records nothing.
+     * Must be set before the first sample.
+     */
+    public void setMetrics(TrackingMetrics metrics) { mMetrics = metrics; }
+
+    /**
+     * Constrains the reported positions to the corridors of a floor plan; null (the default) reports
+     * them as filtered. In {@link Model#PEDESTRIAN} a constrained position also corrects the dead
+     * reckoning, so heading drift cannot carry it through walls; the other models only constrain
+     * the output. Trajectory and distance stay unconstrained. Must be set before the first sample.
+     */
+    public void setMapMatcher(MapMatcher mapMatcher) { mMapMatcher = mapMatcher; }
+
+    /**
+     * Collects a new calibration over the next {@code CALIBRATION_ROUNDS} seconds the device is held
+     * still while tracking, e.g. when the bias passed to the constructor was stored in another
+     * session, and reports it through
+     * {@link FusionListener#onCalibrationDone}. The filter keeps the old bias until its next
+     * initialization. Must be called before the first sample or on the thread feeding samples.
+     */
+    public void revalidateCalibration() {
+        if (!mAccCalibrationDone) return;
+        mRevalidation = new SensorBias();
+        mRevalidation.setWindow(mRollingCalibrationRounds);
+        mRevalidationRounds = 0;
+        mRevalidationStart = 0;
+        clearRevalidationWindow();
+    }
+
+    @Override
+    public void onSample(long timestamp, int sensorType, float x, float y, float z) {
+        if (sensorType == SENSOR_ROTATION_VECTOR) {
+            onRotation(x, y, z);
+            return;
+        }
+        if (mSensorTimeStamp == 0) mSensorTimeStamp = timestamp;
+        if (correctInterval(timestamp) && mNumAccVals > 0) closeWindow(timestamp);
+        if (mMetrics != null) mMetrics.getSamples().increment();
+        if (mOrientationFilter != null) {
+            long start = mMetrics != null ? System.nanoTime() : 0;
+            integrate(timestamp, sensorType, x, y, z);
+            if (mMetrics != null) mMetrics.getFilterIntegrate().record(System.nanoTime() - start);
+        }
+        if (mModel == Model.PEDESTRIAN && mAccCalibrationDone) {
+            if (mStepDetector == null) createStepDetector();
+            if (mStepDetector.onSample(timestamp, sensorType, x, y, z)) onStep(timestamp);
+        }
+        if (sensorType == SENSOR_LINEAR_ACCELERATION) {
+            if (mRevalidation != null) addRevalidationSample(x, y, z);
+            mNumAccVals++;
+            mAvgAccVal[0] += x;
+            mAvgAccVal[1] += y;
+            mAvgAccVal[2] += z;
+        } else if (sensorType == SENSOR_GYROSCOPE) {
+            mNumGyroVals++;
+            mAvgGyroVal[0] += x;
+            mAvgGyroVal[1] += y;
+            mAvgGyroVal[2] += z;
+        }
+    }
+
+    /**
+     * Splits the block into runs within one averaging window. Only the first sample of a run can
+     * close a window, so each stage goes over the whole run in its own loop.
+     */
+    @Override
+    public void onSamples(long[] timestamps, int[] sensorTypes, float[] values, int offset, int count) {
+        if (mMetrics != null) mMetrics.getSamples().add(count);
+        int end = offset + count;
+        int start = offset;
+        while (start < end) {
+            long timestamp = timestamps[start];
+            if (mSensorTimeStamp == 0) mSensorTimeStamp = timestamp;
+            if (correctInterval(timestamp) && mNumAccVals > 0) closeWindow(timestamp);
+            long windowEnd = mSensorTimeStamp + getWindowInterval();
+            int runEnd = start + 1;
+            while (runEnd < end && timestamps[runEnd] < windowEnd) ++runEnd;
+
+            if ((mModel == Model.ORIENTATION && !mOrientationInitialized) || mModel == Model.PEDESTRIAN) {
+                for (int i = start; i < runEnd; ++i) {
+                    if (sensorTypes[i] == SENSOR_ROTATION_VECTOR) {
+                        onRotation(values[i * 3], values[i * 3 + 1], values[i * 3 + 2]);
+                    }
+                }
+            }
+            if (mOrientationFilter != null) {
+                long integrateStart = mMetrics != null ? System.nanoTime() : 0;
+                for (int i = start; i < runEnd; ++i) {
+                    integrate(timestamps[i], sensorTypes[i], values[i * 3], values[i * 3 + 1], values[i * 3 + 2]);
+                }
+                if (mMetrics != null) mMetrics.getFilterIntegrate().record(System.nanoTime() - integrateStart);
+            }
+            if (mModel == Model.PEDESTRIAN && mAccCalibrationDone) {
+                if (mStepDetector == null) createStepDetector();
+                for (int i = start; i < runEnd; ++i) {
+                    if (mStepDetector.onSample(timestamps[i], sensorTypes[i], values[i * 3], values[i * 3 + 1],
+                            values[i * 3 + 2])) onStep(timestamps[i]);
+                }
+            }
+            if (mRevalidation != null) {
+                for (int i = start; i < runEnd; ++i) {
+                    if (sensorTypes[i] == SENSOR_LINEAR_ACCELERATION) {
+                        addRevalidationSample(values[i * 3], values[i * 3 + 1], values[i * 3 + 2]);
+                    }
+                }
+            }
+            accumulate(sensorTypes, values, start, runEnd);
+            start = runEnd;
+        }
+    }
+
+    /**
+     * Adds samples {@code start} to {@code end - 1} to the window sums, in the same order and
+     * float precision as {@link #onSample}.
+     */
+    private void accumulate(int[] sensorTypes, float[] values, int start, int end) {
+        float accX = mAvgAccVal[0];
+        float accY = mAvgAccVal[1];
+        float accZ = mAvgAccVal[2];
+        float gyroX = mAvgGyroVal[0];
+        float gyroY = mAvgGyroVal[1];
+        float gyroZ = mAvgGyroVal[2];
+        int numAcc = mNumAccVals;
+        int numGyro = mNumGyroVals;
+        for (int i = start; i < end; ++i) {
+            int type = sensorTypes[i];
+            int v = i * 3;
+            if (type == SENSOR_LINEAR_ACCELERATION) {
+                ++numAcc;
+                accX += values[v];
+                accY += values[v + 1];
+                accZ += values[v + 2];
+            } else if (type == SENSOR_GYROSCOPE) {
+                ++numGyro;
+                gyroX += values[v];
+                gyroY += values[v + 1];
+                gyroZ += values[v + 2];
+            }
+        }
+        mAvgAccVal[0] = accX;
+        mAvgAccVal[1] = accY;
+        mAvgAccVal[2] = accZ;
+        mAvgGyroVal[0] = gyroX;
+        mAvgGyroVal[1] = gyroY;
+        mAvgGyroVal[2] = gyroZ;
+        mNumAccVals = numAcc;
+        mNumGyroVals = numGyro;
+    }
+
+    private void closeWindow(long timestamp) {
+        double dt = (timestamp - mSensorTimeStamp) / 1E+9;
+        mSensorTimeStamp = timestamp;
+        if (mMetrics != null) {
+            mMetrics.getWindows().increment();
+            mMetrics.getSamplesPerWindow().record(mNumAccVals + mNumGyroVals);
+        }
+        mAvgAccVal[0] /= mNumAccVals;
+        mAvgAccVal[1] /= mNumAccVals;
+        mAvgAccVal[2] /= mNumAccVals;
+        if (mNumGyroVals > 0) {
+            mAvgGyroVal[0] /= mNumGyroVals;
+            mAvgGyroVal[1] /= mNumGyroVals;
+            mAvgGyroVal[2] /= mNumGyroVals;
+        }
+        double accX = mAvgAccVal[0] * Math.cos(Math.toDegrees(mAvgGyroVal[0]));
+        double accY = mAvgAccVal[1] * Math.cos(Math.toDegrees(mAvgGyroVal[1]));
+        double accZ = mAvgAccVal[2] * Math.cos(Math.toDegrees(mAvgGyroVal[2]));
+        if (mRevalidation != null) revalidate(timestamp, accX, accY, accZ);
+        if (!mAccCalibrationDone) {
+            calibrate(accX, accY, accZ);
+        } else if (mModel == Model.PEDESTRIAN) {
+            // a fix can close the window before the first sample after a reset or a model change
+            if (mStepDetector == null) createStepDetector();
+            correctPedestrian();
+            mListener.onAcceleration(timestamp, accX, accY, accZ);
+        } else if (mFilterInitialized || initFilter()) {
+            if (mRollingCalibrationRounds > 0 && mPredictIntervalNanos == 0) mSensorBias.add(accX, accY, accZ);
+            // the orientation filter has integrated the raw samples already
+            performPostCalibrationTasks(timestamp, accX, accY, accZ, mOrientationFilter != null ? 0 : dt);
+        }
+        initAvgFilter();
+    }
+
+    /**
+     * Keeps the rotation vector for the next orientation filter and the step heading, or starts the
+     * current orientation filter from it if it had to start without.
+     */
+    private void onRotation(float x, float y, float z) {
+        mRotation[0] = x;
+        mRotation[1] = y;
+        mRotation[2] = z;
+        if (mOrientationFilter != null && !mOrientationInitialized) initOrientation(mAppliedFix);
+    }
+
+    /**
+     * Heading of the device x axis from the latest rotation vector, counter-clockwise from east.
+     */
+    private double getRotationHeading() {
+        double x = mRotation[0];
+        double y = mRotation[1];
+        double z = mRotation[2];
+        double w = Math.sqrt(Math.max(0, 1 - x * x - y * y - z * z));
+        return Math.atan2(2 * (x * y + w * z), 1 - 2 * (y * y + z * z));
+    }
+
+    private void createStepDetector() {
+        mStepDetector = new StepDetector();
+        mPedestrian = new PedestrianTracker();
+    }
+
+    @Override
+    public void onAcceleration(long timestamp, double accX, double accY, double accZ) {
+        if (!mFilterInitialized && !initFilter()) return;
+        double dt = mLastAccelerationTimestamp == 0 ? mPredictIntervalNanos / 1E+9
+                : (timestamp - mLastAccelerationTimestamp) / 1E+3;
+        mLastAccelerationTimestamp = timestamp;
+        performPostCalibrationTasks(timestamp, accX, accY, accZ, dt);
+    }
+
+    /**
+     * May be called from any thread. The fix is only published here, the filter is initialized
+     * or corrected with it on the thread feeding samples.
+     */
+    @Override
+    public boolean onGpsFix(long timestamp, double lat, double lon, double alt, double accuracy) {
+        //boolean hasAcceptableChange = false;
+        if (!mAccCalibrationDone) return false;
+        GpsFix fix = new GpsFix(timestamp, lat, lon, alt, accuracy);
+        // the original mode filters against the first fix only
+        if (mPredictIntervalNanos == 0 && mModel == Model.PER_AXIS) return mState.publishFirstFix(fix);
+        mState.publishFix(fix);
+        return true;
+    }
+
+    /**
+     * Initializes the filter from the latest fix, on the thread feeding samples.
+     * @return false if there is no fix yet
+     */
+    private boolean initFilter() {
+        GpsFix fix = mState.getLatestFix();
+        if (fix == null) return false;
+        mAppliedFix = fix;
+        projectFix(fix);
+        mGpsX = mFixPosition[0];
+        mGpsY = mFixPosition[1];
+        mGpsZ = mFixPosition[2];
+        double horizontalAccuracy = fix.getAccuracy() / mNoise.getGpsAccuracyDivisor();
+        double verticalAccuracy = fix.getAltitude() == 0 ? 0. : horizontalAccuracy + mNoise.getVerticalNoiseOffset();
+        double accXBias  = mSensorBias.getBiasX() * mNoise.getAccNoiseScale();
+        double accYBias = mSensorBias.getBiasY() * mNoise.getAccNoiseScale();
+        double accZBias = verticalAccuracy == 0. ? 0 : mSensorBias.getBiasZ() * mNoise.getAccNoiseScale();
+        double[] gpsNoise = {horizontalAccuracy, horizontalAccuracy, verticalAccuracy};
+        double[] accNoise = {accXBias, accYBias, accZBias};
+        if (mModel == Model.ORIENTATION) {
+            mOrientationFilter = new OrientationFilter(mFixPosition, gpsNoise, accNoise, mNoise.getGyroNoise());
+            if (!Double.isNaN(mRotation[0])) initOrientation(fix);
+        } else if (mModel == Model.PARTICLE) {
+            createParticleFilter(fix, verticalAccuracy != 0.);
+        } else {
+            mFilter = new FusedSensorDataFilter(mFixPosition, gpsNoise, accNoise, mNoise.getInitialCovariance());
+        }
+        mFilterInitialized = true;
+        return true;
+    }
+
+    /**
+     * Starts the orientation filter from the latest rotation vector, turned from East-North-Up
+     * into the filter frame at the fix the filter was initialized with.
+     */
+    private void initOrientation(GpsFix fix) {
+        double x = mRotation[0];
+        double y = mRotation[1];
+        double z = mRotation[2];
+        double w = Math.sqrt(Math.max(0, 1 - x * x - y * y - z * z));
+        if (!usesLocalFrame()) {
+            // East-North-Up to ECEF: Rz(90 deg + lon) Rx(90 deg - lat), applied in front
+            double a = Math.toRadians(90 + fix.getLongitude()) / 2;
+            double b = Math.toRadians(90 - fix.getLatitude()) / 2;
+            double rw = Math.cos(a) * Math.cos(b);
+            double rx = Math.cos(a) * Math.sin(b);
+            double ry = Math.sin(a) * Math.sin(b);
+            double rz = Math.sin(a) * Math.cos(b);
+            double qw = rw * w - rx * x - ry * y - rz * z;
+            double qx = rw * x + rx * w + ry * z - rz * y;
+            double qy = rw * y - rx * z + ry * w + rz * x;
+            double qz = rw * z + rx * y - ry * x + rz * w;
+            w = qw;
+            x = qx;
+            y = qy;
+            z = qz;
+        }
+        mOrientationFilter.initOrientation(w, x, y, z, ROTATION_VECTOR_ATTITUDE_VAR);
+        mOrientationInitialized = true;
+    }
+
+    /**
+     * Particles spread by the accuracy of the fix in meters; the Kalman filters take it scaled to
+     * their units instead. The sensor bias would let the particles barely move between fixes, so
+     * they are given the acceleration of walking instead, and none of the noise settings.
+     *
+     * @param vertical Whether the fixes carry altitudes to correct the vertical with
+     */
+    private void createParticleFilter(GpsFix fix, boolean vertical) {
+        double[] accNoise = { PARTICLE_ACC_NOISE, PARTICLE_ACC_NOISE, vertical ? PARTICLE_ACC_NOISE : 0 };
+        mParticleFilter = new ParticleFilter(mParticleCount, mFixPosition, getParticleGpsNoise(fix), accNoise,
+                PARTICLE_SEED);
+        mParticleFilter.setPool(mParticlePool);
+    }
+
+    /**
+     * Standard deviation of a fix per axis in meters for the particles.
+     */
+    private double[] getParticleGpsNoise(GpsFix fix) {
+        double accuracy = fix.getAccuracy();
+        mParticleGpsNoise[0] = accuracy;
+        mParticleGpsNoise[1] = accuracy;
+        mParticleGpsNoise[2] = fix.getAltitude() == 0 ? 0 : accuracy * 1.5;
+        return mParticleGpsNoise;
+    }
+
+    private boolean usesLocalFrame() {
+        return mFrame == Frame.LOCAL_ENU || mModel == Model.PEDESTRIAN || mModel == Model.PARTICLE;
+    }
+
+    private void projectFix(GpsFix fix) {
+        double lat = fix.getLatitude();
+        double lon = fix.getLongitude();
+        double alt = fix.getAltitude();
+        if (usesLocalFrame()) {
+            if (mLocalFrame == null) mLocalFrame = new LocalTangentPlane(lat, lon, alt);
+            mLocalFrame.geodeticToEnu(lat, lon, alt, mFixPosition);
+        } else {
+            Projection.geodeticToCartesian(lat, lon, alt, mFixPosition);
+        }
+    }
+
+    private void initAvgFilter() {
+        mNumAccVals = 0;
+        mNumGyroVals = 0;
+        for (int i = 0; i < 3; ++i) {
+            mAvgAccVal[i] = 0;
+            mAvgGyroVal[i] = 0;
+        }
+    }
+
+    private void calibrate(double accX, double accY, double accZ) {
+        if(accX != 0. && accY != 0. && accZ != 0.) {
+            mCalibration.add(accX, accY, accZ);
+            if (++mNumReadings > CALIBRATION_ROUNDS) {
+                mSensorBias = mCalibration;
+                mCalibration = null;
+                mSensorBias.setWindow(mRollingCalibrationRounds);
+                mAccCalibrationDone = true;
+                mListener.onCalibrationDone(mSensorBias);
+            }
+        }
+    }
+
+    /**
+     * Averages the tracking windows over one second, as long as a calibration window, and
+     * calibrates from those averages like {@link #calibrate}. Seconds the device moved in are
+     * skipped, the bias would take up the motion.
+     */
+    private void revalidate(long timestamp, double accX, double accY, double accZ) {
+        if (mRevalidationStart == 0) mRevalidationStart = timestamp;
+        mRevalidationSum[0] += accX;
+        mRevalidationSum[1] += accY;
+        mRevalidationSum[2] += accZ;
+        ++mRevalidationWindows;
+        if (timestamp - mRevalidationStart < UPDATE_INTERVAL_IN_NANOSECONDS) return;
+        mRevalidationStart = timestamp;
+        double x = mRevalidationSum[0] / mRevalidationWindows;
+        double y = mRevalidationSum[1] / mRevalidationWindows;
+        double z = mRevalidationSum[2] / mRevalidationWindows;
+        boolean still = isStill();
+        clearRevalidationWindow();
+        if (!still || x == 0. || y == 0. || z == 0.) return;
+        mRevalidation.add(x, y, z);
+        if (++mRevalidationRounds > CALIBRATION_ROUNDS) {
+            mSensorBias = mRevalidation;
+            mRevalidation = null;
+            mListener.onCalibrationDone(mSensorBias);
+        }
+    }
+
+    private void addRevalidationSample(double x, double y, double z) {
+        mRevalidationRawSum[0] += x;
+        mRevalidationRawSum[1] += y;
+        mRevalidationRawSum[2] += z;
+        mRevalidationRawSquares += x * x + y * y + z * z;
+        ++mRevalidationSamples;
+    }
+
+    /**
+     * Whether the raw samples of the second stayed within {@link #MAX_STILL_DEVIATION} of their mean.
+     */
+    private boolean isStill() {
+        int n = mRevalidationSamples;
+        if (n < 2) return false;
+        double meanSq = 0;
+        for (int i = 0; i < 3; ++i) {
+            double mean = mRevalidationRawSum[i] / n;
+            meanSq += mean * mean;
+        }
+        double variance = (mRevalidationRawSquares / n - meanSq) * n / (n - 1);
+        return variance <= MAX_STILL_DEVIATION * MAX_STILL_DEVIATION;
+    }
+
+    private void clearRevalidationWindow() {
+        mRevalidationSum[0] = mRevalidationSum[1] = mRevalidationSum[2] = 0;
+        mRevalidationWindows = 0;
+        mRevalidationRawSum[0] = mRevalidationRawSum[1] = mRevalidationRawSum[2] = 0;
+        mRevalidationRawSquares = 0;
+        mRevalidationSamples = 0;
+    }
+
+    private boolean correctInterval(long timestamp) {
+        return (timestamp - mSensorTimeStamp) >= getWindowInterval();
+    }
+
+    private long getWindowInterval() {
+        // calibration always averages one second windows
+        return mAccCalibrationDone && mPredictIntervalNanos > 0 ? mPredictIntervalNanos
+                : UPDATE_INTERVAL_IN_NANOSECONDS;
+    }
+
+    private static double getEuclideanDistance(double x1, double y1, double z1, double x2, double y2, double z2) {
+        double dx = x1 - x2;
+        double dy = y1 - y2;
+        double dz = z1 - z2;
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    /**
+     *
+     * @param dt Seconds since the previous tick, only used with {@link #setPredictRate}
+     */
+    private void performPostCalibrationTasks(long timestamp, double accX, double accY, double accZ, double dt) {
+        long start = mMetrics != null ? System.nanoTime() : 0;
+        if (mOrientationFilter != null) {
+            correctOrientation(accX, accY, accZ, dt);
+        } else if (mParticleFilter != null) {
+            correctParticles(accX, accY, accZ, dt);
+        } else if (mPredictIntervalNanos > 0) {
+            predictAndCorrect(accX, accY, accZ, dt);
+        } else {
+            performCorrections(accX, accY, accZ);
+        }
+        if (mMetrics != null) mMetrics.getFilterUpdate().record(System.nanoTime() - start);
+        mPositionVariance = getFilterVariance();
+        mListener.onAcceleration(timestamp, accX, accY, accZ);
+        accX = mCorrected[0];
+        accY = mCorrected[1];
+        accZ = mCorrected[2];
+        if (!mAccInitialized) {
+            mAccX = mGpsX;
+            mAccY = mGpsY;
+            mAccZ = mGpsZ;
+            mAccInitialized = true;
+        }
+        double dist = getEuclideanDistance(accX, accY, accZ, mAccX, mAccY, mAccZ);
+        //if (dist >= MIN_DISTANCE && dist <= MAX_DISTANCE) {
+            mTrajectory.add(timestamp, accX, accY, accZ, dist);
+            mListener.onDistance(timestamp, dist);
+            if (usesLocalFrame()) {
+                mLocalFrame.enuToGeodetic(accX, accY, accZ, mPosition);
+            } else {
+                Projection.cartesianToGeodetic(accX, accY, accZ, mPosition);
+            }
+            if (mMapMatcher != null) matchPosition();
+            if (mMetrics != null) mMetrics.getPositions().increment();
+            mListener.onPosition(timestamp, mPosition[0], mPosition[1], mPosition[2]);
+        //}
+        mAccX = accX;
+        mAccY = accY;
+        mAccZ = accZ;
+    }
+
+    private void performCorrections(double accX, double accY, double accZ) {
+        mAccInput[0] = accX;
+        mAccInput[1] = accY;
+        mAccInput[2] = accZ;
+        mGpsInput[0] = mGpsX;
+        mGpsInput[1] = mGpsY;
+        mGpsInput[2] = mGpsZ;
+        mFilter.estimate(mAccInput, mGpsInput, mCorrected);
+    }
+
+    private void predictAndCorrect(double accX, double accY, double accZ, double dt) {
+        mAccInput[0] = accX;
+        mAccInput[1] = accY;
+        mAccInput[2] = accZ;
+        mFilter.predict(mAccInput, dt);
+        GpsFix fix = mState.getLatestFix();
+        if (fix != null && fix != mAppliedFix) {
+            mAppliedFix = fix;
+            projectFix(fix);
+            recordDrift(fix, mFilter.getPosition(0), mFilter.getPosition(1), mFilter.getPosition(2));
+            System.arraycopy(mFixPosition, 0, mGpsInput, 0, 3);
+            mFilter.correct(mGpsInput);
+        }
+        for (int i = 0; i < FusedSensorDataFilter.AXES; ++i) mCorrected[i] = mFilter.getPosition(i);
+    }
+
+    private void integrate(long timestamp, int sensorType, float x, float y, float z) {
+        if (sensorType == SENSOR_GYROSCOPE) {
+            if (mLastGyroTimestamp != 0) {
+                mOrientationFilter.predictOrientation(x, y, z, (timestamp - mLastGyroTimestamp) / 1E+9);
+            }
+            mLastGyroTimestamp = timestamp;
+        } else if (sensorType == SENSOR_LINEAR_ACCELERATION) {
+            if (mLastAccTimestamp != 0) {
+                mOrientationFilter.predictMotion(x, y, z, (timestamp - mLastAccTimestamp) / 1E+9);
+            }
+            mLastAccTimestamp = timestamp;
+        }
+    }
+
+    /**
+     *
+     * @param dt Seconds to integrate the acceleration over, 0 if the raw samples were integrated
+     */
+    private void correctOrientation(double accX, double accY, double accZ, double dt) {
+        if (dt > 0) mOrientationFilter.predictMotion(accX, accY, accZ, dt);
+        GpsFix fix = mState.getLatestFix();
+        if (fix != null && fix != mAppliedFix) {
+            mAppliedFix = fix;
+            projectFix(fix);
+            recordDrift(fix, mOrientationFilter.getPosition(0), mOrientationFilter.getPosition(1),
+                    mOrientationFilter.getPosition(2));
+            System.arraycopy(mFixPosition, 0, mGpsInput, 0, 3);
+            mOrientationFilter.correct(mGpsInput);
+        }
+        for (int i = 0; i < OrientationFilter.AXES; ++i) mCorrected[i] = mOrientationFilter.getPosition(i);
+    }
+
+    private void correctParticles(double accX, double accY, double accZ, double dt) {
+        mAccInput[0] = accX;
+        mAccInput[1] = accY;
+        mAccInput[2] = accZ;
+        mParticleFilter.predict(mAccInput, dt);
+        GpsFix fix = mState.getLatestFix();
+        if (fix != null && fix != mAppliedFix) {
+            mAppliedFix = fix;
+            projectFix(fix);
+            recordDrift(fix, mParticleFilter.getPosition(0), mParticleFilter.getPosition(1),
+                    mParticleFilter.getPosition(2));
+            mParticleFilter.correct(mFixPosition, getParticleGpsNoise(fix));
+        }
+        for (int i = 0; i < ParticleFilter.AXES; ++i) mCorrected[i] = mParticleFilter.getPosition(i);
+    }
+
+    private void correctPedestrian() {
+        GpsFix fix = mState.getLatestFix();
+        if (fix == null || fix == mAppliedFix) return;
+        mAppliedFix = fix;
+        projectFix(fix);
+        double variance = fix.getAccuracy() * fix.getAccuracy();
+        if (!mFilterInitialized) {
+            // steps before the first fix only count towards the distance
+            mPedestrian.reset(mFixPosition[0], mFixPosition[1], variance);
+            mFilterInitialized = true;
+        } else {
+            recordDrift(fix, mPedestrian.getEast(), mPedestrian.getNorth(), mFixPosition[2]);
+            mPedestrian.correctCourse(mFixPosition[0], mFixPosition[1], variance);
+            mPedestrian.correct(mFixPosition[0], mFixPosition[1], variance);
+        }
+        mPositionVariance = mPedestrian.getVariance();
+    }
+
+    private void onStep(long timestamp) {
+        double length = mStepDetector.getStepLength();
+        double heading = mStepDetector.getHeading();
+        if (!Double.isNaN(mRotation[0])) {
+            mPedestrian.correctHeading(getRotationHeading(), heading, ROTATION_VECTOR_HEADING_VAR);
+        }
+        mPedestrian.step(length, heading);
+        if (mFilterInitialized) mPositionVariance = mPedestrian.getVariance();
+        double east = mPedestrian.getEast();
+        double north = mPedestrian.getNorth();
+        mTrajectory.add(timestamp, east, north, 0, length);
+        mListener.onDistance(timestamp, length);
+        if (mFilterInitialized) {
+            mLocalFrame.enuToGeodetic(east, north, 0, mPosition);
+            if (mMapMatcher != null && matchPosition()) constrainPedestrian(east, north);
+            if (mMetrics != null) mMetrics.getPositions().increment();
+            mListener.onPosition(timestamp, mPosition[0], mPosition[1], mPosition[2]);
+        }
+    }
+
+    /**
+     *
+     * @return false if the position is away from the floor plan
+     */
+    private boolean matchPosition() {
+        long start = mMetrics != null ? System.nanoTime() : 0;
+        boolean matched = mMapMatcher.match(mPosition);
+        if (mMetrics != null) mMetrics.getMapMatch().record(System.nanoTime() - start);
+        return matched;
+    }
+
+    /**
+     * Corrects the dead reckoning across the corridor with the matched position if matching moved
+     * it; the uncertainty along the corridor stays as it was.
+     */
+    private void constrainPedestrian(double east, double north) {
+        mLocalFrame.geodeticToEnu(mPosition[0], mPosition[1], mPosition[2], mMatchedPosition);
+        double dx = mMatchedPosition[0] - east;
+        double dy = mMatchedPosition[1] - north;
+        if (dx * dx + dy * dy < MIN_MATCH_CORRECTION * MIN_MATCH_CORRECTION) return;
+        mPedestrian.constrain(mMatchedPosition[0], mMatchedPosition[1], MAP_MATCH_VARIANCE);
+        mPositionVariance = mPedestrian.getVariance();
+    }
+
+    /**
+     * Measures the distance from the position predicted in the filter frame to the new fix, before
+     * correcting with it, ignoring the vertical.
+     */
+    private void recordDrift(GpsFix fix, double x, double y, double z) {
+        double dx = mFixPosition[0] - x;
+        double dy = mFixPosition[1] - y;
+        double dz = mFixPosition[2] - z;
+        double distanceSq;
+        if (usesLocalFrame()) {
+            distanceSq = dx * dx + dy * dy;
+        } else {
+            // up is close enough to the direction from the center of the Earth
+            double up = (dx * x + dy * y + dz * z) / Math.sqrt(x * x + y * y + z * z);
+            distanceSq = dx * dx + dy * dy + dz * dz - up * up;
+        }
+        double accuracy = fix.getAccuracy();
+        double drift = Math.max(0, distanceSq - accuracy * accuracy);
+        double previous = mDriftVariance;
+        mDriftVariance = Double.isNaN(previous) ? drift : previous + DRIFT_SMOOTHING * (drift - previous);
+    }
+
+    /**
+     * Largest position variance over the axes of the filter in use.
+     */
+    private double getFilterVariance() {
+        double variance = 0;
+        for (int i = 0; i < FusedSensorDataFilter.AXES; ++i) {
+            variance = Math.max(variance, mOrientationFilter != null ? mOrientationFilter.getPositionVariance(i)
+                    : mParticleFilter != null ? mParticleFilter.getPositionVariance(i)
+                    : mFilter.getPositionVariance(i));
+        }
+        return variance;
+    }
+
+    @Override
+    public double getPositionVariance() { return mPositionVariance; }
+
+    @Override
+    public double getDriftVariance() { return mDriftVariance; }
+
+    @Override
+    public boolean isCalibrationDone() { return mAccCalibrationDone; }
+
+    @Override
+    public boolean isFilterInitialized() { return mFilterInitialized; }
+
+    @Override
+    public SensorBias getSensorBias() { return mSensorBias; }
+
+    @Override
+    public double getTotalDistance() { return mTrajectory.getTotalDistance(); }
+
+    @Override
+    public TrajectoryStore getTrajectory() { return mTrajectory; }
+
+    @Override
+    public GpsFix getLatestFix() { return mState.getLatestFix(); }
+
+    @Override
+    public void reset() {
+        mFilterInitialized = false;
+        mLocalFrame = null;
+        mAccInitialized = false;
+        mState.clear();
+        mAppliedFix = null;
+        mOrientationFilter = null;
+        mRotation[0] = mRotation[1] = mRotation[2] = Double.NaN;
+        mOrientationInitialized = false;
+        mParticleFilter = null;
+        mStepDetector = null;
+        mPedestrian = null;
+        mPositionVariance = Double.NaN;
+        mDriftVariance = Double.NaN;
+        mLastGyroTimestamp = 0;
+        mLastAccTimestamp = 0;
+        mLastAccelerationTimestamp = 0;
+        mRevalidationStart = 0;
+        clearRevalidationWindow();
+        if (mMapMatcher != null) mMapMatcher.reset();
+    }
+}
@@ -0,0 +1,34 @@
+package app.imu.indoortrack.fusion;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * State shared between the thread delivering GPS fixes, the thread running the filter and any
+ * reader such as the UI. Fixes are published as immutable {@link GpsFix} snapshots through a
+ * single reference, so a reader always sees a consistent latitude, longitude and altitude
+ * without locking. Each {@link FusionPipeline} owns its own state, so several tracking sessions,
+ * e.g. a replay next to live tracking, can run in one process.
+ */
+public class FusionState {
+
+    private final AtomicReference<GpsFix> mLatestFix = new AtomicReference<>();
+
+    /**
+     * Replaces the latest fix.
+     */
+    public void publishFix(GpsFix fix) { mLatestFix.set(fix); }
+
+    /**
+     * Publishes {@code fix} only if there is no fix yet.
+     * @return false if an earlier fix was kept
+     */
+    public boolean publishFirstFix(GpsFix fix) { return mLatestFix.compareAndSet(null, fix); }
+
+    /**
+     *
+     * @return The newest fix, or null before the first one
+     */
+    public GpsFix getLatestFix() { return mLatestFix.get(); }
+
+    public void clear() { mLatestFix.set(null); }
+}
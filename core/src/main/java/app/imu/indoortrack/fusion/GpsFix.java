@@ -0,0 +1,40 @@
+package app.imu.indoortrack.fusion;
+
+/**
+ * Immutable GPS measurement, safe to hand between threads once constructed.
+ */
+public final class GpsFix {
+
+    private final long mTimestamp;
+    private final double mLatitude;
+    private final double mLongitude;
+    private final double mAltitude;
+    private final double mAccuracy;
+
+    /**
+     *
+     * @param accuracy Horizontal accuracy in meters
+     */
+    public GpsFix(long timestamp, double lat, double lon, double alt, double accuracy) {
+        mTimestamp = timestamp;
+        mLatitude = lat;
+        mLongitude = lon;
+        mAltitude = alt;
+        mAccuracy = accuracy;
+    }
+
+    public long getTimestamp() { return mTimestamp; }
+
+    public double getLatitude() { return mLatitude; }
+
+    public double getLongitude() { return mLongitude; }
+
+    public double getAltitude() { return mAltitude; }
+
+    public double getAccuracy() { return mAccuracy; }
+
+    @Override
+    public String toString() {
+        return "GpsFix(" + mTimestamp + ": " + mLatitude + "," + mLongitude + "," + mAltitude + " +-" + mAccuracy + ")";
+    }
+}
@@ -0,0 +1,149 @@
+package app.imu.indoortrack.fusion;
+
+/**
+ * Chooses how often and how precisely to ask for GPS fixes from how far the track drifts between
+ * them, see {@link FusionCore#getDriftVariance}; the filter's own variance is only as good as the
+ * noise it was tuned with. While that deviation stays below the low threshold the interval
+ * backs off one level every {@link #HOLD_MILLIS}, the slower levels also dropping to balanced
+ * power; as soon as it exceeds the high threshold the scheduler returns to the fastest level.
+ * Fixes less accurate than {@link #setMaxAccuracy} are not usable, and when no accepted fix
+ * arrives for {@link #STALL_INTERVALS} intervals, e.g. indoors, GPS is considered stalled and
+ * polled at the slowest level until a fix is accepted again.
+ * <p>
+ * Times are monotonic milliseconds. Not thread-safe; the app calls it on the main looper only.
+ */
+public class GpsScheduler {
+
+    public enum Priority { HIGH_ACCURACY, BALANCED_POWER }
+
+    public static final double DEFAULT_LOW_DEVIATION = 1.;
+    public static final double DEFAULT_HIGH_DEVIATION = 3.;
+    public static final double DEFAULT_MAX_ACCURACY = 30.;
+    public static final long HOLD_MILLIS = 10000;
+    public static final int STALL_INTERVALS = 5;
+
+    private static final long[] INTERVALS_MILLIS = { 1000, 2000, 5000, 10000, 30000 };
+    // levels from here on use balanced power
+    private static final int BALANCED_LEVEL = 3;
+
+    private double mLowVariance = DEFAULT_LOW_DEVIATION * DEFAULT_LOW_DEVIATION;
+    private double mHighVariance = DEFAULT_HIGH_DEVIATION * DEFAULT_HIGH_DEVIATION;
+    private double mMaxAccuracy = DEFAULT_MAX_ACCURACY;
+
+    private int mLevel;
+    private boolean mStalled;
+    private long mLevelSince = -1;
+    private long mLastUsableFix = -1;
+    private long mLastUpdate = -1;
+
+    private long mRequestChanges;
+    private double mRequestedFixes;
+    private long mElapsedMillis;
+    private long mAcceptedFixes;
+    private long mRejectedFixes;
+
+    /**
+     *
+     * @param low Deviation in meters below which fixes are requested less often
+     * @param high Deviation above which the fastest rate is requested again
+     */
+    public void setThresholds(double low, double high) {
+        if (!(low < high)) throw new IllegalArgumentException("low = " + low + ", high = " + high);
+        mLowVariance = low * low;
+        mHighVariance = high * high;
+    }
+
+    public void setMaxAccuracy(double meters) { mMaxAccuracy = meters; }
+
+    /**
+     * Re-evaluates the request, e.g. once a second and after every fix.
+     * @param driftVariance Drift between fixes in square meters, NaN if there is none yet
+     * @return true if the interval or priority changed and the location request must be renewed
+     */
+    public boolean update(long now, double driftVariance) {
+        if (mLastUpdate < 0) {
+            mLevelSince = now;
+            mLastUsableFix = now;
+        } else {
+            long elapsed = now - mLastUpdate;
+            mElapsedMillis += elapsed;
+            mRequestedFixes += (double) elapsed / INTERVALS_MILLIS[mLevel];
+        }
+        mLastUpdate = now;
+
+        int level = mLevel;
+        // a request just made faster gets its intervals before it counts as stalled
+        long waiting = now - Math.max(mLastUsableFix, mLevelSince);
+        if (!mStalled && waiting > STALL_INTERVALS * INTERVALS_MILLIS[mLevel]) {
+            mStalled = true;
+            level = INTERVALS_MILLIS.length - 1;
+        } else if (mStalled) {
+            level = INTERVALS_MILLIS.length - 1;
+        } else if (Double.isNaN(driftVariance) || driftVariance > mHighVariance) {
+            level = 0;
+        } else if (driftVariance < mLowVariance && now - mLevelSince >= HOLD_MILLIS) {
+            level = Math.min(mLevel + 1, INTERVALS_MILLIS.length - 1);
+        }
+        if (level == mLevel) return false;
+        mLevel = level;
+        mLevelSince = now;
+        ++mRequestChanges;
+        return true;
+    }
+
+    /**
+     *
+     * @param accuracy Horizontal accuracy in meters
+     * @return false if the fix is too inaccurate to use
+     */
+    public boolean isUsable(double accuracy) { return accuracy <= mMaxAccuracy; }
+
+    /**
+     * A fix was handed to the filter.
+     */
+    public void onFixAccepted(long now) {
+        ++mAcceptedFixes;
+        mLastUsableFix = now;
+        if (mStalled) {
+            // GPS is back, let the drift decide again
+            mStalled = false;
+            mLevelSince = now;
+        }
+    }
+
+    /**
+     * A fix was too inaccurate or the filter could not take it.
+     */
+    public void onFixRejected() { ++mRejectedFixes; }
+
+    private static Priority getPriority(int level) {
+        return level < BALANCED_LEVEL ? Priority.HIGH_ACCURACY : Priority.BALANCED_POWER;
+    }
+
+    public long getIntervalMillis() { return INTERVALS_MILLIS[mLevel]; }
+
+    public long getFastestIntervalMillis() { return INTERVALS_MILLIS[mLevel] / 2; }
+
+    public Priority getPriority() { return getPriority(mLevel); }
+
+    public boolean isStalled() { return mStalled; }
+
+    /**
+     * Times the location request was renewed.
+     */
+    public long getRequestChanges() { return mRequestChanges; }
+
+    /**
+     * Fixes asked for so far, the elapsed time divided by the interval in force.
+     */
+    public double getRequestedFixes() { return mRequestedFixes; }
+
+    /**
+     * Fixes asked for per second on average.
+     */
+    public double getRequestRate() { return mElapsedMillis == 0 ? 0 : mRequestedFixes * 1000 / mElapsedMillis; }
+
+    public long getAcceptedFixes() { return mAcceptedFixes; }
+
+    public long getRejectedFixes() { return mRejectedFixes; }
+}
@@ -0,0 +1,55 @@
+package app.imu.indoortrack.fusion;
+
+import java.util.Locale;
+
+import app.imu.indoortrack.sensor.OrientationFilter;
+
+/**
+ * How {@link FusionPipeline} turns a GPS fix and the calibration into the noise of its Kalman
+ * filters. {@link #DEFAULT} holds the values the app has always used; the others come from tuning
+ * against recorded sessions.
+ */
+public final class NoiseSettings {
+
+    public static final NoiseSettings DEFAULT = new NoiseSettings(200., 1. / 20., 1., 1.,
+            OrientationFilter.DEFAULT_GYRO_NOISE);
+
+    private final double mGpsAccuracyDivisor;
+    private final double mVerticalNoiseOffset;
+    private final double mAccNoiseScale;
+    private final double mInitialCovariance;
+    private final double mGyroNoise;
+
+    /**
+     *
+     * @param gpsAccuracyDivisor Divides the accuracy of a fix into the horizontal GPS noise
+     * @param verticalNoiseOffset Added to the horizontal noise for the vertical one
+     * @param accNoiseScale Multiplies the bias standard deviations into the acceleration noise
+     * @param initialCovariance Every entry of the initial per-axis covariance
+     * @param gyroNoise Angular rate noise of {@link FusionPipeline.Model#ORIENTATION} in rad/s
+     */
+    public NoiseSettings(double gpsAccuracyDivisor, double verticalNoiseOffset, double accNoiseScale,
+                         double initialCovariance, double gyroNoise) {
+        mGpsAccuracyDivisor = gpsAccuracyDivisor;
+        mVerticalNoiseOffset = verticalNoiseOffset;
+        mAccNoiseScale = accNoiseScale;
+        mInitialCovariance = initialCovariance;
+        mGyroNoise = gyroNoise;
+    }
+
+    public double getGpsAccuracyDivisor() { return mGpsAccuracyDivisor; }
+
+    public double getVerticalNoiseOffset() { return mVerticalNoiseOffset; }
+
+    public double getAccNoiseScale() { return mAccNoiseScale; }
+
+    public double getInitialCovariance() { return mInitialCovariance; }
+
+    public double getGyroNoise() { return mGyroNoise; }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "gps_divisor=%.4g vertical_offset=%.4g acc_scale=%.4g initial_cov=%.4g gyro=%.4g",
+                mGpsAccuracyDivisor, mVerticalNoiseOffset, mAccNoiseScale, mInitialCovariance, mGyroNoise);
+    }
+}
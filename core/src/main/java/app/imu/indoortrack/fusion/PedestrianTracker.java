@@ -0,0 +1,179 @@
+package app.imu.indoortrack.fusion;
+
+/**
+ * Horizontal position advanced step by step and pulled towards GPS fixes, a two dimensional
+ * Kalman filter whose uncertainty grows with every step. Positions are east and north in meters
+ * of the local tangent plane of the pipeline.
+ * <p>
+ * The step detector only measures the heading relative to where the device pointed at the start,
+ * so the tracker keeps the offset to the world as a second, scalar filter: unknown at first,
+ * drifting with every step, and corrected by absolute headings such as the rotation vector's and
+ * by the course between GPS fixes.
+ */
+class PedestrianTracker {
+
+    // relative step length error and heading error per step in radians
+    private static final double STEP_LENGTH_ERROR = 0.1;
+    private static final double HEADING_ERROR = 0.05;
+    // the offset can be anything until the first absolute heading
+    private static final double INITIAL_HEADING_VAR = Math.PI * Math.PI;
+    // a course between fixes this uncertain, about 30 degrees, is not used
+    private static final double MAX_COURSE_VAR = 0.25;
+
+    private double mEast;
+    private double mNorth;
+    // covariance of the position, isotropic but for the floor plan's corrections across corridors
+    private double mVarEast;
+    private double mVarNorth;
+    private double mCovariance;
+
+    private double mHeadingOffset;
+    private double mHeadingVariance = INITIAL_HEADING_VAR;
+    // the fix the course is measured from, and the steps taken since
+    private boolean mHasCourseStart;
+    private double mCourseEast;
+    private double mCourseNorth;
+    private double mStepsEast;
+    private double mStepsNorth;
+
+    /**
+     *
+     * @param relativeHeading Counter-clockwise from the starting direction of the device in radians
+     */
+    void step(double length, double relativeHeading) {
+        double heading = relativeHeading + mHeadingOffset;
+        double east = length * Math.cos(heading);
+        double north = length * Math.sin(heading);
+        mEast += east;
+        mNorth += north;
+        mStepsEast += east;
+        mStepsNorth += north;
+        double lengthError = length * STEP_LENGTH_ERROR;
+        double crossError = length * HEADING_ERROR;
+        double variance = (lengthError * lengthError + crossError * crossError) / 2;
+        mVarEast += variance;
+        mVarNorth += variance;
+        mHeadingVariance += HEADING_ERROR * HEADING_ERROR;
+    }
+
+    /**
+     *
+     * @param heading Absolute heading, counter-clockwise from east in radians
+     * @param relativeHeading Heading of the step detector at the same time
+     * @param variance Variance of the absolute heading in square radians
+     */
+    void correctHeading(double heading, double relativeHeading, double variance) {
+        updateHeadingOffset(heading - relativeHeading - mHeadingOffset, variance);
+    }
+
+    /**
+     * Compares the course from the previous GPS fix to this one with the steps taken in between
+     * and corrects the heading by the difference, once the fixes are far enough apart for it to
+     * be meaningful. Does not move the position, see {@link #correct}.
+     * @param variance Variance of the fix per axis in square meters
+     */
+    void correctCourse(double east, double north, double variance) {
+        if (!mHasCourseStart) {
+            startCourse(east, north);
+            return;
+        }
+        double fixEast = east - mCourseEast;
+        double fixNorth = north - mCourseNorth;
+        double fixSq = fixEast * fixEast + fixNorth * fixNorth;
+        double stepsSq = mStepsEast * mStepsEast + mStepsNorth * mStepsNorth;
+        // both fixes are off across the course
+        double courseVariance = 2 * variance / fixSq;
+        if (courseVariance > MAX_COURSE_VAR || 2 * variance / stepsSq > MAX_COURSE_VAR) return;
+        updateHeadingOffset(Math.atan2(fixNorth, fixEast) - Math.atan2(mStepsNorth, mStepsEast), courseVariance);
+        startCourse(east, north);
+    }
+
+    private void startCourse(double east, double north) {
+        mHasCourseStart = true;
+        mCourseEast = east;
+        mCourseNorth = north;
+        mStepsEast = 0;
+        mStepsNorth = 0;
+    }
+
+    private void updateHeadingOffset(double error, double variance) {
+        double k = mHeadingVariance / (mHeadingVariance + variance);
+        mHeadingOffset += k * Math.IEEEremainder(error, 2 * Math.PI);
+        mHeadingVariance *= 1 - k;
+    }
+
+    /**
+     *
+     * @param variance Variance of the fix per axis in square meters
+     */
+    void correct(double east, double north, double variance) {
+        // K = P (P + R)^-1
+        double a = mVarEast + variance;
+        double d = mVarNorth + variance;
+        double det = a * d - mCovariance * mCovariance;
+        double k00 = (mVarEast * d - mCovariance * mCovariance) / det;
+        double k01 = (mCovariance * a - mVarEast * mCovariance) / det;
+        double k10 = (mCovariance * d - mVarNorth * mCovariance) / det;
+        double k11 = (mVarNorth * a - mCovariance * mCovariance) / det;
+        double errorEast = east - mEast;
+        double errorNorth = north - mNorth;
+        mEast += k00 * errorEast + k01 * errorNorth;
+        mNorth += k10 * errorEast + k11 * errorNorth;
+        // P = (I - K) P
+        double varEast = (1 - k00) * mVarEast - k01 * mCovariance;
+        double covariance = (1 - k00) * mCovariance - k01 * mVarNorth;
+        double varNorth = -k10 * mCovariance + (1 - k11) * mVarNorth;
+        mVarEast = varEast;
+        mVarNorth = varNorth;
+        mCovariance = covariance;
+    }
+
+    /**
+     * Pulls the position towards one moved onto the floor plan. The floor plan only tells where
+     * the walker is across the corridor, the direction it moved the position in, and nothing about
+     * the distance walked along it, so only that direction is corrected and becomes more certain.
+     * @param variance Variance of the constrained position across the corridor in square meters
+     */
+    void constrain(double east, double north, double variance) {
+        double errorEast = east - mEast;
+        double errorNorth = north - mNorth;
+        double distance = Math.sqrt(errorEast * errorEast + errorNorth * errorNorth);
+        if (distance == 0) return;
+        double ue = errorEast / distance;
+        double un = errorNorth / distance;
+        // P u, and u' P u + r
+        double pe = mVarEast * ue + mCovariance * un;
+        double pn = mCovariance * ue + mVarNorth * un;
+        double s = ue * pe + un * pn + variance;
+        mEast += pe / s * distance;
+        mNorth += pn / s * distance;
+        mVarEast -= pe * pe / s;
+        mVarNorth -= pn * pn / s;
+        mCovariance -= pe * pn / s;
+    }
+
+    /**
+     * Starts over at a known position, keeping the heading.
+     */
+    void reset(double east, double north, double variance) {
+        mEast = east;
+        mNorth = north;
+        mVarEast = variance;
+        mVarNorth = variance;
+        mCovariance = 0;
+        startCourse(east, north);
+    }
+
+    double getEast() { return mEast; }
+
+    double getNorth() { return mNorth; }
+
+    /**
+     * Variance in the least certain direction, e.g. along the corridor, in square meters.
+     */
+    double getVariance() {
+        double mean = (mVarEast + mVarNorth) / 2;
+        double half = (mVarEast - mVarNorth) / 2;
+        return mean + Math.sqrt(half * half + mCovariance * mCovariance);
+    }
+}
@@ -0,0 +1,133 @@
+package app.imu.indoortrack.fusion;
+
+/**
+ * Ring buffer of timestamped samples kept sorted by timestamp, for a single thread. A sample
+ * arriving out of order is moved into place; when the buffer is full the oldest sample is
+ * evicted, or the incoming one dropped if it is older than everything retained.
+ */
+class SampleStream {
+
+    private final int mMask;
+    private final int mStride;
+    private final long[] mTimestamps;
+    private final double[] mValues;
+    // index of the oldest sample, counting up without wrapping
+    private long mHead;
+    private long mTail;
+    private long mOutOfOrderCount;
+    private long mDroppedCount;
+
+    /**
+     *
+     * @param capacity Number of samples, rounded up to a power of two
+     * @param stride Values per sample
+     */
+    SampleStream(int capacity, int stride) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mMask = size - 1;
+        mStride = stride;
+        mTimestamps = new long[size];
+        mValues = new double[size * stride];
+    }
+
+    int size() { return (int) (mTail - mHead); }
+
+    boolean isEmpty() { return mTail == mHead; }
+
+    long getOldestTimestamp() { return mTimestamps[(int) mHead & mMask]; }
+
+    long getNewestTimestamp() { return mTimestamps[(int) (mTail - 1) & mMask]; }
+
+    long getTimestamp(int i) { return mTimestamps[(int) (mHead + i) & mMask]; }
+
+    double getValue(int i, int field) { return mValues[((int) (mHead + i) & mMask) * mStride + field]; }
+
+    long getOutOfOrderCount() { return mOutOfOrderCount; }
+
+    long getDroppedCount() { return mDroppedCount; }
+
+    /**
+     *
+     * @return false if the sample was dropped
+     */
+    boolean insert(long timestamp, double v0, double v1, double v2, double v3) {
+        if (size() > mMask) {
+            if (timestamp < getOldestTimestamp()) {
+                ++mDroppedCount;
+                return false;
+            }
+            ++mHead;
+        }
+        long position = mTail;
+        if (position > mHead && timestamp < getNewestTimestamp()) {
+            ++mOutOfOrderCount;
+            // shift newer samples up by one
+            while (position > mHead && mTimestamps[(int) (position - 1) & mMask] > timestamp) {
+                copy((int) (position - 1) & mMask, (int) position & mMask);
+                --position;
+            }
+        }
+        int slot = (int) position & mMask;
+        mTimestamps[slot] = timestamp;
+        int offset = slot * mStride;
+        mValues[offset] = v0;
+        if (mStride > 1) mValues[offset + 1] = v1;
+        if (mStride > 2) mValues[offset + 2] = v2;
+        if (mStride > 3) mValues[offset + 3] = v3;
+        ++mTail;
+        return true;
+    }
+
+    private void copy(int from, int to) {
+        mTimestamps[to] = mTimestamps[from];
+        System.arraycopy(mValues, from * mStride, mValues, to * mStride, mStride);
+    }
+
+    /**
+     * Linearly interpolates the first three values at {@code timestamp}; outside the buffered
+     * range the nearest sample is held.
+     * @return false if the stream is empty
+     */
+    boolean interpolate(long timestamp, double[] out) {
+        if (isEmpty()) return false;
+        int n = size();
+        if (timestamp <= getOldestTimestamp()) {
+            copyOut(0, out);
+            return true;
+        }
+        if (timestamp >= getNewestTimestamp()) {
+            copyOut(n - 1, out);
+            return true;
+        }
+        // first sample after timestamp; callers trim up to the previous point, so it is near the front
+        int low = 1;
+        while (getTimestamp(low) <= timestamp) ++low;
+        long t0 = getTimestamp(low - 1);
+        long t1 = getTimestamp(low);
+        double w = t1 == t0 ? 0 : (double) (timestamp - t0) / (t1 - t0);
+        for (int f = 0; f < 3 && f < mStride; ++f) {
+            double v0 = getValue(low - 1, f);
+            out[f] = v0 + (getValue(low, f) - v0) * w;
+        }
+        return true;
+    }
+
+    private void copyOut(int i, double[] out) {
+        for (int f = 0; f < 3 && f < mStride; ++f) out[f] = getValue(i, f);
+    }
+
+    /**
+     * Forgets samples no longer needed to interpolate at or after {@code timestamp}, keeping the
+     * last one before it.
+     */
+    void trimBefore(long timestamp) {
+        while (mTail - mHead > 1 && mTimestamps[(int) (mHead + 1) & mMask] <= timestamp) ++mHead;
+    }
+
+    /**
+     * Removes the oldest sample.
+     */
+    void poll() { if (mTail > mHead) ++mHead; }
+
+    void clear() { mHead = mTail; }
+}
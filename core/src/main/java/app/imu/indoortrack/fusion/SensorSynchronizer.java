@@ -0,0 +1,277 @@
+package app.imu.indoortrack.fusion;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import app.imu.indoortrack.sensor.SensorSampleBuffer;
+
+/**
+ * Aligns the accelerometer, gyroscope and GPS streams on one clock before they reach a
+ * {@link FusionCore}. Samples are kept sorted per stream and resampled to a fixed grid of fusion
+ * timestamps driven by the accelerometer, with both inertial streams interpolated at every grid
+ * point. GPS fixes are handed over lock-free from their own thread and applied in timestamp order
+ * at the first grid point at or after the fix, so the fusion result only depends on the sample
+ * timestamps and not on thread scheduling.
+ * <p>
+ * All timestamps are monotonic nanoseconds (SensorEvent.timestamp, Location elapsed realtime).
+ * The grid trails the newest accelerometer sample by {@link #setLatency} to wait for late
+ * samples; a fix older than the last grid point is applied late, and one older than
+ * {@link #setMaxFixLateness} dropped. Everything except {@link #offerGpsFix} and the metric
+ * getters runs on the consumer thread.
+ * <p>
+ * A block of samples is inserted as a whole before the grid advances, so interpolation sees all of
+ * it, and the grid points reach the core as blocks too, cut at every GPS fix. Rotation vector
+ * samples only give the starting orientation and are passed on as they arrive, off the grid.
+ */
+public class SensorSynchronizer implements SensorSampleBuffer.SampleHandler, SensorSampleBuffer.SampleBlockHandler {
+
+    public static final long DEFAULT_TICK_NANOS = 5000000L;
+    public static final long DEFAULT_MAX_FIX_LATENESS_NANOS = 2000000000L;
+
+    private static final int STREAM_CAPACITY = 1024;
+    private static final int FIX_QUEUE_CAPACITY = 64;
+    // grid samples handed to the core at once
+    private static final int OUTPUT_BLOCK_CAPACITY = 256;
+    // restart the grid instead of filling gaps longer than this, e.g. after the sensors paused
+    private static final long MAX_GAP_NANOS = 1000000000L;
+
+    private final FusionCore mCore;
+    private final long mTickNanos;
+    private long mLatencyNanos;
+    private long mMaxFixLatenessNanos = DEFAULT_MAX_FIX_LATENESS_NANOS;
+
+    private final SampleStream mAcc = new SampleStream(STREAM_CAPACITY, 3);
+    private final SampleStream mGyro = new SampleStream(STREAM_CAPACITY, 3);
+    // lat, lon, alt, accuracy
+    private final SampleStream mFixes = new SampleStream(FIX_QUEUE_CAPACITY, 4);
+    private final double[] mAccValue = new double[3];
+    private final double[] mGyroValue = new double[3];
+    private long mNextTick = Long.MIN_VALUE;
+
+    private final long[] mOutTimestamps = new long[OUTPUT_BLOCK_CAPACITY];
+    private final int[] mOutTypes = new int[OUTPUT_BLOCK_CAPACITY];
+    private final float[] mOutValues = new float[OUTPUT_BLOCK_CAPACITY * 3];
+    private int mOutCount;
+
+    // single-producer/single-consumer handoff from the GPS thread
+    private final int mFixMask = FIX_QUEUE_CAPACITY - 1;
+    private final long[] mFixTimestamps = new long[FIX_QUEUE_CAPACITY];
+    private final double[] mFixValues = new double[FIX_QUEUE_CAPACITY * 4];
+    private final AtomicLong mFixTail = new AtomicLong();
+    private final AtomicLong mFixHead = new AtomicLong();
+    // fixes the producer found no room for
+    private final AtomicLong mRejectedFixCount = new AtomicLong();
+
+    private volatile long mTickCount;
+    private volatile long mGyroLagNanos;
+    private volatile long mLastFixDelayNanos;
+    private volatile long mMaxFixDelayNanos;
+    private volatile long mLateFixCount;
+    private volatile long mDroppedFixCount;
+
+    public SensorSynchronizer(FusionCore core) {
+        this(core, DEFAULT_TICK_NANOS);
+    }
+
+    /**
+     *
+     * @param tickNanos Spacing of the fusion timestamps
+     */
+    public SensorSynchronizer(FusionCore core, long tickNanos) {
+        mCore = core;
+        mTickNanos = tickNanos;
+    }
+
+    /**
+     * How far the fusion timestamp trails the newest accelerometer sample, 0 by default.
+     */
+    public void setLatency(long nanos) { mLatencyNanos = nanos; }
+
+    public void setMaxFixLateness(long nanos) { mMaxFixLatenessNanos = nanos; }
+
+    @Override
+    public void onSample(long timestamp, int sensorType, float x, float y, float z) {
+        if (sensorType == FusionCore.SENSOR_LINEAR_ACCELERATION) {
+            mAcc.insert(timestamp, x, y, z, 0);
+            advance();
+        } else if (sensorType == FusionCore.SENSOR_GYROSCOPE) {
+            mGyro.insert(timestamp, x, y, z, 0);
+        } else if (sensorType == FusionCore.SENSOR_ROTATION_VECTOR) {
+            mCore.onSample(timestamp, sensorType, x, y, z);
+        }
+    }
+
+    @Override
+    public void onSamples(long[] timestamps, int[] sensorTypes, float[] values, int offset, int count) {
+        boolean pending = false;
+        for (int i = offset; i < offset + count; ++i) {
+            int type = sensorTypes[i];
+            if (type == FusionCore.SENSOR_LINEAR_ACCELERATION) {
+                mAcc.insert(timestamps[i], values[i * 3], values[i * 3 + 1], values[i * 3 + 2], 0);
+                pending = true;
+                // advance before the stream starts evicting samples not yet resampled
+                if (mAcc.size() >= STREAM_CAPACITY / 2) {
+                    advance();
+                    pending = false;
+                }
+            } else if (type == FusionCore.SENSOR_GYROSCOPE) {
+                mGyro.insert(timestamps[i], values[i * 3], values[i * 3 + 1], values[i * 3 + 2], 0);
+            } else if (type == FusionCore.SENSOR_ROTATION_VECTOR) {
+                mCore.onSample(timestamps[i], type, values[i * 3], values[i * 3 + 1], values[i * 3 + 2]);
+            }
+        }
+        if (pending) advance();
+    }
+
+    /**
+     * Called from the GPS thread only; the fix is applied by the consumer thread.
+     * @param timestamp Elapsed realtime of the fix in nanoseconds
+     * @return false if the handoff queue was full and the fix was dropped
+     */
+    public boolean offerGpsFix(long timestamp, double lat, double lon, double alt, double accuracy) {
+        long tail = mFixTail.get();
+        if (tail - mFixHead.get() > mFixMask) {
+            mRejectedFixCount.lazySet(mRejectedFixCount.get() + 1);
+            return false;
+        }
+        int slot = (int) tail & mFixMask;
+        mFixTimestamps[slot] = timestamp;
+        mFixValues[slot * 4] = lat;
+        mFixValues[slot * 4 + 1] = lon;
+        mFixValues[slot * 4 + 2] = alt;
+        mFixValues[slot * 4 + 3] = accuracy;
+        mFixTail.lazySet(tail + 1);
+        return true;
+    }
+
+    private void pollFixes() {
+        long head = mFixHead.get();
+        long tail = mFixTail.get();
+        for (long i = head; i < tail; ++i) {
+            int slot = (int) i & mFixMask;
+            long timestamp = mFixTimestamps[slot];
+            if (mNextTick != Long.MIN_VALUE && timestamp < mNextTick - mTickNanos - mMaxFixLatenessNanos) {
+                mDroppedFixCount = mDroppedFixCount + 1;
+                continue;
+            }
+            if (!mFixes.insert(timestamp, mFixValues[slot * 4], mFixValues[slot * 4 + 1],
+                    mFixValues[slot * 4 + 2], mFixValues[slot * 4 + 3])) {
+                mDroppedFixCount = mDroppedFixCount + 1;
+            }
+        }
+        mFixHead.lazySet(tail);
+    }
+
+    /**
+     * Emits every grid point the accelerometer stream has passed.
+     */
+    private void advance() {
+        if (!mGyro.isEmpty()) mGyroLagNanos = mAcc.getNewestTimestamp() - mGyro.getNewestTimestamp();
+        long watermark = mAcc.getNewestTimestamp() - mLatencyNanos;
+        if (mNextTick == Long.MIN_VALUE || watermark - mNextTick > MAX_GAP_NANOS) {
+            // wait for samples delayed by up to the latency, then start on a multiple of the tick
+            // so the grid does not depend on which sample happened to arrive first; after a gap
+            // the oldest sample is from before it
+            long start = mNextTick == Long.MIN_VALUE ? mAcc.getOldestTimestamp()
+                    : Math.max(mAcc.getOldestTimestamp(), watermark - mTickNanos);
+            if (watermark < start) return;
+            long offset = start % mTickNanos;
+            if (offset < 0) offset += mTickNanos;
+            mNextTick = offset == 0 ? start : start - offset + mTickNanos;
+        }
+        pollFixes();
+        while (mNextTick <= watermark) {
+            long tick = mNextTick;
+            applyFixes(tick);
+            mAcc.interpolate(tick, mAccValue);
+            if (!mGyro.interpolate(tick, mGyroValue)) {
+                mGyroValue[0] = mGyroValue[1] = mGyroValue[2] = 0;
+            }
+            emit(tick, FusionCore.SENSOR_LINEAR_ACCELERATION, mAccValue);
+            emit(tick, FusionCore.SENSOR_GYROSCOPE, mGyroValue);
+            mTickCount = mTickCount + 1;
+            mNextTick += mTickNanos;
+            mAcc.trimBefore(tick);
+            mGyro.trimBefore(tick);
+        }
+        flush();
+    }
+
+    private void emit(long tick, int sensorType, double[] value) {
+        if (mOutCount == OUTPUT_BLOCK_CAPACITY) flush();
+        int i = mOutCount++;
+        mOutTimestamps[i] = tick;
+        mOutTypes[i] = sensorType;
+        mOutValues[i * 3] = (float) value[0];
+        mOutValues[i * 3 + 1] = (float) value[1];
+        mOutValues[i * 3 + 2] = (float) value[2];
+    }
+
+    private void flush() {
+        if (mOutCount == 0) return;
+        mCore.onSamples(mOutTimestamps, mOutTypes, mOutValues, 0, mOutCount);
+        mOutCount = 0;
+    }
+
+    private void applyFixes(long tick) {
+        if (mFixes.isEmpty() || mFixes.getOldestTimestamp() > tick) return;
+        // the core must have seen every grid point before the fix
+        flush();
+        while (!mFixes.isEmpty() && mFixes.getOldestTimestamp() <= tick) {
+            long timestamp = mFixes.getOldestTimestamp();
+            long delay = tick - timestamp;
+            if (delay >= mTickNanos) mLateFixCount = mLateFixCount + 1;
+            mLastFixDelayNanos = delay;
+            if (delay > mMaxFixDelayNanos) mMaxFixDelayNanos = delay;
+            mCore.onGpsFix(timestamp, mFixes.getValue(0, 0), mFixes.getValue(0, 1), mFixes.getValue(0, 2),
+                    mFixes.getValue(0, 3));
+            mFixes.poll();
+        }
+    }
+
+    /**
+     * Forgets buffered samples and fixes, including those handed over but not polled yet, e.g.
+     * when the sensors are restarted.
+     */
+    public void reset() {
+        mAcc.clear();
+        mGyro.clear();
+        mFixHead.lazySet(mFixTail.get());
+        mFixes.clear();
+        mOutCount = 0;
+        mNextTick = Long.MIN_VALUE;
+    }
+
+    public long getTickCount() { return mTickCount; }
+
+    /**
+     * Newest accelerometer minus newest gyroscope timestamp.
+     */
+    public long getGyroLagNanos() { return mGyroLagNanos; }
+
+    /**
+     * Time between the last applied fix and the grid point it was applied at.
+     */
+    public long getLastFixDelayNanos() { return mLastFixDelayNanos; }
+
+    public long getMaxFixDelayNanos() { return mMaxFixDelayNanos; }
+
+    /**
+     * Fixes that arrived after the grid had passed their timestamp.
+     */
+    public long getLateFixCount() { return mLateFixCount; }
+
+    /**
+     * Fixes dropped for being too late or because a queue was full.
+     */
+    public long getDroppedFixCount() { return mDroppedFixCount + mRejectedFixCount.get(); }
+
+    /**
+     * Inertial samples that arrived after a newer one of the same sensor.
+     */
+    public long getOutOfOrderSampleCount() { return mAcc.getOutOfOrderCount() + mGyro.getOutOfOrderCount(); }
+
+    /**
+     * Inertial samples dropped for being older than everything buffered.
+     */
+    public long getDroppedSampleCount() { return mAcc.getDroppedCount() + mGyro.getDroppedCount(); }
+}
@@ -0,0 +1,275 @@
+package app.imu.indoortrack.fusion;
+
+import java.util.ArrayList;
+
+/**
+ * Filtered track of a session: timestamp, position in the filter frame (meters) and the distance
+ * travelled up to each point. Points live in fixed-size primitive chunks. When the store is full
+ * the track is simplified with Douglas-Peucker, doubling the tolerance until at most half of the
+ * capacity is used, so memory stays bounded while the total and the cumulative distances of the
+ * kept points stay exact.
+ * <p>
+ * Timestamps are expected not to decrease; an earlier one is stored as the previous timestamp.
+ * Only {@link #getTotalDistance()} may be called from another thread than the writer.
+ */
+public class TrajectoryStore {
+
+    public static final int DEFAULT_MAX_POINTS = 1 << 16;
+    public static final double DEFAULT_TOLERANCE = 0.05;
+
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int SIMPLIFY_WINDOW = 4 * CHUNK_SIZE;
+    // x, y, z and cumulative distance per point
+    private static final int STRIDE = 4;
+
+    private final int mMaxPoints;
+    private final double mInitialTolerance;
+    private double mTolerance;
+    private final ArrayList<long[]> mTimestamps = new ArrayList<>();
+    private final ArrayList<double[]> mValues = new ArrayList<>();
+    private int mSize;
+    // read by the UI while tracking
+    private volatile double mTotalDistance;
+    private int mCompactions;
+    private double[] mImportance;
+    private int[] mStack;
+
+    public TrajectoryStore() {
+        this(DEFAULT_MAX_POINTS, DEFAULT_TOLERANCE);
+    }
+
+    /**
+     *
+     * @param maxPoints Points kept before the track is simplified
+     * @param tolerance Initial Douglas-Peucker tolerance in meters
+     */
+    public TrajectoryStore(int maxPoints, double tolerance) {
+        if (maxPoints < 4) throw new IllegalArgumentException("maxPoints = " + maxPoints);
+        if (!(tolerance > 0)) throw new IllegalArgumentException("tolerance = " + tolerance);
+        mMaxPoints = maxPoints;
+        mInitialTolerance = tolerance;
+        mTolerance = tolerance;
+    }
+
+    /**
+     *
+     * @param distance Distance travelled since the previous point
+     */
+    public void add(long timestamp, double x, double y, double z, double distance) {
+        if (mSize == mMaxPoints) compact();
+        if (mSize > 0) timestamp = Math.max(timestamp, getTimestamp(mSize - 1));
+        double total = mTotalDistance + distance;
+        mTotalDistance = total;
+        int chunk = mSize >>> CHUNK_SHIFT;
+        if (chunk == mTimestamps.size()) {
+            mTimestamps.add(new long[CHUNK_SIZE]);
+            mValues.add(new double[CHUNK_SIZE * STRIDE]);
+        }
+        set(mSize, timestamp, x, y, z, total);
+        ++mSize;
+    }
+
+    private void set(int i, long timestamp, double x, double y, double z, double cumulative) {
+        mTimestamps.get(i >>> CHUNK_SHIFT)[i & CHUNK_MASK] = timestamp;
+        double[] values = mValues.get(i >>> CHUNK_SHIFT);
+        int offset = (i & CHUNK_MASK) * STRIDE;
+        values[offset] = x;
+        values[offset + 1] = y;
+        values[offset + 2] = z;
+        values[offset + 3] = cumulative;
+    }
+
+    private double value(int i, int field) {
+        return mValues.get(i >>> CHUNK_SHIFT)[(i & CHUNK_MASK) * STRIDE + field];
+    }
+
+    public int size() { return mSize; }
+
+    public double getTotalDistance() { return mTotalDistance; }
+
+    public long getTimestamp(int i) { return mTimestamps.get(i >>> CHUNK_SHIFT)[i & CHUNK_MASK]; }
+
+    public double getX(int i) { return value(i, 0); }
+
+    public double getY(int i) { return value(i, 1); }
+
+    public double getZ(int i) { return value(i, 2); }
+
+    /**
+     * Distance travelled up to and including point {@code i}.
+     */
+    public double getCumulativeDistance(int i) { return value(i, 3); }
+
+    /**
+     * Number of times the track has been simplified.
+     */
+    public int getCompactions() { return mCompactions; }
+
+    /**
+     * Current simplification tolerance in meters.
+     */
+    public double getTolerance() { return mTolerance; }
+
+    /**
+     * Index of the first point at or after {@code timestamp}, or {@link #size()} if there is none.
+     */
+    public int ceilingIndex(long timestamp) {
+        int low = 0;
+        int high = mSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getTimestamp(mid) < timestamp) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Distance travelled up to {@code timestamp}, interpolated between the surrounding points.
+     */
+    public double getDistanceAt(long timestamp) {
+        if (mSize == 0) return 0;
+        int i = ceilingIndex(timestamp);
+        if (i == mSize) return mTotalDistance;
+        if (getTimestamp(i) == timestamp) return getCumulativeDistance(i);
+        if (i == 0) return 0;
+        long t0 = getTimestamp(i - 1);
+        long t1 = getTimestamp(i);
+        double d0 = getCumulativeDistance(i - 1);
+        double d1 = getCumulativeDistance(i);
+        return d0 + (d1 - d0) * (timestamp - t0) / (t1 - t0);
+    }
+
+    /**
+     * Distance travelled between two timestamps.
+     */
+    public double getDistance(long from, long to) {
+        return getDistanceAt(to) - getDistanceAt(from);
+    }
+
+    /**
+     * Copies the points with {@code from <= timestamp <= to}, as many as fit.
+     * @param timestamps Receives the timestamps, may be null
+     * @param xyz Receives x, y and z of each point, may be null
+     * @return Number of points copied
+     */
+    public int getPoints(long from, long to, long[] timestamps, double[] xyz) {
+        int capacity = Integer.MAX_VALUE;
+        if (timestamps != null) capacity = timestamps.length;
+        if (xyz != null) capacity = Math.min(capacity, xyz.length / 3);
+        int count = 0;
+        for (int i = ceilingIndex(from); i < mSize && count < capacity && getTimestamp(i) <= to; ++i, ++count) {
+            if (timestamps != null) timestamps[count] = getTimestamp(i);
+            if (xyz != null) {
+                xyz[count * 3] = getX(i);
+                xyz[count * 3 + 1] = getY(i);
+                xyz[count * 3 + 2] = getZ(i);
+            }
+        }
+        return count;
+    }
+
+    public void clear() {
+        mSize = 0;
+        mTotalDistance = 0;
+        mTolerance = mInitialTolerance;
+    }
+
+    private void compact() {
+        if (mImportance == null) {
+            mImportance = new double[mMaxPoints];
+            mStack = new int[3 * mMaxPoints];
+        }
+        rankPoints();
+        int target = mMaxPoints / 2;
+        double toleranceSq = mTolerance * mTolerance;
+        while (countAbove(toleranceSq) > target) {
+            mTolerance *= 2;
+            toleranceSq = mTolerance * mTolerance;
+        }
+        int j = 0;
+        for (int i = 0; i < mSize; ++i) {
+            if (mImportance[i] > toleranceSq) {
+                if (i != j) {
+                    set(j, getTimestamp(i), getX(i), getY(i), getZ(i), getCumulativeDistance(i));
+                }
+                ++j;
+            }
+        }
+        mSize = j;
+        ++mCompactions;
+    }
+
+    private int countAbove(double toleranceSq) {
+        int count = 0;
+        for (int i = 0; i < mSize; ++i) {
+            if (mImportance[i] > toleranceSq) ++count;
+        }
+        return count;
+    }
+
+    /**
+     * Runs Douglas-Peucker once and stores in {@link #mImportance} the largest squared tolerance
+     * at which each point would still be kept, so the result for any tolerance above the current
+     * one is a threshold away. Intervals within the current tolerance are not split further, and
+     * the track is split into windows whose ends are always kept, bounding the worst case.
+     */
+    private void rankPoints() {
+        for (int i = 0; i < mSize; ++i) mImportance[i] = 0;
+        double toleranceSq = mTolerance * mTolerance;
+        int top = 0;
+        for (int start = 0; start < mSize - 1; start += SIMPLIFY_WINDOW) {
+            int end = Math.min(start + SIMPLIFY_WINDOW, mSize - 1);
+            mImportance[start] = Double.POSITIVE_INFINITY;
+            mImportance[end] = Double.POSITIVE_INFINITY;
+            mStack[top++] = start;
+            mStack[top++] = end;
+            mStack[top++] = end;
+        }
+        while (top > 0) {
+            // a point is only kept when the point that split its interval is
+            double parent = mImportance[mStack[--top]];
+            int last = mStack[--top];
+            int first = mStack[--top];
+            int farthest = -1;
+            double farthestSq = toleranceSq;
+            for (int i = first + 1; i < last; ++i) {
+                double distanceSq = segmentDistanceSq(i, first, last);
+                if (distanceSq > farthestSq) {
+                    farthestSq = distanceSq;
+                    farthest = i;
+                }
+            }
+            if (farthest >= 0) {
+                mImportance[farthest] = Math.min(farthestSq, parent);
+                mStack[top++] = first;
+                mStack[top++] = farthest;
+                mStack[top++] = farthest;
+                mStack[top++] = farthest;
+                mStack[top++] = last;
+                mStack[top++] = farthest;
+            }
+        }
+    }
+
+    private double segmentDistanceSq(int i, int first, int last) {
+        double ax = getX(first);
+        double ay = getY(first);
+        double az = getZ(first);
+        double dx = getX(last) - ax;
+        double dy = getY(last) - ay;
+        double dz = getZ(last) - az;
+        double px = getX(i) - ax;
+        double py = getY(i) - ay;
+        double pz = getZ(i) - az;
+        double lengthSq = dx * dx + dy * dy + dz * dz;
+        double t = lengthSq == 0 ? 0 : (px * dx + py * dy + pz * dz) / lengthSq;
+        t = Math.max(0, Math.min(1, t));
+        px -= t * dx;
+        py -= t * dy;
+        pz -= t * dz;
+        return px * px + py * py + pz * pz;
+    }
+}
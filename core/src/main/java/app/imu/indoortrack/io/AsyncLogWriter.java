@@ -0,0 +1,279 @@
+package app.imu.indoortrack.io;
+
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import app.imu.indoortrack.metrics.TrackingMetrics;
+
+/**
+ * Moves {@link LogSink} I/O off the tracking threads. Producers copy records into a
+ * bounded, preallocated queue and a single background thread drains it in batches. What happens
+ * when the queue is full is decided by the {@link BackpressurePolicy}; sessions feed replay and
+ * tuning, so their logs block rather than lose records.
+ */
+public class AsyncLogWriter {
+
+    public enum BackpressurePolicy {
+        /** Producer waits for space. */
+        BLOCK,
+        /**
+         * Oldest queued record is discarded to make room. Drops are counted, see
+         * {@link AsyncLogWriter#getDroppedCount} and {@link TrackingMetrics#getWriterDropped}.
+         */
+        DROP_OLDEST,
+        /** Incoming record is discarded and counted like {@link #DROP_OLDEST}. */
+        DROP_NEWEST
+    }
+
+    private static final int MAX_FIELDS = 3;
+    private static final long IDLE_WAIT_MILLIS = 500;
+
+    private final BackpressurePolicy mPolicy;
+    private final int mCapacity;
+    private final int mMaxBatch;
+
+    // queue slots, guarded by mLock
+    private final LogSink[] mTargets;
+    private final long[] mTimestamps;
+    private final double[] mValues;
+    private int mHead;
+    private int mSize;
+    private boolean mClosed;
+
+    // batch copied out of the queue, only touched by the writer thread
+    private final LogSink[] mBatchTargets;
+    private final long[] mBatchTimestamps;
+    private final double[] mBatchValues;
+
+    private final CopyOnWriteArrayList<LogSink> mWriters = new CopyOnWriteArrayList<>();
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private final Condition mNotFull = mLock.newCondition();
+    private final Thread mThread;
+    private volatile TrackingMetrics mMetrics;
+
+    private volatile long mDropped;
+    private volatile long mWritten;
+    private volatile int mLastBatchSize;
+    private volatile int mMaxBatchSize;
+    private volatile long mLastWriteNanos;
+    private volatile long mMaxWriteNanos;
+    private volatile long mTotalWriteNanos;
+    private volatile long mBatches;
+
+    public AsyncLogWriter(int capacity, int maxBatch, BackpressurePolicy policy) {
+        mPolicy = policy;
+        mCapacity = capacity;
+        mMaxBatch = Math.min(maxBatch, capacity);
+        mTargets = new LogSink[capacity];
+        mTimestamps = new long[capacity];
+        mValues = new double[capacity * MAX_FIELDS];
+        mBatchTargets = new LogSink[mMaxBatch];
+        mBatchTimestamps = new long[mMaxBatch];
+        mBatchValues = new double[mMaxBatch * MAX_FIELDS];
+        mThread = new Thread(this::run, "AsyncLogWriter");
+        mThread.start();
+    }
+
+    /**
+     * Records the time of every batch write and the dropped records; null (the default) records
+     * nothing.
+     */
+    public void setMetrics(TrackingMetrics metrics) { mMetrics = metrics; }
+
+    /**
+     * Registers a log so that {@link #close()} flushes and closes it.
+     */
+    public void register(LogSink writer) { mWriters.add(writer); }
+
+    public boolean enqueue(LogSink target, long timestamp, double x, double y, double z) {
+        return enqueue(target, timestamp, 3, x, y, z);
+    }
+
+    public boolean enqueue(LogSink target, long timestamp, double val) {
+        return enqueue(target, timestamp, 1, val, 0, 0);
+    }
+
+    private boolean enqueue(LogSink target, long timestamp, int fields,
+                            double x, double y, double z) {
+        mLock.lock();
+        try {
+            if (mClosed) return false;
+            if (mSize == mCapacity) {
+                switch (mPolicy) {
+                    case BLOCK:
+                        while (mSize == mCapacity && !mClosed) mNotFull.awaitUninterruptibly();
+                        if (mClosed) return false;
+                        break;
+                    case DROP_OLDEST:
+                        mTargets[mHead] = null;
+                        mHead = (mHead + 1) % mCapacity;
+                        mSize--;
+                        drop();
+                        break;
+                    case DROP_NEWEST:
+                        drop();
+                        return false;
+                }
+            }
+            int slot = (mHead + mSize) % mCapacity;
+            mTargets[slot] = target;
+            mTimestamps[slot] = timestamp;
+            int offset = slot * MAX_FIELDS;
+            mValues[offset] = x;
+            mValues[offset + 1] = fields > 1 ? y : 0;
+            mValues[offset + 2] = fields > 1 ? z : 0;
+            mSize++;
+            mNotEmpty.signal();
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void drop() {
+        mDropped++;
+        TrackingMetrics metrics = mMetrics;
+        if (metrics != null) metrics.getWriterDropped().increment();
+    }
+
+    private void run() {
+        while (true) {
+            int count;
+            boolean drained;
+            boolean closed;
+            mLock.lock();
+            try {
+                while (mSize == 0 && !mClosed) {
+                    try {
+                        mNotEmpty.await(IDLE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException ignored) {}
+                }
+                count = Math.min(mSize, mMaxBatch);
+                for (int i = 0; i < count; ++i) {
+                    int slot = (mHead + i) % mCapacity;
+                    mBatchTargets[i] = mTargets[slot];
+                    mBatchTimestamps[i] = mTimestamps[slot];
+                    System.arraycopy(mValues, slot * MAX_FIELDS, mBatchValues, i * MAX_FIELDS, MAX_FIELDS);
+                    mTargets[slot] = null;
+                }
+                mHead = (mHead + count) % mCapacity;
+                mSize -= count;
+                drained = mSize == 0;
+                closed = mClosed && drained;
+                mNotFull.signalAll();
+            } finally {
+                mLock.unlock();
+            }
+            if (count > 0) {
+                writeBatch(count);
+                // push the tail to disk whenever the queue runs dry
+                if (drained) flushWriters();
+            }
+            if (closed) break;
+        }
+        closeWriters();
+    }
+
+    private void writeBatch(int count) {
+        long start = System.nanoTime();
+        for (int i = 0; i < count; ++i) {
+            LogSink target = mBatchTargets[i];
+            int offset = i * MAX_FIELDS;
+            try {
+                if (target.getFieldCount() == 1) {
+                    target.write(mBatchTimestamps[i], mBatchValues[offset]);
+                } else {
+                    target.write(mBatchTimestamps[i], mBatchValues[offset],
+                            mBatchValues[offset + 1], mBatchValues[offset + 2]);
+                }
+            } catch (IOException e) { e.printStackTrace(); }
+            mBatchTargets[i] = null;
+        }
+        long elapsed = System.nanoTime() - start;
+        mWritten += count;
+        mBatches++;
+        mLastBatchSize = count;
+        if (count > mMaxBatchSize) mMaxBatchSize = count;
+        mLastWriteNanos = elapsed;
+        if (elapsed > mMaxWriteNanos) mMaxWriteNanos = elapsed;
+        mTotalWriteNanos += elapsed;
+        TrackingMetrics metrics = mMetrics;
+        if (metrics != null) metrics.getWriterBatch().record(elapsed);
+    }
+
+    private void flushWriters() {
+        for (LogSink writer : mWriters) {
+            try {
+                writer.flush();
+            } catch (IOException e) { e.printStackTrace(); }
+        }
+    }
+
+    private void closeWriters() {
+        for (LogSink writer : mWriters) {
+            try {
+                writer.close();
+            } catch (IOException e) { e.printStackTrace(); }
+        }
+        mWriters.clear();
+    }
+
+    /**
+     * Stops accepting records, writes everything still queued, then flushes and closes all
+     * registered logs. Blocks until the writer thread has finished.
+     */
+    public void close() {
+        mLock.lock();
+        try {
+            mClosed = true;
+            mNotEmpty.signalAll();
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException e) { e.printStackTrace(); }
+    }
+
+    public boolean isClosed() {
+        mLock.lock();
+        try {
+            return mClosed;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public int getQueueDepth() {
+        mLock.lock();
+        try {
+            return mSize;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public BackpressurePolicy getPolicy() { return mPolicy; }
+
+    public long getDroppedCount() { return mDropped; }
+
+    public long getWrittenCount() { return mWritten; }
+
+    public int getLastBatchSize() { return mLastBatchSize; }
+
+    public int getMaxBatchSize() { return mMaxBatchSize; }
+
+    public long getLastWriteNanos() { return mLastWriteNanos; }
+
+    public long getMaxWriteNanos() { return mMaxWriteNanos; }
+
+    public long getMeanWriteNanos() {
+        long batches = mBatches;
+        return batches == 0 ? 0 : mTotalWriteNanos / batches;
+    }
+}
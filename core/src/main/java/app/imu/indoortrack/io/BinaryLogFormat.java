@@ -0,0 +1,53 @@
+package app.imu.indoortrack.io;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Fixed-width little-endian sensor log layout.
+ * <pre>
+ * header: int magic, short version, short fieldCount, int recordSize, int reserved
+ * record: long timestamp, double[fieldCount] values
+ * </pre>
+ */
+public final class BinaryLogFormat {
+
+    public static final int MAGIC = 0x474C5449; // "ITLG" read little-endian
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+    public static final String FILE_EXTENSION = ".bin";
+
+    private BinaryLogFormat() {}
+
+    public static int recordSize(int fieldCount) { return 8 + 8 * fieldCount; }
+
+    static void writeHeader(ByteBuffer buffer, int fieldCount) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) fieldCount);
+        buffer.putInt(recordSize(fieldCount));
+        buffer.putInt(0);
+    }
+
+    /**
+     *
+     * @param buffer Buffer positioned at the start of a header
+     * @return Number of value fields per record
+     * @throws IllegalArgumentException if the header is not a supported log header
+     */
+    static int readHeader(ByteBuffer buffer) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        int magic = buffer.getInt();
+        short version = buffer.getShort();
+        int fieldCount = buffer.getShort();
+        int recordSize = buffer.getInt();
+        buffer.getInt();
+        if (magic != MAGIC) throw new IllegalArgumentException("Not a sensor log: bad magic");
+        if (version != VERSION) throw new IllegalArgumentException("Unsupported log version " + version);
+        if (fieldCount <= 0 || recordSize != recordSize(fieldCount)) {
+            throw new IllegalArgumentException("Corrupt log header");
+        }
+        return fieldCount;
+    }
+}
@@ -0,0 +1,70 @@
+package app.imu.indoortrack.io;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sequential reader for {@link BinaryLogFormat} files. A trailing partial record, e.g. from a
+ * write interrupted by process death, is ignored.
+ */
+public class BinaryLogReader implements LogSource {
+
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer;
+    private final int mFieldCount;
+    private final int mRecordSize;
+    private final double[] mValues;
+    private long mTimestamp;
+
+    private static final int READ_BATCH_RECORDS = 1024;
+
+    public BinaryLogReader(FileInputStream in) throws IOException {
+        mChannel = in.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(BinaryLogFormat.HEADER_SIZE);
+        readFully(header);
+        if (header.hasRemaining()) throw new IllegalArgumentException("Truncated log header");
+        header.flip();
+        mFieldCount = BinaryLogFormat.readHeader(header);
+        mRecordSize = BinaryLogFormat.recordSize(mFieldCount);
+        mValues = new double[mFieldCount];
+        mBuffer = ByteBuffer.allocateDirect(mRecordSize * READ_BATCH_RECORDS);
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        mBuffer.flip();
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        if (mBuffer.remaining() < mRecordSize) {
+            mBuffer.compact();
+            readFully(mBuffer);
+            mBuffer.flip();
+            if (mBuffer.remaining() < mRecordSize) return false;
+        }
+        mTimestamp = mBuffer.getLong();
+        for (int i = 0; i < mFieldCount; ++i) {
+            mValues[i] = mBuffer.getDouble();
+        }
+        return true;
+    }
+
+    @Override
+    public long getTimestamp() { return mTimestamp; }
+
+    @Override
+    public double getValue(int field) { return mValues[field]; }
+
+    @Override
+    public int getFieldCount() { return mFieldCount; }
+
+    @Override
+    public void close() throws IOException { mChannel.close(); }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer) < 0) break;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package app.imu.indoortrack.io;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends fixed-width records to a {@link BinaryLogFormat} file. Records are staged in a reusable
+ * direct buffer and handed to the {@link FileChannel} one batch at a time.
+ */
+public class BinaryLogWriter implements LogSink {
+
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer;
+    private final int mFieldCount;
+    private final int mRecordSize;
+
+    public static final int DEFAULT_BATCH_RECORDS = 256;
+
+    public BinaryLogWriter(FileOutputStream out, int fieldCount) throws IOException {
+        this(out, fieldCount, DEFAULT_BATCH_RECORDS);
+    }
+
+    public BinaryLogWriter(FileOutputStream out, int fieldCount, int batchRecords) throws IOException {
+        mChannel = out.getChannel();
+        mFieldCount = fieldCount;
+        mRecordSize = BinaryLogFormat.recordSize(fieldCount);
+        mBuffer = ByteBuffer.allocateDirect(Math.max(BinaryLogFormat.HEADER_SIZE, mRecordSize * batchRecords));
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        BinaryLogFormat.writeHeader(mBuffer, fieldCount);
+        flush();
+    }
+
+    @Override
+    public void write(long timestamp, double x, double y, double z) throws IOException {
+        checkFieldCount(3);
+        ensureCapacity();
+        mBuffer.putLong(timestamp);
+        mBuffer.putDouble(x);
+        mBuffer.putDouble(y);
+        mBuffer.putDouble(z);
+    }
+
+    @Override
+    public void write(long timestamp, double val) throws IOException {
+        checkFieldCount(1);
+        ensureCapacity();
+        mBuffer.putLong(timestamp);
+        mBuffer.putDouble(val);
+    }
+
+    public void write(long timestamp, double[] values) throws IOException {
+        checkFieldCount(values.length);
+        ensureCapacity();
+        mBuffer.putLong(timestamp);
+        for (double value : values) mBuffer.putDouble(value);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            mChannel.close();
+        }
+    }
+
+    @Override
+    public int getFieldCount() { return mFieldCount; }
+
+    private void ensureCapacity() throws IOException {
+        if (mBuffer.remaining() < mRecordSize) flush();
+    }
+
+    private void checkFieldCount(int count) {
+        if (count != mFieldCount) {
+            throw new IllegalArgumentException("Log expects " + mFieldCount + " values, got " + count);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package app.imu.indoortrack.io;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads the {@code timestamp,value,...} CSV logs written by the app. Lines that do not have the
+ * expected number of fields are skipped.
+ */
+public class CsvLogReader implements LogSource {
+
+    private final BufferedReader mReader;
+    private final double[] mValues;
+    private long mTimestamp;
+
+    public CsvLogReader(Reader in, int fieldCount) {
+        mReader = new BufferedReader(in);
+        mValues = new double[fieldCount];
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        String line;
+        while ((line = mReader.readLine()) != null) {
+            if (parse(line)) return true;
+        }
+        return false;
+    }
+
+    private boolean parse(String line) {
+        int start = 0;
+        int field = -1;
+        int length = line.length();
+        try {
+            while (start <= length) {
+                int end = line.indexOf(',', start);
+                if (end < 0) end = length;
+                if (field == -1) {
+                    mTimestamp = Long.parseLong(line.substring(start, end).trim());
+                } else if (field < mValues.length) {
+                    mValues[field] = Double.parseDouble(line.substring(start, end).trim());
+                } else {
+                    return false;
+                }
+                field++;
+                start = end + 1;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return field == mValues.length;
+    }
+
+    @Override
+    public long getTimestamp() { return mTimestamp; }
+
+    @Override
+    public double getValue(int field) { return mValues[field]; }
+
+    @Override
+    public int getFieldCount() { return mValues.length; }
+
+    @Override
+    public void close() throws IOException { mReader.close(); }
+}
@@ -0,0 +1,39 @@
+package app.imu.indoortrack.io;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Writes records in the CSV layout of the app's text logs, {@code timestamp,%.10f,...}.
+ */
+public class CsvLogWriter implements LogSink {
+
+    private final BufferedWriter mOut;
+    private final int mFieldCount;
+
+    public CsvLogWriter(Writer out, int fieldCount) {
+        mOut = new BufferedWriter(out);
+        mFieldCount = fieldCount;
+    }
+
+    @Override
+    public void write(long timestamp, double x, double y, double z) throws IOException {
+        mOut.write(String.format(Locale.US, "%d,%.10f,%.10f,%.10f\n", timestamp, x, y, z));
+    }
+
+    @Override
+    public void write(long timestamp, double val) throws IOException {
+        mOut.write(String.format(Locale.US, "%d,%.10f\n", timestamp, val));
+    }
+
+    @Override
+    public void flush() throws IOException { mOut.flush(); }
+
+    @Override
+    public void close() throws IOException { mOut.close(); }
+
+    @Override
+    public int getFieldCount() { return mFieldCount; }
+}
@@ -0,0 +1,19 @@
+package app.imu.indoortrack.io;
+
+import java.io.IOException;
+
+/**
+ * Destination for fixed-width sensor log records.
+ */
+public interface LogSink {
+
+    void write(long timestamp, double x, double y, double z) throws IOException;
+
+    void write(long timestamp, double val) throws IOException;
+
+    void flush() throws IOException;
+
+    void close() throws IOException;
+
+    int getFieldCount();
+}
@@ -0,0 +1,23 @@
+package app.imu.indoortrack.io;
+
+import java.io.IOException;
+
+/**
+ * Sequential source of fixed-width sensor log records.
+ */
+public interface LogSource {
+
+    /**
+     * Advances to the next record.
+     * @return false at end of log
+     */
+    boolean next() throws IOException;
+
+    long getTimestamp();
+
+    double getValue(int field);
+
+    int getFieldCount();
+
+    void close() throws IOException;
+}
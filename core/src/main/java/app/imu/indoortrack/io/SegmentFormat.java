@@ -0,0 +1,119 @@
+package app.imu.indoortrack.io;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Layout of the fixed-size, memory-mapped log segments.
+ * <pre>
+ * header: int magic, short version, short fieldCount, int recordSize, int segmentSize,
+ *         long sequence, long reserved
+ * record: long timestamp, double[fieldCount] values, int checksum
+ * </pre>
+ * Unwritten space is zero and never carries a valid checksum, so a reader stops at the first
+ * record that fails verification.
+ */
+public final class SegmentFormat {
+
+    public static final int MAGIC = 0x47535449; // "ITSG" read little-endian
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final String FILE_EXTENSION = ".seg";
+
+    private static final long CHECKSUM_SEED = 0x5EED5EED5EED5EEDL;
+    private static final long MIX = 0x9E3779B97F4A7C15L;
+
+    private SegmentFormat() {}
+
+    public static int recordSize(int fieldCount) { return 8 + 8 * fieldCount + 4; }
+
+    static String segmentName(long sequence) {
+        return String.format(Locale.US, "%010d%s", sequence, FILE_EXTENSION);
+    }
+
+    /**
+     * @return Segment files in the directory, oldest first
+     */
+    static File[] listSegments(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(FILE_EXTENSION));
+        if (files == null) return new File[0];
+        Arrays.sort(files, (f1, f2) -> f1.getName().compareTo(f2.getName()));
+        return files;
+    }
+
+    static long sequenceOf(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(0, name.length() - FILE_EXTENSION.length()));
+    }
+
+    static void writeHeader(ByteBuffer buffer, int fieldCount, int segmentSize, long sequence) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) fieldCount);
+        buffer.putInt(recordSize(fieldCount));
+        buffer.putInt(segmentSize);
+        buffer.putLong(sequence);
+        buffer.putLong(0);
+    }
+
+    /**
+     *
+     * @param buffer Buffer positioned at the start of a segment
+     * @return Number of value fields per record
+     * @throws IllegalArgumentException if the header is not a supported segment header
+     */
+    static int readHeader(ByteBuffer buffer) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        int magic = buffer.getInt();
+        short version = buffer.getShort();
+        int fieldCount = buffer.getShort();
+        int recordSize = buffer.getInt();
+        buffer.getInt();
+        buffer.getLong();
+        buffer.getLong();
+        if (magic != MAGIC) throw new IllegalArgumentException("Not a log segment: bad magic");
+        if (version != VERSION) throw new IllegalArgumentException("Unsupported segment version " + version);
+        if (fieldCount <= 0 || recordSize != recordSize(fieldCount)) {
+            throw new IllegalArgumentException("Corrupt segment header");
+        }
+        return fieldCount;
+    }
+
+    static long mix(long hash, long value) {
+        hash = (hash ^ value) * MIX;
+        return hash ^ (hash >>> 29);
+    }
+
+    static long seed() { return CHECKSUM_SEED; }
+
+    static int finish(long hash) {
+        int checksum = (int) (hash ^ (hash >>> 32));
+        return checksum == 0 ? 1 : checksum;
+    }
+
+    /**
+     * Reads the record at the buffer's position into {@code values}.
+     * @return the record timestamp, or -1 if there is no valid record at this position. The
+     * buffer is left after the record only if it was valid.
+     */
+    static long readRecord(ByteBuffer buffer, double[] values) {
+        int start = buffer.position();
+        if (buffer.remaining() < recordSize(values.length)) return -1;
+        long timestamp = buffer.getLong();
+        long hash = mix(seed(), timestamp);
+        for (int i = 0; i < values.length; ++i) {
+            long bits = buffer.getLong();
+            hash = mix(hash, bits);
+            values[i] = Double.longBitsToDouble(bits);
+        }
+        if (buffer.getInt() != finish(hash)) {
+            buffer.position(start);
+            return -1;
+        }
+        return timestamp;
+    }
+}
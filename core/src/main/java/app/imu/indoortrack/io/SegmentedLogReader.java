@@ -0,0 +1,78 @@
+package app.imu.indoortrack.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the records of a {@link SegmentedLogWriter} directory in order, mapping one segment at a
+ * time. Each segment is read up to its first record that fails the checksum.
+ */
+public class SegmentedLogReader implements LogSource {
+
+    private final File[] mSegments;
+    private int mNextSegment;
+    private RandomAccessFile mFile;
+    private MappedByteBuffer mBuffer;
+    private double[] mValues;
+    private long mTimestamp;
+
+    public SegmentedLogReader(File dir) throws IOException {
+        mSegments = SegmentFormat.listSegments(dir);
+        if (!openNextSegment()) throw new IOException("No readable segments in " + dir);
+    }
+
+    private boolean openNextSegment() throws IOException {
+        while (mNextSegment < mSegments.length) {
+            closeSegment();
+            mFile = new RandomAccessFile(mSegments[mNextSegment++], "r");
+            if (mFile.length() < SegmentFormat.HEADER_SIZE) continue;
+            MappedByteBuffer buffer = mFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, mFile.length());
+            int fieldCount;
+            try {
+                fieldCount = SegmentFormat.readHeader(buffer);
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            if (mValues == null) mValues = new double[fieldCount];
+            else if (mValues.length != fieldCount) continue;
+            mBuffer = buffer;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        while (true) {
+            if (mBuffer != null) {
+                long timestamp = SegmentFormat.readRecord(mBuffer, mValues);
+                if (timestamp >= 0) {
+                    mTimestamp = timestamp;
+                    return true;
+                }
+            }
+            if (!openNextSegment()) return false;
+        }
+    }
+
+    @Override
+    public long getTimestamp() { return mTimestamp; }
+
+    @Override
+    public double getValue(int field) { return mValues[field]; }
+
+    @Override
+    public int getFieldCount() { return mValues.length; }
+
+    private void closeSegment() throws IOException {
+        mBuffer = null;
+        if (mFile != null) mFile.close();
+        mFile = null;
+    }
+
+    @Override
+    public void close() throws IOException { closeSegment(); }
+}
@@ -0,0 +1,196 @@
+package app.imu.indoortrack.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Crash-safe log made of fixed-size, memory-mapped {@link SegmentFormat} segments. Writing a
+ * record is a plain memory store into the mapping; the kernel keeps the pages even if the process
+ * is killed. When a segment is full the next one is started and the oldest segments beyond the
+ * retention limit are deleted. On open, a torn record at the end of the newest segment is
+ * truncated away and appending resumes after the last valid record.
+ * Starting a segment forces, truncates and closes the full one, maps a new file and deletes the
+ * expired ones, so writes belong on a background thread, e.g. behind an {@link AsyncLogWriter}.
+ * Writes and {@link #close()} are synchronized, since touching a mapping after its file has been
+ * truncated faults the process.
+ */
+public class SegmentedLogWriter implements LogSink {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+    public static final int DEFAULT_MAX_SEGMENTS = 64;
+    // flush() is called whenever the async writer runs dry, a few times a second while tracking
+    private static final long FORCE_INTERVAL_NANOS = 1000000000L;
+
+    private final File mDir;
+    private final int mFieldCount;
+    private final int mRecordSize;
+    private final int mSegmentSize;
+    private final int mMaxSegments;
+
+    private long mSequence;
+    private RandomAccessFile mFile;
+    private MappedByteBuffer mBuffer;
+    private boolean mClosed;
+    private long mLastForceNanos = System.nanoTime();
+    private volatile int mDeleteFailures;
+
+    public SegmentedLogWriter(File dir, int fieldCount) throws IOException {
+        this(dir, fieldCount, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    public SegmentedLogWriter(File dir, int fieldCount, int segmentSize, int maxSegments) throws IOException {
+        mDir = dir;
+        mFieldCount = fieldCount;
+        mRecordSize = SegmentFormat.recordSize(fieldCount);
+        mSegmentSize = segmentSize;
+        mMaxSegments = Math.max(1, maxSegments);
+        if (segmentSize < SegmentFormat.HEADER_SIZE + mRecordSize) {
+            throw new IllegalArgumentException("Segment too small for a single record");
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        File[] segments = SegmentFormat.listSegments(dir);
+        if (segments.length == 0 || !recover(segments[segments.length - 1])) {
+            mSequence = segments.length == 0 ? 0 : SegmentFormat.sequenceOf(segments[segments.length - 1]) + 1;
+            openSegment();
+        }
+    }
+
+    /**
+     * Maps the newest existing segment for appending after truncating any torn tail.
+     * @return false if the segment cannot be appended to and a new one should be started
+     */
+    private boolean recover(File segment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        MappedByteBuffer buffer;
+        int fieldCount;
+        try {
+            if (file.length() < SegmentFormat.HEADER_SIZE) {
+                file.close();
+                return false;
+            }
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+            fieldCount = SegmentFormat.readHeader(buffer);
+        } catch (IllegalArgumentException e) {
+            file.close();
+            return false;
+        }
+        if (fieldCount != mFieldCount) {
+            file.close();
+            return false;
+        }
+        double[] values = new double[fieldCount];
+        while (SegmentFormat.readRecord(buffer, values) >= 0) {
+            // skip valid records
+        }
+        int validEnd = buffer.position();
+        if (validEnd > mSegmentSize - mRecordSize) {
+            file.close();
+            return false;
+        }
+        // cut off the torn record and anything after it, then map the full segment again
+        file.getChannel().truncate(validEnd);
+        mFile = file;
+        mSequence = SegmentFormat.sequenceOf(segment);
+        mBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        mBuffer.position(validEnd);
+        return true;
+    }
+
+    private void openSegment() throws IOException {
+        mFile = new RandomAccessFile(new File(mDir, SegmentFormat.segmentName(mSequence)), "rw");
+        mFile.setLength(0);
+        mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+        SegmentFormat.writeHeader(mBuffer, mFieldCount, mSegmentSize, mSequence);
+        deleteExpiredSegments();
+    }
+
+    private void deleteExpiredSegments() {
+        File[] segments = SegmentFormat.listSegments(mDir);
+        for (int i = 0; i < segments.length - mMaxSegments; ++i) {
+            // retried at the next segment, reported through getDeleteFailureCount
+            if (!segments[i].delete()) mDeleteFailures++;
+        }
+    }
+
+    private void ensureCapacity() throws IOException {
+        if (mClosed) throw new IOException("Log closed: " + mDir);
+        if (mBuffer.remaining() < mRecordSize) {
+            closeSegment();
+            mSequence++;
+            openSegment();
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        mBuffer.force();
+        mFile.getChannel().truncate(mBuffer.position());
+        mFile.close();
+    }
+
+    @Override
+    public synchronized void write(long timestamp, double x, double y, double z) throws IOException {
+        checkFieldCount(3);
+        ensureCapacity();
+        long xBits = Double.doubleToRawLongBits(x);
+        long yBits = Double.doubleToRawLongBits(y);
+        long zBits = Double.doubleToRawLongBits(z);
+        long hash = SegmentFormat.mix(SegmentFormat.seed(), timestamp);
+        hash = SegmentFormat.mix(hash, xBits);
+        hash = SegmentFormat.mix(hash, yBits);
+        hash = SegmentFormat.mix(hash, zBits);
+        mBuffer.putLong(timestamp);
+        mBuffer.putLong(xBits);
+        mBuffer.putLong(yBits);
+        mBuffer.putLong(zBits);
+        mBuffer.putInt(SegmentFormat.finish(hash));
+    }
+
+    @Override
+    public synchronized void write(long timestamp, double val) throws IOException {
+        checkFieldCount(1);
+        ensureCapacity();
+        long bits = Double.doubleToRawLongBits(val);
+        long hash = SegmentFormat.mix(SegmentFormat.mix(SegmentFormat.seed(), timestamp), bits);
+        mBuffer.putLong(timestamp);
+        mBuffer.putLong(bits);
+        mBuffer.putInt(SegmentFormat.finish(hash));
+    }
+
+    /**
+     * Forces the mapped pages to storage, at most once per second; closing always does. Not needed
+     * to survive a process kill, only a power loss.
+     */
+    @Override
+    public synchronized void flush() {
+        long now = System.nanoTime();
+        if (mClosed || now - mLastForceNanos < FORCE_INTERVAL_NANOS) return;
+        mLastForceNanos = now;
+        mBuffer.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) return;
+        mClosed = true;
+        closeSegment();
+    }
+
+    @Override
+    public int getFieldCount() { return mFieldCount; }
+
+    /**
+     * Failed attempts to delete an expired segment, e.g. to be logged when the session ends.
+     */
+    public int getDeleteFailureCount() { return mDeleteFailures; }
+
+    private void checkFieldCount(int count) {
+        if (count != mFieldCount) {
+            throw new IllegalArgumentException("Log expects " + mFieldCount + " values, got " + count);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package app.imu.indoortrack.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free event count, safe to increment from any number of threads.
+ */
+public class Counter {
+
+    private final AtomicLong mValue = new AtomicLong();
+
+    public void increment() { mValue.incrementAndGet(); }
+
+    public void add(long delta) { mValue.addAndGet(delta); }
+
+    public long get() { return mValue.get(); }
+}
@@ -0,0 +1,103 @@
+package app.imu.indoortrack.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of non-negative values, typically latencies in nanoseconds, in the log-linear
+ * bucket layout of HdrHistogram: values below 128 are counted exactly, above that every power of
+ * two is split into 64 buckets, so percentiles are reported to within 1/64 of the value. Values
+ * above {@link #MAX_VALUE}, about 68 s in nanoseconds, are counted as {@link #MAX_VALUE}.
+ * <p>
+ * Recording is lock-free and does not allocate, so any number of threads may record while
+ * another takes a {@link #snapshot}.
+ */
+public class Histogram {
+
+    public static final long MAX_VALUE = (1L << 36) - 1;
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    private static final int BUCKETS = getIndex(MAX_VALUE) + 1;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        else if (value > MAX_VALUE) value = MAX_VALUE;
+        mCounts.incrementAndGet(getIndex(value));
+        mSum.addAndGet(value);
+        long max;
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {}
+    }
+
+    private static int getIndex(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        // shift that brings the value into [HALF_SUB_BUCKETS, SUB_BUCKETS)
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return shift * HALF_SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * Largest value counted in bucket {@code index}.
+     */
+    private static long getHighestValue(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = index / HALF_SUB_BUCKETS - 1;
+        long lowest = (long) (index - shift * HALF_SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * Copies the counts. Values recorded while copying may be missing from some of the totals.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts[i] = mCounts.get(i);
+            count += counts[i];
+        }
+        return new Snapshot(counts, count, mSum.get(), mMax.get());
+    }
+
+    public static class Snapshot {
+
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mSum;
+        private final long mMax;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            mCounts = counts;
+            mCount = count;
+            mSum = sum;
+            mMax = max;
+        }
+
+        public long getCount() { return mCount; }
+
+        public double getMean() { return mCount == 0 ? 0 : (double) mSum / mCount; }
+
+        public long getMax() { return mMax; }
+
+        /**
+         *
+         * @param percentile 0 to 100
+         * @return Highest value equivalent to the one at {@code percentile}, 0 if empty
+         */
+        public long getPercentile(double percentile) {
+            if (mCount == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mCount));
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; ++i) {
+                seen += mCounts[i];
+                if (seen >= rank) return Math.min(getHighestValue(i), mMax);
+            }
+            return mMax;
+        }
+    }
+}
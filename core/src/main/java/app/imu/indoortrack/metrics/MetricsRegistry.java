@@ -0,0 +1,94 @@
+package app.imu.indoortrack.metrics;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Named {@link Counter}s and {@link Histogram}s. Metrics are looked up once, when a component is
+ * set up; recording goes straight to the metric and never touches the registry. Snapshots are
+ * written as one line per metric, in registration order:
+ * <pre>
+ * samples 120000
+ * filter_update_ns count=6000 mean=4210.5 p50=3967 p90=5247 p99=9855 p999=31231 max=48113
+ * </pre>
+ */
+public class MetricsRegistry {
+
+    private final LinkedHashMap<String, Counter> mCounters = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Histogram> mHistograms = new LinkedHashMap<>();
+
+    /**
+     * Counter named {@code name}, created on first use.
+     */
+    public synchronized Counter counter(String name) {
+        Counter counter = mCounters.get(name);
+        if (counter == null) {
+            counter = new Counter();
+            mCounters.put(name, counter);
+        }
+        return counter;
+    }
+
+    /**
+     * Histogram named {@code name}, created on first use.
+     */
+    public synchronized Histogram histogram(String name) {
+        Histogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            histogram = new Histogram();
+            mHistograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    public synchronized void writeTo(Appendable out) throws IOException {
+        for (Map.Entry<String, Counter> entry : mCounters.entrySet()) {
+            out.append(entry.getKey()).append(' ').append(Long.toString(entry.getValue().get())).append('\n');
+        }
+        for (Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+            Histogram.Snapshot snapshot = entry.getValue().snapshot();
+            out.append(String.format(Locale.US, "%s count=%d mean=%.1f p50=%d p90=%d p99=%d p999=%d max=%d\n",
+                    entry.getKey(), snapshot.getCount(), snapshot.getMean(), snapshot.getPercentile(50),
+                    snapshot.getPercentile(90), snapshot.getPercentile(99), snapshot.getPercentile(99.9),
+                    snapshot.getMax()));
+        }
+    }
+
+    /**
+     * Appends a snapshot to {@code file} under a {@code # timestamp} line.
+     * @param timestamp Wall clock time in milliseconds
+     * @return false if the file could not be written
+     */
+    public boolean appendTo(File file, long timestamp) {
+        Writer out = null;
+        try {
+            out = new FileWriter(file, true);
+            out.write("# " + timestamp + "\n");
+            writeTo(out);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) { e.printStackTrace(); }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        try {
+            writeTo(builder);
+        } catch (IOException e) { e.printStackTrace(); }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,85 @@
+package app.imu.indoortrack.metrics;
+
+/**
+ * The metrics of one tracking session. Components take an instance through {@code setMetrics}
+ * and record nothing without one, so with metrics disabled the hot paths only pay a null check:
+ * no clock reads, no atomics, no allocation. Durations are in nanoseconds.
+ */
+public class TrackingMetrics extends MetricsRegistry {
+
+    private final Counter mSamples = counter("samples");
+    private final Counter mWindows = counter("windows");
+    private final Counter mPositions = counter("positions");
+    private final Histogram mSensorToPosition = histogram("sensor_to_position_ns");
+    private final Histogram mFilterUpdate = histogram("filter_update_ns");
+    private final Histogram mFilterIntegrate = histogram("filter_integrate_ns");
+    private final Histogram mMapMatch = histogram("map_match_ns");
+    private final Histogram mSamplesPerWindow = histogram("samples_per_window");
+    private final Histogram mWriter = histogram("writer_ns");
+    private final Histogram mWriterBatch = histogram("writer_batch_ns");
+    private final Counter mWriterDropped = counter("writer_dropped");
+    private final Histogram mMapPost = histogram("map_post_ns");
+    private final Histogram mMapFrame = histogram("map_frame_ns");
+    private final Histogram mGpsFixAge = histogram("gps_fix_age_ns");
+
+    /**
+     * Inertial samples reaching the fusion core.
+     */
+    public Counter getSamples() { return mSamples; }
+
+    /**
+     * Averaging windows closed, the filter ticks once calibrated.
+     */
+    public Counter getWindows() { return mWindows; }
+
+    public Counter getPositions() { return mPositions; }
+
+    /**
+     * From the timestamp of the sample a position was computed at to its delivery.
+     */
+    public Histogram getSensorToPosition() { return mSensorToPosition; }
+
+    /**
+     * Predict and correct step of the filter per window.
+     */
+    public Histogram getFilterUpdate() { return mFilterUpdate; }
+
+    /**
+     * Integrating the raw samples of a block, or of one sample, into the orientation filter.
+     */
+    public Histogram getFilterIntegrate() { return mFilterIntegrate; }
+
+    /**
+     * Constraining one position to the floor plan.
+     */
+    public Histogram getMapMatch() { return mMapMatch; }
+
+    public Histogram getSamplesPerWindow() { return mSamplesPerWindow; }
+
+    /**
+     * Time a log record costs the thread writing it, whether queued or written in place.
+     */
+    public Histogram getWriter() { return mWriter; }
+
+    /**
+     * Writing one batch on the background log writer thread.
+     */
+    public Histogram getWriterBatch() { return mWriterBatch; }
+
+    /**
+     * Log records discarded by a dropping {@link app.imu.indoortrack.io.AsyncLogWriter}.
+     */
+    public Counter getWriterDropped() { return mWriterDropped; }
+
+    /**
+     * From posting a position to the map until the frame drawing it is done.
+     */
+    public Histogram getMapPost() { return mMapPost; }
+
+    public Histogram getMapFrame() { return mMapFrame; }
+
+    /**
+     * Age of a GPS fix when it is handed to the fusion core.
+     */
+    public Histogram getGpsFixAge() { return mGpsFixAge; }
+}
@@ -0,0 +1,193 @@
+package app.imu.indoortrack.replay;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import app.imu.indoortrack.fusion.FusionListener;
+import app.imu.indoortrack.fusion.FusionPipeline;
+import app.imu.indoortrack.io.LogSource;
+
+/**
+ * Replays every session below a directory, e.g. after a filter parameter changed, one
+ * {@link FusionPipeline} per session on a fixed pool of threads, by default one per core. Logs are
+ * streamed and the pipeline keeps a bounded trajectory, so a worker needs the same memory whatever
+ * the length of its session. Reports per session the distance, the error against an optional
+ * {@link SessionLogs#GROUND_TRUTH} log and the throughput, in the order of the session paths.
+ */
+public class BatchReplay {
+
+    private final PipelineOptions mOptions;
+
+    /**
+     * Outcome of one session.
+     */
+    static class Result {
+
+        final File mSession;
+        long mAccRecords;
+        long mGpsRecords;
+        double mDistance;
+        long mTruthPositions;
+        double mRmsError = Double.NaN;
+        double mMaxError = Double.NaN;
+        long mNanos;
+        // null if the replay succeeded
+        String mFailure;
+
+        Result(File session) { mSession = session; }
+    }
+
+    BatchReplay(PipelineOptions options) { mOptions = options; }
+
+    /**
+     * Replays one session on the calling thread; failures are reported in the result.
+     */
+    Result replay(File session) {
+        Result result = new Result(session);
+        long start = System.nanoTime();
+        GroundTruthError truth = null;
+        try {
+            LogSource truthLog = SessionLogs.open(session, SessionLogs.GROUND_TRUTH, 3);
+            if (truthLog != null) truth = new GroundTruthError(truthLog);
+            FusionListener listener = truth != null ? truth : new ReplayDriver.NullOutput();
+            FusionPipeline core = mOptions.create(listener);
+            ReplayDriver driver = new ReplayDriver(core, mOptions.mGpsAccuracy);
+            LogSource acc = SessionLogs.open(session, SessionLogs.ACC_DATA, 3);
+            LogSource gps;
+            try {
+                gps = SessionLogs.open(session, SessionLogs.GPS_DATA, 3);
+            } catch (IOException e) {
+                // hundreds of sessions must not leak a file each
+                acc.close();
+                throw e;
+            }
+            driver.run(acc, gps);
+            result.mAccRecords = driver.getAccRecords();
+            result.mGpsRecords = driver.getGpsRecords();
+            result.mDistance = core.getTotalDistance();
+            if (truth != null) {
+                result.mTruthPositions = truth.getCount();
+                result.mRmsError = truth.getRmsError();
+                result.mMaxError = truth.getMaxError();
+            }
+        } catch (IOException | RuntimeException e) {
+            result.mFailure = e.toString();
+        } finally {
+            try {
+                if (truth != null) truth.close();
+            } catch (IOException e) {
+                if (result.mFailure == null) result.mFailure = e.toString();
+            }
+        }
+        result.mNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * Sessions in and below {@code dir}, sorted by path.
+     */
+    static List<File> findSessions(File dir) {
+        List<File> sessions = new ArrayList<>();
+        collectSessions(dir, sessions);
+        return sessions;
+    }
+
+    private static void collectSessions(File dir, List<File> sessions) {
+        if (SessionLogs.isSession(dir)) {
+            sessions.add(dir);
+            return;
+        }
+        File[] children = dir.listFiles();
+        if (children == null) return;
+        Arrays.sort(children);
+        for (File child : children) {
+            if (child.isDirectory()) collectSessions(child, sessions);
+        }
+    }
+
+    private static String format(Result result) {
+        if (result.mFailure != null) return result.mSession + ",,,,,,,,," + result.mFailure.replace(',', ';');
+        long records = result.mAccRecords + result.mGpsRecords;
+        // empty errors without ground truth
+        String errors = result.mTruthPositions == 0 ? ","
+                : String.format(Locale.US, "%.3f,%.3f", result.mRmsError, result.mMaxError);
+        return String.format(Locale.US, "%s,%d,%d,%.3f,%d,%s,%.3f,%.0f,", result.mSession, result.mAccRecords,
+                result.mGpsRecords, result.mDistance, result.mTruthPositions, errors, result.mNanos / 1e6,
+                records / (result.mNanos / 1e9));
+    }
+
+    private static void usage() {
+        System.err.println("usage: BatchReplay <sessions dir> [--threads <n>] [--out <csv file>]\n    "
+                + PipelineOptions.USAGE);
+        System.exit(2);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) usage();
+        File root = new File(args[0]);
+        int threads = Runtime.getRuntime().availableProcessors();
+        File out = null;
+        PipelineOptions options = new PipelineOptions();
+        for (int i = 1; i < args.length; ++i) {
+            switch (args[i]) {
+                case "--threads": threads = Integer.parseInt(args[++i]); break;
+                case "--out": out = new File(args[++i]); break;
+                default:
+                    i = options.parse(args, i);
+                    if (i < 0) usage();
+            }
+        }
+        List<File> sessions = findSessions(root);
+        if (sessions.isEmpty()) {
+            System.err.println("No sessions in " + root);
+            System.exit(1);
+        }
+
+        BatchReplay batch = new BatchReplay(options);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, sessions.size())));
+        List<Future<Result>> futures = new ArrayList<>(sessions.size());
+        long start = System.nanoTime();
+        for (File session : sessions) futures.add(pool.submit(() -> batch.replay(session)));
+        pool.shutdown();
+
+        Writer csv = out != null ? new FileWriter(out) : null;
+        String header = "session,acc_records,gps_records,distance_m,truth_positions,rms_error_m,max_error_m,"
+                + "time_ms,records_per_s,failure";
+        System.out.println(header);
+        long records = 0;
+        int failures = 0;
+        try {
+            if (csv != null) csv.write(header + "\n");
+            // in session order, each as soon as it and the ones before are done
+            for (Future<Result> future : futures) {
+                Result result;
+                try {
+                    result = future.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+                if (result.mFailure != null) ++failures;
+                records += result.mAccRecords + result.mGpsRecords;
+                String line = format(result);
+                System.out.println(line);
+                if (csv != null) csv.write(line + "\n");
+            }
+        } finally {
+            if (csv != null) csv.close();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format(Locale.US,
+                "%d sessions, %d failed, %d records in %.3f s on %d threads, %.0f records/s",
+                sessions.size(), failures, records, elapsed / 1e9, threads, records / (elapsed / 1e9)));
+    }
+}
@@ -0,0 +1,90 @@
+package app.imu.indoortrack.replay;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+import app.imu.indoortrack.io.LogSource;
+
+/**
+ * Converts the logs of a recorded session, in whichever storage {@link SessionLogs} finds them,
+ * back to the CSV layout the app wrote before the binary logs: the timestamp in milliseconds, then
+ * the values with ten decimals, so existing analysis scripts keep working.
+ */
+public class CsvExporter {
+
+    private static final String[] NAMES = { SessionLogs.ACC_DATA, SessionLogs.GPS_DATA, SessionLogs.CORRECTED,
+            SessionLogs.DIST, SessionLogs.GROUND_TRUTH };
+    private static final int[] FIELD_COUNTS = { 3, 3, 3, 1, 3 };
+    private static final String CSV_DIR_NAME = "csv";
+
+    private CsvExporter() {}
+
+    /**
+     * Writes every record of {@code source} and closes it.
+     * @return Number of records exported
+     */
+    public static long export(LogSource source, Writer out) throws IOException {
+        BufferedWriter writer = new BufferedWriter(out);
+        StringBuilder line = new StringBuilder();
+        long records = 0;
+        try {
+            while (source.next()) {
+                line.setLength(0);
+                line.append(source.getTimestamp());
+                for (int i = 0; i < source.getFieldCount(); ++i) {
+                    line.append(',').append(String.format(Locale.US, "%.10f", source.getValue(i)));
+                }
+                line.append('\n');
+                writer.write(line.toString());
+                records++;
+            }
+            writer.flush();
+        } finally {
+            source.close();
+        }
+        return records;
+    }
+
+    private static void usage() {
+        System.err.println("usage: CsvExporter <session dir> [--out <dir>]\n"
+                + "    writes <name>.csv for every log of the session, to <session dir>/" + CSV_DIR_NAME
+                + " by default");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) usage();
+        File session = new File(args[0]);
+        File out = new File(session, CSV_DIR_NAME);
+        for (int i = 1; i < args.length; ++i) {
+            if ("--out".equals(args[i]) && i + 1 < args.length) {
+                out = new File(args[++i]);
+            } else {
+                usage();
+            }
+        }
+        if (!SessionLogs.isSession(session)) {
+            System.err.println("No session in " + session);
+            System.exit(1);
+        }
+        if (!out.isDirectory() && !out.mkdirs()) {
+            System.err.println("Cannot create " + out);
+            System.exit(1);
+        }
+        for (int i = 0; i < NAMES.length; ++i) {
+            LogSource source = SessionLogs.open(session, NAMES[i], FIELD_COUNTS[i]);
+            if (source == null) continue;
+            File file = new File(out, NAMES[i] + ".csv");
+            Writer writer = new FileWriter(file);
+            try {
+                System.out.println(String.format(Locale.US, "%s: %d records", file, export(source, writer)));
+            } finally {
+                writer.close();
+            }
+        }
+    }
+}
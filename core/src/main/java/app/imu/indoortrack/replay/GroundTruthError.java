@@ -0,0 +1,109 @@
+package app.imu.indoortrack.replay;
+
+import java.io.IOException;
+
+import app.imu.indoortrack.fusion.FusionListener;
+import app.imu.indoortrack.io.LogSource;
+import app.imu.indoortrack.sensor.LocalTangentPlane;
+import app.imu.indoortrack.sensor.SensorBias;
+
+/**
+ * Horizontal error of the replayed positions against a ground truth log of latitude, longitude
+ * and altitude, read along with the replay. The truth is interpolated linearly to the timestamp of
+ * each position; positions before its first or after its last record are not counted.
+ */
+class GroundTruthError implements FusionListener {
+
+    private final LogSource mTruth;
+    // stops the comparison, reported by close
+    private IOException mError;
+    private LocalTangentPlane mFrame;
+    private boolean mStarted;
+    private boolean mHasNext;
+    private long mPreviousTimestamp = Long.MIN_VALUE;
+    private final double[] mPrevious = new double[3];
+    private long mNextTimestamp;
+    private final double[] mNext = new double[3];
+    private final double[] mTruthEnu = new double[3];
+    private final double[] mPositionEnu = new double[3];
+
+    private long mCount;
+    private double mSumSq;
+    private double mMax;
+
+    GroundTruthError(LogSource truth) { mTruth = truth; }
+
+    private void advance() throws IOException {
+        if (mHasNext) {
+            mPreviousTimestamp = mNextTimestamp;
+            System.arraycopy(mNext, 0, mPrevious, 0, 3);
+        }
+        mHasNext = mTruth.next();
+        if (!mHasNext) return;
+        mNextTimestamp = mTruth.getTimestamp();
+        mNext[0] = mTruth.getValue(0);
+        mNext[1] = mTruth.getValue(1);
+        mNext[2] = mTruth.getValue(2);
+        if (mFrame == null) mFrame = new LocalTangentPlane(mNext[0], mNext[1], mNext[2]);
+    }
+
+    @Override
+    public void onCalibrationDone(SensorBias sensorBias) {}
+
+    @Override
+    public void onAcceleration(long timestamp, double accX, double accY, double accZ) {}
+
+    @Override
+    public void onDistance(long timestamp, double dist) {}
+
+    @Override
+    public void onPosition(long timestamp, double lat, double lon, double alt) {
+        if (mError != null) return;
+        try {
+            if (!mStarted) {
+                mStarted = true;
+                advance();
+            }
+            while (mHasNext && mNextTimestamp < timestamp) advance();
+        } catch (IOException e) {
+            mError = e;
+            return;
+        }
+        // past the last record
+        if (!mHasNext) return;
+        double t;
+        if (mNextTimestamp == timestamp) {
+            t = 1;
+        } else if (mPreviousTimestamp == Long.MIN_VALUE) {
+            // before the first record
+            return;
+        } else {
+            t = (double) (timestamp - mPreviousTimestamp) / (mNextTimestamp - mPreviousTimestamp);
+        }
+        mFrame.geodeticToEnu(mPrevious[0] + t * (mNext[0] - mPrevious[0]), mPrevious[1] + t * (mNext[1] - mPrevious[1]),
+                mPrevious[2] + t * (mNext[2] - mPrevious[2]), mTruthEnu);
+        mFrame.geodeticToEnu(lat, lon, alt, mPositionEnu);
+        double error = Math.hypot(mPositionEnu[0] - mTruthEnu[0], mPositionEnu[1] - mTruthEnu[1]);
+        ++mCount;
+        mSumSq += error * error;
+        mMax = Math.max(mMax, error);
+    }
+
+    /**
+     * Closes the truth log.
+     * @throws IOException if reading it failed during the replay
+     */
+    void close() throws IOException {
+        mTruth.close();
+        if (mError != null) throw mError;
+    }
+
+    /**
+     * Positions compared with the truth.
+     */
+    long getCount() { return mCount; }
+
+    double getRmsError() { return mCount == 0 ? Double.NaN : Math.sqrt(mSumSq / mCount); }
+
+    double getMaxError() { return mCount == 0 ? Double.NaN : mMax; }
+}
@@ -0,0 +1,60 @@
+package app.imu.indoortrack.replay;
+
+import app.imu.indoortrack.fusion.FusionListener;
+import app.imu.indoortrack.fusion.FusionPipeline;
+import app.imu.indoortrack.sensor.SensorBias;
+
+/**
+ * Pipeline options shared by the tools replaying many sessions, each creating many pipelines.
+ */
+class PipelineOptions {
+
+    static final String USAGE = "[--gps-accuracy <m>] [--bias <x>,<y>,<z>] [--frame ecef|enu] [--rate <hz>]\n"
+            + "    [--model per-axis|orientation|pedestrian|particle] [--particles <n>]";
+
+    double mGpsAccuracy = ReplayDriver.DEFAULT_GPS_ACCURACY;
+    final double[] mBias = { ReplayDriver.DEFAULT_BIAS, ReplayDriver.DEFAULT_BIAS, ReplayDriver.DEFAULT_BIAS };
+    FusionPipeline.Frame mFrame = FusionPipeline.Frame.ECEF;
+    double mRate;
+    FusionPipeline.Model mModel = FusionPipeline.Model.PER_AXIS;
+    int mParticles = FusionPipeline.DEFAULT_PARTICLES;
+
+    /**
+     * Parses the option at {@code args[i]}.
+     * @return Index of the last argument used, or -1 if it is not a pipeline option
+     * @throws IllegalArgumentException on a malformed value
+     */
+    int parse(String[] args, int i) {
+        if (i + 1 >= args.length) return -1;
+        String value = args[i + 1];
+        switch (args[i]) {
+            case "--gps-accuracy": mGpsAccuracy = Double.parseDouble(value); break;
+            case "--bias":
+                String[] parts = value.split(",");
+                if (parts.length != 3) throw new IllegalArgumentException("--bias " + value);
+                for (int j = 0; j < 3; ++j) mBias[j] = Double.parseDouble(parts[j]);
+                break;
+            case "--frame":
+                mFrame = "enu".equals(value) ? FusionPipeline.Frame.LOCAL_ENU : FusionPipeline.Frame.ECEF;
+                break;
+            case "--rate": mRate = Double.parseDouble(value); break;
+            case "--model": mModel = ReplayDriver.parseModel(value); break;
+            case "--particles": mParticles = Integer.parseInt(value); break;
+            default: return -1;
+        }
+        return i + 1;
+    }
+
+    /**
+     * A pipeline for one session; particles are updated on the calling thread, the sessions or
+     * trials keep the cores busy already.
+     */
+    FusionPipeline create(FusionListener listener) {
+        FusionPipeline core = new FusionPipeline(new SensorBias(mBias[0], mBias[1], mBias[2]), listener);
+        core.setFrame(mFrame);
+        core.setModel(mModel);
+        core.setPredictRate(mRate);
+        core.setParticles(mParticles, null);
+        return core;
+    }
+}
@@ -0,0 +1,288 @@
+package app.imu.indoortrack.replay;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+
+import app.imu.indoortrack.floorplan.FloorPlan;
+import app.imu.indoortrack.floorplan.MapMatcher;
+import app.imu.indoortrack.fusion.FusionCore;
+import app.imu.indoortrack.fusion.FusionListener;
+import app.imu.indoortrack.fusion.FusionPipeline;
+import app.imu.indoortrack.fusion.GpsScheduler;
+import app.imu.indoortrack.io.CsvLogWriter;
+import app.imu.indoortrack.io.LogSink;
+import app.imu.indoortrack.io.LogSource;
+import app.imu.indoortrack.metrics.TrackingMetrics;
+import app.imu.indoortrack.sensor.SensorBias;
+
+/**
+ * Runs a {@link FusionCore} over a recorded session as fast as the CPU allows. AccData and
+ * GpsData records are merged by timestamp; GPS fixes go first on ties, as the app only logs
+ * accelerations once a fix has initialized the filter.
+ * <p>
+ * The app does not log the GPS accuracy or the calibration readings, so both are supplied as
+ * options. With a {@link GpsScheduler} the logged fixes are thinned out to the interval it asks
+ * for, to measure what adaptive GPS requests save and cost in accuracy.
+ */
+public class ReplayDriver {
+
+    private final FusionCore mCore;
+    private final double mGpsAccuracy;
+    private GpsScheduler mScheduler;
+    private long mLastRequestedFix = Long.MIN_VALUE;
+    private long mAccRecords;
+    private long mGpsRecords;
+    private long mSkippedGpsRecords;
+
+    public static final double DEFAULT_GPS_ACCURACY = 10.;
+    public static final double DEFAULT_BIAS = 0.05;
+
+    public ReplayDriver(FusionCore core, double gpsAccuracy) {
+        mCore = core;
+        mGpsAccuracy = gpsAccuracy;
+    }
+
+    public void setGpsScheduler(GpsScheduler scheduler) { mScheduler = scheduler; }
+
+    /**
+     * Feeds both logs to the core and closes them.
+     * @return Number of records replayed
+     */
+    public long run(LogSource acc, LogSource gps) throws IOException {
+        try {
+            boolean hasAcc = acc.next();
+            boolean hasGps = gps.next();
+            while (hasAcc || hasGps) {
+                if (hasGps && (!hasAcc || gps.getTimestamp() <= acc.getTimestamp())) {
+                    onGpsRecord(gps);
+                    mGpsRecords++;
+                    hasGps = gps.next();
+                } else {
+                    mCore.onAcceleration(acc.getTimestamp(), acc.getValue(0), acc.getValue(1), acc.getValue(2));
+                    if (mScheduler != null) mScheduler.update(acc.getTimestamp(), mCore.getDriftVariance());
+                    mAccRecords++;
+                    hasAcc = acc.next();
+                }
+            }
+        } finally {
+            acc.close();
+            gps.close();
+        }
+        return mAccRecords + mGpsRecords;
+    }
+
+    private void onGpsRecord(LogSource gps) {
+        long timestamp = gps.getTimestamp();
+        if (mScheduler == null) {
+            mCore.onGpsFix(timestamp, gps.getValue(0), gps.getValue(1), gps.getValue(2), mGpsAccuracy);
+            return;
+        }
+        mScheduler.update(timestamp, mCore.getDriftVariance());
+        // the app would not have asked for this fix yet
+        if (timestamp - mLastRequestedFix < mScheduler.getFastestIntervalMillis()
+                && mLastRequestedFix != Long.MIN_VALUE) {
+            mSkippedGpsRecords++;
+            return;
+        }
+        mLastRequestedFix = timestamp;
+        if (mScheduler.isUsable(mGpsAccuracy) && mCore.onGpsFix(timestamp, gps.getValue(0), gps.getValue(1),
+                gps.getValue(2), mGpsAccuracy)) {
+            mScheduler.onFixAccepted(timestamp);
+        } else {
+            mScheduler.onFixRejected();
+        }
+    }
+
+    public long getAccRecords() { return mAccRecords; }
+
+    public long getGpsRecords() { return mGpsRecords; }
+
+    /**
+     * GPS records dropped because the scheduler asked for a longer interval.
+     */
+    public long getSkippedGpsRecords() { return mSkippedGpsRecords; }
+
+    /**
+     * Writes the replayed Corrected and Dist logs as CSV.
+     */
+    static class CsvOutput implements FusionListener {
+
+        private final LogSink mCorrected;
+        private final LogSink mDist;
+
+        CsvOutput(File dir) throws IOException {
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+            mCorrected = new CsvLogWriter(new FileWriter(new File(dir, SessionLogs.CORRECTED + ".csv")), 3);
+            mDist = new CsvLogWriter(new FileWriter(new File(dir, SessionLogs.DIST + ".csv")), 1);
+        }
+
+        @Override
+        public void onCalibrationDone(SensorBias sensorBias) {}
+
+        @Override
+        public void onAcceleration(long timestamp, double accX, double accY, double accZ) {}
+
+        @Override
+        public void onDistance(long timestamp, double dist) {
+            try {
+                mDist.write(timestamp, dist);
+            } catch (IOException e) { e.printStackTrace(); }
+        }
+
+        @Override
+        public void onPosition(long timestamp, double lat, double lon, double alt) {
+            try {
+                mCorrected.write(timestamp, lat, lon, alt);
+            } catch (IOException e) { e.printStackTrace(); }
+        }
+
+        void close() throws IOException {
+            mCorrected.close();
+            mDist.close();
+        }
+    }
+
+    /**
+     * Listener that drops all output, for throughput runs.
+     */
+    static class NullOutput implements FusionListener {
+
+        @Override
+        public void onCalibrationDone(SensorBias sensorBias) {}
+
+        @Override
+        public void onAcceleration(long timestamp, double accX, double accY, double accZ) {}
+
+        @Override
+        public void onDistance(long timestamp, double dist) {}
+
+        @Override
+        public void onPosition(long timestamp, double lat, double lon, double alt) {}
+    }
+
+    /**
+     * The logs hold no raw samples, so with them the orientation stays at its initial value and no
+     * steps are detected.
+     * @param name per-axis, orientation, pedestrian or particle; anything else is per-axis
+     */
+    static FusionPipeline.Model parseModel(String name) {
+        switch (name) {
+            case "orientation": return FusionPipeline.Model.ORIENTATION;
+            case "pedestrian": return FusionPipeline.Model.PEDESTRIAN;
+            case "particle": return FusionPipeline.Model.PARTICLE;
+            default: return FusionPipeline.Model.PER_AXIS;
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: ReplayDriver <session dir> [--out <dir>] [--no-output] [--repeat <n>]\n" +
+                "                    [--gps-accuracy <m>] [--bias <x>,<y>,<z>] [--frame ecef|enu]\n" +
+                "                    [--rate <hz>] [--model per-axis|orientation|pedestrian|particle]\n" +
+                "                    [--particles <n>] [--threads <n>] [--adaptive-gps] [--metrics <file>]\n" +
+                "                    [--floor-plan <file>]");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) usage();
+        File session = new File(args[0]);
+        File out = new File(session, "replay");
+        boolean writeOutput = true;
+        int repeat = 1;
+        double gpsAccuracy = DEFAULT_GPS_ACCURACY;
+        double[] bias = { DEFAULT_BIAS, DEFAULT_BIAS, DEFAULT_BIAS };
+        FusionPipeline.Frame frame = FusionPipeline.Frame.ECEF;
+        double rate = 0;
+        FusionPipeline.Model model = FusionPipeline.Model.PER_AXIS;
+        boolean adaptiveGps = false;
+        File metricsFile = null;
+        FloorPlan floorPlan = null;
+        int particles = FusionPipeline.DEFAULT_PARTICLES;
+        int threads = 0;
+        for (int i = 1; i < args.length; ++i) {
+            switch (args[i]) {
+                case "--out": out = new File(args[++i]); break;
+                case "--no-output": writeOutput = false; break;
+                case "--repeat": repeat = Integer.parseInt(args[++i]); break;
+                case "--gps-accuracy": gpsAccuracy = Double.parseDouble(args[++i]); break;
+                case "--bias":
+                    String[] parts = args[++i].split(",");
+                    if (parts.length != 3) usage();
+                    for (int j = 0; j < 3; ++j) bias[j] = Double.parseDouble(parts[j]);
+                    break;
+                case "--frame":
+                    frame = "enu".equals(args[++i]) ? FusionPipeline.Frame.LOCAL_ENU : FusionPipeline.Frame.ECEF;
+                    break;
+                case "--rate": rate = Double.parseDouble(args[++i]); break;
+                case "--particles": particles = Integer.parseInt(args[++i]); break;
+                case "--threads": threads = Integer.parseInt(args[++i]); break;
+                case "--adaptive-gps": adaptiveGps = true; break;
+                case "--metrics": metricsFile = new File(args[++i]); break;
+                case "--floor-plan":
+                    FileReader reader = new FileReader(args[++i]);
+                    try {
+                        floorPlan = FloorPlan.read(reader);
+                    } finally {
+                        reader.close();
+                    }
+                    break;
+                case "--model": model = parseModel(args[++i]); break;
+                default: usage();
+            }
+        }
+        if (!SessionLogs.isSession(session)) {
+            System.err.println("No AccData/GpsData logs in " + session);
+            System.exit(1);
+        }
+        // 0 updates the particles on the replay thread
+        ForkJoinPool pool = threads > 0 ? new ForkJoinPool(threads) : null;
+
+        for (int run = 0; run < repeat; ++run) {
+            // only the last run writes output, earlier ones warm up the JIT
+            CsvOutput csv = writeOutput && run == repeat - 1 ? new CsvOutput(out) : null;
+            FusionListener listener = csv != null ? csv : new NullOutput();
+            FusionPipeline core = new FusionPipeline(new SensorBias(bias[0], bias[1], bias[2]), listener);
+            core.setFrame(frame);
+            core.setModel(model);
+            core.setPredictRate(rate);
+            core.setParticles(particles, pool);
+            // timings of the last run only, after the JIT has warmed up
+            TrackingMetrics metrics = metricsFile != null && run == repeat - 1 ? new TrackingMetrics() : null;
+            core.setMetrics(metrics);
+            MapMatcher mapMatcher = floorPlan != null ? new MapMatcher(floorPlan) : null;
+            core.setMapMatcher(mapMatcher);
+            ReplayDriver driver = new ReplayDriver(core, gpsAccuracy);
+            GpsScheduler scheduler = adaptiveGps ? new GpsScheduler() : null;
+            driver.setGpsScheduler(scheduler);
+            long start = System.nanoTime();
+            long records = driver.run(SessionLogs.open(session, SessionLogs.ACC_DATA, 3),
+                    SessionLogs.open(session, SessionLogs.GPS_DATA, 3));
+            long elapsed = System.nanoTime() - start;
+            if (csv != null) csv.close();
+            System.out.println(String.format(Locale.US,
+                    "run %d: %d acc + %d gps records in %.3f ms, %.0f samples/s, distance %.3f m",
+                    run + 1, driver.getAccRecords(), driver.getGpsRecords(), elapsed / 1e6,
+                    records / (elapsed / 1e9), core.getTotalDistance()));
+            if (scheduler != null) {
+                System.out.println(String.format(Locale.US,
+                        "  gps: %d of %d fixes used, %d skipped, %d accepted, %d rejected, %.3f requests/s, "
+                                + "%d request changes", driver.getGpsRecords() - driver.getSkippedGpsRecords(),
+                        driver.getGpsRecords(), driver.getSkippedGpsRecords(), scheduler.getAcceptedFixes(),
+                        scheduler.getRejectedFixes(), scheduler.getRequestRate(), scheduler.getRequestChanges()));
+            }
+            if (mapMatcher != null) {
+                System.out.println(String.format(Locale.US, "  floor plan: %d positions matched, %d outside",
+                        mapMatcher.getMatchedCount(), mapMatcher.getUnmatchedCount()));
+            }
+            if (metrics != null && metrics.appendTo(metricsFile, System.currentTimeMillis())) {
+                System.out.print(metrics);
+            }
+        }
+        if (pool != null) pool.shutdown();
+        if (writeOutput) System.out.println("Wrote " + out);
+    }
+}
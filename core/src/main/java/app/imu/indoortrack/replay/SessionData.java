@@ -0,0 +1,114 @@
+package app.imu.indoortrack.replay;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import app.imu.indoortrack.io.LogSource;
+
+/**
+ * The logs of one session parsed into memory once, to be replayed many times, e.g. once per
+ * configuration of a tuning sweep. The records are read only after loading, so any number of
+ * threads may replay the same session at once, each through its own {@link #open} sources.
+ */
+class SessionData {
+
+    private final File mDir;
+    private final Records mAcc;
+    private final Records mGps;
+    // null if the session has no ground truth
+    private final Records mTruth;
+
+    /**
+     * Fixed-width records in parallel primitive arrays.
+     */
+    static class Records {
+
+        long[] mTimestamps = new long[1024];
+        double[] mValues;
+        final int mFieldCount;
+        int mCount;
+
+        Records(int fieldCount) {
+            mFieldCount = fieldCount;
+            mValues = new double[mTimestamps.length * fieldCount];
+        }
+
+        /**
+         * Reads all of {@code source} and closes it.
+         */
+        static Records read(LogSource source, int fieldCount) throws IOException {
+            Records records = new Records(fieldCount);
+            try {
+                while (source.next()) {
+                    if (records.mCount == records.mTimestamps.length) {
+                        records.mTimestamps = Arrays.copyOf(records.mTimestamps, records.mCount * 2);
+                        records.mValues = Arrays.copyOf(records.mValues, records.mCount * 2 * fieldCount);
+                    }
+                    records.mTimestamps[records.mCount] = source.getTimestamp();
+                    for (int f = 0; f < fieldCount; ++f) {
+                        records.mValues[records.mCount * fieldCount + f] = source.getValue(f);
+                    }
+                    ++records.mCount;
+                }
+            } finally {
+                source.close();
+            }
+            return records;
+        }
+    }
+
+    /**
+     * Replays {@link Records} from the start.
+     */
+    static class RecordSource implements LogSource {
+
+        private final Records mRecords;
+        private int mIndex = -1;
+
+        RecordSource(Records records) { mRecords = records; }
+
+        @Override
+        public boolean next() { return ++mIndex < mRecords.mCount; }
+
+        @Override
+        public long getTimestamp() { return mRecords.mTimestamps[mIndex]; }
+
+        @Override
+        public double getValue(int field) { return mRecords.mValues[mIndex * mRecords.mFieldCount + field]; }
+
+        @Override
+        public int getFieldCount() { return mRecords.mFieldCount; }
+
+        @Override
+        public void close() {}
+    }
+
+    private SessionData(File dir, Records acc, Records gps, Records truth) {
+        mDir = dir;
+        mAcc = acc;
+        mGps = gps;
+        mTruth = truth;
+    }
+
+    static SessionData load(File dir) throws IOException {
+        Records acc = Records.read(SessionLogs.open(dir, SessionLogs.ACC_DATA, 3), 3);
+        Records gps = Records.read(SessionLogs.open(dir, SessionLogs.GPS_DATA, 3), 3);
+        LogSource truth = SessionLogs.open(dir, SessionLogs.GROUND_TRUTH, 3);
+        return new SessionData(dir, acc, gps, truth != null ? Records.read(truth, 3) : null);
+    }
+
+    File getDir() { return mDir; }
+
+    LogSource openAcc() { return new RecordSource(mAcc); }
+
+    LogSource openGps() { return new RecordSource(mGps); }
+
+    /**
+     *
+     * @return null without ground truth
+     */
+    LogSource openTruth() { return mTruth != null ? new RecordSource(mTruth) : null; }
+
+    long getRecordCount() { return mAcc.mCount + mGps.mCount; }
+}
@@ -0,0 +1,52 @@
+package app.imu.indoortrack.replay;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+
+import app.imu.indoortrack.io.BinaryLogFormat;
+import app.imu.indoortrack.io.BinaryLogReader;
+import app.imu.indoortrack.io.CsvLogReader;
+import app.imu.indoortrack.io.LogSource;
+import app.imu.indoortrack.io.SegmentedLogReader;
+
+/**
+ * Locates the logs of one recorded session, whichever storage the app used for them.
+ */
+public final class SessionLogs {
+
+    public static final String ACC_DATA = "AccData";
+    public static final String GPS_DATA = "GpsData";
+    public static final String CORRECTED = "Corrected";
+    public static final String DIST = "Dist";
+    // optional, latitude, longitude and altitude actually walked, for the batch error
+    public static final String GROUND_TRUTH = "GroundTruth";
+
+    private static final String CSV_EXTENSION = ".csv";
+
+    private SessionLogs() {}
+
+    /**
+     * Opens {@code name} in {@code dir}, trying a segment directory, then a binary log, then CSV.
+     * @return null if the session has no such log
+     */
+    public static LogSource open(File dir, String name, int fieldCount) throws IOException {
+        File segments = new File(dir, name);
+        if (segments.isDirectory()) return new SegmentedLogReader(segments);
+        File binary = new File(dir, name + BinaryLogFormat.FILE_EXTENSION);
+        if (binary.isFile()) return new BinaryLogReader(new FileInputStream(binary));
+        File csv = new File(dir, name + CSV_EXTENSION);
+        if (csv.isFile()) return new CsvLogReader(new FileReader(csv), fieldCount);
+        return null;
+    }
+
+    public static boolean isSession(File dir) {
+        return exists(dir, ACC_DATA) && exists(dir, GPS_DATA);
+    }
+
+    private static boolean exists(File dir, String name) {
+        return new File(dir, name).isDirectory() || new File(dir, name + BinaryLogFormat.FILE_EXTENSION).isFile()
+                || new File(dir, name + CSV_EXTENSION).isFile();
+    }
+}
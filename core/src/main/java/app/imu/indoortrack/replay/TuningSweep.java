@@ -0,0 +1,373 @@
+package app.imu.indoortrack.replay;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import app.imu.indoortrack.fusion.FusionPipeline;
+import app.imu.indoortrack.fusion.NoiseSettings;
+
+/**
+ * Searches the {@link NoiseSettings} that minimize the position error against the ground truth of
+ * recorded sessions. The sessions are parsed into memory once and replayed by every trial; trials
+ * run in parallel, one per thread, each replaying all sessions in turn.
+ * <p>
+ * A grid search takes a number of values per parameter, spaced evenly on a log scale over its
+ * range; a random search draws log-uniform configurations. Either can be followed by refinement
+ * rounds that draw around the best configuration so far, halving the spread on the log scale
+ * each round. The score is the RMS of the horizontal error over all positions of all sessions.
+ * Only the parameters the chosen model reads are searched, the others keep their defaults.
+ * <p>
+ * A configuration picked from many can fit the sessions it was picked on by chance, so with two
+ * or more sessions the search is first cross-validated: the sessions are split into folds, and
+ * each fold is scored with the best configuration of a search over the other folds. The pooled
+ * error of those held-out scores, against that of the defaults, is what a new session can expect.
+ */
+public class TuningSweep {
+
+    // the gyroscope noise is only read by ORIENTATION, which cannot be tuned yet
+    static final String[] NAMES = { "gps_divisor", "vertical_offset", "acc_scale", "initial_cov" };
+    // search ranges, a divisor of 1 takes the accuracy of a fix as its noise
+    private static final double[] MIN = { 1, 0.005, 0.1, 0.001 };
+    private static final double[] MAX = { 2000, 0.5, 10, 100 };
+    // first refinement round draws within this factor either way of the best values
+    private static final double REFINE_SPREAD = 4;
+    private static final int DEFAULT_FOLDS = 5;
+
+    private final List<SessionData> mSessions;
+    private final PipelineOptions mOptions;
+    private final boolean[] mTuned;
+
+    /**
+     * One configuration and its score.
+     */
+    static class Trial {
+
+        final double[] mValues;
+        long mPositions;
+        double mSumSq;
+
+        Trial(double[] values) { mValues = values; }
+
+        NoiseSettings getSettings() {
+            return new NoiseSettings(mValues[0], mValues[1], mValues[2], mValues[3],
+                    NoiseSettings.DEFAULT.getGyroNoise());
+        }
+
+        /**
+         *
+         * @return Infinity if no position could be compared
+         */
+        double getRmsError() { return mPositions == 0 ? Double.POSITIVE_INFINITY : Math.sqrt(mSumSq / mPositions); }
+
+        /**
+         * Pools the positions of another trial into this one's score.
+         */
+        void add(Trial other) {
+            mPositions += other.mPositions;
+            mSumSq += other.mSumSq;
+        }
+    }
+
+    /**
+     *
+     * @param tuned Per parameter of {@link #NAMES}, whether to search it, see {@link #getTuned}
+     */
+    TuningSweep(List<SessionData> sessions, PipelineOptions options, boolean[] tuned) {
+        mSessions = sessions;
+        mOptions = options;
+        mTuned = tuned;
+    }
+
+    /**
+     * The parameters of {@link #NAMES} a model reads.
+     * @return null if the model cannot be tuned, see {@link #getUntunableReason}
+     */
+    static boolean[] getTuned(FusionPipeline.Model model) {
+        switch (model) {
+            case PER_AXIS: return new boolean[] { true, true, true, true };
+            default: return null;
+        }
+    }
+
+    static String getUntunableReason(FusionPipeline.Model model) {
+        switch (model) {
+            case ORIENTATION:
+                return "sessions do not log gyroscope samples yet, ORIENTATION would be tuned without its gyroscope";
+            case PEDESTRIAN:
+                return "PEDESTRIAN takes none of the noise settings";
+            case PARTICLE:
+                return "PARTICLE takes its noise from the accuracy of each fix and a fixed walking acceleration,"
+                        + " not the noise settings";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Replays every session with the trial's settings on the calling thread.
+     */
+    Trial evaluate(Trial trial) throws IOException {
+        NoiseSettings settings = trial.getSettings();
+        for (SessionData session : mSessions) {
+            GroundTruthError truth = new GroundTruthError(session.openTruth());
+            FusionPipeline core = mOptions.create(truth);
+            core.setNoise(settings);
+            new ReplayDriver(core, mOptions.mGpsAccuracy).run(session.openAcc(), session.openGps());
+            truth.close();
+            if (truth.getCount() == 0) continue;
+            trial.mPositions += truth.getCount();
+            trial.mSumSq += truth.getRmsError() * truth.getRmsError() * truth.getCount();
+        }
+        return trial;
+    }
+
+    static double[] defaults() {
+        NoiseSettings d = NoiseSettings.DEFAULT;
+        return new double[] { d.getGpsAccuracyDivisor(), d.getVerticalNoiseOffset(), d.getAccNoiseScale(),
+                d.getInitialCovariance() };
+    }
+
+    /**
+     *
+     * @param steps Values per tuned parameter
+     */
+    List<Trial> grid(int steps) {
+        List<Trial> trials = new ArrayList<>();
+        int count = 1;
+        for (int p = 0; p < NAMES.length; ++p) {
+            if (mTuned[p]) count *= steps;
+        }
+        for (int i = 0; i < count; ++i) {
+            double[] values = defaults();
+            int index = i;
+            for (int p = 0; p < NAMES.length; ++p) {
+                if (!mTuned[p]) continue;
+                double t = steps == 1 ? 0.5 : (double) (index % steps) / (steps - 1);
+                values[p] = logInterpolate(MIN[p], MAX[p], t);
+                index /= steps;
+            }
+            trials.add(new Trial(values));
+        }
+        return trials;
+    }
+
+    List<Trial> random(int count, Random random) {
+        List<Trial> trials = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            double[] values = defaults();
+            for (int p = 0; p < NAMES.length; ++p) {
+                if (mTuned[p]) values[p] = logInterpolate(MIN[p], MAX[p], random.nextDouble());
+            }
+            trials.add(new Trial(values));
+        }
+        return trials;
+    }
+
+    /**
+     * Configurations around {@code best}, each tuned parameter within a factor of {@code spread}
+     * of its value there, log-uniform and kept in range.
+     */
+    List<Trial> around(double[] best, double spread, int count, Random random) {
+        List<Trial> trials = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            double[] values = best.clone();
+            for (int p = 0; p < NAMES.length; ++p) {
+                if (!mTuned[p]) continue;
+                double value = best[p] * Math.pow(spread, 2 * random.nextDouble() - 1);
+                values[p] = Math.max(MIN[p], Math.min(MAX[p], value));
+            }
+            trials.add(new Trial(values));
+        }
+        return trials;
+    }
+
+    private static double logInterpolate(double min, double max, double t) {
+        return Math.exp(Math.log(min) + t * (Math.log(max) - Math.log(min)));
+    }
+
+    /**
+     * Evaluates the trials on {@code pool}.
+     */
+    List<Trial> run(ExecutorService pool, List<Trial> trials) throws InterruptedException, IOException {
+        List<Future<Trial>> futures = new ArrayList<>(trials.size());
+        for (Trial trial : trials) futures.add(pool.submit(() -> evaluate(trial)));
+        List<Trial> done = new ArrayList<>(trials.size());
+        for (Future<Trial> future : futures) {
+            try {
+                done.add(future.get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        return done;
+    }
+
+    /**
+     * The defaults, grid and random trials, then the refinement rounds around the best of them.
+     * @return Every trial evaluated, best first
+     */
+    List<Trial> search(ExecutorService pool, Search search) throws InterruptedException, IOException {
+        Random random = new Random(search.mSeed);
+        List<Trial> trials = new ArrayList<>();
+        // nothing worse than the defaults is picked
+        trials.add(new Trial(defaults()));
+        if (search.mGrid > 0) trials.addAll(grid(search.mGrid));
+        if (search.mRandomTrials > 0) trials.addAll(random(search.mRandomTrials, random));
+        List<Trial> results = new ArrayList<>(run(pool, trials));
+        Comparator<Trial> byError = Comparator.comparingDouble(Trial::getRmsError);
+        double spread = REFINE_SPREAD;
+        for (int round = 0; round < search.mRefineRounds; ++round) {
+            double[] best = Collections.min(results, byError).mValues;
+            results.addAll(run(pool, around(best, spread, search.mRefineTrials, random)));
+            spread = Math.sqrt(spread);
+        }
+        results.sort(byError);
+        return results;
+    }
+
+    /**
+     * How to search, the same for every fold.
+     */
+    static class Search {
+
+        int mGrid;
+        int mRandomTrials;
+        int mRefineRounds;
+        int mRefineTrials = 100;
+        long mSeed = 1;
+    }
+
+    /**
+     * Scores every fold with the best configuration of a search over the other folds and prints
+     * the held-out errors, sessions assigned to the folds in turn.
+     */
+    private static void crossValidate(List<SessionData> sessions, PipelineOptions options, boolean[] tuned,
+                                      Search search, int folds, ExecutorService pool)
+            throws InterruptedException, IOException {
+        System.out.println(String.format(Locale.US, "%4s %8s %9s %16s %13s", "fold", "sessions", "train_rms",
+                "held_out_default", "held_out_best"));
+        Trial heldDefaults = new Trial(defaults());
+        Trial heldBest = new Trial(defaults());
+        for (int fold = 0; fold < folds; ++fold) {
+            List<SessionData> train = new ArrayList<>();
+            List<SessionData> test = new ArrayList<>();
+            for (int i = 0; i < sessions.size(); ++i) (i % folds == fold ? test : train).add(sessions.get(i));
+            Trial best = new TuningSweep(train, options, tuned).search(pool, search).get(0);
+            TuningSweep held = new TuningSweep(test, options, tuned);
+            Trial foldDefaults = held.evaluate(new Trial(defaults()));
+            Trial foldBest = held.evaluate(new Trial(best.mValues.clone()));
+            System.out.println(String.format(Locale.US, "%4d %8d %9.3f %16.3f %13.3f", fold, test.size(),
+                    best.getRmsError(), foldDefaults.getRmsError(), foldBest.getRmsError()));
+            heldDefaults.add(foldDefaults);
+            heldBest.add(foldBest);
+        }
+        System.out.println(String.format(Locale.US, "held-out rms: %.3f m with the defaults, %.3f m tuned",
+                heldDefaults.getRmsError(), heldBest.getRmsError()));
+    }
+
+    private static String format(Trial trial, boolean[] tuned) {
+        StringBuilder line = new StringBuilder(String.format(Locale.US, "%9.3f %9d", trial.getRmsError(), trial.mPositions));
+        for (int p = 0; p < NAMES.length; ++p) {
+            if (tuned[p]) line.append(String.format(Locale.US, " %15.5g", trial.mValues[p]));
+        }
+        return line.toString();
+    }
+
+    private static void usage() {
+        System.err.println("usage: TuningSweep <sessions dir> [--grid <values per parameter>] [--random <trials>]\n"
+                + "    [--refine <rounds>] [--refine-trials <n>] [--seed <n>] [--threads <n>] [--top <n>]\n"
+                + "    [--folds <n>]\n    " + PipelineOptions.USAGE);
+        System.exit(2);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) usage();
+        File root = new File(args[0]);
+        Search search = new Search();
+        int threads = Runtime.getRuntime().availableProcessors();
+        int top = 10;
+        int folds = DEFAULT_FOLDS;
+        PipelineOptions options = new PipelineOptions();
+        for (int i = 1; i < args.length; ++i) {
+            switch (args[i]) {
+                case "--grid": search.mGrid = Integer.parseInt(args[++i]); break;
+                case "--random": search.mRandomTrials = Integer.parseInt(args[++i]); break;
+                case "--refine": search.mRefineRounds = Integer.parseInt(args[++i]); break;
+                case "--refine-trials": search.mRefineTrials = Integer.parseInt(args[++i]); break;
+                case "--seed": search.mSeed = Long.parseLong(args[++i]); break;
+                case "--threads": threads = Integer.parseInt(args[++i]); break;
+                case "--top": top = Integer.parseInt(args[++i]); break;
+                case "--folds": folds = Integer.parseInt(args[++i]); break;
+                default:
+                    i = options.parse(args, i);
+                    if (i < 0) usage();
+            }
+        }
+        if (search.mGrid == 0 && search.mRandomTrials == 0) search.mRandomTrials = 1000;
+        boolean[] tuned = getTuned(options.mModel);
+        if (tuned == null) {
+            System.err.println("Cannot tune: " + getUntunableReason(options.mModel));
+            System.exit(2);
+        }
+
+        long start = System.nanoTime();
+        List<SessionData> sessions = new ArrayList<>();
+        long records = 0;
+        for (File dir : BatchReplay.findSessions(root)) {
+            SessionData session = SessionData.load(dir);
+            if (session.openTruth() == null) {
+                System.err.println("Skipping " + dir + ", no ground truth");
+                continue;
+            }
+            sessions.add(session);
+            records += session.getRecordCount();
+        }
+        if (sessions.isEmpty()) {
+            System.err.println("No sessions with ground truth in " + root);
+            System.exit(1);
+        }
+        System.out.println(String.format(Locale.US, "%d sessions, %d records loaded in %.3f s", sessions.size(),
+                records, (System.nanoTime() - start) / 1e9));
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            folds = Math.min(folds, sessions.size());
+            if (folds >= 2) {
+                crossValidate(sessions, options, tuned, search, folds, pool);
+            } else {
+                System.out.println("Not cross-validated, the error below is on the sessions the search picked from");
+            }
+
+            TuningSweep sweep = new TuningSweep(sessions, options, tuned);
+            start = System.nanoTime();
+            Trial baseline = sweep.evaluate(new Trial(defaults()));
+            List<Trial> results = sweep.search(pool, search);
+            double elapsed = (System.nanoTime() - start) / 1e9;
+
+            StringBuilder header = new StringBuilder(String.format(Locale.US, "%9s %9s", "rms_m", "positions"));
+            for (int p = 0; p < NAMES.length; ++p) {
+                if (tuned[p]) header.append(String.format(Locale.US, " %15s", NAMES[p]));
+            }
+            System.out.println(header);
+            System.out.println(format(baseline, tuned) + "  (default)");
+            for (int i = 0; i < Math.min(top, results.size()); ++i) System.out.println(format(results.get(i), tuned));
+            System.out.println(String.format(Locale.US, "%d trials in %.3f s on %d threads, %.1f trials/s, "
+                    + "%.0f records/s", results.size() + 1, elapsed, threads, (results.size() + 1) / elapsed,
+                    (results.size() + 1) * (double) records / elapsed));
+            System.out.println("best: " + results.get(0).getSettings());
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
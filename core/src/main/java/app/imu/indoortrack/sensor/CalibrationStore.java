@@ -0,0 +1,261 @@
+package app.imu.indoortrack.sensor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * Calibration profiles kept per device, sensor and temperature band in one small binary file, so
+ * tracking can start from a stored {@link SensorBias} instead of calibrating first. A profile is
+ * stale when it is older than {@link #setMaxAge} or was measured in another temperature band; it
+ * is still returned, and the caller should revalidate it while tracking.
+ * <pre>
+ * file:    int magic, short version, short profileCount, profile[profileCount]
+ * profile: UTF device, UTF sensor, int temperatureBand, long timestamp,
+ *          per axis: long count, double mean, double m2, double bias
+ * </pre>
+ * Methods are synchronized, so profiles can be looked up on one thread and stored on another.
+ */
+public class CalibrationStore {
+
+    public static final int MAGIC = 0x4C435449; // "ITCL"
+    public static final short VERSION = 1;
+    public static final long DEFAULT_MAX_AGE_MILLIS = 7L * 24 * 3600 * 1000;
+    public static final double TEMPERATURE_BAND_WIDTH = 5;
+    public static final int UNKNOWN_TEMPERATURE = Integer.MIN_VALUE;
+
+    public static class Profile {
+
+        private final String mDevice;
+        private final String mSensor;
+        private final int mTemperatureBand;
+        private final long mTimestamp;
+        private final SensorBias mSensorBias;
+        private boolean mStale;
+
+        Profile(String device, String sensor, int temperatureBand, long timestamp, SensorBias sensorBias) {
+            mDevice = device;
+            mSensor = sensor;
+            mTemperatureBand = temperatureBand;
+            mTimestamp = timestamp;
+            mSensorBias = sensorBias;
+        }
+
+        public String getDevice() { return mDevice; }
+
+        public String getSensor() { return mSensor; }
+
+        /**
+         * Band index, the temperature divided by {@link #TEMPERATURE_BAND_WIDTH}, or
+         * {@link #UNKNOWN_TEMPERATURE}.
+         */
+        public int getTemperatureBand() { return mTemperatureBand; }
+
+        /**
+         * Wall clock time of the calibration in milliseconds.
+         */
+        public long getTimestamp() { return mTimestamp; }
+
+        public SensorBias getSensorBias() { return mSensorBias; }
+
+        /**
+         * Whether the profile should be revalidated, as of the {@link #find} that returned it.
+         */
+        public boolean isStale() { return mStale; }
+    }
+
+    private final File mFile;
+    private final ArrayList<Profile> mProfiles = new ArrayList<>();
+    private long mMaxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+
+    public CalibrationStore(File file) { mFile = file; }
+
+    public synchronized void setMaxAge(long millis) { mMaxAgeMillis = millis; }
+
+    /**
+     *
+     * @param celsius Temperature in degrees Celsius, NaN if unknown
+     */
+    public static int getTemperatureBand(double celsius) {
+        return Double.isNaN(celsius) ? UNKNOWN_TEMPERATURE : (int) Math.floor(celsius / TEMPERATURE_BAND_WIDTH);
+    }
+
+    /**
+     * Replaces the profiles by the ones in the file; a missing file leaves the store empty.
+     * @return false if the file could not be read
+     */
+    public synchronized boolean load() {
+        mProfiles.clear();
+        InputStream in;
+        try {
+            in = new BufferedInputStream(new FileInputStream(mFile));
+        } catch (FileNotFoundException e) {
+            return true;
+        }
+        try {
+            readFrom(in);
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+            mProfiles.clear();
+            return false;
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * Writes all profiles to a temporary file and renames it over the store, so a crash while
+     * saving leaves the previous profiles.
+     * @return false if the file could not be written
+     */
+    public synchronized boolean save() {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(tmp));
+            writeTo(out);
+            out.close();
+            out = null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            close(out);
+        }
+        return tmp.renameTo(mFile);
+    }
+
+    // try-with-resources needs API 19
+    private static void close(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) { e.printStackTrace(); }
+    }
+
+    /**
+     * Adds the profiles in {@code in}.
+     * @throws IllegalArgumentException if it is not a calibration store
+     */
+    public synchronized void readFrom(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC) throw new IllegalArgumentException("Not a calibration store: bad magic");
+        short version = data.readShort();
+        if (version != VERSION) throw new IllegalArgumentException("Unsupported calibration store version " + version);
+        int count = data.readShort();
+        mProfiles.ensureCapacity(mProfiles.size() + count);
+        for (int i = 0; i < count; ++i) {
+            String device = data.readUTF();
+            String sensor = data.readUTF();
+            int band = data.readInt();
+            long timestamp = data.readLong();
+            RunningStatistics x = readStatistics(data);
+            double biasX = data.readDouble();
+            RunningStatistics y = readStatistics(data);
+            double biasY = data.readDouble();
+            RunningStatistics z = readStatistics(data);
+            double biasZ = data.readDouble();
+            SensorBias sensorBias = x.getCount() == 0 ? new SensorBias(biasX, biasY, biasZ) : new SensorBias(x, y, z);
+            put(new Profile(device, sensor, band, timestamp, sensorBias));
+        }
+    }
+
+    private static RunningStatistics readStatistics(DataInputStream data) throws IOException {
+        long count = data.readLong();
+        double mean = data.readDouble();
+        double m2 = data.readDouble();
+        return new RunningStatistics(count, mean, m2);
+    }
+
+    public synchronized void writeTo(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeShort(VERSION);
+        data.writeShort(mProfiles.size());
+        for (Profile profile : mProfiles) {
+            data.writeUTF(profile.mDevice);
+            data.writeUTF(profile.mSensor);
+            data.writeInt(profile.mTemperatureBand);
+            data.writeLong(profile.mTimestamp);
+            SensorBias sensorBias = profile.mSensorBias;
+            writeStatistics(data, sensorBias.getStatsX());
+            data.writeDouble(sensorBias.getBiasX());
+            writeStatistics(data, sensorBias.getStatsY());
+            data.writeDouble(sensorBias.getBiasY());
+            writeStatistics(data, sensorBias.getStatsZ());
+            data.writeDouble(sensorBias.getBiasZ());
+        }
+        data.flush();
+    }
+
+    private static void writeStatistics(DataOutputStream data, RunningStatistics stats) throws IOException {
+        data.writeLong(stats.getCount());
+        data.writeDouble(stats.getMean());
+        data.writeDouble(stats.getM2());
+    }
+
+    /**
+     * Profile of the sensor closest in temperature, preferring the newest among equally close ones.
+     * @param temperatureBand Current band, see {@link #getTemperatureBand}
+     * @param now Wall clock time in milliseconds
+     * @return null if the sensor has no profile on this device
+     */
+    public synchronized Profile find(String device, String sensor, int temperatureBand, long now) {
+        Profile best = null;
+        long bestDistance = Long.MAX_VALUE;
+        for (Profile profile : mProfiles) {
+            if (!profile.mDevice.equals(device) || !profile.mSensor.equals(sensor)) continue;
+            long distance = getBandDistance(profile.mTemperatureBand, temperatureBand);
+            if (distance < bestDistance || distance == bestDistance && profile.mTimestamp > best.mTimestamp) {
+                best = profile;
+                bestDistance = distance;
+            }
+        }
+        if (best != null) {
+            best.mStale = bestDistance > 0 || now - best.mTimestamp > mMaxAgeMillis || now < best.mTimestamp;
+        }
+        return best;
+    }
+
+    private static long getBandDistance(int a, int b) {
+        // an unknown temperature matches any band, but a known one better
+        if (a == UNKNOWN_TEMPERATURE || b == UNKNOWN_TEMPERATURE) return a == b ? 0 : 1;
+        return Math.abs((long) a - b);
+    }
+
+    /**
+     * Stores a calibration, replacing the profile of the same device, sensor and band.
+     * @param timestamp Wall clock time of the calibration in milliseconds
+     */
+    public synchronized Profile put(String device, String sensor, int temperatureBand, long timestamp,
+                                    SensorBias sensorBias) {
+        Profile profile = new Profile(device, sensor, temperatureBand, timestamp, sensorBias);
+        put(profile);
+        return profile;
+    }
+
+    private void put(Profile profile) {
+        for (int i = 0; i < mProfiles.size(); ++i) {
+            Profile old = mProfiles.get(i);
+            if (old.mTemperatureBand == profile.mTemperatureBand && old.mDevice.equals(profile.mDevice)
+                    && old.mSensor.equals(profile.mSensor)) {
+                mProfiles.set(i, profile);
+                return;
+            }
+        }
+        mProfiles.add(profile);
+    }
+
+    public synchronized int size() { return mProfiles.size(); }
+}
@@ -0,0 +1,136 @@
+package app.imu.indoortrack.sensor;
+
+/**
+ * Three {@link SensorDataFilter} axes updated together in one call. The per-axis state and
+ * covariance are packed structure-of-arrays into a single {@code double[]}, so a tick runs on
+ * the caller's thread without allocating.
+ * <p>
+ * {@link #estimate} runs one predict and correct step of one second. For other rates call
+ * {@link #predict} with the elapsed time and {@link #correct} whenever a GPS reading arrives.
+ */
+public class FusedSensorDataFilter {
+
+    public static final int AXES = 3;
+
+    // field blocks, each AXES wide
+    private static final int X0 = 0;
+    private static final int X1 = X0 + AXES;
+    private static final int P00 = X1 + AXES;
+    private static final int P01 = P00 + AXES;
+    private static final int P10 = P01 + AXES;
+    private static final int P11 = P10 + AXES;
+    private static final int ACC_VAR = P11 + AXES;
+    private static final int R = ACC_VAR + AXES;
+    private static final int SIZE = R + AXES;
+
+    private static final double DT = 1d;
+
+    private final double[] mData = new double[SIZE];
+    private final boolean[] mPassThrough = new boolean[AXES];
+
+    /**
+     *
+     * @param gpsValues Initial GPS reading per axis
+     * @param gpsNoise GPS noise per axis
+     * @param accNoise Acceleration noise per axis
+     */
+    public FusedSensorDataFilter(double[] gpsValues, double[] gpsNoise, double[] accNoise) {
+        this(gpsValues, gpsNoise, accNoise, 1);
+    }
+
+    /**
+     *
+     * @param initialCovariance Every entry of the initial covariance per axis
+     */
+    public FusedSensorDataFilter(double[] gpsValues, double[] gpsNoise, double[] accNoise, double initialCovariance) {
+        double[] d = mData;
+        for (int i = 0; i < AXES; ++i) {
+            double accVar = accNoise[i] * accNoise[i];
+            d[X0 + i] = gpsValues[i];
+            d[X1 + i] = 0;
+            d[P00 + i] = initialCovariance;
+            d[P01 + i] = initialCovariance;
+            d[P10 + i] = initialCovariance;
+            d[P11 + i] = initialCovariance;
+            d[ACC_VAR + i] = accVar;
+            d[R + i] = gpsNoise[i] * gpsNoise[i];
+            mPassThrough[i] = accNoise[i] == 0. && gpsNoise[i] == 0.;
+        }
+    }
+
+    /**
+     *
+     * @param u Acceleration readings, one per axis
+     * @param z GPS readings, one per axis
+     * @param out Receives the corrected position per axis
+     */
+    public void estimate(double[] u, double[] z, double[] out) {
+        predict(u, DT);
+        correct(z);
+        for (int i = 0; i < AXES; ++i) {
+            out[i] = mPassThrough[i] ? z[i] : mData[X0 + i];
+        }
+    }
+
+    /**
+     * Advances the state by {@code dt} under constant acceleration; the process noise grows with
+     * {@code dt} as for acceleration noise held over the step.
+     * @param u Acceleration readings, one per axis
+     * @param dt Elapsed time in seconds
+     */
+    public void predict(double[] u, double dt) {
+        double[] d = mData;
+        double b0 = dt * dt / 2d;
+        double dt3 = dt * dt * dt / 2d;
+        double dt4 = dt * dt * dt * dt / 4d;
+        double dt2 = dt * dt;
+        for (int i = 0; i < AXES; ++i) {
+            if (mPassThrough[i]) continue;
+            // x = A x + B u, P = A P A' + Q
+            double accVar = d[ACC_VAR + i];
+            double p10 = d[P10 + i];
+            double p11 = d[P11 + i];
+            double ap00 = d[P00 + i] + dt * p10;
+            double ap01 = d[P01 + i] + dt * p11;
+            d[X0 + i] = d[X0 + i] + dt * d[X1 + i] + b0 * u[i];
+            d[X1 + i] = d[X1 + i] + dt * u[i];
+            d[P00 + i] = ap00 + dt * ap01 + dt4 * accVar;
+            d[P01 + i] = ap01 + dt3 * accVar;
+            d[P10 + i] = p10 + dt * p11 + dt3 * accVar;
+            d[P11 + i] = p11 + dt2 * accVar;
+        }
+    }
+
+    /**
+     *
+     * @param z GPS readings, one per axis
+     */
+    public void correct(double[] z) {
+        double[] d = mData;
+        for (int i = 0; i < AXES; ++i) {
+            if (mPassThrough[i]) {
+                d[X0 + i] = z[i];
+                continue;
+            }
+            // K = P H' (H P H' + R)^-1, x += K (z - H x), P = (I - K H) P
+            double p00 = d[P00 + i];
+            double p01 = d[P01 + i];
+            double s = p00 + d[R + i];
+            double k0 = p00 / s;
+            double k1 = d[P10 + i] / s;
+            double innovation = z[i] - d[X0 + i];
+            d[X0 + i] += k0 * innovation;
+            d[X1 + i] += k1 * innovation;
+            d[P00 + i] = (1 - k0) * p00;
+            d[P01 + i] = (1 - k0) * p01;
+            d[P10 + i] -= k1 * p00;
+            d[P11 + i] -= k1 * p01;
+        }
+    }
+
+    public double getPosition(int axis) { return mData[X0 + axis]; }
+
+    public double getVelocity(int axis) { return mData[X1 + axis]; }
+
+    public double getPositionVariance(int axis) { return mData[P00 + axis]; }
+}
@@ -0,0 +1,91 @@
+package app.imu.indoortrack.sensor;
+
+/**
+ * East-North-Up frame anchored at a geodetic origin, typically the first GPS fix of a session.
+ * ECEF conversions are a rotation plus an offset. The geodetic conversions linearize the
+ * ellipsoid around the origin. They invert each other exactly, but against the true tangent plane
+ * they are off by 0.4 mm horizontally and 0.8 mm vertically 100 m from the origin, growing with
+ * the square of the distance: 4 and 8 cm at 1 km, 4 and 8 m at 10 km. Most of the vertical part
+ * is the Earth curving away from the plane. Use the exact variants where that matters.
+ */
+public class LocalTangentPlane {
+
+    private final double mLat0;
+    private final double mLon0;
+    private final double mAlt0;
+    private final double mX0;
+    private final double mY0;
+    private final double mZ0;
+    private final double mSinLat;
+    private final double mCosLat;
+    private final double mSinLon;
+    private final double mCosLon;
+    // meters per radian of latitude and of longitude at the origin
+    private final double mNorthScale;
+    private final double mEastScale;
+    private final double[] mScratch = new double[3];
+
+    public LocalTangentPlane(double lat, double lon, double alt) {
+        mLat0 = lat;
+        mLon0 = lon;
+        mAlt0 = alt;
+        double[] origin = Projection.geodeticToCartesian(lat, lon, alt);
+        mX0 = origin[0];
+        mY0 = origin[1];
+        mZ0 = origin[2];
+        double latRad = Math.toRadians(lat);
+        double lonRad = Math.toRadians(lon);
+        mSinLat = Math.sin(latRad);
+        mCosLat = Math.cos(latRad);
+        mSinLon = Math.sin(lonRad);
+        mCosLon = Math.cos(lonRad);
+        double w = 1 - Projection.ESQ * mSinLat * mSinLat;
+        double normalRadius = Projection.R / Math.sqrt(w);
+        double meridianRadius = Projection.R * (1 - Projection.ESQ) / (w * Math.sqrt(w));
+        mNorthScale = meridianRadius + alt;
+        mEastScale = (normalRadius + alt) * mCosLat;
+    }
+
+    public void cartesianToEnu(double x, double y, double z, double[] out) {
+        double dx = x - mX0;
+        double dy = y - mY0;
+        double dz = z - mZ0;
+        out[0] = -mSinLon * dx + mCosLon * dy;
+        out[1] = -mSinLat * mCosLon * dx - mSinLat * mSinLon * dy + mCosLat * dz;
+        out[2] = mCosLat * mCosLon * dx + mCosLat * mSinLon * dy + mSinLat * dz;
+    }
+
+    public void enuToCartesian(double e, double n, double u, double[] out) {
+        out[0] = mX0 - mSinLon * e - mSinLat * mCosLon * n + mCosLat * mCosLon * u;
+        out[1] = mY0 + mCosLon * e - mSinLat * mSinLon * n + mCosLat * mSinLon * u;
+        out[2] = mZ0 + mCosLat * n + mSinLat * u;
+    }
+
+    public void geodeticToEnu(double lat, double lon, double alt, double[] out) {
+        out[0] = Math.toRadians(lon - mLon0) * mEastScale;
+        out[1] = Math.toRadians(lat - mLat0) * mNorthScale;
+        out[2] = alt - mAlt0;
+    }
+
+    public void enuToGeodetic(double e, double n, double u, double[] out) {
+        out[0] = mLat0 + Math.toDegrees(n / mNorthScale);
+        out[1] = mLon0 + Math.toDegrees(e / mEastScale);
+        out[2] = mAlt0 + u;
+    }
+
+    /**
+     * Same as {@link #geodeticToEnu} but exact at any distance. Not thread safe.
+     */
+    public void geodeticToEnuExact(double lat, double lon, double alt, double[] out) {
+        Projection.geodeticToCartesian(lat, lon, alt, mScratch);
+        cartesianToEnu(mScratch[0], mScratch[1], mScratch[2], out);
+    }
+
+    /**
+     * Same as {@link #enuToGeodetic} but exact at any distance. Not thread safe.
+     */
+    public void enuToGeodeticExact(double e, double n, double u, double[] out) {
+        enuToCartesian(e, n, u, mScratch);
+        Projection.cartesianToGeodetic(mScratch[0], mScratch[1], mScratch[2], out);
+    }
+}
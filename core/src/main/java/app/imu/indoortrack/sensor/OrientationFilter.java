@@ -0,0 +1,302 @@
+package app.imu.indoortrack.sensor;
+
+/**
+ * Extended Kalman filter tracking the device orientation as a quaternion together with position
+ * and velocity. The gyroscope rotates the orientation, the gravity-free acceleration is rotated
+ * into the world frame and integrated, and GPS positions correct all three through their
+ * correlations. The covariance is kept over a 9 element error state (world-frame attitude error,
+ * position, velocity) in preallocated row-major arrays, so no step allocates.
+ * <p>
+ * The world frame is the filter frame of the caller. The orientation starts as identity, i.e.
+ * with the device axes along the world axes, which is what the per-axis filters assume throughout,
+ * unless {@link #initOrientation} sets the measured one. The attitude error is linearized, so GPS
+ * can only correct small errors; a device started tens of degrees off identity needs the latter.
+ */
+public class OrientationFilter {
+
+    public static final int AXES = 3;
+    public static final double DEFAULT_GYRO_NOISE = 0.01;
+
+    // error state blocks
+    private static final int TH = 0;
+    private static final int POS = 3;
+    private static final int VEL = 6;
+    private static final int N = 9;
+
+    private static final double INITIAL_ATTITUDE_VAR = 1e-4;
+    private static final double INITIAL_VELOCITY_VAR = 1;
+    // keeps the innovation covariance invertible for axes given no noise
+    private static final double MIN_VAR = 1e-9;
+
+    // orientation, body to world
+    private double mQw = 1;
+    private double mQx;
+    private double mQy;
+    private double mQz;
+    private final double[] mPosition = new double[AXES];
+    private final double[] mVelocity = new double[AXES];
+
+    private final double[] mP = new double[N * N];
+    private final double[] mF = new double[N * N];
+    private final double[] mTmp = new double[N * N];
+    private final double[] mK = new double[N * AXES];
+    private final double[] mSInv = new double[AXES * AXES];
+    private final double[] mDelta = new double[N];
+    private final double[] mWorld = new double[AXES];
+
+    private final double[] mAccVar = new double[AXES];
+    private final double[] mR = new double[AXES];
+    private final double mGyroVar;
+
+    /**
+     *
+     * @param gpsValues Initial GPS reading per axis
+     * @param gpsNoise GPS noise per axis
+     * @param accNoise Acceleration noise per world axis
+     * @param gyroNoise Angular rate noise in rad/s
+     */
+    public OrientationFilter(double[] gpsValues, double[] gpsNoise, double[] accNoise, double gyroNoise) {
+        for (int i = 0; i < AXES; ++i) {
+            mPosition[i] = gpsValues[i];
+            mAccVar[i] = Math.max(accNoise[i] * accNoise[i], MIN_VAR);
+            mR[i] = Math.max(gpsNoise[i] * gpsNoise[i], MIN_VAR);
+            mP[(TH + i) * N + TH + i] = INITIAL_ATTITUDE_VAR;
+            mP[(POS + i) * N + POS + i] = mR[i];
+            mP[(VEL + i) * N + VEL + i] = INITIAL_VELOCITY_VAR;
+        }
+        mGyroVar = gyroNoise * gyroNoise;
+    }
+
+    /**
+     * Starts from a measured orientation, e.g. the rotation vector, instead of identity. Meant for
+     * the first seconds: the velocity integrated so far is kept as it is.
+     * @param w Quaternion rotating the device frame into the world frame, w first
+     * @param attitudeVariance Variance of the attitude error per axis in rad^2
+     */
+    public void initOrientation(double w, double x, double y, double z, double attitudeVariance) {
+        setOrientation(w, x, y, z);
+        for (int i = 0; i < AXES; ++i) mP[(TH + i) * N + TH + i] = attitudeVariance;
+    }
+
+    /**
+     * Rotates the orientation by the angular rate held over {@code dt}.
+     * @param wx Angular rate around the device x axis in rad/s
+     * @param dt Elapsed time in seconds
+     */
+    public void predictOrientation(double wx, double wy, double wz, double dt) {
+        double rate = Math.sqrt(wx * wx + wy * wy + wz * wz);
+        double half = rate * dt / 2;
+        double c = Math.cos(half);
+        // sin(x)/x without the division by zero
+        double s = rate > 1e-12 ? Math.sin(half) / rate : dt / 2;
+        double dx = wx * s;
+        double dy = wy * s;
+        double dz = wz * s;
+        // q = q * dq, the rate is measured in the body frame
+        double w = mQw * c - mQx * dx - mQy * dy - mQz * dz;
+        double x = mQw * dx + mQx * c + mQy * dz - mQz * dy;
+        double y = mQw * dy - mQx * dz + mQy * c + mQz * dx;
+        double z = mQw * dz + mQx * dy - mQy * dx + mQz * c;
+        setOrientation(w, x, y, z);
+        // the world-frame attitude error only grows by the rotated, isotropic rate noise
+        double q = mGyroVar * dt * dt;
+        for (int i = 0; i < AXES; ++i) mP[(TH + i) * N + TH + i] += q;
+    }
+
+    /**
+     * Integrates the device acceleration held over {@code dt} into velocity and position.
+     * @param ax Gravity-free acceleration along the device x axis
+     * @param dt Elapsed time in seconds
+     */
+    public void predictMotion(double ax, double ay, double az, double dt) {
+        rotate(ax, ay, az, mWorld);
+        double b0 = dt * dt / 2d;
+        for (int i = 0; i < AXES; ++i) {
+            mPosition[i] += dt * mVelocity[i] + b0 * mWorld[i];
+            mVelocity[i] += dt * mWorld[i];
+        }
+
+        // F = I + d(pos)/d(vel) dt - [a]x dt (dt/2 for the position)
+        double[] f = mF;
+        for (int i = 0; i < N * N; ++i) f[i] = 0;
+        for (int i = 0; i < N; ++i) f[i * N + i] = 1;
+        for (int i = 0; i < AXES; ++i) f[(POS + i) * N + VEL + i] = dt;
+        skew(-dt, VEL);
+        skew(-b0, POS);
+
+        // P = F P F' + Q
+        multiply(f, mP, mTmp);
+        multiplyTransposed(mTmp, f, mP);
+        double dt3 = dt * dt * dt / 2d;
+        double dt4 = dt * dt * dt * dt / 4d;
+        double dt2 = dt * dt;
+        for (int i = 0; i < AXES; ++i) {
+            double accVar = mAccVar[i];
+            mP[(POS + i) * N + POS + i] += dt4 * accVar;
+            mP[(POS + i) * N + VEL + i] += dt3 * accVar;
+            mP[(VEL + i) * N + POS + i] += dt3 * accVar;
+            mP[(VEL + i) * N + VEL + i] += dt2 * accVar;
+        }
+    }
+
+    /**
+     * Writes {@code scale * [mWorld]x} into the rows of block {@code row}, attitude columns of F.
+     */
+    private void skew(double scale, int row) {
+        double ax = mWorld[0] * scale;
+        double ay = mWorld[1] * scale;
+        double az = mWorld[2] * scale;
+        mF[row * N + TH + 1] = -az;
+        mF[row * N + TH + 2] = ay;
+        mF[(row + 1) * N + TH] = az;
+        mF[(row + 1) * N + TH + 2] = -ax;
+        mF[(row + 2) * N + TH] = -ay;
+        mF[(row + 2) * N + TH + 1] = ax;
+    }
+
+    /**
+     *
+     * @param z GPS readings, one per axis
+     */
+    public void correct(double[] z) {
+        double[] p = mP;
+        // S = H P H' + R, the position block
+        double s00 = p[POS * N + POS] + mR[0];
+        double s01 = p[POS * N + POS + 1];
+        double s02 = p[POS * N + POS + 2];
+        double s11 = p[(POS + 1) * N + POS + 1] + mR[1];
+        double s12 = p[(POS + 1) * N + POS + 2];
+        double s22 = p[(POS + 2) * N + POS + 2] + mR[2];
+        double c00 = s11 * s22 - s12 * s12;
+        double c01 = s02 * s12 - s01 * s22;
+        double c02 = s01 * s12 - s02 * s11;
+        double det = s00 * c00 + s01 * c01 + s02 * c02;
+        double[] si = mSInv;
+        si[0] = c00 / det;
+        si[1] = si[3] = c01 / det;
+        si[2] = si[6] = c02 / det;
+        si[4] = (s00 * s22 - s02 * s02) / det;
+        si[5] = si[7] = (s01 * s02 - s00 * s12) / det;
+        si[8] = (s00 * s11 - s01 * s01) / det;
+
+        // K = P H' S^-1
+        for (int r = 0; r < N; ++r) {
+            for (int c = 0; c < AXES; ++c) {
+                double sum = 0;
+                for (int k = 0; k < AXES; ++k) sum += p[r * N + POS + k] * si[k * AXES + c];
+                mK[r * AXES + c] = sum;
+            }
+        }
+        // dx = K (z - H x)
+        double y0 = z[0] - mPosition[0];
+        double y1 = z[1] - mPosition[1];
+        double y2 = z[2] - mPosition[2];
+        for (int r = 0; r < N; ++r) {
+            mDelta[r] = mK[r * AXES] * y0 + mK[r * AXES + 1] * y1 + mK[r * AXES + 2] * y2;
+        }
+        // P = P - K H P, symmetrized against rounding
+        for (int r = 0; r < N; ++r) {
+            for (int c = 0; c < N; ++c) {
+                double sum = 0;
+                for (int k = 0; k < AXES; ++k) sum += mK[r * AXES + k] * p[(POS + k) * N + c];
+                mTmp[r * N + c] = p[r * N + c] - sum;
+            }
+        }
+        for (int r = 0; r < N; ++r) {
+            for (int c = r; c < N; ++c) {
+                double v = (mTmp[r * N + c] + mTmp[c * N + r]) / 2;
+                p[r * N + c] = v;
+                p[c * N + r] = v;
+            }
+        }
+        inject();
+    }
+
+    private void inject() {
+        for (int i = 0; i < AXES; ++i) {
+            mPosition[i] += mDelta[POS + i];
+            mVelocity[i] += mDelta[VEL + i];
+        }
+        // q = dq(dtheta) * q, the attitude error is in the world frame
+        double dx = mDelta[TH] / 2;
+        double dy = mDelta[TH + 1] / 2;
+        double dz = mDelta[TH + 2] / 2;
+        double w = mQw - dx * mQx - dy * mQy - dz * mQz;
+        double x = dx * mQw + mQx + dy * mQz - dz * mQy;
+        double y = dy * mQw + mQy + dz * mQx - dx * mQz;
+        double z = dz * mQw + mQz + dx * mQy - dy * mQx;
+        setOrientation(w, x, y, z);
+    }
+
+    private void setOrientation(double w, double x, double y, double z) {
+        double norm = Math.sqrt(w * w + x * x + y * y + z * z);
+        mQw = w / norm;
+        mQx = x / norm;
+        mQy = y / norm;
+        mQz = z / norm;
+    }
+
+    /**
+     * Rotates a device frame vector into the world frame.
+     */
+    public void rotate(double x, double y, double z, double[] out) {
+        double w = mQw;
+        double qx = mQx;
+        double qy = mQy;
+        double qz = mQz;
+        // v + 2 q x (q x v + w v)
+        double tx = 2 * (qy * z - qz * y);
+        double ty = 2 * (qz * x - qx * z);
+        double tz = 2 * (qx * y - qy * x);
+        out[0] = x + w * tx + qy * tz - qz * ty;
+        out[1] = y + w * ty + qz * tx - qx * tz;
+        out[2] = z + w * tz + qx * ty - qy * tx;
+    }
+
+    /**
+     * out = f * b, skipping the zeros of the sparse {@code f}.
+     */
+    private static void multiply(double[] f, double[] b, double[] out) {
+        for (int i = 0; i < N * N; ++i) out[i] = 0;
+        for (int r = 0; r < N; ++r) {
+            for (int k = 0; k < N; ++k) {
+                double v = f[r * N + k];
+                if (v == 0) continue;
+                for (int c = 0; c < N; ++c) out[r * N + c] += v * b[k * N + c];
+            }
+        }
+    }
+
+    /**
+     * out = a * f', skipping the zeros of the sparse {@code f}.
+     */
+    private static void multiplyTransposed(double[] a, double[] f, double[] out) {
+        for (int i = 0; i < N * N; ++i) out[i] = 0;
+        for (int c = 0; c < N; ++c) {
+            for (int k = 0; k < N; ++k) {
+                double v = f[c * N + k];
+                if (v == 0) continue;
+                for (int r = 0; r < N; ++r) out[r * N + c] += a[r * N + k] * v;
+            }
+        }
+    }
+
+    public double getPosition(int axis) { return mPosition[axis]; }
+
+    public double getVelocity(int axis) { return mVelocity[axis]; }
+
+    public double getPositionVariance(int axis) { return mP[(POS + axis) * N + POS + axis]; }
+
+    /**
+     *
+     * @param i 0 for w, then x, y and z
+     */
+    public double getOrientation(int i) {
+        switch (i) {
+            case 0: return mQw;
+            case 1: return mQx;
+            case 2: return mQy;
+            default: return mQz;
+        }
+    }
+}
@@ -0,0 +1,438 @@
+package app.imu.indoortrack.sensor;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Position and velocity as a cloud of weighted particles, for beliefs a Gaussian cannot hold, e.g.
+ * a position on one of two floors. Each particle integrates the acceleration with its own noise,
+ * GPS positions weigh the particles by their likelihood and, once few particles carry the weight,
+ * systematic resampling draws a new evenly weighted cloud. The estimate is the weighted mean.
+ * <p>
+ * Particles are kept as one array per state variable and processed in chunks of
+ * {@link #CHUNK_SIZE}, each with its own random number generator, so the plain loops over the
+ * arrays vectorize and the chunks can be spread over a {@link ForkJoinPool}. Results do not depend
+ * on the pool or its size. Resampling writes into a second set of arrays and swaps them, so no
+ * update allocates when run on the calling thread.
+ */
+public class ParticleFilter {
+
+    public static final int AXES = 3;
+    public static final int CHUNK_SIZE = 1024;
+    // below this the pool costs more than it saves
+    public static final int MIN_PARALLEL_PARTICLES = 8 * CHUNK_SIZE;
+
+    // resample once the effective number of particles falls below this share of them
+    private static final double RESAMPLE_THRESHOLD = 0.5;
+    private static final double INITIAL_VELOCITY_SD = 1;
+    // a fix this many standard deviations from every particle starts the cloud over around it
+    private static final double MAX_FIX_DISTANCE_SD = 5;
+    // each 16 bit uniform has a variance of 65536^2 / 12
+    private static final double GAUSSIAN_SCALE = Math.sqrt(3) / 65536;
+
+    private static final int OP_PREDICT = 0;
+    private static final int OP_LIKELIHOOD = 1;
+    private static final int OP_WEIGH = 2;
+    private static final int OP_RESAMPLE = 3;
+    private static final int OP_SUM = 4;
+
+    // per chunk: sum of the weights and of their squares, weighted sums of each state variable and of its square
+    private static final int SUM_WEIGHT = 0;
+    private static final int SUM_WEIGHT2 = 1;
+    private static final int SUM_STATE = 2;
+    private static final int SUM_STATE2 = SUM_STATE + 2 * AXES;
+    private static final int SUMS = SUM_STATE2 + 2 * AXES;
+
+    private final int mCount;
+    private final int mChunks;
+    // position per axis, then velocity per axis
+    private double[][] mState = new double[2 * AXES][];
+    private double[][] mSpare = new double[2 * AXES][];
+    private double[] mWeights;
+    private double[] mSpareWeights;
+    // noise, then log likelihood
+    private final double[] mScratch;
+    private final long[] mRandom;
+    private final double[] mChunkSums;
+    private final double[] mChunkMax;
+    // cumulative weight before each chunk, for resampling
+    private final double[] mChunkStart;
+    private long mResampleRandom;
+
+    private final double[] mAccSd = new double[AXES];
+    private final double[] mGpsSd = new double[AXES];
+    // 0 for an axis GPS does not measure
+    private final double[] mGpsInvVar = new double[AXES];
+    private double mTotalWeight;
+
+    private final double[] mMean = new double[2 * AXES];
+    private final double[] mVariance = new double[AXES];
+    private long mResamplings;
+    private long mRespawns;
+
+    private ForkJoinPool mPool;
+    // arguments of the running operation
+    private final double[] mInput = new double[AXES];
+    private double mDt;
+    private double mMaxLikelihood;
+    private double mResampleOffset;
+
+    /**
+     *
+     * @param count Number of particles
+     * @param gpsValues Initial GPS reading per axis, the particles are spread around it
+     * @param gpsNoise GPS standard deviation per axis, 0 for an axis without measurements
+     * @param accNoise Acceleration noise per axis, averaged over one second
+     * @param seed Seed of the random numbers, the same seed gives the same results
+     */
+    public ParticleFilter(int count, double[] gpsValues, double[] gpsNoise, double[] accNoise, long seed) {
+        mCount = count;
+        mChunks = (count + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        for (int i = 0; i < 2 * AXES; ++i) {
+            mState[i] = new double[count];
+            mSpare[i] = new double[count];
+        }
+        mWeights = new double[count];
+        mSpareWeights = new double[count];
+        mScratch = new double[count * AXES];
+        mRandom = new long[mChunks];
+        mChunkSums = new double[mChunks * SUMS];
+        mChunkMax = new double[mChunks];
+        mChunkStart = new double[mChunks];
+        for (int c = 0; c < mChunks; ++c) mRandom[c] = mix(seed + c);
+        mResampleRandom = mix(seed - 1);
+        System.arraycopy(accNoise, 0, mAccSd, 0, AXES);
+        setGpsNoise(gpsNoise);
+        spread(gpsValues);
+    }
+
+    private void setGpsNoise(double[] gpsNoise) {
+        for (int i = 0; i < AXES; ++i) {
+            mGpsSd[i] = gpsNoise[i];
+            mGpsInvVar[i] = gpsNoise[i] > 0 ? 1 / (gpsNoise[i] * gpsNoise[i]) : 0;
+        }
+    }
+
+    /**
+     * Draws evenly weighted particles around a GPS position.
+     */
+    private void spread(double[] z) {
+        for (int c = 0; c < mChunks; ++c) {
+            long random = mRandom[c];
+            for (int p = c * CHUNK_SIZE; p < Math.min(mCount, (c + 1) * CHUNK_SIZE); ++p) {
+                for (int i = 0; i < AXES; ++i) {
+                    random = next(random);
+                    mState[i][p] = z[i] + mGpsSd[i] * gaussian(random);
+                    random = next(random);
+                    mState[AXES + i][p] = INITIAL_VELOCITY_SD * gaussian(random);
+                }
+                mWeights[p] = 1;
+            }
+            mRandom[c] = random;
+        }
+        mTotalWeight = mCount;
+        run(OP_SUM);
+        updateMoments();
+    }
+
+    /**
+     * Spreads the chunks over {@code pool} for {@link #MIN_PARALLEL_PARTICLES} or more particles;
+     * null (the default) runs on the calling thread. ForkJoinPool needs API 21.
+     */
+    public void setPool(ForkJoinPool pool) { mPool = pool; }
+
+    /**
+     * Moves every particle by the acceleration held over {@code dt}, plus noise.
+     * @param u Acceleration per axis
+     * @param dt Elapsed time in seconds
+     */
+    public void predict(double[] u, double dt) {
+        System.arraycopy(u, 0, mInput, 0, AXES);
+        mDt = dt;
+        run(OP_PREDICT);
+        updateMoments();
+    }
+
+    /**
+     * Corrects with a fix as accurate as the previous one, see {@link #correct(double[], double[])}.
+     */
+    public void correct(double[] z) {
+        correct(z, mGpsSd);
+    }
+
+    /**
+     * Weighs the particles by the likelihood of a GPS position and resamples if needed. Particles
+     * that all lie far from the position, e.g. after a long time without fixes, are drawn anew
+     * around it.
+     * @param z GPS position per axis
+     * @param gpsNoise Standard deviation of this position per axis, 0 for an axis without measurements
+     */
+    public void correct(double[] z, double[] gpsNoise) {
+        if (gpsNoise != mGpsSd) setGpsNoise(gpsNoise);
+        System.arraycopy(z, 0, mInput, 0, AXES);
+        run(OP_LIKELIHOOD);
+        mMaxLikelihood = Double.NEGATIVE_INFINITY;
+        for (int c = 0; c < mChunks; ++c) mMaxLikelihood = Math.max(mMaxLikelihood, mChunkMax[c]);
+        if (mMaxLikelihood < -0.5 * MAX_FIX_DISTANCE_SD * MAX_FIX_DISTANCE_SD) {
+            ++mRespawns;
+            spread(z);
+            return;
+        }
+        run(OP_WEIGH);
+        double total = 0;
+        double total2 = 0;
+        for (int c = 0; c < mChunks; ++c) {
+            total += mChunkSums[c * SUMS + SUM_WEIGHT];
+            total2 += mChunkSums[c * SUMS + SUM_WEIGHT2];
+        }
+        if (!(total > 0)) {
+            // no particle is anywhere near, forget the weights rather than divide by zero
+            Arrays.fill(mWeights, 1);
+            mTotalWeight = mCount;
+            run(OP_SUM);
+            updateMoments();
+            return;
+        }
+        mTotalWeight = total;
+        updateMoments();
+        if (total * total / total2 < RESAMPLE_THRESHOLD * mCount) resample();
+    }
+
+    /**
+     * Systematic resampling: one random offset, then evenly spaced picks along the cumulative
+     * weights. Each chunk picks for its own range of the cumulative weights, which the prefix sums
+     * of the chunk weights tell it, so the chunks resample independently.
+     */
+    private void resample() {
+        mResampleRandom = next(mResampleRandom);
+        mResampleOffset = uniform(mResampleRandom);
+        double cumulative = 0;
+        for (int c = 0; c < mChunks; ++c) {
+            mChunkStart[c] = cumulative;
+            cumulative += mChunkSums[c * SUMS + SUM_WEIGHT];
+        }
+        run(OP_RESAMPLE);
+        double[][] state = mState;
+        mState = mSpare;
+        mSpare = state;
+        double[] weights = mWeights;
+        mWeights = mSpareWeights;
+        mSpareWeights = weights;
+        mTotalWeight = mCount;
+        ++mResamplings;
+        // the weighted mean stays the estimate, the sums are for the next update
+        run(OP_SUM);
+    }
+
+    private void run(int op) {
+        if (mPool != null && mCount >= MIN_PARALLEL_PARTICLES) {
+            mPool.invoke(new ChunkTask(op, 0, mChunks));
+        } else {
+            for (int c = 0; c < mChunks; ++c) runChunk(op, c);
+        }
+    }
+
+    /**
+     * Splits a range of chunks in halves down to single chunks.
+     */
+    private class ChunkTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int mOp;
+        private final int mFrom;
+        private final int mTo;
+
+        ChunkTask(int op, int from, int to) {
+            mOp = op;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom == 1) {
+                runChunk(mOp, mFrom);
+            } else {
+                int middle = (mFrom + mTo) >>> 1;
+                invokeAll(new ChunkTask(mOp, mFrom, middle), new ChunkTask(mOp, middle, mTo));
+            }
+        }
+    }
+
+    private void runChunk(int op, int chunk) {
+        switch (op) {
+            case OP_PREDICT: predictChunk(chunk); sum(chunk); break;
+            case OP_LIKELIHOOD: likelihoodChunk(chunk); break;
+            case OP_WEIGH: weighChunk(chunk); sum(chunk); break;
+            case OP_RESAMPLE: resampleChunk(chunk); break;
+            case OP_SUM: sum(chunk); break;
+        }
+    }
+
+    private void predictChunk(int chunk) {
+        int from = chunk * CHUNK_SIZE;
+        int to = Math.min(mCount, from + CHUNK_SIZE);
+        // the noise first, then plain arithmetic over the arrays
+        long random = mRandom[chunk];
+        for (int k = from * AXES; k < to * AXES; ++k) {
+            random = next(random);
+            mScratch[k] = gaussian(random);
+        }
+        mRandom[chunk] = random;
+        double dt = mDt;
+        // white noise averaged over dt, so the velocity spreads the same whatever the step
+        double noiseScale = dt > 0 ? 1 / Math.sqrt(dt) : 0;
+        for (int i = 0; i < AXES; ++i) {
+            double[] position = mState[i];
+            double[] velocity = mState[AXES + i];
+            double u = mInput[i];
+            double sd = mAccSd[i] * noiseScale;
+            // each axis takes the next run of noise of the chunk
+            for (int p = from, k = from * AXES + i * (to - from); p < to; ++p, ++k) {
+                double a = u + sd * mScratch[k];
+                velocity[p] += a * dt;
+                position[p] += velocity[p] * dt;
+            }
+        }
+    }
+
+    private void likelihoodChunk(int chunk) {
+        int from = chunk * CHUNK_SIZE;
+        int to = Math.min(mCount, from + CHUNK_SIZE);
+        for (int p = from; p < to; ++p) mScratch[p] = 0;
+        for (int i = 0; i < AXES; ++i) {
+            double[] position = mState[i];
+            double z = mInput[i];
+            double scale = -0.5 * mGpsInvVar[i];
+            for (int p = from; p < to; ++p) {
+                double d = position[p] - z;
+                mScratch[p] += scale * d * d;
+            }
+        }
+        double max = Double.NEGATIVE_INFINITY;
+        for (int p = from; p < to; ++p) max = Math.max(max, mScratch[p]);
+        mChunkMax[chunk] = max;
+    }
+
+    private void weighChunk(int chunk) {
+        int from = chunk * CHUNK_SIZE;
+        int to = Math.min(mCount, from + CHUNK_SIZE);
+        // relative to the best particle, so the largest factor is 1 and nothing overflows
+        double max = mMaxLikelihood;
+        double scale = 1 / mTotalWeight;
+        for (int p = from; p < to; ++p) mWeights[p] *= scale * Math.exp(mScratch[p] - max);
+    }
+
+    private void resampleChunk(int chunk) {
+        int from = chunk * CHUNK_SIZE;
+        int to = Math.min(mCount, from + CHUNK_SIZE);
+        double step = mTotalWeight / mCount;
+        double offset = mResampleOffset;
+        // picks are made at (j + offset) * step, the chunk makes those in its range of the
+        // cumulative weights, computed the same way for neighboring chunks
+        double start = mChunkStart[chunk];
+        double end = chunk + 1 < mChunks ? mChunkStart[chunk + 1] : mTotalWeight;
+        int first = Math.max(0, Math.min(mCount, (int) Math.ceil(start / step - offset)));
+        int last = chunk + 1 < mChunks ? Math.max(0, Math.min(mCount, (int) Math.ceil(end / step - offset))) : mCount;
+        int p = from;
+        double cumulative = start + mWeights[p];
+        for (int j = first; j < last; ++j) {
+            double pick = (j + offset) * step;
+            while (cumulative <= pick && p < to - 1) cumulative += mWeights[++p];
+            for (int i = 0; i < 2 * AXES; ++i) mSpare[i][j] = mState[i][p];
+            mSpareWeights[j] = 1;
+        }
+    }
+
+    /**
+     * Weighted sums of a chunk, combined in chunk order by {@link #updateMoments}.
+     */
+    private void sum(int chunk) {
+        int from = chunk * CHUNK_SIZE;
+        int to = Math.min(mCount, from + CHUNK_SIZE);
+        int base = chunk * SUMS;
+        double weight = 0;
+        double weight2 = 0;
+        for (int p = from; p < to; ++p) {
+            weight += mWeights[p];
+            weight2 += mWeights[p] * mWeights[p];
+        }
+        mChunkSums[base + SUM_WEIGHT] = weight;
+        mChunkSums[base + SUM_WEIGHT2] = weight2;
+        for (int i = 0; i < 2 * AXES; ++i) {
+            double[] state = mState[i];
+            double sum = 0;
+            double sum2 = 0;
+            for (int p = from; p < to; ++p) {
+                double w = mWeights[p] * state[p];
+                sum += w;
+                sum2 += w * state[p];
+            }
+            mChunkSums[base + SUM_STATE + i] = sum;
+            mChunkSums[base + SUM_STATE2 + i] = sum2;
+        }
+    }
+
+    private void updateMoments() {
+        double total = 0;
+        for (int c = 0; c < mChunks; ++c) total += mChunkSums[c * SUMS + SUM_WEIGHT];
+        for (int i = 0; i < 2 * AXES; ++i) {
+            double sum = 0;
+            double sum2 = 0;
+            for (int c = 0; c < mChunks; ++c) {
+                sum += mChunkSums[c * SUMS + SUM_STATE + i];
+                sum2 += mChunkSums[c * SUMS + SUM_STATE2 + i];
+            }
+            mMean[i] = sum / total;
+            if (i < AXES) mVariance[i] = Math.max(0, sum2 / total - mMean[i] * mMean[i]);
+        }
+    }
+
+    /**
+     * xorshift64*, one long of state per chunk.
+     */
+    private static long next(long x) {
+        x ^= x >>> 12;
+        x ^= x << 25;
+        x ^= x >>> 27;
+        return x * 2685821657736338717L;
+    }
+
+    private static double uniform(long x) { return (x >>> 11) * 0x1.0p-53; }
+
+    /**
+     * Standard normal noise as the sum of the four 16 bit uniforms in {@code x}, scaled to unit
+     * variance. Bounded to 3.5 standard deviations, which process noise does not miss, and a tenth
+     * of the cost of Box-Muller.
+     */
+    private static double gaussian(long x) {
+        long sum = (x & 0xFFFF) + (x >>> 16 & 0xFFFF) + (x >>> 32 & 0xFFFF) + (x >>> 48);
+        return (sum + 2 - 2 * 65536) * GAUSSIAN_SCALE;
+    }
+
+    /**
+     * Spreads seeds that differ in few bits, xorshift must not start from 0.
+     */
+    private static long mix(long seed) {
+        long x = (seed ^ 0x9E3779B97F4A7C15L) * 0xBF58476D1CE4E5B9L;
+        x ^= x >>> 31;
+        return x == 0 ? 1 : x;
+    }
+
+    public int getCount() { return mCount; }
+
+    public double getPosition(int axis) { return mMean[axis]; }
+
+    public double getVelocity(int axis) { return mMean[AXES + axis]; }
+
+    public double getPositionVariance(int axis) { return mVariance[axis]; }
+
+    public long getResamplings() { return mResamplings; }
+
+    /**
+     * Times the particles were drawn anew around a fix far from all of them.
+     */
+    public long getRespawns() { return mRespawns; }
+}
@@ -0,0 +1,61 @@
+package app.imu.indoortrack.sensor;
+
+public class Projection {
+    static final double R = 6378137; // radius
+    static final double E = 8.1819190842622e-2;  // eccentricity
+
+    static final double ASQ = R * R;
+    static final double ESQ = E * E;
+
+    // derived ellipsoid constants, computed once instead of on every call
+    private static final double B = Math.sqrt(ASQ * (1 - ESQ));
+    private static final double EPSQ = (ASQ - B * B) / (B * B); // second eccentricity squared
+    private static final double TWO_PI = 2 * Math.PI;
+
+    public static double[] cartesianToGeodetic(double x, double y, double z) {
+        double[] geodetic = new double[3];
+        cartesianToGeodetic(x, y, z, geodetic);
+        return geodetic;
+    }
+
+    /**
+     *
+     * @param out Receives latitude and longitude in degrees and altitude in meters
+     */
+    public static void cartesianToGeodetic(double x, double y, double z, double[] out) {
+        double p = Math.sqrt(x * x + y * y);
+        double th = Math.atan2(R * z, B * p);
+        double lon = Math.atan2(y, x);
+        double sinTh = Math.sin(th);
+        double cosTh = Math.cos(th);
+        double lat = Math.atan2(z + EPSQ * B * sinTh * sinTh * sinTh, p - ESQ * R * cosTh * cosTh * cosTh);
+        double sinLat = Math.sin(lat);
+        double N = R / Math.sqrt(1 - ESQ * sinLat * sinLat);
+        double alt = p / Math.cos(lat) - N;
+        lon = lon % TWO_PI;
+        out[0] = Math.toDegrees(lat);
+        out[1] = Math.toDegrees(lon);
+        out[2] = alt;
+    }
+
+    public static double[] geodeticToCartesian(double lat, double lon, double alt) {
+        double[] cartesian = new double[3];
+        geodeticToCartesian(lat, lon, alt, cartesian);
+        return cartesian;
+    }
+
+    /**
+     *
+     * @param out Receives ECEF x, y and z in meters
+     */
+    public static void geodeticToCartesian(double lat, double lon, double alt, double[] out) {
+        lat = Math.toRadians(lat);
+        lon = Math.toRadians(lon);
+        double sinLat = Math.sin(lat);
+        double cosLat = Math.cos(lat);
+        double N = R / Math.sqrt(1 - ESQ * sinLat * sinLat);
+        out[0] = (N + alt) * cosLat * Math.cos(lon);
+        out[1] = (N + alt) * cosLat * Math.sin(lon);
+        out[2] = ((1 - ESQ) * N + alt) * sinLat;
+    }
+}
@@ -0,0 +1,83 @@
+package app.imu.indoortrack.sensor;
+
+/**
+ * Mean and variance of a stream of values in constant space (Welford's algorithm). With a window
+ * set, samples beyond the window are weighted exponentially, so the statistics follow drift
+ * instead of averaging over the whole history.
+ */
+public class RunningStatistics {
+
+    private long mCount;
+    private double mMean;
+    private double mM2;
+    private int mWindow;
+
+    public RunningStatistics() {}
+
+    public RunningStatistics(long count, double mean, double m2) {
+        mCount = count;
+        mMean = mean;
+        mM2 = m2;
+    }
+
+    /**
+     *
+     * @param window Number of samples the statistics should cover, or 0 to cover all of them. A
+     *               variance needs two, so 1 is taken as 2.
+     */
+    public void setWindow(int window) {
+        if (window < 0) throw new IllegalArgumentException("window = " + window);
+        mWindow = window == 1 ? 2 : window;
+    }
+
+    public int getWindow() { return mWindow; }
+
+    public void add(double value) {
+        double delta = value - mMean;
+        if (mWindow > 0 && mCount >= mWindow) {
+            // exponentially weighted update, M2 kept at the scale of a full window
+            if (mCount > mWindow) {
+                mM2 *= (mWindow - 1.) / (mCount - 1);
+                mCount = mWindow;
+            }
+            double increment = delta / mWindow;
+            mMean += increment;
+            mM2 = (1 - 1. / mWindow) * (mM2 + (mWindow - 1) * delta * increment);
+            return;
+        }
+        ++mCount;
+        mMean += delta / mCount;
+        mM2 += delta * (value - mMean);
+    }
+
+    /**
+     * Combines the statistics of another stream into this one.
+     */
+    public void merge(RunningStatistics other) {
+        if (other.mCount == 0) return;
+        long count = mCount + other.mCount;
+        double delta = other.mMean - mMean;
+        mMean += delta * other.mCount / count;
+        mM2 += other.mM2 + delta * delta * mCount * other.mCount / count;
+        mCount = count;
+    }
+
+    public void clear() {
+        mCount = 0;
+        mMean = 0;
+        mM2 = 0;
+    }
+
+    public long getCount() { return mCount; }
+
+    public double getMean() { return mMean; }
+
+    public double getM2() { return mM2; }
+
+    /**
+     * Sample variance, NaN for less than two values.
+     */
+    public double getVariance() { return mCount < 2 ? Double.NaN : mM2 / (mCount - 1); }
+
+    public double getStandardDeviation() { return Math.sqrt(getVariance()); }
+}
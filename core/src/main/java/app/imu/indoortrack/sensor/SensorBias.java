@@ -0,0 +1,93 @@
+package app.imu.indoortrack.sensor;
+
+import java.util.List;
+
+/**
+ * Accelerometer noise per axis, the standard deviation of the calibration readings. Only the
+ * running count, mean and M2 of each axis are kept, so the serialized form has a fixed size.
+ */
+public class SensorBias {
+
+    private RunningStatistics mStatsX = new RunningStatistics();
+    private RunningStatistics mStatsY = new RunningStatistics();
+    private RunningStatistics mStatsZ = new RunningStatistics();
+    private double mBiasX;
+    private double mBiasY;
+    private double mBiasZ;
+    // full reading history stored by earlier versions, folded into the statistics on load
+    private List<Double> mVecX;
+    private List<Double> mVecY;
+    private List<Double> mVecZ;
+
+    public SensorBias() {}
+
+    /**
+     * Bias with known standard deviations, e.g. for replaying sessions whose calibration
+     * readings were not recorded.
+     */
+    public SensorBias(double biasX, double biasY, double biasZ) {
+        mBiasX = biasX;
+        mBiasY = biasY;
+        mBiasZ = biasZ;
+    }
+
+    /**
+     * Bias from previously collected statistics, e.g. a stored calibration.
+     */
+    public SensorBias(RunningStatistics statsX, RunningStatistics statsY, RunningStatistics statsZ) {
+        mStatsX = statsX;
+        mStatsY = statsY;
+        mStatsZ = statsZ;
+    }
+
+    public void add(double accX, double accY, double accZ) {
+        mStatsX.add(accX);
+        mStatsY.add(accY);
+        mStatsZ.add(accZ);
+    }
+
+    /**
+     * Limits the statistics to roughly the last {@code rounds} readings so that calibration can
+     * continue while tracking; 0 keeps all readings.
+     */
+    public void setWindow(int rounds) {
+        mStatsX.setWindow(rounds);
+        mStatsY.setWindow(rounds);
+        mStatsZ.setWindow(rounds);
+    }
+
+    public long getCount() { return mStatsX.getCount(); }
+
+    /**
+     * Replaces a reading history loaded from an earlier version by its statistics.
+     * @return true if there was one, in which case the bias should be stored again
+     */
+    public boolean migrateLegacyHistory() {
+        if (mVecX == null && mVecY == null && mVecZ == null) return false;
+        mStatsX = fold(mVecX);
+        mStatsY = fold(mVecY);
+        mStatsZ = fold(mVecZ);
+        mVecX = mVecY = mVecZ = null;
+        return true;
+    }
+
+    private static RunningStatistics fold(List<Double> values) {
+        RunningStatistics stats = new RunningStatistics();
+        if (values != null) {
+            for (double value: values) {
+                stats.add(value);
+            }
+        }
+        return stats;
+    }
+
+    public RunningStatistics getStatsX() { return mStatsX; }
+    public RunningStatistics getStatsY() { return mStatsY; }
+    public RunningStatistics getStatsZ() { return mStatsZ; }
+
+    public double getBiasX() { return mStatsX.getCount() == 0 ? mBiasX : mStatsX.getStandardDeviation(); }
+
+    public double getBiasY() { return mStatsY.getCount() == 0 ? mBiasY : mStatsY.getStandardDeviation(); }
+
+    public double getBiasZ() { return mStatsZ.getCount() == 0 ? mBiasZ : mStatsZ.getStandardDeviation(); }
+}
@@ -0,0 +1,103 @@
+package app.imu.indoortrack.sensor;
+
+/**
+ * Position/velocity Kalman filter for a single axis using a constant acceleration model.
+ * The 2x2 matrix algebra is expanded in closed form over primitive fields so that an
+ * {@link #estimate(double, double)} call does not allocate.
+ */
+public class SensorDataFilter {
+
+    // state vector x = [position, velocity]
+    private double mX0;
+    private double mX1;
+
+    // error covariance P
+    private double mP00;
+    private double mP01;
+    private double mP10;
+    private double mP11;
+
+    // acceleration noise variance, giving the process noise Q, and measurement noise R
+    private final double mAccVar;
+    private final double mR;
+
+    private final double mGpsNoise;
+    private final double mAccNoise;
+
+    private static final double DT = 1d;
+
+    public SensorDataFilter(double gpsValue, double gpsNoise, double accNoise) {
+        mGpsNoise = gpsNoise;
+        mAccNoise = accNoise;
+        mX0 = gpsValue;
+        mX1 = 0;
+        mP00 = 1;
+        mP01 = 1;
+        mP10 = 1;
+        mP11 = 1;
+        mAccVar = accNoise * accNoise;
+        mR = gpsNoise * gpsNoise;
+    }
+
+    /**
+     *
+     * @param u Acceleration Reading
+     * @param z GPS Reading
+     * @return Corrected position
+     */
+    public double estimate(double u, double z) {
+        if (mAccNoise == 0. && mGpsNoise == 0.) return z;
+        predict(u, DT);
+        correct(z);
+        return mX0;
+    }
+
+    /**
+     *
+     * @param u Acceleration Reading
+     * @param dt Elapsed time in seconds
+     */
+    public void predict(double u, double dt) {
+        // x = A x + B u
+        mX0 = mX0 + dt * mX1 + dt * dt / 2d * u;
+        mX1 = mX1 + dt * u;
+
+        // P = A P A' + Q
+        double q01 = dt * dt * dt / 2d * mAccVar;
+        double ap00 = mP00 + dt * mP10;
+        double ap01 = mP01 + dt * mP11;
+        mP00 = ap00 + dt * ap01 + dt * dt * dt * dt / 4d * mAccVar;
+        mP01 = ap01 + q01;
+        mP10 = mP10 + dt * mP11 + q01;
+        mP11 = mP11 + dt * dt * mAccVar;
+    }
+
+    /**
+     *
+     * @param z GPS Reading
+     */
+    public void correct(double z) {
+        // S = H P H' + R, K = P H' S^-1
+        double s = mP00 + mR;
+        double k0 = mP00 / s;
+        double k1 = mP10 / s;
+
+        double innovation = z - mX0;
+        mX0 += k0 * innovation;
+        mX1 += k1 * innovation;
+
+        // P = (I - K H) P
+        double p00 = mP00;
+        double p01 = mP01;
+        mP00 = (1 - k0) * p00;
+        mP01 = (1 - k0) * p01;
+        mP10 -= k1 * p00;
+        mP11 -= k1 * p01;
+    }
+
+    public double getPosition() { return mX0; }
+
+    public double getVelocity() { return mX1; }
+
+    public double getPositionVariance() { return mP00; }
+}
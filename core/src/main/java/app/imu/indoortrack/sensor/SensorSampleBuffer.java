@@ -0,0 +1,142 @@
+package app.imu.indoortrack.sensor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Preallocated single-producer/single-consumer ring buffer of raw sensor samples. The producer
+ * never blocks: when the buffer is full the incoming sample is dropped and counted. The consumer
+ * takes samples one at a time or as blocks straight out of the ring arrays, and parks in
+ * {@link #awaitSamples} while there are none; the next offer wakes it.
+ */
+public class SensorSampleBuffer {
+
+    public interface SampleHandler {
+        void onSample(long timestamp, int sensorType, float x, float y, float z);
+    }
+
+    /**
+     * Consumes samples in blocks, so per-sample calls and checks are paid once per block.
+     */
+    public interface SampleBlockHandler {
+        /**
+         * Samples {@code offset} to {@code offset + count - 1}, in arrival order. The values hold x, y
+         * and z per sample, starting at {@code offset * 3}. The arrays must not be kept past the call.
+         */
+        void onSamples(long[] timestamps, int[] sensorTypes, float[] values, int offset, int count);
+    }
+
+    private final int mMask;
+    private final long[] mTimestamps;
+    private final int[] mTypes;
+    private final float[] mValues;
+
+    // next slot to write, only advanced by the producer
+    private final AtomicLong mTail = new AtomicLong();
+    // next slot to read, only advanced by the consumer
+    private final AtomicLong mHead = new AtomicLong();
+
+    // consumer parked in awaitSamples, taken by the offer that wakes it
+    private final AtomicReference<Thread> mWaiter = new AtomicReference<>();
+
+    private final AtomicLong mDropped = new AtomicLong();
+    private volatile int mHighWaterMark;
+
+    /**
+     *
+     * @param capacity Number of samples, rounded up to a power of two
+     */
+    public SensorSampleBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mMask = size - 1;
+        mTimestamps = new long[size];
+        mTypes = new int[size];
+        mValues = new float[size * 3];
+    }
+
+    /**
+     * Called from the producer thread only.
+     * @return false if the buffer was full and the sample was dropped
+     */
+    public boolean offer(long timestamp, int sensorType, float x, float y, float z) {
+        long tail = mTail.get();
+        int used = (int) (tail - mHead.get());
+        if (used > mMask) {
+            mDropped.lazySet(mDropped.get() + 1);
+            return false;
+        }
+        int slot = (int) tail & mMask;
+        mTimestamps[slot] = timestamp;
+        mTypes[slot] = sensorType;
+        mValues[slot * 3] = x;
+        mValues[slot * 3 + 1] = y;
+        mValues[slot * 3 + 2] = z;
+        // a full store, so either the consumer sees the sample or this sees the consumer waiting
+        mTail.set(tail + 1);
+        if (used + 1 > mHighWaterMark) mHighWaterMark = used + 1;
+        Thread waiter = mWaiter.get();
+        if (waiter != null && mWaiter.compareAndSet(waiter, null)) LockSupport.unpark(waiter);
+        return true;
+    }
+
+    /**
+     * Called from the consumer thread only. Parks until a sample is offered or the thread is
+     * unparked, returning right away if there are samples already; may return spuriously.
+     */
+    public void awaitSamples() {
+        Thread current = Thread.currentThread();
+        mWaiter.set(current);
+        if (size() == 0) LockSupport.park(this);
+        mWaiter.compareAndSet(current, null);
+    }
+
+    /**
+     * Called from the consumer thread only, or once it has stopped. Drops the samples not
+     * drained yet.
+     */
+    public void clear() { mHead.lazySet(mTail.get()); }
+
+    /**
+     * Called from the consumer thread only.
+     * @param maxSamples Upper bound on the number of samples handed out in this call
+     * @return Number of samples passed to the handler
+     */
+    public int drain(SampleHandler handler, int maxSamples) {
+        long head = mHead.get();
+        int available = (int) Math.min(mTail.get() - head, maxSamples);
+        for (int i = 0; i < available; ++i) {
+            int slot = (int) (head + i) & mMask;
+            handler.onSample(mTimestamps[slot], mTypes[slot],
+                    mValues[slot * 3], mValues[slot * 3 + 1], mValues[slot * 3 + 2]);
+        }
+        mHead.lazySet(head + available);
+        return available;
+    }
+
+    /**
+     * Called from the consumer thread only. Hands out at most two blocks, the ring wrapping
+     * around between them.
+     * @param maxSamples Upper bound on the number of samples handed out in this call
+     * @return Number of samples passed to the handler
+     */
+    public int drainBlocks(SampleBlockHandler handler, int maxSamples) {
+        long head = mHead.get();
+        int available = (int) Math.min(mTail.get() - head, maxSamples);
+        if (available == 0) return 0;
+        int slot = (int) head & mMask;
+        int first = Math.min(available, mMask + 1 - slot);
+        handler.onSamples(mTimestamps, mTypes, mValues, slot, first);
+        if (first < available) handler.onSamples(mTimestamps, mTypes, mValues, 0, available - first);
+        mHead.lazySet(head + available);
+        return available;
+    }
+
+    public int size() { return (int) (mTail.get() - mHead.get()); }
+
+    public int capacity() { return mMask + 1; }
+
+    public long getDroppedCount() { return mDropped.get(); }
+
+    public int getHighWaterMark() { return mHighWaterMark; }
+}
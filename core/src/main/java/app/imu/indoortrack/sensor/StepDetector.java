@@ -0,0 +1,154 @@
+package app.imu.indoortrack.sensor;
+
+/**
+ * Streaming step detector for pedestrian dead reckoning, constant time and allocation-free per
+ * sample. The gravity-free acceleration swings around zero, so its magnitude peaks twice per
+ * step; steps are detected instead on the acceleration along its dominant axis, the vertical
+ * bounce of the walk, which is tracked by one power iteration step per sample on an
+ * exponentially weighted covariance. That signal is low-pass filtered and a step is a peak above
+ * an adaptive threshold of its running mean plus a multiple of its standard deviation, at least
+ * {@link #MIN_STEP_INTERVAL_NANOS} after the previous step.
+ * <p>
+ * The step length follows Weinberg, {@code K * (max - min)^(1/4)} over the bounce of the step.
+ * The heading integrates the gyroscope around the same axis, taking the device screen as facing
+ * up rather than down, and is relative to the device x axis at the start.
+ */
+public class StepDetector {
+
+    public static final double DEFAULT_STEP_LENGTH_CONSTANT = 0.45;
+    public static final long MIN_STEP_INTERVAL_NANOS = 250000000L;
+
+    // same values as android.hardware.Sensor.TYPE_*
+    private static final int SENSOR_GYROSCOPE = 4;
+    private static final int SENSOR_LINEAR_ACCELERATION = 10;
+    // time constants of the vertical axis and threshold statistics, and low-pass cutoff
+    private static final double AXIS_TIME_CONSTANT = 2;
+    private static final double STATS_TIME_CONSTANT = 2;
+    private static final double CUTOFF_HZ = 3;
+    private static final double THRESHOLD_DEVIATIONS = 0.5;
+    // bounce below this is standing still or handling noise
+    private static final double MIN_PEAK = 0.5;
+    // longer gaps between samples restart the filters
+    private static final long MAX_SAMPLE_GAP_NANOS = 500000000L;
+
+    private double mStepLengthConstant = DEFAULT_STEP_LENGTH_CONSTANT;
+
+    // exponentially weighted covariance of the acceleration: xx, xy, xz, yy, yz, zz
+    private double mCxx;
+    private double mCxy;
+    private double mCxz;
+    private double mCyy;
+    private double mCyz;
+    private double mCzz;
+    // dominant axis, unit length
+    private double mAxisX;
+    private double mAxisY;
+    private double mAxisZ = 1;
+
+    private long mLastAccTimestamp;
+    private long mLastGyroTimestamp;
+    private double mSignal;
+    private double mMean;
+    private double mVariance;
+
+    private boolean mInPeak;
+    private double mPeak;
+    private long mPeakTimestamp;
+    private double mValley;
+    private long mLastStepTimestamp;
+
+    private double mHeading;
+    private double mStepLength;
+    private long mStepCount;
+
+    public void setStepLengthConstant(double k) { mStepLengthConstant = k; }
+
+    /**
+     * Raw accelerometer or gyroscope sample, timestamp in nanoseconds.
+     * @return true if the sample completed a step, see {@link #getStepLength} and {@link #getHeading}
+     */
+    public boolean onSample(long timestamp, int sensorType, double x, double y, double z) {
+        if (sensorType == SENSOR_GYROSCOPE) {
+            if (mLastGyroTimestamp != 0 && timestamp - mLastGyroTimestamp < MAX_SAMPLE_GAP_NANOS) {
+                double dt = (timestamp - mLastGyroTimestamp) / 1E+9;
+                mHeading += (x * mAxisX + y * mAxisY + z * mAxisZ) * dt;
+            }
+            mLastGyroTimestamp = timestamp;
+            return false;
+        }
+        if (sensorType != SENSOR_LINEAR_ACCELERATION) return false;
+        if (mLastAccTimestamp == 0 || timestamp - mLastAccTimestamp >= MAX_SAMPLE_GAP_NANOS) {
+            mLastAccTimestamp = timestamp;
+            mInPeak = false;
+            return false;
+        }
+        double dt = (timestamp - mLastAccTimestamp) / 1E+9;
+        mLastAccTimestamp = timestamp;
+        updateAxis(x, y, z, dt / (AXIS_TIME_CONSTANT + dt));
+
+        double projected = x * mAxisX + y * mAxisY + z * mAxisZ;
+        double rc = 1 / (2 * Math.PI * CUTOFF_HZ);
+        mSignal += dt / (rc + dt) * (projected - mSignal);
+        double beta = dt / (STATS_TIME_CONSTANT + dt);
+        double delta = mSignal - mMean;
+        mMean += beta * delta;
+        mVariance += beta * (delta * delta - mVariance);
+
+        double threshold = mMean + THRESHOLD_DEVIATIONS * Math.sqrt(mVariance);
+        mValley = Math.min(mValley, mSignal);
+        if (mSignal > threshold && mSignal - mMean > MIN_PEAK) {
+            if (!mInPeak || mSignal > mPeak) {
+                mPeak = mSignal;
+                mPeakTimestamp = timestamp;
+            }
+            mInPeak = true;
+            return false;
+        }
+        if (!mInPeak || mSignal > mMean) return false;
+        // back below the mean, the peak is complete
+        mInPeak = false;
+        if (mPeakTimestamp - mLastStepTimestamp < MIN_STEP_INTERVAL_NANOS) return false;
+        mLastStepTimestamp = mPeakTimestamp;
+        mStepLength = mStepLengthConstant * Math.sqrt(Math.sqrt(Math.max(0, mPeak - mValley)));
+        mValley = mSignal;
+        ++mStepCount;
+        return true;
+    }
+
+    /**
+     *
+     * @param alpha Weight of the new sample
+     */
+    private void updateAxis(double x, double y, double z, double alpha) {
+        mCxx += alpha * (x * x - mCxx);
+        mCxy += alpha * (x * y - mCxy);
+        mCxz += alpha * (x * z - mCxz);
+        mCyy += alpha * (y * y - mCyy);
+        mCyz += alpha * (y * z - mCyz);
+        mCzz += alpha * (z * z - mCzz);
+        double ax = mCxx * mAxisX + mCxy * mAxisY + mCxz * mAxisZ;
+        double ay = mCxy * mAxisX + mCyy * mAxisY + mCyz * mAxisZ;
+        double az = mCxz * mAxisX + mCyz * mAxisY + mCzz * mAxisZ;
+        double norm = Math.sqrt(ax * ax + ay * ay + az * az);
+        if (norm < 1e-9) return;
+        // keep the device z axis pointing up so the heading turns the right way
+        if (az < 0) norm = -norm;
+        mAxisX = ax / norm;
+        mAxisY = ay / norm;
+        mAxisZ = az / norm;
+    }
+
+    /**
+     * Length of the last step in meters.
+     */
+    public double getStepLength() { return mStepLength; }
+
+    /**
+     * Counter-clockwise rotation in radians around the vertical since the start.
+     */
+    public double getHeading() { return mHeading; }
+
+    public long getStepCount() { return mStepCount; }
+
+    public long getLastStepTimestamp() { return mLastStepTimestamp; }
+}
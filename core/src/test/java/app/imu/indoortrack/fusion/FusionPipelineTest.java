@@ -0,0 +1,47 @@
+package app.imu.indoortrack.fusion;
+
+import org.junit.Test;
+
+import app.imu.indoortrack.sensor.SensorBias;
+
+import static org.junit.Assert.assertTrue;
+
+public class FusionPipelineTest {
+
+    private static final long PERIOD_NANOS = 5000000L;
+
+    private static long walk(FusionPipeline pipeline, long timestamp, int samples) {
+        for (int i = 0; i < samples; ++i, timestamp += PERIOD_NANOS) {
+            pipeline.onSample(timestamp, FusionCore.SENSOR_LINEAR_ACCELERATION, 0.1f, 0, 0);
+            pipeline.onSample(timestamp, FusionCore.SENSOR_GYROSCOPE, 0, 0, 0);
+        }
+        return timestamp;
+    }
+
+    /**
+     * A fix published after a reset is applied when the window left over from before closes, ahead
+     * of the first sample that would create the step detector.
+     */
+    @Test
+    public void pedestrianFixAfterReset() {
+        FusionPipeline pipeline = new FusionPipeline(new SensorBias(0.05, 0.05, 0.05), new FusionListener() {
+            @Override
+            public void onCalibrationDone(SensorBias sensorBias) {}
+
+            @Override
+            public void onAcceleration(long timestamp, double accX, double accY, double accZ) {}
+
+            @Override
+            public void onDistance(long timestamp, double dist) {}
+
+            @Override
+            public void onPosition(long timestamp, double lat, double lon, double alt) {}
+        });
+        pipeline.setModel(FusionPipeline.Model.PEDESTRIAN);
+        long timestamp = walk(pipeline, 1000000000L, 400);
+        pipeline.reset();
+        pipeline.onGpsFix(timestamp, 22.5726, 88.3639, 10, 5);
+        walk(pipeline, timestamp, 400);
+        assertTrue(pipeline.isFilterInitialized());
+    }
+}
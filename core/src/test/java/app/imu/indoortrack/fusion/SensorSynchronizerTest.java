@@ -0,0 +1,129 @@
+package app.imu.indoortrack.fusion;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import app.imu.indoortrack.sensor.SensorBias;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Replays the same walk sample by sample and in batched bursts, each sensor's FIFO flushed as a
+ * whole with the gyroscope's after the accelerometer's, as the sensor hub delivers them.
+ */
+public class SensorSynchronizerTest {
+
+    private static final int SECONDS = 20;
+    private static final long PERIOD_NANOS = 5000000L;
+    private static final long BURST_NANOS = 100000000L;
+    // the report latency the app batches with plus its margin
+    private static final long LATENCY_NANOS = BURST_NANOS + 20000000L;
+
+    private static final int COUNT = (int) (SECONDS * 1000000000L / PERIOD_NANOS);
+    private final long[] mAccTimestamps = new long[COUNT];
+    private final float[] mAccValues = new float[COUNT * 3];
+    private final long[] mGyroTimestamps = new long[COUNT];
+    private final float[] mGyroValues = new float[COUNT * 3];
+
+    public SensorSynchronizerTest() {
+        Random random = new Random(1);
+        for (int i = 0; i < COUNT; ++i) {
+            long t = 1000000000L + i * PERIOD_NANOS + (long) (random.nextDouble() * 1000000);
+            double phase = 2 * Math.PI * 1.9 * t / 1e9;
+            mAccTimestamps[i] = t;
+            mAccValues[i * 3] = (float) (0.3 * Math.cos(phase) + random.nextGaussian() * 0.1);
+            mAccValues[i * 3 + 1] = (float) (random.nextGaussian() * 0.1);
+            mAccValues[i * 3 + 2] = (float) (2 * Math.sin(phase) + random.nextGaussian() * 0.1);
+            // the gyroscope runs on its own, slightly later clock
+            mGyroTimestamps[i] = t + 2000000;
+            mGyroValues[i * 3] = (float) (random.nextGaussian() * 0.01);
+            mGyroValues[i * 3 + 1] = (float) (random.nextGaussian() * 0.01);
+            mGyroValues[i * 3 + 2] = (float) (0.2 * Math.sin(phase / 4) + random.nextGaussian() * 0.01);
+        }
+    }
+
+    private static SensorSynchronizer synchronizer(final StringBuilder out, long latencyNanos) {
+        FusionPipeline pipeline = new FusionPipeline(new SensorBias(0.05, 0.05, 0.05), new FusionListener() {
+            @Override
+            public void onCalibrationDone(SensorBias sensorBias) {}
+
+            @Override
+            public void onAcceleration(long timestamp, double accX, double accY, double accZ) {}
+
+            @Override
+            public void onDistance(long timestamp, double dist) {}
+
+            @Override
+            public void onPosition(long timestamp, double lat, double lon, double alt) {
+                out.append(timestamp).append(' ').append(lat).append(' ').append(lon).append('\n');
+            }
+        });
+        pipeline.setModel(FusionPipeline.Model.ORIENTATION);
+        pipeline.setFrame(FusionPipeline.Frame.LOCAL_ENU);
+        pipeline.setPredictRate(100);
+        SensorSynchronizer synchronizer = new SensorSynchronizer(pipeline);
+        synchronizer.setLatency(latencyNanos);
+        return synchronizer;
+    }
+
+    private static void offerFix(SensorSynchronizer synchronizer, int second) {
+        synchronizer.offerGpsFix(second * 1000000000L, 22.5726 + second * 1e-6, 88.3639, 10, 5);
+    }
+
+    /**
+     * Every sample on its own in timestamp order, a fix once the samples have passed each second.
+     */
+    private String inOrder(long latencyNanos) {
+        StringBuilder out = new StringBuilder();
+        SensorSynchronizer synchronizer = synchronizer(out, latencyNanos);
+        int second = 1;
+        for (int i = 0; i < COUNT; ++i) {
+            if (mAccTimestamps[i] >= (second + 1) * 1000000000L) offerFix(synchronizer, ++second);
+            synchronizer.onSample(mAccTimestamps[i], FusionCore.SENSOR_LINEAR_ACCELERATION,
+                    mAccValues[i * 3], mAccValues[i * 3 + 1], mAccValues[i * 3 + 2]);
+            synchronizer.onSample(mGyroTimestamps[i], FusionCore.SENSOR_GYROSCOPE,
+                    mGyroValues[i * 3], mGyroValues[i * 3 + 1], mGyroValues[i * 3 + 2]);
+        }
+        return out.toString();
+    }
+
+    /**
+     * A burst of accelerometer samples per report latency, then the gyroscope's for the same time.
+     */
+    private String inBursts(long latencyNanos) {
+        StringBuilder out = new StringBuilder();
+        SensorSynchronizer synchronizer = synchronizer(out, latencyNanos);
+        int[] types = new int[COUNT];
+        int second = 1;
+        int start = 0;
+        long burstEnd = mAccTimestamps[0] - mAccTimestamps[0] % BURST_NANOS + BURST_NANOS;
+        while (start < COUNT) {
+            int end = start;
+            while (end < COUNT && mAccTimestamps[end] < burstEnd) ++end;
+            if (burstEnd - BURST_NANOS >= (second + 1) * 1000000000L) offerFix(synchronizer, ++second);
+            Arrays.fill(types, FusionCore.SENSOR_LINEAR_ACCELERATION);
+            synchronizer.onSamples(mAccTimestamps, types, mAccValues, start, end - start);
+            Arrays.fill(types, FusionCore.SENSOR_GYROSCOPE);
+            synchronizer.onSamples(mGyroTimestamps, types, mGyroValues, start, end - start);
+            start = end;
+            burstEnd += BURST_NANOS;
+        }
+        return out.toString();
+    }
+
+    @Test
+    public void gyroscopeBurstAfterAccelerometerBurstWithinLatency() {
+        String expected = inOrder(LATENCY_NANOS);
+        assertNotEquals("", expected);
+        assertEquals(expected, inBursts(LATENCY_NANOS));
+    }
+
+    @Test
+    public void gyroscopeBurstAfterAccelerometerBurstWithoutLatency() {
+        // the grid runs ahead of the gyroscope's burst
+        assertNotEquals(inOrder(0), inBursts(0));
+    }
+}
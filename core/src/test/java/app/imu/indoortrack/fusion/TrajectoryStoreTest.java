@@ -0,0 +1,193 @@
+package app.imu.indoortrack.fusion;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Range queries and distances of the trajectory, before and after it has been simplified. The
+ * compacted store is checked against every point of the walk that was added to it.
+ */
+public class TrajectoryStoreTest {
+
+    private static final long INTERVAL = 10;
+    private static final double STEP = 0.1;
+    // crosses chunk and simplification window boundaries, compacts a few times
+    private static final int MAX_POINTS = 10000;
+    private static final int POINTS = 60000;
+    private static final double TOLERANCE = 1e-9;
+
+    private long[] mTimestamps;
+    private double[] mX;
+    private double[] mY;
+    private double[] mCumulative;
+
+    private static TrajectoryStore small() {
+        TrajectoryStore store = new TrajectoryStore();
+        store.add(10, 0, 0, 0, 0);
+        store.add(20, 1, 0, 0, 1);
+        // an earlier timestamp is stored as the previous one
+        store.add(15, 1, 3, 0, 3);
+        store.add(40, 1, 5, 0, 2);
+        return store;
+    }
+
+    /**
+     * A winding walk at constant speed, one point per {@link #INTERVAL}.
+     */
+    private TrajectoryStore walk() {
+        TrajectoryStore store = new TrajectoryStore(MAX_POINTS, TrajectoryStore.DEFAULT_TOLERANCE);
+        mTimestamps = new long[POINTS];
+        mX = new double[POINTS];
+        mY = new double[POINTS];
+        mCumulative = new double[POINTS];
+        double x = 0;
+        double y = 0;
+        double total = 0;
+        for (int i = 0; i < POINTS; ++i) {
+            double s = i * STEP;
+            double heading = 0.3 * Math.sin(s / 5) + s / 40;
+            double distance = i == 0 ? 0 : STEP;
+            x += distance * Math.cos(heading);
+            y += distance * Math.sin(heading);
+            total += distance;
+            mTimestamps[i] = 1000 + i * INTERVAL;
+            mX[i] = x;
+            mY[i] = y;
+            mCumulative[i] = total;
+            store.add(mTimestamps[i], x, y, 0, distance);
+        }
+        return store;
+    }
+
+    /**
+     * Index of the walk point with the timestamp.
+     */
+    private int walkIndex(long timestamp) { return (int) ((timestamp - 1000) / INTERVAL); }
+
+    @Test
+    public void ceilingIndex() {
+        TrajectoryStore store = small();
+        assertEquals(0, store.ceilingIndex(5));
+        assertEquals(0, store.ceilingIndex(10));
+        assertEquals(1, store.ceilingIndex(11));
+        assertEquals(1, store.ceilingIndex(20));
+        assertEquals(3, store.ceilingIndex(21));
+        assertEquals(3, store.ceilingIndex(40));
+        assertEquals(4, store.ceilingIndex(41));
+        assertEquals(0, new TrajectoryStore().ceilingIndex(0));
+    }
+
+    @Test
+    public void distance() {
+        TrajectoryStore store = small();
+        assertEquals(6, store.getTotalDistance(), 0);
+        assertEquals(0, store.getDistanceAt(0), 0);
+        assertEquals(0.5, store.getDistanceAt(15), TOLERANCE);
+        // the first of equal timestamps
+        assertEquals(1, store.getDistanceAt(20), 0);
+        assertEquals(5, store.getDistanceAt(30), TOLERANCE);
+        assertEquals(6, store.getDistanceAt(50), 0);
+        assertEquals(4.5, store.getDistance(15, 30), TOLERANCE);
+        assertEquals(0, new TrajectoryStore().getDistance(0, 100), 0);
+    }
+
+    @Test
+    public void points() {
+        TrajectoryStore store = small();
+        long[] timestamps = new long[4];
+        double[] xyz = new double[12];
+        assertEquals(3, store.getPoints(20, 40, timestamps, xyz));
+        assertArrayEquals(new long[] { 20, 20, 40, 0 }, timestamps);
+        assertEquals(3, xyz[4], 0);
+        assertEquals(5, xyz[7], 0);
+        assertEquals(0, store.getPoints(21, 39, timestamps, xyz));
+        assertEquals(0, store.getPoints(41, 100, timestamps, xyz));
+        // as many as fit, into either array alone
+        assertEquals(2, store.getPoints(0, 100, new long[2], null));
+        assertEquals(1, store.getPoints(0, 100, null, new double[5]));
+        assertEquals(4, store.getPoints(0, 100, null, null));
+    }
+
+    @Test
+    public void compactionKeepsWalkPoints() {
+        TrajectoryStore store = walk();
+        assertTrue(store.getCompactions() > 1);
+        assertTrue(store.size() < MAX_POINTS);
+        assertEquals(mCumulative[POINTS - 1], store.getTotalDistance(), 0);
+        assertEquals(mTimestamps[0], store.getTimestamp(0));
+        assertEquals(mTimestamps[POINTS - 1], store.getTimestamp(store.size() - 1));
+        for (int k = 0; k < store.size(); ++k) {
+            if (k > 0) assertTrue(store.getTimestamp(k) > store.getTimestamp(k - 1));
+            int i = walkIndex(store.getTimestamp(k));
+            assertEquals(mX[i], store.getX(k), 0);
+            assertEquals(mY[i], store.getY(k), 0);
+            assertEquals(mCumulative[i], store.getCumulativeDistance(k), 0);
+        }
+    }
+
+    @Test
+    public void compactionStaysWithinTolerance() {
+        TrajectoryStore store = walk();
+        // every round drops points within its tolerance of the points it keeps, and the
+        // tolerance at least doubles from round to round
+        double bound = 2 * store.getTolerance();
+        for (int k = 1; k < store.size(); ++k) {
+            int first = walkIndex(store.getTimestamp(k - 1));
+            int last = walkIndex(store.getTimestamp(k));
+            double dx = mX[last] - mX[first];
+            double dy = mY[last] - mY[first];
+            double lengthSq = dx * dx + dy * dy;
+            for (int i = first + 1; i < last; ++i) {
+                double px = mX[i] - mX[first];
+                double py = mY[i] - mY[first];
+                double t = Math.max(0, Math.min(1, (px * dx + py * dy) / lengthSq));
+                assertEquals(0, Math.hypot(px - t * dx, py - t * dy), bound);
+            }
+        }
+    }
+
+    @Test
+    public void rangesAcrossDroppedPoints() {
+        TrajectoryStore store = walk();
+        long[] timestamps = new long[MAX_POINTS];
+        for (int k = 1; k < store.size(); ++k) {
+            long before = store.getTimestamp(k - 1);
+            long after = store.getTimestamp(k);
+            if (after - before == INTERVAL) continue;
+            // a dropped point in between and the kept points around it
+            long dropped = before + INTERVAL;
+            assertEquals(k, store.ceilingIndex(dropped));
+            assertEquals(k - 1, store.ceilingIndex(before));
+            assertEquals(1, store.getPoints(dropped, after, timestamps, null));
+            assertEquals(after, timestamps[0]);
+            assertEquals(0, store.getPoints(dropped, after - 1, timestamps, null));
+            assertEquals(2, store.getPoints(before, after, timestamps, null));
+            // constant speed, so interpolating over the gap gives back the dropped distances
+            int i = walkIndex(dropped);
+            assertEquals(mCumulative[i], store.getDistanceAt(dropped), TOLERANCE);
+            assertEquals(mCumulative[i] - mCumulative[0], store.getDistance(mTimestamps[0], dropped), TOLERANCE);
+            assertEquals(mCumulative[POINTS - 1] - mCumulative[i],
+                    store.getDistance(dropped, mTimestamps[POINTS - 1]), TOLERANCE);
+        }
+    }
+
+    @Test
+    public void addAfterCompaction() {
+        TrajectoryStore store = walk();
+        int compactions = store.getCompactions();
+        long timestamp = mTimestamps[POINTS - 1];
+        store.add(timestamp + INTERVAL, 0, 0, 0, 2);
+        assertEquals(compactions, store.getCompactions());
+        assertEquals(mCumulative[POINTS - 1] + 2, store.getTotalDistance(), 0);
+        assertEquals(store.getTotalDistance(), store.getCumulativeDistance(store.size() - 1), 0);
+        assertEquals(1, store.getDistance(timestamp, timestamp + INTERVAL / 2), TOLERANCE);
+
+        store.clear();
+        assertEquals(0, store.size());
+        assertEquals(0, store.getTotalDistance(), 0);
+        assertEquals(TrajectoryStore.DEFAULT_TOLERANCE, store.getTolerance(), 0);
+    }
+}
@@ -0,0 +1,173 @@
+package app.imu.indoortrack.io;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Writes segmented logs, leaves them as a crash or a damaged card would, and checks what the
+ * reader returns and where the writer resumes appending.
+ */
+public class SegmentedLogTest {
+
+    private static final int FIELDS = 3;
+    private static final int RECORD_SIZE = SegmentFormat.recordSize(FIELDS);
+    private static final int RECORDS_PER_SEGMENT = 10;
+    private static final int SEGMENT_SIZE = SegmentFormat.HEADER_SIZE + RECORDS_PER_SEGMENT * RECORD_SIZE;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDir;
+
+    private SegmentedLogWriter open(int maxSegments) throws IOException {
+        if (mDir == null) mDir = new File(mFolder.getRoot(), "log");
+        return new SegmentedLogWriter(mDir, FIELDS, SEGMENT_SIZE, maxSegments);
+    }
+
+    private static long timestampOf(int record) { return 1000L + record; }
+
+    /**
+     * Writes records {@code from} up to {@code to}, exclusive.
+     */
+    private static void write(SegmentedLogWriter writer, int from, int to) throws IOException {
+        for (int i = from; i < to; ++i) writer.write(timestampOf(i), i, -i, i * 0.5);
+    }
+
+    private static List<Long> range(int from, int to) {
+        List<Long> timestamps = new ArrayList<>();
+        for (int i = from; i < to; ++i) timestamps.add(timestampOf(i));
+        return timestamps;
+    }
+
+    /**
+     * @return Timestamps of all records read, after checking their values
+     */
+    private List<Long> read() throws IOException {
+        List<Long> timestamps = new ArrayList<>();
+        SegmentedLogReader reader = new SegmentedLogReader(mDir);
+        try {
+            while (reader.next()) {
+                long i = reader.getTimestamp() - timestampOf(0);
+                assertEquals(i, reader.getValue(0), 0);
+                assertEquals(-i, reader.getValue(1), 0);
+                assertEquals(i * 0.5, reader.getValue(2), 0);
+                timestamps.add(reader.getTimestamp());
+            }
+        } finally {
+            reader.close();
+        }
+        return timestamps;
+    }
+
+    private File lastSegment() {
+        File[] segments = SegmentFormat.listSegments(mDir);
+        return segments[segments.length - 1];
+    }
+
+    @Test
+    public void rolloverAcrossSegments() throws IOException {
+        SegmentedLogWriter writer = open(SegmentedLogWriter.DEFAULT_MAX_SEGMENTS);
+        write(writer, 0, 35);
+        writer.close();
+        File[] segments = SegmentFormat.listSegments(mDir);
+        assertEquals(4, segments.length);
+        for (int i = 0; i < 3; ++i) assertEquals(SEGMENT_SIZE, segments[i].length());
+        assertEquals(SegmentFormat.HEADER_SIZE + 5 * RECORD_SIZE, segments[3].length());
+        assertEquals(range(0, 35), read());
+    }
+
+    @Test
+    public void rolloverDeletesExpiredSegments() throws IOException {
+        SegmentedLogWriter writer = open(2);
+        write(writer, 0, 35);
+        writer.close();
+        assertEquals(2, SegmentFormat.listSegments(mDir).length);
+        assertEquals(range(20, 35), read());
+    }
+
+    @Test
+    public void halfWrittenRecordIsTruncatedOnReopen() throws IOException {
+        SegmentedLogWriter writer = open(SegmentedLogWriter.DEFAULT_MAX_SEGMENTS);
+        write(writer, 0, 5);
+        writer.close();
+        // the process died halfway through the next record, within the mapped segment
+        RandomAccessFile file = new RandomAccessFile(lastSegment(), "rw");
+        file.seek(file.length());
+        file.writeLong(Long.reverseBytes(timestampOf(5)));
+        file.writeLong(Long.reverseBytes(Double.doubleToRawLongBits(5)));
+        file.setLength(SEGMENT_SIZE);
+        file.close();
+        assertEquals(range(0, 5), read());
+
+        writer = open(SegmentedLogWriter.DEFAULT_MAX_SEGMENTS);
+        write(writer, 5, 8);
+        writer.close();
+        assertEquals(1, SegmentFormat.listSegments(mDir).length);
+        assertEquals(SegmentFormat.HEADER_SIZE + 8 * RECORD_SIZE, lastSegment().length());
+        assertEquals(range(0, 8), read());
+    }
+
+    @Test
+    public void badChecksumInLastSegment() throws IOException {
+        SegmentedLogWriter writer = open(SegmentedLogWriter.DEFAULT_MAX_SEGMENTS);
+        write(writer, 0, 25);
+        writer.close();
+        // flip a bit in the checksum of the third record of the last segment
+        RandomAccessFile file = new RandomAccessFile(lastSegment(), "rw");
+        long checksum = SegmentFormat.HEADER_SIZE + 3 * RECORD_SIZE - 4;
+        file.seek(checksum);
+        int b = file.read();
+        file.seek(checksum);
+        file.write(b ^ 1);
+        file.close();
+        List<Long> expected = range(0, 22);
+        assertEquals(expected, read());
+
+        // the records after the damaged one are dropped, appending resumes in its place
+        writer = open(SegmentedLogWriter.DEFAULT_MAX_SEGMENTS);
+        write(writer, 25, 28);
+        writer.close();
+        expected.addAll(range(25, 28));
+        assertEquals(3, SegmentFormat.listSegments(mDir).length);
+        assertEquals(expected, read());
+    }
+
+    @Test
+    public void reopenAfterCrash() throws IOException {
+        SegmentedLogWriter crashed = open(SegmentedLogWriter.DEFAULT_MAX_SEGMENTS);
+        write(crashed, 0, 13);
+        // never closed, as when the process is killed: the segment keeps its mapped length
+        assertEquals(SEGMENT_SIZE, lastSegment().length());
+        assertEquals(range(0, 13), read());
+
+        SegmentedLogWriter writer = open(SegmentedLogWriter.DEFAULT_MAX_SEGMENTS);
+        write(writer, 13, 20);
+        writer.close();
+        assertEquals(2, SegmentFormat.listSegments(mDir).length);
+        assertEquals(range(0, 20), read());
+    }
+
+    @Test
+    public void reopenAfterCrashWithFullSegment() throws IOException {
+        SegmentedLogWriter crashed = open(SegmentedLogWriter.DEFAULT_MAX_SEGMENTS);
+        write(crashed, 0, RECORDS_PER_SEGMENT);
+
+        // no room left in the newest segment, the next one is started
+        SegmentedLogWriter writer = open(SegmentedLogWriter.DEFAULT_MAX_SEGMENTS);
+        write(writer, RECORDS_PER_SEGMENT, RECORDS_PER_SEGMENT + 2);
+        writer.close();
+        File[] segments = SegmentFormat.listSegments(mDir);
+        assertEquals(2, segments.length);
+        assertEquals(1, SegmentFormat.sequenceOf(segments[1]));
+        assertEquals(range(0, RECORDS_PER_SEGMENT + 2), read());
+    }
+}
@@ -0,0 +1,124 @@
+package app.imu.indoortrack.sensor;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the single-pass statistics with the two-pass standard deviation SensorBias used to
+ * compute over its stored readings.
+ */
+public class RunningStatisticsTest {
+
+    // relative, Welford and two-pass sum in different orders
+    private static final double TOLERANCE = 1e-12;
+
+    /**
+     * The former SensorBias.getStandardDeviation.
+     */
+    private static double twoPassStandardDeviation(List<Double> values) {
+        double sum = 0;
+        for (double value : values) sum += value;
+        int n = values.size();
+        double avg = sum / n;
+        sum = 0;
+        for (double value : values) sum += Math.pow(value - avg, 2);
+        return Math.sqrt(sum / (n - 1));
+    }
+
+    /**
+     * Window averages as calibration sees them: a bias plus noise.
+     */
+    private static List<Double> readings(int count, double bias, double noise, long seed) {
+        Random random = new Random(seed);
+        List<Double> values = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) values.add(bias + random.nextGaussian() * noise);
+        return values;
+    }
+
+    private static RunningStatistics fold(List<Double> values) {
+        RunningStatistics stats = new RunningStatistics();
+        for (double value : values) stats.add(value);
+        return stats;
+    }
+
+    @Test
+    public void matchesTwoPassStandardDeviation() {
+        for (int count : new int[] { 2, 3, 61, 1000, 100000 }) {
+            for (double bias : new double[] { 0, 0.02, -0.3, 9.81 }) {
+                List<Double> values = readings(count, bias, 0.05, count);
+                double expected = twoPassStandardDeviation(values);
+                assertEquals(count + " readings around " + bias, expected,
+                        fold(values).getStandardDeviation(), expected * TOLERANCE);
+            }
+        }
+    }
+
+    @Test
+    public void legacyHistoryMigratesToTheSameBias() {
+        List<Double> x = readings(61, 0.01, 0.04, 1);
+        List<Double> y = readings(61, -0.02, 0.05, 2);
+        List<Double> z = readings(61, 0.03, 0.09, 3);
+        SensorBias bias = new SensorBias(fold(x), fold(y), fold(z));
+        assertEquals(twoPassStandardDeviation(x), bias.getBiasX(), bias.getBiasX() * TOLERANCE);
+        assertEquals(twoPassStandardDeviation(y), bias.getBiasY(), bias.getBiasY() * TOLERANCE);
+        assertEquals(twoPassStandardDeviation(z), bias.getBiasZ(), bias.getBiasZ() * TOLERANCE);
+    }
+
+    @Test
+    public void mergeMatchesOneStream() {
+        List<Double> values = readings(1000, 0.5, 0.2, 4);
+        RunningStatistics first = fold(values.subList(0, 300));
+        first.merge(fold(values.subList(300, 1000)));
+        RunningStatistics all = fold(values);
+        assertEquals(all.getCount(), first.getCount());
+        assertEquals(all.getMean(), first.getMean(), 1e-15);
+        assertEquals(all.getVariance(), first.getVariance(), all.getVariance() * TOLERANCE);
+    }
+
+    @Test
+    public void windowCoversAllReadingsUntilFull() {
+        List<Double> values = readings(61, 0.02, 0.05, 5);
+        RunningStatistics stats = new RunningStatistics();
+        stats.setWindow(61);
+        for (double value : values) stats.add(value);
+        double expected = twoPassStandardDeviation(values);
+        assertEquals(expected, stats.getStandardDeviation(), expected * TOLERANCE);
+    }
+
+    @Test
+    public void windowFollowsDrift() {
+        RunningStatistics stats = new RunningStatistics();
+        stats.setWindow(20);
+        for (double value : readings(1000, 0, 0.05, 6)) stats.add(value);
+        for (double value : readings(200, 1, 0.2, 7)) stats.add(value);
+        assertEquals(20, stats.getCount());
+        assertEquals(1, stats.getMean(), 0.2);
+        assertEquals(0.2, stats.getStandardDeviation(), 0.1);
+    }
+
+    @Test
+    public void windowOfOneKeepsAVariance() {
+        RunningStatistics stats = new RunningStatistics();
+        stats.setWindow(1);
+        assertEquals(2, stats.getWindow());
+        for (double value : readings(100, 0.1, 0.05, 8)) stats.add(value);
+        assertEquals(2, stats.getCount());
+        assertTrue(stats.getStandardDeviation() >= 0);
+
+        SensorBias bias = new SensorBias();
+        bias.setWindow(1);
+        for (int i = 0; i < 10; ++i) bias.add(i, 2 * i, 3 * i);
+        assertTrue(!Double.isNaN(bias.getBiasX()) && !Double.isNaN(bias.getBiasZ()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeWindowIsRejected() {
+        new RunningStatistics().setWindow(-1);
+    }
+}
@@ -0,0 +1,141 @@
+package app.imu.indoortrack.sensor;
+
+import org.apache.commons.math3.filter.DefaultMeasurementModel;
+import org.apache.commons.math3.filter.DefaultProcessModel;
+import org.apache.commons.math3.filter.KalmanFilter;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the closed-form filters with the commons-math KalmanFilter they replaced, set up with
+ * the same A, B, H, Q, R and P0.
+ */
+public class SensorDataFilterTest {
+
+    // relative, the two paths round differently in the matrix products and the inversion of S
+    private static final double TOLERANCE = 1e-12;
+    private static final int STEPS = 1000;
+
+    private static KalmanFilter createReference(double gpsValue, double gpsNoise, double accNoise) {
+        RealMatrix a = new Array2DRowRealMatrix(new double[][] { { 1, 1 }, { 0, 1 } });
+        RealMatrix b = new Array2DRowRealMatrix(new double[][] { { 0.5 }, { 1 } });
+        RealMatrix h = new Array2DRowRealMatrix(new double[][] { { 1, 0 } });
+        RealMatrix q = new Array2DRowRealMatrix(new double[][] { { 0.25, 0.5 }, { 0.5, 1 } })
+                .scalarMultiply(accNoise * accNoise);
+        RealMatrix p0 = new Array2DRowRealMatrix(new double[][] { { 1, 1 }, { 1, 1 } });
+        RealMatrix r = new Array2DRowRealMatrix(new double[] { gpsNoise * gpsNoise });
+        return new KalmanFilter(new DefaultProcessModel(a, b, q, new ArrayRealVector(new double[] { gpsValue, 0 }), p0),
+                new DefaultMeasurementModel(h, r));
+    }
+
+    /**
+     *
+     * @param scale Magnitude of the position, the velocity comes out of its innovations
+     */
+    private static void assertClose(double expected, double actual, double scale) {
+        assertEquals(expected, actual, TOLERANCE * Math.max(1, Math.abs(scale)));
+    }
+
+    /**
+     * Walks {@link #STEPS} one second ticks of noisy ENU-sized and ECEF-sized inputs through both.
+     */
+    private static void compare(double origin, double gpsNoise, double accNoise) {
+        Random random = new Random(3);
+        KalmanFilter reference = createReference(origin, gpsNoise, accNoise);
+        SensorDataFilter filter = new SensorDataFilter(origin, gpsNoise, accNoise);
+        double truth = origin;
+        for (int i = 0; i < STEPS; ++i) {
+            double u = random.nextGaussian() * 0.3;
+            truth += 1.2;
+            double z = truth + random.nextGaussian() * 3;
+            reference.predict(new double[] { u });
+            reference.correct(new double[] { z });
+            double position = filter.estimate(u, z);
+            assertClose(reference.getStateEstimation()[0], position, truth);
+            assertClose(reference.getStateEstimation()[1], filter.getVelocity(), truth);
+            assertClose(reference.getErrorCovariance()[0][0], filter.getPositionVariance(), 1);
+        }
+    }
+
+    @Test
+    public void matchesCommonsMathInLocalFrame() {
+        // the app's noise, accuracy / 200 and the calibration standard deviation
+        compare(0, 5. / 200., 0.05);
+    }
+
+    @Test
+    public void matchesCommonsMathInEcef() {
+        compare(6378137, 5. / 200., 0.05);
+    }
+
+    @Test
+    public void matchesCommonsMathWithLargeNoise() {
+        compare(12, 5, 2);
+    }
+
+    @Test
+    public void passesGpsThroughWithoutNoise() {
+        SensorDataFilter filter = new SensorDataFilter(1, 0, 0);
+        assertEquals(42, filter.estimate(0.5, 42), 0);
+    }
+
+    @Test
+    public void fusedAxesMatchSingleAxes() {
+        double[] origin = { 1113194, 6338434, 0 };
+        double[] gpsNoise = { 0.025, 0.025, 0 };
+        double[] accNoise = { 0.04, 0.06, 0 };
+        FusedSensorDataFilter fused = new FusedSensorDataFilter(origin, gpsNoise, accNoise);
+        SensorDataFilter[] axes = new SensorDataFilter[FusedSensorDataFilter.AXES];
+        for (int i = 0; i < axes.length; ++i) axes[i] = new SensorDataFilter(origin[i], gpsNoise[i], accNoise[i]);
+        Random random = new Random(5);
+        double[] u = new double[3];
+        double[] z = new double[3];
+        double[] out = new double[3];
+        for (int step = 0; step < STEPS; ++step) {
+            for (int i = 0; i < 3; ++i) {
+                u[i] = random.nextGaussian() * 0.2;
+                z[i] = origin[i] + step + random.nextGaussian() * 4;
+            }
+            fused.estimate(u, z, out);
+            for (int i = 0; i < 3; ++i) {
+                // same operations in the same order, so bit for bit
+                assertEquals(axes[i].estimate(u[i], z[i]), out[i], 0);
+                assertEquals(axes[i].getPositionVariance(), fused.getPositionVariance(i), 0);
+            }
+        }
+    }
+
+    @Test
+    public void variableStepsMatchSingleAxes() {
+        double[] origin = { 3, -2, 1 };
+        double[] noise = { 2, 2, 3 };
+        FusedSensorDataFilter fused = new FusedSensorDataFilter(origin, noise, noise);
+        SensorDataFilter[] axes = new SensorDataFilter[3];
+        for (int i = 0; i < 3; ++i) axes[i] = new SensorDataFilter(origin[i], noise[i], noise[i]);
+        Random random = new Random(9);
+        double[] u = new double[3];
+        double[] z = new double[3];
+        for (int step = 0; step < STEPS; ++step) {
+            double dt = 0.005 + random.nextDouble() * 0.05;
+            for (int i = 0; i < 3; ++i) {
+                u[i] = random.nextGaussian();
+                axes[i].predict(u[i], dt);
+            }
+            fused.predict(u, dt);
+            if (step % 20 == 0) {
+                for (int i = 0; i < 3; ++i) {
+                    z[i] = random.nextGaussian() * 5;
+                    axes[i].correct(z[i]);
+                }
+                fused.correct(z);
+            }
+            for (int i = 0; i < 3; ++i) assertEquals(axes[i].getPosition(), fused.getPosition(i), 0);
+        }
+    }
+}